@@ -0,0 +1,151 @@
+package org.overcode250204.identity;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Cache cognitoSub → userId dùng chung cho GatewayHeaderAuthFilter của các service, thay cho việc gọi
+ * iamStub.getUserByCognitoSub trên mọi request.
+ *
+ * - LRU có giới hạn kích thước, mỗi entry có TTL.
+ * - Single-flight: nhiều request cùng miss một sub chỉ tạo một lần gọi IAM, các request còn lại chờ kết quả đó.
+ * - invalidateUser được gọi khi IAM phát event thay đổi user (xem IamUserEventListener). Mỗi lần invalidate
+ *   tăng generation, kết quả của lần load bắt đầu trước đó sẽ không được ghi vào cache.
+ * - Lỗi từ IAM không được cache.
+ *
+ * Metrics: identity.cache.requests{result=hit|miss}, identity.cache.hit.ratio, identity.cache.size
+ * và timer identity.lookup cho thời gian gọi IAM.
+ */
+@Slf4j
+public class CognitoIdentityResolver {
+    private final Function<String, String> loader;
+    private final long ttlNanos;
+    private final Map<String, CachedIdentity> cache;
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer lookupTimer;
+
+    private record CachedIdentity(String userId, long expiresAtNanos) {
+    }
+
+    public CognitoIdentityResolver(Function<String, String> loader, int maxSize, Duration ttl, MeterRegistry meterRegistry) {
+        this.loader = loader;
+        this.ttlNanos = ttl.toNanos();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedIdentity> eldest) {
+                return size() > maxSize;
+            }
+        };
+
+        this.hits = Counter.builder("identity.cache.requests").tag("result", "hit")
+                .description("Cognito sub lookups served from the local cache")
+                .register(meterRegistry);
+        this.misses = Counter.builder("identity.cache.requests").tag("result", "miss")
+                .description("Cognito sub lookups that needed IAM")
+                .register(meterRegistry);
+        this.lookupTimer = Timer.builder("identity.lookup")
+                .description("Latency of getUserByCognitoSub calls to IAM")
+                .register(meterRegistry);
+        Gauge.builder("identity.cache.hit.ratio", this, CognitoIdentityResolver::hitRatio)
+                .register(meterRegistry);
+        Gauge.builder("identity.cache.size", this, CognitoIdentityResolver::size)
+                .register(meterRegistry);
+    }
+
+    public String resolveUserId(String cognitoSub) {
+        CachedIdentity cached;
+        synchronized (cache) {
+            cached = cache.get(cognitoSub);
+            if (cached != null && cached.expiresAtNanos() - System.nanoTime() <= 0) {
+                cache.remove(cognitoSub);
+                cached = null;
+            }
+        }
+        if (cached != null) {
+            hits.increment();
+            return cached.userId();
+        }
+        misses.increment();
+
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(cognitoSub, pending);
+        if (existing != null) {
+            return await(existing);
+        }
+
+        long loadGeneration = generation.get();
+        try {
+            long start = System.nanoTime();
+            String userId = loader.apply(cognitoSub);
+            lookupTimer.record(Duration.ofNanos(System.nanoTime() - start));
+            synchronized (cache) {
+                if (generation.get() == loadGeneration) {
+                    cache.put(cognitoSub, new CachedIdentity(userId, System.nanoTime() + ttlNanos));
+                }
+            }
+            pending.complete(userId);
+            return userId;
+        } catch (RuntimeException e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(cognitoSub, pending);
+        }
+    }
+
+    /**
+     * Xoá mọi entry trỏ tới userId này (IAM event chỉ mang userId, không mang cognitoSub).
+     */
+    public void invalidateUser(String userId) {
+        synchronized (cache) {
+            generation.incrementAndGet();
+            cache.values().removeIf(identity -> identity.userId().equals(userId));
+        }
+        log.debug("[Identity] Invalidated cached identity for user {}", userId);
+    }
+
+    public void invalidateAll() {
+        synchronized (cache) {
+            generation.incrementAndGet();
+            cache.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private double hitRatio() {
+        double total = hits.count() + misses.count();
+        return total == 0 ? 0 : hits.count() / total;
+    }
+
+    private static String await(CompletableFuture<String> pending) {
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.overcode250204.identity;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Kiểm tra chữ ký X-Signature mà gateway gắn vào header (HMAC-SHA256 của "username|groups|privileges").
+ *
+ * Mỗi thread giữ sẵn một Mac đã init với secret, không phải Mac.getInstance + init lại cho từng request
+ * như HmacUtils. So sánh chữ ký theo constant time.
+ */
+public class GatewaySignatureVerifier {
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final ThreadLocal<Mac> macs;
+
+    public GatewaySignatureVerifier(String secret) {
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        // Init thử một lần để secret sai cấu hình lỗi ngay lúc khởi động
+        newMac(key);
+        this.macs = ThreadLocal.withInitial(() -> newMac(key));
+    }
+
+    public boolean verify(String username, String groups, String privileges, String signature) {
+        if (signature == null) {
+            return false;
+        }
+        byte[] provided;
+        try {
+            provided = Base64.getDecoder().decode(signature);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        String data = username + "|" + groups + "|" + privileges;
+        // doFinal reset Mac về trạng thái vừa init, dùng lại được cho request sau
+        byte[] expected = macs.get().doFinal(data.getBytes(StandardCharsets.UTF_8));
+        return MessageDigest.isEqual(expected, provided);
+    }
+
+    private static Mac newMac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to initialise HMAC-SHA256", e);
+        }
+    }
+}
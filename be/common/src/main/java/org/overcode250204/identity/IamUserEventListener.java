@@ -0,0 +1,51 @@
+package org.overcode250204.identity;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.kafka.annotation.KafkaListener;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Nghe các event user của IAM (topic iam.monitoring) để xoá identity đã cache trong CognitoIdentityResolver.
+ *
+ * Mỗi instance dùng một consumer group riêng để mọi replica đều nhận event. Tên group cố định theo instance
+ * (host + port, hoặc app.identity.consumer-group) nên khởi động lại dùng lại group cũ, không để lại một group
+ * mồ côi sau mỗi lần restart như khi dùng random uuid. Group mới chỉ đọc từ offset mới nhất: cache vừa khởi động
+ * thì rỗng nên không cần replay event cũ (group cũ có thể replay vài event, chỉ làm xoá cache thừa).
+ */
+@Slf4j
+public class IamUserEventListener {
+    private static final Set<String> USER_EVENT_TYPES = Set.of(
+            "IAM_USER_UPDATED",
+            "IAM_DISABLE_USER",
+            "IAM_ENABLE_USER"
+    );
+
+    private final CognitoIdentityResolver identityResolver;
+
+    public IamUserEventListener(CognitoIdentityResolver identityResolver) {
+        this.identityResolver = identityResolver;
+    }
+
+    @KafkaListener(
+            topics = "${app.identity.invalidation-topic:iam.monitoring}",
+            groupId = "${app.identity.consumer-group:${spring.application.name}-identity-${spring.cloud.client.hostname:${HOSTNAME:localhost}}-${server.port:8080}}",
+            properties = "auto.offset.reset=latest"
+    )
+    public void onIamEvent(Map<String, Object> message) {
+        String eventType = (String) message.get("eventType");
+        if (eventType == null || !USER_EVENT_TYPES.contains(eventType)) {
+            return;
+        }
+        Object payload = message.get("payload");
+        Object userId = payload instanceof Map<?, ?> data ? data.get("aggregateId") : null;
+        if (userId == null) {
+            // Không biết user nào thay đổi thì xoá toàn bộ, lần request sau sẽ load lại từ IAM
+            log.warn("[Identity] {} event without aggregateId. Clearing identity cache.", eventType);
+            identityResolver.invalidateAll();
+            return;
+        }
+        identityResolver.invalidateUser(userId.toString());
+    }
+}
@@ -0,0 +1,51 @@
+package org.overcode250204.identity;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import net.devh.boot.grpc.client.inject.GrpcClient;
+import org.overcode250204.common.grpc.CognitoSub;
+import org.overcode250204.common.grpc.IamServiceGrpc;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.AutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+
+import java.time.Duration;
+
+/**
+ * Xác thực request từ gateway dùng chung cho các service phía sau gateway, bật bằng app.identity.enabled:
+ * GatewaySignatureVerifier (hmac-secret), CognitoIdentityResolver tra userId qua IAM gRPC ("iam-service")
+ * và IamUserEventListener xoá cache khi IAM báo user thay đổi.
+ */
+@AutoConfiguration
+@ConditionalOnClass(GrpcClient.class)
+@ConditionalOnProperty(prefix = "app.identity", name = "enabled", havingValue = "true")
+public class IdentityAutoConfiguration {
+    @GrpcClient("iam-service")
+    private IamServiceGrpc.IamServiceBlockingStub iamStub;
+
+    @Bean
+    @ConditionalOnMissingBean
+    public GatewaySignatureVerifier gatewaySignatureVerifier(@Value("${hmac-secret}") String hmacSecret) {
+        return new GatewaySignatureVerifier(hmacSecret);
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public CognitoIdentityResolver cognitoIdentityResolver(MeterRegistry meterRegistry,
+                                                           @Value("${app.identity.cache.max-size:10000}") int cacheMaxSize,
+                                                           @Value("${app.identity.cache.ttl:PT10M}") Duration cacheTtl) {
+        return new CognitoIdentityResolver(
+                cognitoSub -> iamStub.getUserByCognitoSub(
+                        CognitoSub.newBuilder().setCognitoSub(cognitoSub).build()
+                ).getUserId(),
+                cacheMaxSize, cacheTtl, meterRegistry);
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public IamUserEventListener iamUserEventListener(CognitoIdentityResolver cognitoIdentityResolver) {
+        return new IamUserEventListener(cognitoIdentityResolver);
+    }
+}
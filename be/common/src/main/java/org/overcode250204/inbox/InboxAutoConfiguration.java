@@ -0,0 +1,81 @@
+package org.overcode250204.inbox;
+
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.AutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.kafka.ConcurrentKafkaListenerContainerFactoryConfigurer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
+import org.springframework.kafka.listener.DefaultErrorHandler;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.backoff.FixedBackOff;
+
+import java.time.Duration;
+
+/**
+ * Inbox dùng chung cho các service có bảng inbox trên Postgres, bật bằng app.inbox.table.
+ * Gồm InboxDeduplicator, bước migrate bảng inbox (xoá dòng trùng + unique index trên event_id) chạy khi mọi
+ * singleton đã khởi tạo xong (sau ddl-auto, trước khi listener container start), batch container factory
+ * cho các inbox listener và job prune theo TTL.
+ */
+@AutoConfiguration(afterName = {
+        "org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration",
+        "org.springframework.boot.autoconfigure.kafka.KafkaAutoConfiguration"
+})
+@ConditionalOnClass(JdbcTemplate.class)
+@ConditionalOnProperty(prefix = "app.inbox", name = "table")
+public class InboxAutoConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean
+    public InboxDeduplicator inboxDeduplicator(JdbcTemplate jdbcTemplate,
+                                               PlatformTransactionManager transactionManager,
+                                               @Value("${app.inbox.table}") String inboxTable,
+                                               @Value("${app.inbox.recent-cache-size:10000}") int recentCacheSize) {
+        return new InboxDeduplicator(jdbcTemplate, transactionManager, inboxTable, recentCacheSize);
+    }
+
+    @Bean
+    public SmartInitializingSingleton inboxSchemaMigration(InboxDeduplicator inboxDeduplicator) {
+        return inboxDeduplicator::migrateSchema;
+    }
+
+    /**
+     * Container factory cho các inbox listener chạy batch mode.
+     * @RetryableTopic không hỗ trợ batch listener, nên retry + DLT do DefaultErrorHandler đảm nhận
+     * (vẫn đẩy vào topic "<topic>-dlt" như trước).
+     */
+    @Bean
+    @ConditionalOnMissingBean(name = "batchKafkaListenerContainerFactory")
+    public ConcurrentKafkaListenerContainerFactory<Object, Object> batchKafkaListenerContainerFactory(
+            ConcurrentKafkaListenerContainerFactoryConfigurer configurer,
+            ConsumerFactory<Object, Object> consumerFactory,
+            KafkaTemplate<String, Object> kafkaTemplate,
+            @Value("${app.inbox.retry.attempts:5}") long retryAttempts,
+            @Value("${app.inbox.retry.backoff-ms:1000}") long retryBackoffMs) {
+        ConcurrentKafkaListenerContainerFactory<Object, Object> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        configurer.configure(factory, consumerFactory);
+        factory.setBatchListener(true);
+
+        DeadLetterPublishingRecoverer recoverer = new DeadLetterPublishingRecoverer(kafkaTemplate,
+                (record, ex) -> new TopicPartition(record.topic() + "-dlt", -1));
+        factory.setCommonErrorHandler(new DefaultErrorHandler(recoverer, new FixedBackOff(retryBackoffMs, retryAttempts - 1)));
+        return factory;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public InboxPruningJob inboxPruningJob(InboxDeduplicator inboxDeduplicator,
+                                           @Value("${app.inbox.retention:P7D}") Duration retention,
+                                           @Value("${app.inbox.prune-chunk-size:5000}") int chunkSize) {
+        return new InboxPruningJob(inboxDeduplicator, retention, chunkSize);
+    }
+}
@@ -0,0 +1,221 @@
+package org.overcode250204.inbox;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.kafka.listener.BatchListenerFailedException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Idempotency store dùng chung cho các Kafka batch listener.
+ * Mỗi poll batch chỉ tốn một câu INSERT ... ON CONFLICT (event_id) DO NOTHING RETURNING event_id
+ * thay cho existsByEventId + save cho từng message; chỉ lưu event_id, không lưu payload.
+ *
+ * Phía trước DB là một LRU có giới hạn các event_id vừa commit, để redelivery sau rebalance
+ * không phải xuống DB. Không dùng bloom filter vì false positive sẽ làm mất event.
+ *
+ * Bảng inbox cần unique index trên event_id: migrateSchema xoá các dòng trùng event_id còn sót từ trước
+ * rồi mới tạo index (ddl-auto không tạo được unique index trên dữ liệu đang trùng). InboxAutoConfiguration
+ * gọi migrateSchema trước khi các listener bắt đầu nhận message.
+ */
+@Slf4j
+public class InboxDeduplicator {
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final String claimSql;
+    private final String pruneSql;
+    private final String inboxTable;
+    private final Map<UUID, Boolean> recentlyProcessed;
+
+    public InboxDeduplicator(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                             String inboxTable, int recentCapacity) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.inboxTable = inboxTable;
+        this.claimSql = "INSERT INTO " + inboxTable + " (id, event_id, processed_at) "
+                + "SELECT u.id, u.event_id, now() FROM unnest(?, ?) AS u(id, event_id) "
+                + "ON CONFLICT (event_id) DO NOTHING RETURNING event_id";
+        this.pruneSql = "DELETE FROM " + inboxTable + " WHERE id IN "
+                + "(SELECT id FROM " + inboxTable + " WHERE processed_at < ? LIMIT ?)";
+        this.recentlyProcessed = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+                return size() > recentCapacity;
+            }
+        });
+    }
+
+    /**
+     * Đọc eventId từ message: thiếu hoặc sai định dạng thì trả null (record được xử lý không qua dedup)
+     * thay vì ném lỗi làm hỏng cả poll batch.
+     */
+    public static UUID parseEventId(Object value) {
+        if (value == null) {
+            log.warn("[Inbox] Message without eventId, processing without deduplication");
+            return null;
+        }
+        try {
+            return UUID.fromString(value.toString());
+        } catch (IllegalArgumentException e) {
+            log.warn("[Inbox] Malformed eventId '{}', processing without deduplication", value);
+            return null;
+        }
+    }
+
+    /**
+     * Xử lý một poll batch trong một transaction: claim toàn bộ event_id bằng một câu SQL,
+     * rồi chỉ gọi handler cho các record vừa claim được (record trùng trong batch chỉ chạy một lần).
+     * Record có event_id null được chuyển thẳng cho handler.
+     *
+     * Nếu batch lỗi, transaction bị rollback và batch được chạy lại từng record một (mỗi record một
+     * transaction); record đầu tiên vẫn lỗi được báo bằng BatchListenerFailedException để error handler
+     * commit offset các record trước nó và retry / đẩy sang DLT đúng record đó.
+     */
+    public <T> void process(List<T> records, Function<T, UUID> eventIdOf, InboxRecordHandler<T> handler) {
+        if (records.isEmpty()) {
+            return;
+        }
+        try {
+            remember(transactionTemplate.execute(status -> handleInTransaction(records, eventIdOf, handler)));
+        } catch (RuntimeException batchFailure) {
+            log.warn("[Inbox] Batch of {} records failed ({}). Retrying record by record.",
+                    records.size(), batchFailure.getMessage());
+            for (int i = 0; i < records.size(); i++) {
+                List<T> single = List.of(records.get(i));
+                try {
+                    remember(transactionTemplate.execute(status -> handleInTransaction(single, eventIdOf, handler)));
+                } catch (RuntimeException e) {
+                    throw new BatchListenerFailedException("Failed to process inbox record", e, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tạo unique index uk_<bảng>_event_id nếu chưa có. Các dòng trùng event_id được xoá trước, giữ dòng xử lý
+     * sớm nhất. Bảng bị khoá ghi trong lúc chạy để replica cũ không chèn thêm dòng trùng giữa hai bước,
+     * và để các replica khởi động cùng lúc chạy lần lượt.
+     */
+    public void migrateSchema() {
+        String indexName = "uk_" + inboxTable + "_event_id";
+        transactionTemplate.executeWithoutResult(status -> {
+            if (indexExists(indexName)) {
+                return;
+            }
+            jdbcTemplate.execute("LOCK TABLE " + inboxTable + " IN SHARE ROW EXCLUSIVE MODE");
+            if (indexExists(indexName)) {
+                return;
+            }
+            int removed = jdbcTemplate.update("DELETE FROM " + inboxTable + " WHERE id IN ("
+                    + "SELECT id FROM (SELECT id, row_number() OVER (PARTITION BY event_id ORDER BY processed_at, id) AS rn "
+                    + "FROM " + inboxTable + " WHERE event_id IS NOT NULL) ranked WHERE rn > 1)");
+            if (removed > 0) {
+                log.warn("[Inbox] Removed {} duplicate rows from {} before creating {}.", removed, inboxTable, indexName);
+            }
+            jdbcTemplate.execute("CREATE UNIQUE INDEX " + indexName + " ON " + inboxTable + " (event_id)");
+            log.info("[Inbox] Created unique index {} on {}.", indexName, inboxTable);
+        });
+    }
+
+    private boolean indexExists(String indexName) {
+        Boolean exists = jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, indexName);
+        return Boolean.TRUE.equals(exists);
+    }
+
+    /**
+     * Xoá các dòng inbox cũ hơn retention theo từng chunk (mỗi chunk một statement auto-commit).
+     * Retention phải dài hơn khoảng thời gian Kafka còn có thể giao lại message.
+     */
+    public int prune(Duration retention, int chunkSize) {
+        Timestamp cutoff = Timestamp.from(Instant.now().minus(retention));
+        int total = 0;
+        int deleted;
+        do {
+            deleted = jdbcTemplate.update(pruneSql, cutoff, chunkSize);
+            total += deleted;
+        } while (deleted == chunkSize);
+        return total;
+    }
+
+    private <T> List<UUID> handleInTransaction(List<T> records, Function<T, UUID> eventIdOf,
+                                               InboxRecordHandler<T> handler) {
+        List<UUID> eventIds = new ArrayList<>(records.size());
+        Set<UUID> candidates = new LinkedHashSet<>();
+        for (T record : records) {
+            UUID eventId = eventIdOf.apply(record);
+            eventIds.add(eventId);
+            if (eventId != null && !recentlyProcessed.containsKey(eventId)) {
+                candidates.add(eventId);
+            }
+        }
+
+        Set<UUID> claimed = claim(candidates);
+        List<UUID> processed = new ArrayList<>(claimed.size());
+        for (int i = 0; i < records.size(); i++) {
+            UUID eventId = eventIds.get(i);
+            if (eventId != null && !claimed.remove(eventId)) {
+                log.info("[Inbox] Event {} already processed. Skipping.", eventId);
+                continue;
+            }
+            try {
+                handler.handle(records.get(i));
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            if (eventId != null) {
+                processed.add(eventId);
+            }
+        }
+        return processed;
+    }
+
+    private Set<UUID> claim(Collection<UUID> eventIds) {
+        if (eventIds.isEmpty()) {
+            return new HashSet<>();
+        }
+        UUID[] rowIds = new UUID[eventIds.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = UUID.randomUUID();
+        }
+        UUID[] ids = eventIds.toArray(UUID[]::new);
+
+        List<UUID> inserted = jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(claimSql);
+            Array rowIdArray = connection.createArrayOf("uuid", rowIds);
+            Array eventIdArray = connection.createArrayOf("uuid", ids);
+            statement.setArray(1, rowIdArray);
+            statement.setArray(2, eventIdArray);
+            return statement;
+        }, (rs, rowNum) -> rs.getObject(1, UUID.class));
+        return new HashSet<>(inserted);
+    }
+
+    // Chỉ ghi nhớ sau khi transaction đã commit, để batch bị rollback vẫn được xử lý lại
+    private void remember(List<UUID> eventIds) {
+        if (eventIds == null) {
+            return;
+        }
+        for (UUID eventId : eventIds) {
+            recentlyProcessed.put(eventId, Boolean.TRUE);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.overcode250204.inbox;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.time.Duration;
+
+@Slf4j
+public class InboxPruningJob {
+
+    private final InboxDeduplicator inboxDeduplicator;
+    private final Duration retention;
+    private final int chunkSize;
+
+    public InboxPruningJob(InboxDeduplicator inboxDeduplicator, Duration retention, int chunkSize) {
+        this.inboxDeduplicator = inboxDeduplicator;
+        this.retention = retention;
+        this.chunkSize = chunkSize;
+    }
+
+    @Scheduled(fixedDelayString = "${app.inbox.prune-interval-ms:3600000}")
+    public void pruneExpired() {
+        int deleted = inboxDeduplicator.prune(retention, chunkSize);
+        if (deleted > 0) {
+            log.info("[Inbox] Pruned {} inbox events older than {}.", deleted, retention);
+        }
+    }
+}
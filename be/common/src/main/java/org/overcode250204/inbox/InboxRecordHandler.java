@@ -0,0 +1,6 @@
+package org.overcode250204.inbox;
+
+@FunctionalInterface
+public interface InboxRecordHandler<T> {
+    void handle(T record) throws Exception;
+}
@@ -0,0 +1,162 @@
+package org.overcode250204.identity;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Cache cognitoSub → userId: TTL, single-flight khi nhiều request cùng miss, và generation guard khi
+ * IAM báo user thay đổi trong lúc đang load.
+ */
+class CognitoIdentityResolverTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicInteger loads = new AtomicInteger();
+    private final ExecutorService pool = Executors.newFixedThreadPool(8);
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private CognitoIdentityResolver resolver(Function<String, String> loader, Duration ttl) {
+        return new CognitoIdentityResolver(sub -> {
+            loads.incrementAndGet();
+            return loader.apply(sub);
+        }, 100, ttl, meterRegistry);
+    }
+
+    private double requests(String result) {
+        return meterRegistry.counter("identity.cache.requests", "result", result).count();
+    }
+
+    @Test
+    void cachedIdentityIsServedUntilTtlExpires() throws Exception {
+        CognitoIdentityResolver resolver = resolver(sub -> "user-" + sub, Duration.ofMillis(200));
+
+        assertEquals("user-a", resolver.resolveUserId("a"));
+        assertEquals("user-a", resolver.resolveUserId("a"));
+        assertEquals(1, loads.get());
+        assertEquals(1, requests("hit"));
+
+        Thread.sleep(300);
+
+        assertEquals("user-a", resolver.resolveUserId("a"));
+        assertEquals(2, loads.get());
+        assertEquals(2, requests("miss"));
+    }
+
+    @Test
+    void concurrentMissesForTheSameSubShareOneLoad() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CognitoIdentityResolver resolver = resolver(sub -> {
+            loading.countDown();
+            await(release);
+            return "user-" + sub;
+        }, Duration.ofMinutes(10));
+
+        List<Future<String>> results = new ArrayList<>();
+        results.add(pool.submit(() -> resolver.resolveUserId("a")));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 7; i++) {
+            results.add(pool.submit(() -> resolver.resolveUserId("a")));
+        }
+        // Các request sau đã miss và đang chờ lần load đầu
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (requests("miss") < 8 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        for (Future<String> result : results) {
+            assertEquals("user-a", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1, resolver.size());
+    }
+
+    @Test
+    void failedLoadIsSharedButNotCached() throws Exception {
+        AtomicInteger attempt = new AtomicInteger();
+        CognitoIdentityResolver resolver = resolver(sub -> {
+            if (attempt.incrementAndGet() == 1) {
+                throw new IllegalStateException("IAM unavailable");
+            }
+            return "user-" + sub;
+        }, Duration.ofMinutes(10));
+
+        assertThrows(IllegalStateException.class, () -> resolver.resolveUserId("a"));
+        assertEquals(0, resolver.size());
+        assertEquals("user-a", resolver.resolveUserId("a"));
+    }
+
+    @Test
+    void invalidationDuringALoadKeepsTheStaleResultOutOfTheCache() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger version = new AtomicInteger();
+        CognitoIdentityResolver resolver = resolver(sub -> {
+            if (version.get() == 0) {
+                loading.countDown();
+                await(release);
+                return "old-user";
+            }
+            return "new-user";
+        }, Duration.ofMinutes(10));
+
+        Future<String> stale = pool.submit(() -> resolver.resolveUserId("a"));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        // IAM đổi user trong lúc lần load cũ còn chạy
+        version.set(1);
+        resolver.invalidateUser("old-user");
+        release.countDown();
+
+        // Request đang chờ vẫn nhận kết quả của nó, nhưng kết quả đó không vào cache
+        assertEquals("old-user", stale.get(5, TimeUnit.SECONDS));
+        assertEquals(0, resolver.size());
+        assertEquals("new-user", resolver.resolveUserId("a"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void invalidateUserRemovesEverySubOfThatUser() {
+        CognitoIdentityResolver resolver = resolver(sub -> sub.startsWith("a") ? "user-a" : "user-b", Duration.ofMinutes(10));
+        resolver.resolveUserId("a1");
+        resolver.resolveUserId("a2");
+        resolver.resolveUserId("b1");
+
+        resolver.invalidateUser("user-a");
+
+        assertEquals(1, resolver.size());
+        resolver.resolveUserId("b1");
+        assertEquals(3, loads.get());
+
+        resolver.invalidateAll();
+        assertEquals(0, resolver.size());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("latch timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
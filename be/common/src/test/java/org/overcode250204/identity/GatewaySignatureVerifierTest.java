@@ -0,0 +1,71 @@
+package org.overcode250204.identity;
+
+import org.junit.jupiter.api.Test;
+import org.overcode250204.utils.HmacUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Chữ ký X-Signature của gateway: khớp với HmacUtils (cách gateway ký), từ chối dữ liệu / secret / chữ ký sai,
+ * và Mac giữ theo thread dùng lại được giữa các request.
+ */
+class GatewaySignatureVerifierTest {
+
+    private static final String SECRET = "gateway-secret";
+    private final GatewaySignatureVerifier verifier = new GatewaySignatureVerifier(SECRET);
+
+    private static String sign(String username, String groups, String privileges, String secret) {
+        return HmacUtils.hmacSha256(username + "|" + groups + "|" + privileges, secret);
+    }
+
+    @Test
+    void acceptsTheSignatureProducedByTheGateway() {
+        String signature = sign("sub-1", "ADMIN", "READ,WRITE", SECRET);
+
+        assertTrue(verifier.verify("sub-1", "ADMIN", "READ,WRITE", signature));
+        // Mac được reset sau doFinal, lần verify sau cho cùng kết quả
+        assertTrue(verifier.verify("sub-1", "ADMIN", "READ,WRITE", signature));
+    }
+
+    @Test
+    void rejectsTamperedHeadersAndForeignSecrets() {
+        String signature = sign("sub-1", "LAB_USER", "READ", SECRET);
+
+        assertFalse(verifier.verify("sub-1", "ADMIN", "READ", signature));
+        assertFalse(verifier.verify("sub-2", "LAB_USER", "READ", signature));
+        assertFalse(verifier.verify("sub-1", "LAB_USER", "READ", sign("sub-1", "LAB_USER", "READ", "other-secret")));
+    }
+
+    @Test
+    void rejectsMissingOrMalformedSignatures() {
+        assertFalse(verifier.verify("sub-1", "ADMIN", "READ", null));
+        assertFalse(verifier.verify("sub-1", "ADMIN", "READ", "not base64 !"));
+        assertFalse(verifier.verify("sub-1", "ADMIN", "READ", ""));
+    }
+
+    @Test
+    void verifiesConcurrentRequestsIndependently() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                String user = "sub-" + i;
+                boolean valid = i % 2 == 0;
+                String signature = sign(user, "ADMIN", "READ", valid ? SECRET : "other-secret");
+                results.add(pool.submit(() -> verifier.verify(user, "ADMIN", "READ", signature) == valid));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
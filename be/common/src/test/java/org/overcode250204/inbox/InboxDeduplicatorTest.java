@@ -0,0 +1,180 @@
+package org.overcode250204.inbox;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+import org.springframework.kafka.listener.BatchListenerFailedException;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * InboxDeduplicator trên Postgres thật: claim trùng trong một batch và giữa các batch / replica,
+ * migrateSchema trên bảng đang có dòng trùng, và prune theo TTL.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class InboxDeduplicatorTest {
+
+    @Container
+    static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    private record Message(UUID eventId, String body) {
+    }
+
+    private static final Function<Message, UUID> EVENT_ID = Message::eventId;
+
+    private JdbcTemplate jdbcTemplate;
+    private DataSourceTransactionManager transactionManager;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        SimpleDriverDataSource dataSource = new SimpleDriverDataSource(new org.postgresql.Driver(),
+                POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword());
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionManager = new DataSourceTransactionManager(dataSource);
+        // Bảng như Hibernate tạo từ entity InboxEvent, chưa có unique index
+        jdbcTemplate.execute("DROP TABLE IF EXISTS inbox_event");
+        jdbcTemplate.execute("CREATE TABLE inbox_event (id uuid PRIMARY KEY, event_id uuid, payload text, "
+                + "processed_at timestamp(6) with time zone)");
+    }
+
+    private InboxDeduplicator deduplicator() {
+        InboxDeduplicator deduplicator = new InboxDeduplicator(jdbcTemplate, transactionManager, "inbox_event", 100);
+        deduplicator.migrateSchema();
+        return deduplicator;
+    }
+
+    private void insertRow(UUID eventId, Instant processedAt) {
+        jdbcTemplate.update("INSERT INTO inbox_event (id, event_id, processed_at) VALUES (?, ?, ?)",
+                UUID.randomUUID(), eventId, Timestamp.from(processedAt));
+    }
+
+    private int rows(UUID eventId) {
+        return jdbcTemplate.queryForObject("SELECT count(*) FROM inbox_event WHERE event_id = ?", Integer.class, eventId);
+    }
+
+    @Test
+    void duplicatesWithinABatchAreHandledOnce() {
+        InboxDeduplicator deduplicator = deduplicator();
+        UUID a = UUID.randomUUID();
+        UUID b = UUID.randomUUID();
+        List<String> handled = new ArrayList<>();
+
+        deduplicator.process(List.of(new Message(a, "a1"), new Message(b, "b1"), new Message(a, "a2"), new Message(null, "n")),
+                EVENT_ID, message -> handled.add(message.body()));
+
+        // Record đầu tiên của mỗi event_id được xử lý; record không có event_id luôn được xử lý
+        assertEquals(List.of("a1", "b1", "n"), handled);
+        assertEquals(1, rows(a));
+        assertEquals(1, rows(b));
+    }
+
+    @Test
+    void parseEventIdReturnsNullForMissingOrMalformedIds() {
+        UUID id = UUID.randomUUID();
+
+        assertEquals(id, InboxDeduplicator.parseEventId(id.toString()));
+        assertNull(InboxDeduplicator.parseEventId(null));
+        assertNull(InboxDeduplicator.parseEventId("not-a-uuid"));
+    }
+
+    @Test
+    void duplicatesAcrossBatchesAndReplicasAreSkipped() {
+        InboxDeduplicator replicaA = deduplicator();
+        InboxDeduplicator replicaB = deduplicator();
+        UUID a = UUID.randomUUID();
+        UUID b = UUID.randomUUID();
+        UUID c = UUID.randomUUID();
+        List<String> handled = new ArrayList<>();
+
+        replicaA.process(List.of(new Message(a, "a"), new Message(b, "b")), EVENT_ID, message -> handled.add(message.body()));
+        // Redelivery trên cùng replica (LRU) và trên replica khác sau rebalance (ON CONFLICT trong DB)
+        replicaA.process(List.of(new Message(b, "b-again")), EVENT_ID, message -> handled.add(message.body()));
+        replicaB.process(List.of(new Message(a, "a-again"), new Message(c, "c")), EVENT_ID, message -> handled.add(message.body()));
+
+        assertEquals(List.of("a", "b", "c"), handled);
+        assertEquals(1, rows(a));
+    }
+
+    @Test
+    void failedBatchIsRolledBackAndReplayedRecordByRecord() {
+        InboxDeduplicator deduplicator = deduplicator();
+        UUID ok = UUID.randomUUID();
+        UUID poison = UUID.randomUUID();
+        List<String> handled = new ArrayList<>();
+
+        BatchListenerFailedException ex = assertThrows(BatchListenerFailedException.class, () ->
+                deduplicator.process(List.of(new Message(ok, "ok"), new Message(poison, "poison")), EVENT_ID, message -> {
+                    if (message.eventId().equals(poison)) {
+                        throw new IllegalStateException("boom");
+                    }
+                    handled.add(message.body());
+                }));
+
+        assertEquals(1, ex.getIndex());
+        // "ok" chạy trong batch (rollback) rồi chạy lại và commit riêng; "poison" không để lại dòng claim
+        assertEquals(List.of("ok", "ok"), handled);
+        assertEquals(1, rows(ok));
+        assertEquals(0, rows(poison));
+    }
+
+    @Test
+    void migrateSchemaRemovesExistingDuplicatesBeforeCreatingTheUniqueIndex() {
+        UUID duplicated = UUID.randomUUID();
+        UUID single = UUID.randomUUID();
+        Instant now = Instant.now();
+        insertRow(duplicated, now.minusSeconds(60));
+        insertRow(duplicated, now);
+        insertRow(duplicated, now.plusSeconds(60));
+        insertRow(single, now);
+
+        InboxDeduplicator deduplicator = deduplicator();
+        // Chạy lại (replica khác khởi động) không làm gì thêm
+        deduplicator.migrateSchema();
+
+        assertEquals(1, rows(duplicated));
+        assertEquals(1, rows(single));
+        Timestamp kept = jdbcTemplate.queryForObject("SELECT processed_at FROM inbox_event WHERE event_id = ?",
+                Timestamp.class, duplicated);
+        assertEquals(now.minusSeconds(60).toEpochMilli(), kept.toInstant().toEpochMilli());
+        assertEquals(Boolean.TRUE, jdbcTemplate.queryForObject(
+                "SELECT indisunique FROM pg_index WHERE indexrelid = to_regclass('uk_inbox_event_event_id')", Boolean.class));
+        assertThrows(Exception.class, () -> insertRow(single, now));
+    }
+
+    @Test
+    void pruneDeletesOnlyExpiredRowsInChunks() {
+        InboxDeduplicator deduplicator = deduplicator();
+        Instant now = Instant.now();
+        List<UUID> expired = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            UUID eventId = UUID.randomUUID();
+            expired.add(eventId);
+            insertRow(eventId, now.minus(Duration.ofDays(8)));
+        }
+        UUID recent = UUID.randomUUID();
+        insertRow(recent, now.minus(Duration.ofDays(1)));
+
+        assertEquals(7, deduplicator.prune(Duration.ofDays(7), 3));
+
+        assertEquals(1, jdbcTemplate.queryForObject("SELECT count(*) FROM inbox_event", Integer.class));
+        assertEquals(1, rows(recent));
+        // Event đã prune được coi là mới nếu Kafka còn giao lại (retention phải dài hơn thời gian redelivery)
+        List<String> handled = new ArrayList<>();
+        new InboxDeduplicator(jdbcTemplate, transactionManager, "inbox_event", 100)
+                .process(List.of(new Message(expired.get(0), "late")), EVENT_ID, message -> handled.add(message.body()));
+        assertEquals(List.of("late"), handled);
+    }
+}
@@ -1,22 +1,88 @@
 package org.overcode250204.gatewayservice.configs;
 
+import org.overcode250204.gatewayservice.properties.RateLimitProperties;
+import org.overcode250204.gatewayservice.utils.RateLimitKey;
 import org.springframework.cloud.gateway.filter.ratelimit.KeyResolver;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
+import org.springframework.http.server.PathContainer;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
 import reactor.core.publisher.Mono;
 
-import java.util.Objects;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 @Configuration
 public class RateLimitConfig {
+
+    /**
+     * Key = nhóm route + hệ số quota + danh tính. Request đã qua HeaderAuthenticationFilter được giới hạn theo
+     * X-User-Name (sub đã verify) nên nhiều user sau cùng một NAT không chặn lẫn nhau; route public giới hạn theo IP
+     * vì header do client tự gửi.
+     */
     @Bean
     @Primary
-    public KeyResolver smartKeyResolver() {
+    public KeyResolver smartKeyResolver(RateLimitProperties props) {
+        Map<PathPattern, String> groupPatterns = new LinkedHashMap<>();
+        for (RateLimitProperties.RouteGroup group : props.getRouteGroups()) {
+            for (String path : group.getPaths()) {
+                groupPatterns.put(PathPatternParser.defaultInstance.parse(path), group.getName());
+            }
+        }
+
         return exchange -> {
-            String ip = Objects.requireNonNull(exchange.getRequest().getRemoteAddress())
-                    .getAddress().getHostAddress();
-            return Mono.just("IP_" + ip);
+            ServerHttpRequest request = exchange.getRequest();
+            String group = resolveGroup(groupPatterns, originalPath(exchange));
+
+            boolean isPublic = Boolean.TRUE.equals(exchange.getAttribute("isPublicRoute"));
+            String username = request.getHeaders().getFirst("X-User-Name");
+            if (!isPublic && username != null) {
+                double multiplier = multiplierFor(props, request.getHeaders().getFirst("X-Groups"));
+                return Mono.just(new RateLimitKey(group, multiplier, "u:" + username).encode());
+            }
+
+            InetSocketAddress remoteAddress = request.getRemoteAddress();
+            String ip = remoteAddress != null && remoteAddress.getAddress() != null
+                    ? remoteAddress.getAddress().getHostAddress() : "unknown";
+            return Mono.just(new RateLimitKey(group, 1.0, "ip:" + ip).encode());
         };
     }
+
+    // Path trước khi các filter của route (StripPrefix...) sửa request
+    private static String originalPath(ServerWebExchange exchange) {
+        Set<URI> originalUris = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ORIGINAL_REQUEST_URL_ATTR);
+        if (originalUris != null && !originalUris.isEmpty()) {
+            return originalUris.iterator().next().getRawPath();
+        }
+        return exchange.getRequest().getPath().value();
+    }
+
+    private static String resolveGroup(Map<PathPattern, String> groupPatterns, String path) {
+        PathContainer container = PathContainer.parsePath(path);
+        for (Map.Entry<PathPattern, String> entry : groupPatterns.entrySet()) {
+            if (entry.getKey().matches(container)) {
+                return entry.getValue();
+            }
+        }
+        return RateLimitKey.DEFAULT_GROUP;
+    }
+
+    private static double multiplierFor(RateLimitProperties props, String groupsCsv) {
+        double multiplier = 1.0;
+        if (groupsCsv == null || props.getGroupMultipliers().isEmpty()) {
+            return multiplier;
+        }
+        for (String group : groupsCsv.split(",")) {
+            multiplier = Math.max(multiplier, props.getGroupMultipliers().getOrDefault(group.trim(), 1.0));
+        }
+        return multiplier;
+    }
 }
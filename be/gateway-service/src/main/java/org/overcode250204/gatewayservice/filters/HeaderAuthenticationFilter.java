@@ -1,6 +1,5 @@
 package org.overcode250204.gatewayservice.filters;
 
-import com.nimbusds.jwt.JWTClaimsSet;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.overcode250204.gatewayservice.services.JwtService;
@@ -47,41 +46,34 @@ public class HeaderAuthenticationFilter implements GlobalFilter, Ordered {
 
         String token  = authorizationHeader.substring(7);
 
-        final JWTClaimsSet claims;
-
-        try {
-            claims = jwtService.verifyToken(token);
-            if (claims == null) {
-                return Mono.error(new BadCredentialsException("Invalid or expired JWT token"));
-            }
-        } catch (Exception e) {
-            return Mono.error(new BadCredentialsException("Invalid or expired JWT token"));
-        }
-
-        Map<String, Object> value = claims.getClaims();
-
-        List<String> groups = ( List<String>) claims.getClaims().get("cognito:groups");
-        if (groups == null) {
-            return Mono.error(new BadCredentialsException("Groups is null"));
-        }
-        List<String> privileges = (List<String>) claims.getClaims().get("privileges");
-        if (privileges == null) return Mono.error(new BadCredentialsException("Privileges is null"));
-        String username = value.get("sub").toString();
-        String groupsCsv = String.join(",", groups);
-        String privilegesCsv = String.join(",", privileges);
-
-        String data = username + "|" +  groupsCsv + "|" + privilegesCsv;
-        String signature = HmacUtils.hmacSha256(data, hmacSecret);
-
-        ServerHttpRequest modifiedRequest = request.mutate()
-                .header("X-User-Name", username)
-                .header("X-Groups", String.join(",", groups))
-                .header("X-Privileges", String.join(",", privileges))
-                .header("X-Signature", signature)
-                .build();
-
-        log.info(request.getHeaders().toString());
-        return chain.filter(exchange.mutate().request(modifiedRequest).build());
+        return jwtService.verifyToken(token)
+                .onErrorMap(e -> new BadCredentialsException("Invalid or expired JWT token"))
+                .flatMap(claims -> {
+                    Map<String, Object> value = claims.getClaims();
+
+                    List<String> groups = ( List<String>) value.get("cognito:groups");
+                    if (groups == null) {
+                        return Mono.error(new BadCredentialsException("Groups is null"));
+                    }
+                    List<String> privileges = (List<String>) value.get("privileges");
+                    if (privileges == null) return Mono.error(new BadCredentialsException("Privileges is null"));
+                    String username = value.get("sub").toString();
+                    String groupsCsv = String.join(",", groups);
+                    String privilegesCsv = String.join(",", privileges);
+
+                    String data = username + "|" +  groupsCsv + "|" + privilegesCsv;
+                    String signature = HmacUtils.hmacSha256(data, hmacSecret);
+
+                    ServerHttpRequest modifiedRequest = request.mutate()
+                            .header("X-User-Name", username)
+                            .header("X-Groups", groupsCsv)
+                            .header("X-Privileges", privilegesCsv)
+                            .header("X-Signature", signature)
+                            .build();
+
+                    log.debug(request.getHeaders().toString());
+                    return chain.filter(exchange.mutate().request(modifiedRequest).build());
+                });
     }
 
     @Override
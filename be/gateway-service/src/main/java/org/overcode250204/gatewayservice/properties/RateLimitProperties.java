@@ -0,0 +1,56 @@
+package org.overcode250204.gatewayservice.properties;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Configuration
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "rate-limit")
+public class RateLimitProperties {
+
+    // Chu kỳ đẩy lượng token đã dùng ở local lên Redis (một lần EVAL cho cả lô key)
+    private long syncIntervalMs = 200;
+
+    private long syncTimeoutMs = 500;
+
+    private int syncBatchSize = 500;
+
+    // Khi Redis lỗi mỗi replica chỉ được quota / fallbackReplicas, để tổng các replica không vượt quota
+    private int fallbackReplicas = 2;
+
+    private Quota defaultQuota = new Quota(10, 20);
+
+    // Quota riêng theo nhóm route, khớp theo path gốc của request, nhóm đầu tiên khớp được dùng
+    private List<RouteGroup> routeGroups = new ArrayList<>();
+
+    // Hệ số nhân quota theo cognito group của user (lấy hệ số lớn nhất), vd ADMIN: 2
+    private Map<String, Double> groupMultipliers = new HashMap<>();
+
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Quota {
+        private double replenishRate;
+
+        private int burstCapacity;
+    }
+
+    @Getter
+    @Setter
+    public static class RouteGroup extends Quota {
+        private String name;
+
+        private List<String> paths = new ArrayList<>();
+    }
+}
@@ -18,6 +18,19 @@ public class SecurityProperties {
 
     private String clientId;
 
-    private int jwtRefreshIntervalMins;
+    private int jwtRefreshIntervalMins = 15;
+
+    // Khoảng cách tối thiểu giữa hai lần tải lại JWKS do gặp kid lạ (chống token rác ép gateway gọi Cognito liên tục)
+    private int jwksMinRefreshIntervalSecs = 30;
+
+    private int jwksConnectTimeoutMs = 2000;
+
+    private int jwksReadTimeoutMs = 2000;
+
+    // Số token đã verify giữ trong cache (key là SHA-256 của token)
+    private int claimsCacheMaxSize = 50000;
+
+    // Thời gian giữ mốc revoke theo subject, nên >= thời hạn dài nhất của access / id token
+    private int revocationRetentionMins = 1440;
 
 }
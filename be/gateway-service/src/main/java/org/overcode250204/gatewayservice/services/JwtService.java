@@ -1,13 +1,13 @@
 package org.overcode250204.gatewayservice.services;
 
-import com.nimbusds.jose.jwk.JWKSet;
 import com.nimbusds.jwt.JWTClaimsSet;
-import io.jsonwebtoken.Claims;
-
-import java.util.List;
-import java.util.function.Function;
+import reactor.core.publisher.Mono;
 
 public interface JwtService {
-    JWTClaimsSet verifyToken(String token) throws Exception;
+    // Không block: lỗi verify được trả về qua Mono.error(JwtVerificationException)
+    Mono<JWTClaimsSet> verifyToken(String token);
 
+    // Revocation hooks cho cache claims đã verify
+    void revokeToken(String token);
+    void revokeSubject(String subject);
 }
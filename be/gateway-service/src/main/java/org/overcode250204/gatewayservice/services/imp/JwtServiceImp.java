@@ -4,16 +4,29 @@ import com.nimbusds.jwt.JWTClaimsSet;
 import lombok.RequiredArgsConstructor;
 import org.overcode250204.gatewayservice.services.JwtService;
 import org.overcode250204.gatewayservice.utils.JwtUtils;
+import org.overcode250204.gatewayservice.utils.VerifiedClaimsCache;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
 
 @Service
 @RequiredArgsConstructor
 public class JwtServiceImp implements JwtService {
 
     private final JwtUtils jwtUtils;
+    private final VerifiedClaimsCache claimsCache;
 
     @Override
-    public JWTClaimsSet verifyToken(String token) throws Exception {
+    public Mono<JWTClaimsSet> verifyToken(String token) {
         return jwtUtils.verifyToken(token);
     }
+
+    @Override
+    public void revokeToken(String token) {
+        claimsCache.revokeToken(token);
+    }
+
+    @Override
+    public void revokeSubject(String subject) {
+        claimsCache.revokeSubject(subject);
+    }
 }
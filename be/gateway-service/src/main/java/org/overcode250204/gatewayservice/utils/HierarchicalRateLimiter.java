@@ -0,0 +1,222 @@
+package org.overcode250204.gatewayservice.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.gatewayservice.properties.RateLimitProperties;
+import org.springframework.cloud.gateway.filter.ratelimit.AbstractRateLimiter;
+import org.springframework.cloud.gateway.support.ConfigurationService;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter hai tầng cho RequestRateLimiter.
+ *
+ * - Tầng local: mỗi key (nhóm route + user/IP) có một LocalTokenBucket, request được quyết định ngay trong bộ nhớ,
+ *   không có round-trip Redis trên đường đi của request.
+ * - Tầng Redis: thread "rate-limit-sync" định kỳ gửi lượng token đã dùng của mọi key trong một lần EVAL
+ *   (scripts/hierarchical_rate_limiter.lua) và đặt bucket local bằng số token còn lại của toàn cụm. Phần các replica
+ *   cùng dùng vượt giữa hai lần sync thành nợ trên Redis và được trả dần, nên về lâu dài cả cụm giữ đúng replenishRate;
+ *   lúc đầu mỗi replica có thể cho qua tối đa một burst trước lần sync đầu tiên.
+ * - Redis lỗi: tiếp tục giới hạn bằng bucket local với quota / fallbackReplicas cho tới khi sync thành công trở lại.
+ *
+ * Quota chọn theo nhóm route trong key; nhóm default dùng tham số của route (hierarchical-rate-limiter.*) nếu có,
+ * không thì rate-limit.default-quota.
+ *
+ * Metrics: gateway.ratelimit.requests{group, result=allowed|denied}, gateway.ratelimit.sync{result=success|failure},
+ * gateway.ratelimit.buckets, gateway.ratelimit.degraded (1 khi đang chạy không có Redis).
+ */
+@Slf4j
+@Primary
+@Component
+public class HierarchicalRateLimiter extends AbstractRateLimiter<RateLimitProperties.Quota> {
+
+    public static final String CONFIGURATION_PROPERTY_NAME = "hierarchical-rate-limiter";
+    public static final String REMAINING_HEADER = "X-RateLimit-Remaining";
+    public static final String REPLENISH_RATE_HEADER = "X-RateLimit-Replenish-Rate";
+    public static final String BURST_CAPACITY_HEADER = "X-RateLimit-Burst-Capacity";
+
+    // Hash tag giữ mọi key trên cùng một slot để một EVAL nhiều key chạy được trên Redis Cluster
+    private static final String REDIS_KEY_PREFIX = "{gateway-rate-limit}:";
+
+    private final RateLimitProperties props;
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final RedisScript<List<Long>> script = loadScript();
+    private final Map<String, RateLimitProperties.Quota> groupQuotas = new HashMap<>();
+    private final Map<String, LocalTokenBucket> buckets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService syncer;
+    private final MeterRegistry meterRegistry;
+    private final Counter syncSuccess;
+    private final Counter syncFailure;
+
+    private volatile boolean degraded;
+
+    public HierarchicalRateLimiter(RateLimitProperties props,
+                                   ReactiveStringRedisTemplate redisTemplate,
+                                   ConfigurationService configurationService,
+                                   MeterRegistry meterRegistry) {
+        super(RateLimitProperties.Quota.class, CONFIGURATION_PROPERTY_NAME, configurationService);
+        this.props = props;
+        this.redisTemplate = redisTemplate;
+        this.meterRegistry = meterRegistry;
+        for (RateLimitProperties.RouteGroup group : props.getRouteGroups()) {
+            groupQuotas.put(group.getName(), group);
+        }
+        this.syncSuccess = Counter.builder("gateway.ratelimit.sync").tag("result", "success")
+                .description("Batched syncs of local rate limit buckets with Redis")
+                .register(meterRegistry);
+        this.syncFailure = Counter.builder("gateway.ratelimit.sync").tag("result", "failure")
+                .description("Batched syncs of local rate limit buckets with Redis")
+                .register(meterRegistry);
+        Gauge.builder("gateway.ratelimit.buckets", buckets, Map::size).register(meterRegistry);
+        Gauge.builder("gateway.ratelimit.degraded", this, limiter -> limiter.degraded ? 1 : 0).register(meterRegistry);
+
+        this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rate-limit-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(10, props.getSyncIntervalMs());
+        syncer.scheduleWithFixedDelay(this::syncQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Mono<Response> isAllowed(String routeId, String id) {
+        RateLimitKey key = RateLimitKey.parse(id);
+        RateLimitProperties.Quota quota = quotaFor(routeId, key.group());
+        double replenishRate = quota.getReplenishRate() * key.multiplier();
+        double burstCapacity = quota.getBurstCapacity() * key.multiplier();
+
+        long now = System.nanoTime();
+        LocalTokenBucket bucket = buckets.computeIfAbsent(id, k -> new LocalTokenBucket(replenishRate, burstCapacity, now));
+        boolean allowed = bucket.tryConsume(now, degraded, 1.0 / Math.max(1, props.getFallbackReplicas()));
+
+        meterRegistry.counter("gateway.ratelimit.requests", "group", key.group(), "result", allowed ? "allowed" : "denied")
+                .increment();
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put(REMAINING_HEADER, String.valueOf(bucket.remaining()));
+        headers.put(REPLENISH_RATE_HEADER, String.valueOf(replenishRate));
+        headers.put(BURST_CAPACITY_HEADER, String.valueOf((long) burstCapacity));
+        return Mono.just(new Response(allowed, headers));
+    }
+
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    private RateLimitProperties.Quota quotaFor(String routeId, String group) {
+        RateLimitProperties.Quota quota = groupQuotas.get(group);
+        if (quota != null) {
+            return quota;
+        }
+        RateLimitProperties.Quota routeQuota = getConfig().get(routeId);
+        return routeQuota != null ? routeQuota : props.getDefaultQuota();
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (Exception e) {
+            log.error("Rate limit sync failed unexpectedly", e);
+        }
+    }
+
+    private void sync() {
+        long now = System.nanoTime();
+        List<String> ids = new ArrayList<>();
+        List<LocalTokenBucket> dirty = new ArrayList<>();
+        List<Long> consumed = new ArrayList<>();
+        for (Map.Entry<String, LocalTokenBucket> entry : buckets.entrySet()) {
+            LocalTokenBucket bucket = entry.getValue();
+            if (bucket.isIdle(now) && !bucket.needsSync()) {
+                buckets.remove(entry.getKey(), bucket);
+            } else if (bucket.needsSync()) {
+                ids.add(entry.getKey());
+                dirty.add(bucket);
+                consumed.add(bucket.drainUnsynced());
+            }
+        }
+
+        int batchSize = Math.max(1, props.getSyncBatchSize());
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            int to = Math.min(ids.size(), from + batchSize);
+            syncBatch(ids.subList(from, to), dirty.subList(from, to), consumed.subList(from, to));
+        }
+    }
+
+    private void syncBatch(List<String> ids, List<LocalTokenBucket> dirty, List<Long> consumed) {
+        List<String> keys = new ArrayList<>(ids.size());
+        List<String> args = new ArrayList<>(ids.size() * 3);
+        for (int i = 0; i < ids.size(); i++) {
+            LocalTokenBucket bucket = dirty.get(i);
+            keys.add(REDIS_KEY_PREFIX + ids.get(i));
+            args.add(String.valueOf(bucket.getReplenishRate()));
+            args.add(String.valueOf(bucket.getBurstCapacity()));
+            args.add(String.valueOf(consumed.get(i)));
+        }
+
+        List<Long> remaining;
+        try {
+            remaining = redisTemplate.execute(script, keys, args)
+                    .next()
+                    .block(Duration.ofMillis(props.getSyncTimeoutMs()));
+        } catch (Exception e) {
+            remaining = null;
+            if (!degraded) {
+                log.warn("Redis unavailable for rate limiting, enforcing local quotas / {} until it recovers: {}",
+                        props.getFallbackReplicas(), e.getMessage());
+            }
+        }
+
+        if (remaining == null || remaining.size() != dirty.size()) {
+            syncFailure.increment();
+            degraded = true;
+            for (int i = 0; i < dirty.size(); i++) {
+                dirty.get(i).restoreUnsynced(consumed.get(i));
+            }
+            return;
+        }
+
+        syncSuccess.increment();
+        if (degraded) {
+            log.info("Redis rate limit sync recovered");
+            degraded = false;
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < dirty.size(); i++) {
+            dirty.get(i).reconcile(remaining.get(i), now);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static RedisScript<List<Long>> loadScript() {
+        DefaultRedisScript redisScript = new DefaultRedisScript<>();
+        redisScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("scripts/hierarchical_rate_limiter.lua")));
+        redisScript.setResultType(List.class);
+        return redisScript;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        syncer.shutdownNow();
+    }
+}
@@ -0,0 +1,141 @@
+package org.overcode250204.gatewayservice.utils;
+
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.gatewayservice.exceptions.JwtVerificationException;
+import org.overcode250204.gatewayservice.properties.SecurityProperties;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Giữ JWKS của Cognito trong bộ nhớ và tải lại ở background.
+ *
+ * Mọi lần gọi HTTP tới JWKS URL đều chạy trên một thread riêng ("jwks-refresher"), không bao giờ trên event loop
+ * của Netty. Request chỉ đọc bản JWKSet hiện tại (volatile, không lock). Khi gặp kid chưa biết (Cognito vừa xoay key),
+ * request nhận một CompletableFuture cho lần tải lại kế tiếp. Các yêu cầu tải lại xếp hàng trên cùng thread đó,
+ * nên nhiều request cùng kid lạ chỉ tạo một lần tải; hai lần tải do kid lạ cách nhau ít nhất jwksMinRefreshIntervalSecs.
+ *
+ * Metrics: gateway.jwks.refresh{result=success|failure}, gateway.jwks.age (giây kể từ lần tải thành công).
+ */
+@Slf4j
+@Component
+public class JwksKeySource {
+
+    private static final int JWKS_SIZE_LIMIT = 64 * 1024;
+
+    private final SecurityProperties props;
+    private final ScheduledExecutorService refresher;
+    private final Counter refreshSuccess;
+    private final Counter refreshFailure;
+
+    private volatile JWKSet current;
+    private volatile Instant lastFetch = Instant.EPOCH;
+    // Chỉ đọc / ghi trên thread refresher
+    private Instant lastOnDemandFetch = Instant.EPOCH;
+    private volatile Consumer<JWKSet> keySetListener = keySet -> { };
+
+    public JwksKeySource(SecurityProperties props, MeterRegistry meterRegistry) {
+        this.props = props;
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jwks-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.refreshSuccess = Counter.builder("gateway.jwks.refresh").tag("result", "success")
+                .description("JWKS downloads that replaced the cached key set")
+                .register(meterRegistry);
+        this.refreshFailure = Counter.builder("gateway.jwks.refresh").tag("result", "failure")
+                .description("JWKS downloads that failed; the previous key set stays in use")
+                .register(meterRegistry);
+        Gauge.builder("gateway.jwks.age", this, source -> Duration.between(source.lastFetch, Instant.now()).toSeconds())
+                .baseUnit("seconds")
+                .register(meterRegistry);
+
+        // Lần tải đầu cũng chạy nền; request tới trước khi có key sẽ đi đường kid lạ và chờ lần tải này
+        long interval = Math.max(1, props.getJwtRefreshIntervalMins());
+        refresher.scheduleWithFixedDelay(this::refreshQuietly, 0, interval, TimeUnit.MINUTES);
+    }
+
+    // Được gọi trên thread refresher mỗi khi có JWKSet mới (VerifiedClaimsCache dùng để bỏ claims của key đã bị gỡ)
+    public void setKeySetListener(Consumer<JWKSet> keySetListener) {
+        this.keySetListener = keySetListener;
+    }
+
+    public JWK getKey(String kid) {
+        JWKSet keySet = current;
+        return (keySet != null && kid != null) ? keySet.getKeyByKeyId(kid) : null;
+    }
+
+    /**
+     * Tải lại JWKS vì gặp kid chưa có. Không block: trả về future hoàn tất trên thread refresher.
+     * Nếu vừa tải gần đây thì dùng luôn bản hiện tại thay vì gọi Cognito lần nữa.
+     */
+    public CompletableFuture<JWKSet> refreshForUnknownKid(String kid) {
+        CompletableFuture<JWKSet> result = new CompletableFuture<>();
+        refresher.execute(() -> {
+            JWKSet keySet = current;
+            Instant earliest = lastOnDemandFetch.plusSeconds(props.getJwksMinRefreshIntervalSecs());
+            if (keySet != null && Instant.now().isBefore(earliest)) {
+                log.debug("JWKS refreshed recently, not refetching for unknown kid={}", kid);
+                result.complete(keySet);
+                return;
+            }
+            log.info("JWT kid={} not found in JWKS cache, refetching JWKS", kid);
+            lastOnDemandFetch = Instant.now();
+            try {
+                result.complete(refresh());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (Exception e) {
+            // refresh đã log và đếm lỗi, giữ bản JWKS cũ
+        }
+    }
+
+    private JWKSet refresh() {
+        if (props.getJwksUrl() == null) {
+            throw new JwtVerificationException("JWKS URL is not configured");
+        }
+        try {
+            current = JWKSet.load(URI.create(props.getJwksUrl()).toURL(),
+                    props.getJwksConnectTimeoutMs(), props.getJwksReadTimeoutMs(), JWKS_SIZE_LIMIT);
+            lastFetch = Instant.now();
+            refreshSuccess.increment();
+        } catch (Exception e) {
+            refreshFailure.increment();
+            log.error("Error while fetching JWKS from URL: {}", props.getJwksUrl(), e);
+            if (current == null) {
+                throw new JwtVerificationException("Unable to load JWKS and no cached keys available", e);
+            }
+            return current;
+        }
+        log.info("Loaded {} keys from JWKS {}", current.getKeys().size(), props.getJwksUrl());
+        keySetListener.accept(current);
+        return current;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+}
@@ -2,205 +2,188 @@ package org.overcode250204.gatewayservice.utils;
 
 import com.nimbusds.jose.crypto.RSASSAVerifier;
 import com.nimbusds.jose.jwk.JWK;
-import com.nimbusds.jose.jwk.JWKSet;
 import com.nimbusds.jose.jwk.RSAKey;
 import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.overcode250204.gatewayservice.exceptions.JwtVerificationException;
 import org.overcode250204.gatewayservice.properties.SecurityProperties;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
-import java.net.URL;
 import java.text.ParseException;
-import java.time.Duration;
-import java.time.Instant;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Verify bearer token của Cognito.
+ *
+ * Token đã verify được lấy từ VerifiedClaimsCache (không verify RSA lại cho tới exp). Key lấy từ JwksKeySource,
+ * không có lời gọi HTTP nào trên thread của request: nếu kid chưa có thì Mono chờ lần tải JWKS ở background.
+ *
+ * Metrics: timer gateway.jwt.verification{result=success|failure} cho các lần verify thật (cache miss).
+ */
 @Slf4j
 @Component
-@RequiredArgsConstructor
 public class JwtUtils {
 
     private final SecurityProperties props;
+    private final JwksKeySource keySource;
+    private final VerifiedClaimsCache claimsCache;
+    private final Timer verifySuccess;
+    private final Timer verifyFailure;
+    // RSASSAVerifier dựng sẵn cho từng key, dùng lại giữa các request
+    private final Map<String, RSASSAVerifier> verifiers = new ConcurrentHashMap<>();
+
+    public JwtUtils(SecurityProperties props, JwksKeySource keySource, VerifiedClaimsCache claimsCache, MeterRegistry meterRegistry) {
+        this.props = props;
+        this.keySource = keySource;
+        this.claimsCache = claimsCache;
+        this.verifySuccess = Timer.builder("gateway.jwt.verification").tag("result", "success")
+                .description("Signature and claims verification of bearer tokens")
+                .register(meterRegistry);
+        this.verifyFailure = Timer.builder("gateway.jwt.verification").tag("result", "failure")
+                .description("Signature and claims verification of bearer tokens")
+                .register(meterRegistry);
+        // Key bị gỡ khỏi JWKS: bỏ verifier và claims đã cache của key đó
+        keySource.setKeySetListener(keySet -> {
+            Set<String> keyIds = keySet.getKeys().stream().map(JWK::getKeyID).collect(Collectors.toSet());
+            verifiers.keySet().retainAll(keyIds);
+            claimsCache.retainKeyIds(keyIds);
+        });
+    }
 
-    private JWKSet cachedJwkSet;
-
-    private Instant lastJwtFetch = Instant.EPOCH;
-
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-
-    private Timer verifyTimer;
-
+    public Mono<JWTClaimsSet> verifyToken(String token) {
+        String tokenHash = VerifiedClaimsCache.hash(token);
+        if (claimsCache.isTokenRevoked(tokenHash)) {
+            return Mono.error(new JwtVerificationException("Token has been revoked"));
+        }
+        JWTClaimsSet cached = claimsCache.get(tokenHash);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
 
-    public JWTClaimsSet verifyToken(String token) {
-        Timer.Sample sample = verifyTimer != null ? Timer.start() : null;
+        SignedJWT jwt;
         try {
-            SignedJWT jwt;
-            try {
-                jwt = SignedJWT.parse(token);
-            } catch (ParseException e) {
-                throw new JwtVerificationException("Invalid JWT Token", e);
-            }
-
-            String kid = jwt.getHeader().getKeyID();
-
-
-
-            JWKSet jwkSet = getJwkSet();
-
-            JWK jwk = (kid != null) ? jwkSet.getKeyByKeyId(kid) : null;
-
-            if (jwk == null) {
-                log.info("JWT kid={} not found in JWKS cache, forcing JWKS refetch", kid);
-                forceFetchJwkSet();
-                jwkSet = getJwkSet();
-                jwk = (kid != null) ? jwkSet.getKeyByKeyId(kid) : null;
-                if (jwk == null) {
-                    throw new JwtVerificationException("No matching JWK found for kid: " + kid);
-                }
-            }
-
-            if (!(jwk instanceof RSAKey)) {
-                throw new JwtVerificationException("Unsupported JWK type: " + jwk.getClass().getName());
-            }
-
-            RSAKey rsa = (RSAKey) jwk;
-
-            try {
-                boolean sigok = jwt.verify(new RSASSAVerifier(rsa));
-                if (!sigok) {
-                    throw new JwtVerificationException("Invalid JWT signature");
-                }
-
-
-
-            } catch (Exception e) {
-                throw new JwtVerificationException("Invalid JWT signature verification failed", e);
-            }
-
-            JWTClaimsSet claims;
-            try {
-                claims = jwt.getJWTClaimsSet();
-            } catch (ParseException e) {
-                throw new JwtVerificationException("Failed to parse JWT claims", e);
-            }
-
-            if (props.getIssuer() != null && !props.getIssuer().equals(claims.getIssuer())) {
-                throw new JwtVerificationException("Invalid JWT issuer: " + claims.getIssuer());
-            }
+            jwt = SignedJWT.parse(token);
+        } catch (ParseException e) {
+            return Mono.error(new JwtVerificationException("Invalid JWT Token", e));
+        }
+        String kid = jwt.getHeader().getKeyID();
+        if (kid == null) {
+            return Mono.error(new JwtVerificationException("JWT header has no kid"));
+        }
 
+        JWK jwk = keySource.getKey(kid);
+        if (jwk != null) {
+            return Mono.fromCallable(() -> verifyAndCache(jwt, jwk, tokenHash));
+        }
+        // Future hoàn tất trên thread refresher (duy nhất) của JwksKeySource; verify RSA chạy trên scheduler parallel
+        // để không chặn các lần refresh JWKS khác
+        return Mono.fromFuture(() -> keySource.refreshForUnknownKid(kid))
+                .publishOn(Schedulers.parallel())
+                .map(keySet -> {
+                    JWK refreshed = keySet.getKeyByKeyId(kid);
+                    if (refreshed == null) {
+                        throw new JwtVerificationException("No matching JWK found for kid: " + kid);
+                    }
+                    return verifyAndCache(jwt, refreshed, tokenHash);
+                });
+    }
 
-            String tokenType = (String) claims.getClaims().get("token_use");
-            if (tokenType == null || (!tokenType.equals("access") && !tokenType.equals("id"))) {
-                throw new JwtVerificationException("Invalid token_use: " + tokenType);
-            }
+    private JWTClaimsSet verifyAndCache(SignedJWT jwt, JWK jwk, String tokenHash) {
+        long start = System.nanoTime();
+        try {
+            JWTClaimsSet claims = verify(jwt, jwk);
+            verifySuccess.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            claimsCache.put(tokenHash, claims, jwk.getKeyID());
+            return claims;
+        } catch (RuntimeException e) {
+            verifyFailure.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+    }
 
+    private JWTClaimsSet verify(SignedJWT jwt, JWK jwk) {
+        if (!(jwk instanceof RSAKey rsa)) {
+            throw new JwtVerificationException("Unsupported JWK type: " + jwk.getClass().getName());
+        }
 
-            if (tokenType.equals("id")) {
-                String expectedAudience = props.getAudience();
-                List<String> aud = claims.getAudience();
-                if (expectedAudience != null && (aud == null || !aud.contains(expectedAudience))) {
-                    throw new JwtVerificationException("Invalid audience for ID token: " + aud);
-                }
+        try {
+            RSASSAVerifier verifier = verifiers.computeIfAbsent(jwk.getKeyID(), kid -> newVerifier(rsa));
+            if (!jwt.verify(verifier)) {
+                throw new JwtVerificationException("Invalid JWT signature");
             }
+        } catch (JwtVerificationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new JwtVerificationException("Invalid JWT signature verification failed", e);
+        }
 
-            if (tokenType.equals("access")) {
-                String expectedClientId = props.getClientId();
-                Object clientIdObj = claims.getClaims().get("client_id");
-                String clientId = clientIdObj != null ? clientIdObj.toString() : null;
-                if (expectedClientId != null && !expectedClientId.equals(clientId)) {
-                    throw new JwtVerificationException("Invalid client_id for Access token: " + clientId);
-
-                }
+        JWTClaimsSet claims;
+        try {
+            claims = jwt.getJWTClaimsSet();
+        } catch (ParseException e) {
+            throw new JwtVerificationException("Failed to parse JWT claims", e);
+        }
 
-            }
+        if (props.getIssuer() != null && !props.getIssuer().equals(claims.getIssuer())) {
+            throw new JwtVerificationException("Invalid JWT issuer: " + claims.getIssuer());
+        }
 
-            Date now = new Date();
-            Date exp = claims.getExpirationTime();
-            if (exp == null || exp.before(now)) {
-                throw new JwtVerificationException("Token expired");
-            }
+        String tokenType = (String) claims.getClaims().get("token_use");
+        if (tokenType == null || (!tokenType.equals("access") && !tokenType.equals("id"))) {
+            throw new JwtVerificationException("Invalid token_use: " + tokenType);
+        }
 
-            Date notBefore = claims.getNotBeforeTime();
-            if (notBefore != null && notBefore.after(now)) {
-                throw new JwtVerificationException("Token not valid yet (nbf)");
+        if (tokenType.equals("id")) {
+            String expectedAudience = props.getAudience();
+            List<String> aud = claims.getAudience();
+            if (expectedAudience != null && (aud == null || !aud.contains(expectedAudience))) {
+                throw new JwtVerificationException("Invalid audience for ID token: " + aud);
             }
+        }
 
-
-            return claims;
-
-        } catch (Exception e) {
-            throw new JwtVerificationException("Invalid JWT token", e);
-        } finally {
-            if (sample != null) {
-                sample.stop(verifyTimer);
+        if (tokenType.equals("access")) {
+            String expectedClientId = props.getClientId();
+            Object clientIdObj = claims.getClaims().get("client_id");
+            String clientId = clientIdObj != null ? clientIdObj.toString() : null;
+            if (expectedClientId != null && !expectedClientId.equals(clientId)) {
+                throw new JwtVerificationException("Invalid client_id for Access token: " + clientId);
             }
         }
 
+        Date now = new Date();
+        Date exp = claims.getExpirationTime();
+        if (exp == null || exp.before(now)) {
+            throw new JwtVerificationException("Token expired");
+        }
 
-    }
-
-    private JWKSet getJwkSet() {
-        lock.readLock().lock();
-        try {
-            if (cachedJwkSet != null && Instant.now().isBefore(lastJwtFetch.plus(Duration.ofMinutes(props.getJwtRefreshIntervalMins())))) {
-                return cachedJwkSet;
-            }
-        } catch (Exception e) {
-            throw new JwtVerificationException("Could not get JWK Set", e);
-        } finally {
-            lock.readLock().unlock();
+        Date notBefore = claims.getNotBeforeTime();
+        if (notBefore != null && notBefore.after(now)) {
+            throw new JwtVerificationException("Token not valid yet (nbf)");
         }
 
-        lock.writeLock().lock();
-        try {
-            if (cachedJwkSet == null || Instant.now().isAfter(lastJwtFetch.plus(Duration.ofMinutes(props.getJwtRefreshIntervalMins())))) {
-                if (props.getJwksUrl() == null) {
-                    throw new JwtVerificationException("JWKS URL is not configured (and no JWKSet injected)");
-                }
-                try {
-                    log.info("Fetching JWKS from URL: {}", props.getJwksUrl());
-                    JWKSet newSet = JWKSet.load(new URL(props.getJwksUrl()));
-                    cachedJwkSet = newSet;
-                    lastJwtFetch = Instant.now();
-                } catch (Exception e) {
-                    log.error("Error while fetching JWKS from URL: {}", props.getJwksUrl(), e);
-                    if (cachedJwkSet == null) {
-                        throw new JwtVerificationException("Unable to load JWKS and no cached keys available", e);
-                    }
-                }
-            }
-            return cachedJwkSet;
-        } finally {
-            lock.writeLock().unlock();
+        if (claimsCache.isRevoked(claims)) {
+            throw new JwtVerificationException("Token has been revoked");
         }
 
+        return claims;
     }
 
-    private void forceFetchJwkSet() {
-        lock.writeLock().lock();
+    private static RSASSAVerifier newVerifier(RSAKey rsa) {
         try {
-            if (props.getJwksUrl() == null) return;
-            try {
-                log.info("Force fetching JWKS from {}", props.getJwksUrl());
-                JWKSet newSet = JWKSet.load(new URL(props.getJwksUrl()));
-                cachedJwkSet = newSet;
-                lastJwtFetch = Instant.now();
-            } catch (Exception e) {
-                log.warn("Force fetch JWKS failed: {}", e.getMessage());
-                if (cachedJwkSet == null) {
-                    throw new JwtVerificationException("Unable to load JWKS and no cached keys available", e);
-                }
-            }
-        } finally {
-            lock.writeLock().unlock();
+            return new RSASSAVerifier(rsa);
+        } catch (Exception e) {
+            throw new JwtVerificationException("Invalid RSA key in JWKS", e);
         }
     }
-
-
 }
@@ -0,0 +1,92 @@
+package org.overcode250204.gatewayservice.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket trong bộ nhớ của một replica. Request chỉ chạm bucket này; số token đã dùng được cộng dồn
+ * (unsynced) để HierarchicalRateLimiter đẩy lên Redis theo lô.
+ *
+ * Khi Redis hoạt động bucket không tự nạp token: số token chỉ được đặt lại từ số còn lại của toàn cụm ở mỗi lần
+ * sync (reconcile), nên N replica cùng phục vụ một key vẫn chỉ dùng chung một quota. Khi Redis lỗi bucket tự nạp
+ * theo quota * share.
+ */
+final class LocalTokenBucket {
+
+    private final double replenishRate;
+    private final double burstCapacity;
+
+    private double tokens;
+    private long refilledAtNanos;
+    private long unsynced;
+    private volatile long lastUsedNanos;
+
+    LocalTokenBucket(double replenishRate, double burstCapacity, long nowNanos) {
+        this.replenishRate = replenishRate;
+        this.burstCapacity = burstCapacity;
+        this.tokens = burstCapacity;
+        this.refilledAtNanos = nowNanos;
+        this.lastUsedNanos = nowNanos;
+    }
+
+    /**
+     * standalone = true khi không sync được với Redis: tự nạp token với quota * share (share = 1 / fallbackReplicas).
+     */
+    synchronized boolean tryConsume(long nowNanos, boolean standalone, double share) {
+        lastUsedNanos = nowNanos;
+        if (standalone) {
+            double capacity = Math.max(1, burstCapacity * share);
+            double elapsedSeconds = (nowNanos - refilledAtNanos) / 1e9;
+            tokens = Math.min(capacity, tokens + elapsedSeconds * replenishRate * share);
+        }
+        refilledAtNanos = nowNanos;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        unsynced++;
+        return true;
+    }
+
+    double getReplenishRate() {
+        return replenishRate;
+    }
+
+    double getBurstCapacity() {
+        return burstCapacity;
+    }
+
+    synchronized long remaining() {
+        return (long) Math.max(0, tokens);
+    }
+
+    // Có lượng dùng chưa báo, hoặc bucket chưa đầy và cần lấy lại token từ Redis
+    synchronized boolean needsSync() {
+        return unsynced > 0 || tokens < burstCapacity;
+    }
+
+    synchronized long drainUnsynced() {
+        long consumed = unsynced;
+        unsynced = 0;
+        return consumed;
+    }
+
+    // Lần sync lỗi: trả lại lượng đã lấy ra để lần sync sau vẫn báo đủ cho Redis
+    synchronized void restoreUnsynced(long consumed) {
+        unsynced += consumed;
+    }
+
+    /**
+     * globalRemaining là số token còn lại trên Redis sau khi đã trừ phần replica này vừa báo (âm nếu cả cụm đang nợ);
+     * các request tới sau lúc lấy unsynced chưa được Redis tính nên trừ thêm.
+     */
+    synchronized void reconcile(long globalRemaining, long nowNanos) {
+        tokens = Math.min(burstCapacity, globalRemaining - unsynced);
+        refilledAtNanos = nowNanos;
+    }
+
+    // Không được dùng trong khoảng thời gian đủ để bucket đầy lại: bỏ đi cũng giống như tạo mới
+    boolean isIdle(long nowNanos) {
+        long fullAfterNanos = (long) (TimeUnit.SECONDS.toNanos(1) * burstCapacity / Math.max(replenishRate, 0.001));
+        return nowNanos - lastUsedNanos > fullAfterNanos;
+    }
+}
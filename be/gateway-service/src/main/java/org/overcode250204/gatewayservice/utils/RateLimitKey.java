@@ -0,0 +1,31 @@
+package org.overcode250204.gatewayservice.utils;
+
+/**
+ * Key của rate limiter: nhóm route + hệ số quota + danh tính (u:sub cho user đã xác thực, ip:addr cho route public).
+ * KeyResolver chỉ trả về được một chuỗi nên ba phần được ghép lại, HierarchicalRateLimiter tách ra để chọn quota.
+ */
+public record RateLimitKey(String group, double multiplier, String identity) {
+
+    public static final String DEFAULT_GROUP = "default";
+
+    private static final char SEPARATOR = '|';
+
+    public String encode() {
+        return group + SEPARATOR + multiplier + SEPARATOR + identity;
+    }
+
+    public static RateLimitKey parse(String key) {
+        int first = key.indexOf(SEPARATOR);
+        int second = first < 0 ? -1 : key.indexOf(SEPARATOR, first + 1);
+        if (second < 0) {
+            return new RateLimitKey(DEFAULT_GROUP, 1.0, key);
+        }
+        double multiplier;
+        try {
+            multiplier = Double.parseDouble(key.substring(first + 1, second));
+        } catch (NumberFormatException e) {
+            multiplier = 1.0;
+        }
+        return new RateLimitKey(key.substring(0, first), multiplier, key.substring(second + 1));
+    }
+}
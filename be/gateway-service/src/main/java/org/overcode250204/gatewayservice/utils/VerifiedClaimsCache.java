@@ -0,0 +1,197 @@
+package org.overcode250204.gatewayservice.utils;
+
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.JWTParser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.gatewayservice.properties.SecurityProperties;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache các token đã verify chữ ký (LRU có giới hạn), key là SHA-256 của token để không giữ token gốc trong bộ nhớ.
+ * Entry hết hiệu lực đúng ở thời điểm exp của token.
+ *
+ * Revoke:
+ * - revokeToken: đưa hash của token vào denylist tới exp của token (logout). Token bị từ chối trước cả cache,
+ *   nên verify lại từ đầu cũng không dùng được.
+ * - revokeSubject: mọi token của sub có iat trước thời điểm revoke bị từ chối, kể cả khi verify lại từ đầu
+ *   (JwtUtils kiểm tra isRevoked sau khi verify). Mốc revoke được giữ revocationRetentionMins rồi tự xoá.
+ * - revokeKeyId: bỏ claims ký bởi key đã bị gỡ khỏi JWKS.
+ *
+ * Metrics: gateway.jwt.cache.requests{result=hit|miss}, gateway.jwt.cache.hit.ratio, gateway.jwt.cache.size.
+ */
+@Slf4j
+@Component
+public class VerifiedClaimsCache {
+
+    private record CachedClaims(JWTClaimsSet claims, String keyId, long expiresAtMillis) {
+    }
+
+    private final Map<String, CachedClaims> cache;
+    private final Map<String, Instant> revokedSubjects = new ConcurrentHashMap<>();
+    // Hash token đã revoke → thời điểm hết hạn của token (sau đó token tự bị từ chối vì exp)
+    private final Map<String, Long> revokedTokens = new ConcurrentHashMap<>();
+    private final Duration revocationRetention;
+    private final Counter hits;
+    private final Counter misses;
+
+    public VerifiedClaimsCache(SecurityProperties props, MeterRegistry meterRegistry) {
+        int maxSize = props.getClaimsCacheMaxSize();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedClaims> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.revocationRetention = Duration.ofMinutes(props.getRevocationRetentionMins());
+        this.hits = Counter.builder("gateway.jwt.cache.requests").tag("result", "hit")
+                .description("Bearer tokens served from the verified-claims cache")
+                .register(meterRegistry);
+        this.misses = Counter.builder("gateway.jwt.cache.requests").tag("result", "miss")
+                .description("Bearer tokens that needed signature verification")
+                .register(meterRegistry);
+        Gauge.builder("gateway.jwt.cache.hit.ratio", this, VerifiedClaimsCache::hitRatio)
+                .register(meterRegistry);
+        Gauge.builder("gateway.jwt.cache.size", this, VerifiedClaimsCache::size)
+                .register(meterRegistry);
+    }
+
+    public static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public JWTClaimsSet get(String tokenHash) {
+        if (isTokenRevoked(tokenHash)) {
+            misses.increment();
+            return null;
+        }
+        CachedClaims cached;
+        synchronized (cache) {
+            cached = cache.get(tokenHash);
+            if (cached != null && cached.expiresAtMillis() <= System.currentTimeMillis()) {
+                cache.remove(tokenHash);
+                cached = null;
+            }
+        }
+        if (cached == null || isRevoked(cached.claims())) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return cached.claims();
+    }
+
+    public void put(String tokenHash, JWTClaimsSet claims, String keyId) {
+        Date exp = claims.getExpirationTime();
+        if (exp == null) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(tokenHash, new CachedClaims(claims, keyId, exp.getTime()));
+        }
+    }
+
+    public boolean isRevoked(JWTClaimsSet claims) {
+        Instant revokedAt = claims.getSubject() != null ? revokedSubjects.get(claims.getSubject()) : null;
+        if (revokedAt == null) {
+            return false;
+        }
+        Date issuedAt = claims.getIssueTime();
+        return issuedAt == null || !issuedAt.toInstant().isAfter(revokedAt);
+    }
+
+    public boolean isTokenRevoked(String tokenHash) {
+        Long expiresAtMillis = revokedTokens.get(tokenHash);
+        if (expiresAtMillis == null) {
+            return false;
+        }
+        if (expiresAtMillis <= System.currentTimeMillis()) {
+            revokedTokens.remove(tokenHash, expiresAtMillis);
+            return false;
+        }
+        return true;
+    }
+
+    public void revokeToken(String token) {
+        String tokenHash = hash(token);
+        CachedClaims cached;
+        synchronized (cache) {
+            cached = cache.remove(tokenHash);
+        }
+        long now = System.currentTimeMillis();
+        revokedTokens.put(tokenHash, cached != null ? cached.expiresAtMillis() : expiresAtMillis(token, now));
+        revokedTokens.values().removeIf(expiresAt -> expiresAt <= now);
+    }
+
+    // exp của token chưa có trong cache (chỉ dùng để biết giữ denylist tới khi nào); không đọc được thì giữ theo retention
+    private long expiresAtMillis(String token, long now) {
+        try {
+            Date exp = JWTParser.parse(token).getJWTClaimsSet().getExpirationTime();
+            if (exp != null) {
+                return exp.getTime();
+            }
+        } catch (Exception e) {
+            log.debug("Could not read exp of revoked token: {}", e.getMessage());
+        }
+        return now + revocationRetention.toMillis();
+    }
+
+    public void revokeSubject(String subject) {
+        Instant now = Instant.now();
+        revokedSubjects.put(subject, now);
+        revokedSubjects.values().removeIf(revokedAt -> revokedAt.plus(revocationRetention).isBefore(now));
+        synchronized (cache) {
+            cache.values().removeIf(cached -> subject.equals(cached.claims().getSubject()));
+        }
+        log.info("Revoked cached tokens for subject {}", subject);
+    }
+
+    public void revokeKeyId(String keyId) {
+        synchronized (cache) {
+            cache.values().removeIf(cached -> keyId.equals(cached.keyId()));
+        }
+    }
+
+    // Giữ lại claims của các key vẫn còn trong JWKS mới
+    public void retainKeyIds(Set<String> keyIds) {
+        synchronized (cache) {
+            cache.values().removeIf(cached -> !keyIds.contains(cached.keyId()));
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private double hitRatio() {
+        double total = hits.count() + misses.count();
+        return total == 0 ? 0 : hits.count() / total;
+    }
+}
@@ -0,0 +1,27 @@
+-- Token bucket toàn cụm cho HierarchicalRateLimiter.
+-- Mỗi KEYS[i] đi với bộ ba ARGV (replenishRate, burstCapacity, consumed): cộng token theo thời gian trôi qua,
+-- trừ lượng replica vừa dùng ở local, trả về số token còn lại. Giá trị âm là nợ khi các replica cùng vượt quota giữa
+-- hai lần sync; nợ không được xoá mà trả dần bằng lượng token nạp lại.
+local time = redis.call('TIME')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local results = {}
+for i, key in ipairs(KEYS) do
+    local base = (i - 1) * 3
+    local rate = tonumber(ARGV[base + 1])
+    local capacity = tonumber(ARGV[base + 2])
+    local consumed = tonumber(ARGV[base + 3])
+
+    local state = redis.call('HMGET', key, 'tokens', 'ts')
+    local tokens = tonumber(state[1]) or capacity
+    local ts = tonumber(state[2]) or now
+
+    tokens = math.min(capacity, tokens + math.max(0, now - ts) * rate / 1000)
+    tokens = tokens - consumed
+
+    redis.call('HSET', key, 'tokens', tostring(tokens), 'ts', now)
+    -- Hết hạn khi bucket đã nạp đầy lại, lúc đó mất key cũng giống như key mới
+    redis.call('EXPIRE', key, math.ceil((capacity - tokens) / rate) + 1)
+    results[i] = math.floor(tokens)
+end
+return results
@@ -0,0 +1,190 @@
+package org.overcode250204.gatewayservice.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.gatewayservice.properties.RateLimitProperties;
+import org.overcode250204.gatewayservice.utils.HierarchicalRateLimiter;
+import org.overcode250204.gatewayservice.utils.RateLimitKey;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * HierarchicalRateLimiter với Redis nhúng: nhiều replica dùng chung quota qua Redis, quota theo nhóm route,
+ * và vẫn giới hạn khi Redis ngừng hoạt động.
+ */
+@Slf4j
+class HierarchicalRateLimiterLoadTest {
+
+    private static final double RATE = 100;
+    private static final int BURST = 100;
+    private static final int THREADS = 8;
+
+    private int redisPort;
+    private RedisServer redisServer;
+    private LettuceConnectionFactory connectionFactory;
+    private final List<HierarchicalRateLimiter> limiters = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            redisPort = socket.getLocalPort();
+        }
+        redisServer = new RedisServer(redisPort);
+        redisServer.start();
+        connectionFactory = new LettuceConnectionFactory("localhost", redisPort);
+        connectionFactory.afterPropertiesSet();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        limiters.forEach(HierarchicalRateLimiter::shutdown);
+        connectionFactory.destroy();
+        if (redisServer.isActive()) {
+            redisServer.stop();
+        }
+    }
+
+    private HierarchicalRateLimiter newReplica() {
+        RateLimitProperties props = new RateLimitProperties();
+        props.setSyncIntervalMs(50);
+        props.setSyncTimeoutMs(200);
+        props.setFallbackReplicas(2);
+        props.setDefaultQuota(new RateLimitProperties.Quota(RATE, BURST));
+        RateLimitProperties.RouteGroup exports = new RateLimitProperties.RouteGroup();
+        exports.setName("exports");
+        exports.setReplenishRate(1);
+        exports.setBurstCapacity(3);
+        RateLimitProperties.RouteGroup results = new RateLimitProperties.RouteGroup();
+        results.setName("results");
+        results.setReplenishRate(500);
+        results.setBurstCapacity(1000);
+        props.setRouteGroups(List.of(exports, results));
+
+        HierarchicalRateLimiter limiter = new HierarchicalRateLimiter(props,
+                new ReactiveStringRedisTemplate(connectionFactory), null, new SimpleMeterRegistry());
+        limiters.add(limiter);
+        return limiter;
+    }
+
+    private static boolean allowed(HierarchicalRateLimiter limiter, String key) {
+        return limiter.isAllowed("lab-route", key).block().isAllowed();
+    }
+
+    // THREADS thread gọi xoay vòng các replica liên tục trong durationMs, trả về số request được cho qua
+    private static long hammer(List<HierarchicalRateLimiter> replicas, String key, long durationMs) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        AtomicLong granted = new AtomicLong();
+        AtomicLong total = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int offset = t;
+            futures.add(pool.submit(() -> {
+                int i = offset;
+                while (System.nanoTime() < deadline) {
+                    if (allowed(replicas.get(i++ % replicas.size()), key)) {
+                        granted.incrementAndGet();
+                    }
+                    total.incrementAndGet();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(durationMs + 10_000, TimeUnit.MILLISECONDS);
+        }
+        pool.shutdownNow();
+        log.info("{}: {} requests in {} ms, {} allowed", key, total.get(), durationMs, granted.get());
+        return granted.get();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    void replicasShareOneQuotaPerUser() throws Exception {
+        List<HierarchicalRateLimiter> replicas = List.of(newReplica(), newReplica());
+        String alice = new RateLimitKey(RateLimitKey.DEFAULT_GROUP, 1.0, "u:alice").encode();
+        String bob = new RateLimitKey(RateLimitKey.DEFAULT_GROUP, 1.0, "u:bob").encode();
+
+        long seconds = 3;
+        long granted = hammer(replicas, alice, seconds * 1000);
+
+        // Trước lần sync đầu mỗi replica có thể cho qua một burst, sau đó cả cụm giữ đúng RATE
+        long upper = replicas.size() * BURST + (long) (RATE * (seconds + 0.5));
+        assertTrue(granted <= upper, "granted " + granted + " > " + upper);
+        assertTrue(granted >= RATE * seconds / 2, "granted " + granted + " too low");
+        assertFalse(replicas.get(0).isDegraded());
+
+        // User khác (cùng NAT) không bị ảnh hưởng
+        assertTrue(allowed(replicas.get(0), bob));
+        assertTrue(allowed(replicas.get(1), bob));
+    }
+
+    @Test
+    void routeGroupsHaveTheirOwnQuotas() throws Exception {
+        HierarchicalRateLimiter limiter = newReplica();
+        String exports = new RateLimitKey("exports", 1.0, "u:carol").encode();
+        String results = new RateLimitKey("results", 1.0, "u:carol").encode();
+        String privilegedExports = new RateLimitKey("exports", 2.0, "u:admin").encode();
+
+        int exportsGranted = 0;
+        int resultsGranted = 0;
+        int privilegedGranted = 0;
+        for (int i = 0; i < 20; i++) {
+            exportsGranted += allowed(limiter, exports) ? 1 : 0;
+            resultsGranted += allowed(limiter, results) ? 1 : 0;
+            privilegedGranted += allowed(limiter, privilegedExports) ? 1 : 0;
+        }
+
+        assertEquals(3, exportsGranted);
+        assertEquals(20, resultsGranted);
+        assertEquals(6, privilegedGranted);
+    }
+
+    @Test
+    void keepsLimitingWhileRedisIsDown() throws Exception {
+        List<HierarchicalRateLimiter> replicas = List.of(newReplica());
+        HierarchicalRateLimiter limiter = replicas.get(0);
+        String key = new RateLimitKey(RateLimitKey.DEFAULT_GROUP, 1.0, "u:dave").encode();
+
+        redisServer.stop();
+        allowed(limiter, key);
+        await(limiter::isDegraded);
+
+        long seconds = 2;
+        long granted = hammer(replicas, key, seconds * 1000);
+
+        // Không có Redis: một replica chỉ giữ quota / fallbackReplicas
+        long upper = BURST + (long) (RATE / 2 * (seconds + 0.5));
+        assertTrue(granted <= upper, "granted " + granted + " > " + upper);
+        assertTrue(granted > 0);
+
+        redisServer.start();
+        await(() -> {
+            allowed(limiter, key);
+            return !limiter.isDegraded();
+        });
+    }
+}
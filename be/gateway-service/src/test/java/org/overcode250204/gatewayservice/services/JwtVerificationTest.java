@@ -0,0 +1,246 @@
+package org.overcode250204.gatewayservice.services;
+
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.gatewayservice.exceptions.JwtVerificationException;
+import org.overcode250204.gatewayservice.properties.SecurityProperties;
+import org.overcode250204.gatewayservice.utils.JwksKeySource;
+import org.overcode250204.gatewayservice.utils.JwtUtils;
+import org.overcode250204.gatewayservice.utils.VerifiedClaimsCache;
+import reactor.test.StepVerifier;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * JwtUtils + JwksKeySource + VerifiedClaimsCache chạy với một JWKS endpoint giả (HttpServer của JDK).
+ */
+class JwtVerificationTest {
+
+    private static final String ISSUER = "https://cognito-idp.local/test-pool";
+    private static final String CLIENT_ID = "test-client";
+
+    private HttpServer jwksServer;
+    private final AtomicReference<JWKSet> servedKeys = new AtomicReference<>();
+    private final AtomicReference<CountDownLatch> responseGate = new AtomicReference<>(new CountDownLatch(0));
+    private final AtomicInteger jwksRequests = new AtomicInteger();
+
+    private SimpleMeterRegistry meterRegistry;
+    private JwksKeySource keySource;
+    private VerifiedClaimsCache claimsCache;
+    private JwtUtils jwtUtils;
+    private RSAKey firstKey;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        firstKey = new RSAKeyGenerator(2048).keyID("key-1").generate();
+        servedKeys.set(new JWKSet(firstKey.toPublicJWK()));
+
+        jwksServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        jwksServer.setExecutor(Executors.newCachedThreadPool());
+        jwksServer.createContext("/.well-known/jwks.json", exchange -> {
+            jwksRequests.incrementAndGet();
+            try {
+                responseGate.get().await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = servedKeys.get().toString(true).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        jwksServer.start();
+
+        SecurityProperties props = new SecurityProperties();
+        props.setJwksUrl("http://127.0.0.1:" + jwksServer.getAddress().getPort() + "/.well-known/jwks.json");
+        props.setIssuer(ISSUER);
+        props.setClientId(CLIENT_ID);
+        props.setJwksMinRefreshIntervalSecs(0);
+
+        meterRegistry = new SimpleMeterRegistry();
+        keySource = new JwksKeySource(props, meterRegistry);
+        claimsCache = new VerifiedClaimsCache(props, meterRegistry);
+        jwtUtils = new JwtUtils(props, keySource, claimsCache, meterRegistry);
+
+        // Lần tải đầu chạy nền, chờ key có trong bộ nhớ
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (keySource.getKey("key-1") == null && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(keySource.getKey("key-1"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        keySource.shutdown();
+        jwksServer.stop(0);
+    }
+
+    private static String token(RSAKey key, String subject, Instant issuedAt, Instant expiresAt) throws Exception {
+        JWTClaimsSet claims = new JWTClaimsSet.Builder()
+                .issuer(ISSUER)
+                .subject(subject)
+                .issueTime(Date.from(issuedAt))
+                .expirationTime(Date.from(expiresAt))
+                .claim("token_use", "access")
+                .claim("client_id", CLIENT_ID)
+                .claim("cognito:groups", List.of("ADMIN"))
+                .claim("privileges", List.of("INSTRUMENT_READ"))
+                .build();
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).type(JOSEObjectType.JWT).build(), claims);
+        jwt.sign(new RSASSASigner(key));
+        return jwt.serialize();
+    }
+
+    private static String validToken(RSAKey key, String subject) throws Exception {
+        Instant now = Instant.now();
+        return token(key, subject, now.minusSeconds(5), now.plusSeconds(3600));
+    }
+
+    private double cacheRequests(String result) {
+        return meterRegistry.counter("gateway.jwt.cache.requests", "result", result).count();
+    }
+
+    @Test
+    void verifiedTokenIsServedFromCacheUntilExpiry() throws Exception {
+        String token = validToken(firstKey, "user-1");
+
+        StepVerifier.create(jwtUtils.verifyToken(token))
+                .assertNext(claims -> assertEquals("user-1", claims.getSubject()))
+                .verifyComplete();
+        StepVerifier.create(jwtUtils.verifyToken(token))
+                .assertNext(claims -> assertEquals("user-1", claims.getSubject()))
+                .verifyComplete();
+
+        assertEquals(1, cacheRequests("hit"));
+        assertEquals(1, cacheRequests("miss"));
+        assertEquals(1, meterRegistry.timer("gateway.jwt.verification", "result", "success").count());
+        assertEquals(1, jwksRequests.get());
+    }
+
+    @Test
+    void tamperedAndExpiredTokensAreRejected() throws Exception {
+        String token = validToken(firstKey, "user-1");
+        String tampered = token.substring(0, token.length() - 4) + (token.endsWith("AAAA") ? "BBBB" : "AAAA");
+        Instant now = Instant.now();
+        String expired = token(firstKey, "user-1", now.minusSeconds(7200), now.minusSeconds(3600));
+
+        StepVerifier.create(jwtUtils.verifyToken(tampered)).expectError(JwtVerificationException.class).verify();
+        StepVerifier.create(jwtUtils.verifyToken(expired)).expectError(JwtVerificationException.class).verify();
+        assertEquals(0, claimsCache.size());
+        assertEquals(2, meterRegistry.timer("gateway.jwt.verification", "result", "failure").count());
+    }
+
+    @Test
+    void unknownKidWaitsForBackgroundRefreshWithoutBlockingCaller() throws Exception {
+        RSAKey rotatedKey = new RSAKeyGenerator(2048).keyID("key-2").generate();
+        servedKeys.set(new JWKSet(List.of(firstKey.toPublicJWK(), rotatedKey.toPublicJWK())));
+        CountDownLatch gate = new CountDownLatch(1);
+        responseGate.set(gate);
+
+        String token = validToken(rotatedKey, "user-2");
+        long start = System.nanoTime();
+        CompletableFuture<JWTClaimsSet> result = jwtUtils.verifyToken(token).toFuture();
+        long callerNanos = System.nanoTime() - start;
+
+        // JWKS endpoint đang bị giữ lại: caller đã trả về ngay, kết quả còn chờ
+        assertTrue(callerNanos < TimeUnit.MILLISECONDS.toNanos(500), "verifyToken blocked the caller");
+        Thread.sleep(200);
+        assertFalse(result.isDone());
+
+        gate.countDown();
+        assertEquals("user-2", result.get(5, TimeUnit.SECONDS).getSubject());
+        assertNotNull(keySource.getKey("key-2"));
+        // Lần tải lúc khởi động + đúng một lần tải cho kid lạ
+        assertEquals(2.0, meterRegistry.counter("gateway.jwks.refresh", "result", "success").count());
+    }
+
+    @Test
+    void removedKeyEvictsItsCachedClaims() throws Exception {
+        String token = validToken(firstKey, "user-1");
+        StepVerifier.create(jwtUtils.verifyToken(token)).expectNextCount(1).verifyComplete();
+        assertEquals(1, claimsCache.size());
+
+        RSAKey rotatedKey = new RSAKeyGenerator(2048).keyID("key-2").generate();
+        servedKeys.set(new JWKSet(rotatedKey.toPublicJWK()));
+        StepVerifier.create(jwtUtils.verifyToken(validToken(rotatedKey, "user-2")))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        // Claims ký bởi key-1 bị bỏ khi JWKS mới không còn key-1, token cũ không còn verify được
+        assertEquals(1, claimsCache.size());
+        StepVerifier.create(jwtUtils.verifyToken(token))
+                .expectError(JwtVerificationException.class)
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void revokedSubjectIsRejectedEvenWhenCached() throws Exception {
+        String token = validToken(firstKey, "user-3");
+        StepVerifier.create(jwtUtils.verifyToken(token)).expectNextCount(1).verifyComplete();
+
+        claimsCache.revokeSubject("user-3");
+
+        StepVerifier.create(jwtUtils.verifyToken(token)).expectError(JwtVerificationException.class).verify();
+        // Token cấp sau thời điểm revoke vẫn dùng được
+        Instant later = Instant.now().plusSeconds(2);
+        String fresh = token(firstKey, "user-3", later, later.plusSeconds(3600));
+        StepVerifier.create(jwtUtils.verifyToken(fresh)).expectNextCount(1).verifyComplete();
+    }
+
+    @Test
+    void revokedTokenIsRejectedOnNextCall() throws Exception {
+        Instant now = Instant.now();
+        String token = token(firstKey, "user-4", now.minusSeconds(5), now.plusSeconds(3600));
+        String other = token(firstKey, "user-4", now.minusSeconds(10), now.plusSeconds(3600));
+        StepVerifier.create(jwtUtils.verifyToken(token)).expectNextCount(1).verifyComplete();
+
+        // Logout: token bị từ chối cả khi verify lại từ đầu (chữ ký và exp vẫn hợp lệ)
+        claimsCache.revokeToken(token);
+
+        StepVerifier.create(jwtUtils.verifyToken(token)).expectError(JwtVerificationException.class).verify();
+        StepVerifier.create(jwtUtils.verifyToken(token)).expectError(JwtVerificationException.class).verify();
+        assertNull(claimsCache.get(VerifiedClaimsCache.hash(token)));
+        // Token khác của cùng user không bị ảnh hưởng
+        StepVerifier.create(jwtUtils.verifyToken(other)).expectNextCount(1).verifyComplete();
+    }
+
+    @Test
+    void revokedTokenIsForgottenAfterItExpires() throws Exception {
+        Instant now = Instant.now();
+        String token = token(firstKey, "user-5", now.minusSeconds(5), now.plusSeconds(1));
+        claimsCache.revokeToken(token);
+        assertTrue(claimsCache.isTokenRevoked(VerifiedClaimsCache.hash(token)));
+
+        Thread.sleep(1100);
+
+        assertFalse(claimsCache.isTokenRevoked(VerifiedClaimsCache.hash(token)));
+        StepVerifier.create(jwtUtils.verifyToken(token)).expectError(JwtVerificationException.class).verify();
+    }
+}
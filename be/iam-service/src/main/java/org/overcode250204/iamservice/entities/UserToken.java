@@ -23,6 +23,10 @@ public class UserToken {
     @Column(name = "refresh_token_encrypted", columnDefinition = "TEXT", nullable = false)
     private String refreshTokenEncrypted;
 
+    // HMAC-SHA256 (pepper) của refresh token, dùng để tra cứu thay cho việc giải mã từng dòng; cùng giá trị với key Redis
+    @Column(name = "token_hash", length = 64, unique = true)
+    private String tokenHash;
+
     @Column(name = "issued_at")
     private LocalDateTime issuedAt;
 
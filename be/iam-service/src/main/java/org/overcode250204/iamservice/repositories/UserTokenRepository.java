@@ -1,7 +1,9 @@
 package org.overcode250204.iamservice.repositories;
 
 import org.overcode250204.iamservice.entities.UserToken;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
@@ -11,7 +13,15 @@ import java.util.Optional;
 import java.util.UUID;
 
 public interface UserTokenRepository extends JpaRepository<UserToken, UUID> {
-    @Query("select t from UserToken t where t.status = 'ACTIVE' and t.expiresAt > :now")
-    List<UserToken> findActiveNotExpired(@Param("now") LocalDateTime now);
+    Optional<UserToken> findByTokenHash(String tokenHash);
+
+    @Modifying
+    @Query("update UserToken t set t.status = 'REVOKED' where t.tokenHash = :tokenHash and t.status = 'ACTIVE'")
+    int revokeByTokenHash(@Param("tokenHash") String tokenHash);
+
+    // Token tạo trước khi có cột token_hash, phân trang keyset theo id
+    @Query("select t from UserToken t where t.tokenHash is null and t.status = 'ACTIVE' and t.expiresAt > :now " +
+            "and t.id > :afterId order by t.id")
+    List<UserToken> findActiveWithoutTokenHash(@Param("now") LocalDateTime now, @Param("afterId") UUID afterId, Pageable pageable);
 }
 
@@ -16,6 +16,7 @@ public class DataSeeder implements CommandLineRunner {
     private final RoleSeeder roleSeeder;
     private final RolePrivilegeSeeder rolePrivilegeSeeder;
     private final AdminSeeder adminSeeder;
+    private final RefreshTokenHashBackfill refreshTokenHashBackfill;
 
     @Override
     public void run(String... args) throws Exception {
@@ -27,6 +28,7 @@ public class DataSeeder implements CommandLineRunner {
         adminSeeder.seedManager();
         adminSeeder.seedServiceUser();
         adminSeeder.seedLabUser();
+        refreshTokenHashBackfill.backfillTokenHashes();
         log.info("Data seeding completed successfully.");
     }
 }
@@ -0,0 +1,63 @@
+package org.overcode250204.iamservice.seeder;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.iamservice.configs.aesgcm.SecurityProperties;
+import org.overcode250204.iamservice.entities.UserToken;
+import org.overcode250204.iamservice.repositories.UserTokenRepository;
+import org.overcode250204.iamservice.services.crypto.AESEncryptionService;
+import org.overcode250204.iamservice.utils.HashUtil;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Điền token_hash cho refresh token ACTIVE tạo trước khi có cột này (giải mã từng token đúng một lần).
+ * Token không giải mã được bị đánh dấu REVOKED vì không thể tra cứu theo hash.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class RefreshTokenHashBackfill {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final UserTokenRepository userTokenRepository;
+    private final AESEncryptionService aes;
+    private final SecurityProperties securityProperties;
+    private final TransactionTemplate transactionTemplate;
+
+    public void backfillTokenHashes() {
+        LocalDateTime now = LocalDateTime.now();
+        UUID afterId = new UUID(0L, 0L);
+        int updated = 0;
+        while (true) {
+            UUID cursor = afterId;
+            List<UserToken> batch = transactionTemplate.execute(status -> {
+                List<UserToken> tokens = userTokenRepository.findActiveWithoutTokenHash(now, cursor, PageRequest.of(0, BATCH_SIZE));
+                for (UserToken token : tokens) {
+                    try {
+                        String raw = aes.decrypt(token.getRefreshTokenEncrypted());
+                        token.setTokenHash(HashUtil.hmacSha256Base64Url(securityProperties.getBase64Pepper(), raw));
+                    } catch (Exception e) {
+                        log.warn("Cannot decrypt refresh token {}, marking REVOKED", token.getId());
+                        token.setStatus("REVOKED");
+                    }
+                }
+                return userTokenRepository.saveAll(tokens);
+            });
+            if (batch == null || batch.isEmpty()) {
+                break;
+            }
+            updated += batch.size();
+            afterId = batch.get(batch.size() - 1).getId();
+        }
+        if (updated > 0) {
+            log.info("Backfilled token_hash for {} refresh tokens", updated);
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package org.overcode250204.iamservice.services.auth;
 
+import java.util.Optional;
 import java.util.UUID;
 
 public interface RefreshTokenService {
     String create(UUID userId, String deviceId, String rawRefreshTokenFromCognito);
     boolean validate(String token);
     UUID getUserId(String token);
+    // validate + getUserId trong một lần tra cứu: rỗng nếu token không tồn tại, đã revoke hoặc hết hạn
+    Optional<UUID> findActiveUserId(String token);
     void revoke(String token);
 }
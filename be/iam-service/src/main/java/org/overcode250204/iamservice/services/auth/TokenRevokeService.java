@@ -1,5 +0,0 @@
-package org.overcode250204.iamservice.services.auth;
-
-public interface TokenRevokeService {
-    boolean isRevoked(String refreshToken);
-}
@@ -284,9 +284,8 @@ public class CognitoServiceImpl  implements CognitoService {
         String rawRefreshToken = tokenCookieService.get(request);
         if (rawRefreshToken == null) throw new IamServiceException(ErrorCode.REFRESH_TOKEN_NOT_FOUND);
 
-        if (!refreshTokenService.validate(rawRefreshToken)) throw new IamServiceException(ErrorCode.INVALID_REFRESH_TOKEN);
-
-        UUID userId = refreshTokenService.getUserId(rawRefreshToken);
+        UUID userId = refreshTokenService.findActiveUserId(rawRefreshToken)
+                .orElseThrow(() -> new IamServiceException(ErrorCode.INVALID_REFRESH_TOKEN));
         UserProfile user = userRepository.findById(userId)
                 .orElseThrow(() -> new IamServiceException(ErrorCode.USER_NOT_FOUND_WITH_ID));
         String deviceId = UUID.randomUUID().toString();
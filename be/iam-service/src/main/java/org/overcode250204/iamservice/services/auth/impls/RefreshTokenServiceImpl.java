@@ -1,31 +1,57 @@
 package org.overcode250204.iamservice.services.auth.impls;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.overcode250204.iamservice.configs.aesgcm.SecurityProperties;
 import org.overcode250204.iamservice.entities.UserToken;
 import org.overcode250204.iamservice.repositories.UserTokenRepository;
 import org.overcode250204.iamservice.services.auth.RefreshTokenService;
-import org.overcode250204.iamservice.services.auth.TokenRevokeService;
 import org.overcode250204.iamservice.services.crypto.AESEncryptionService;
 import org.overcode250204.iamservice.utils.HashUtil;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Refresh token được lưu mã hoá AES-GCM (refresh_token_encrypted) kèm token_hash = HMAC-SHA256(pepper, token).
+ * Mọi tra cứu đi theo token_hash: Redis key "active:{hash}" -> "tokenId|userId|expiresAtEpochSecond", miss thì
+ * đọc DB qua unique index token_hash rồi nạp lại Redis. Không giải mã token nào khi tra cứu.
+ *
+ * Key Redis chỉ được ghi sau khi transaction commit, và bị xoá cả trước lẫn sau commit khi revoke. Một lần đọc
+ * đồng thời có thể đã thấy token ACTIVE trong DB rồi mới nạp lại Redis sau khi revoke xoá key, nên revoke đặt
+ * thêm marker "revoked:{hash}" trước khi cập nhật DB, và mọi lần nạp cache chỉ SET khi marker không tồn tại
+ * (một script Lua, atomic). Marker chỉ cần sống lâu hơn các lần đọc đang dở; sau đó DB đã trả REVOKED.
+ */
 @Service
 @Slf4j
 public class RefreshTokenServiceImpl implements RefreshTokenService {
 
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    // KEYS[1] = active key, KEYS[2] = revoked marker; ARGV[1] = giá trị, ARGV[2] = TTL (giây)
+    private static final RedisScript<Long> CACHE_UNLESS_REVOKED = new DefaultRedisScript<>("""
+            if redis.call('EXISTS', KEYS[2]) == 1 then
+                return 0
+            end
+            redis.call('SET', KEYS[1], ARGV[1], 'EX', ARGV[2])
+            return 1
+            """, Long.class);
+
     private final UserTokenRepository repo;
     private final AESEncryptionService aes;
-    private final TokenRevokeService revokeService;
     private final RedisTemplate<String, String> redisTemplate;
     private final SecurityProperties securityProperties;
 
@@ -35,31 +61,59 @@ public class RefreshTokenServiceImpl implements RefreshTokenService {
     @Value("${REDIS_TOKEN_TTL:2592000}")
     private long redisTtlSeconds;
 
+    @Value("${REDIS_TOKEN_REVOKED_MARKER_TTL:300}")
+    private long revokedMarkerTtlSeconds;
+
+    private record ActiveToken(UUID tokenId, UUID userId, long expiresAtEpochSecond) {
+
+        static ActiveToken of(UserToken token) {
+            return new ActiveToken(token.getId(), token.getUserId(),
+                    token.getExpiresAt().atZone(ZONE).toEpochSecond());
+        }
+
+        static ActiveToken parse(String value) {
+            String[] parts = value.split("\\|");
+            return new ActiveToken(UUID.fromString(parts[0]), UUID.fromString(parts[1]), Long.parseLong(parts[2]));
+        }
+
+        String format() {
+            return tokenId + "|" + userId + "|" + expiresAtEpochSecond;
+        }
+
+        boolean isExpired() {
+            return expiresAtEpochSecond <= Instant.now().getEpochSecond();
+        }
+    }
+
     public RefreshTokenServiceImpl(
             UserTokenRepository repo,
             AESEncryptionService aes,
-            TokenRevokeService revokeService,
             SecurityProperties securityProperties,
             @Qualifier("customRedisTemplate") RedisTemplate<String, String> redisTemplate
     ) {
         this.repo = repo;
         this.aes = aes;
-        this.revokeService = revokeService;
         this.redisTemplate = redisTemplate;
         this.securityProperties = securityProperties;
     }
 
+    private String tokenHash(String rawToken) {
+        return HashUtil.hmacSha256Base64Url(securityProperties.getBase64Pepper(), rawToken);
+    }
+
     @Override
+    @Transactional
     public String create(UUID userId, String deviceId, String rawRefreshTokenFromCognito) {
         return createAndPersist(userId, deviceId, rawRefreshTokenFromCognito);
     }
 
     private String createAndPersist(UUID userId, String deviceId, String raw) {
-        String encrypted = aes.encrypt(raw);
+        String hash = tokenHash(raw);
 
         UserToken entity = new UserToken();
         entity.setUserId(userId);
-        entity.setRefreshTokenEncrypted(encrypted);
+        entity.setRefreshTokenEncrypted(aes.encrypt(raw));
+        entity.setTokenHash(hash);
         entity.setIssuedAt(LocalDateTime.now());
         entity.setExpiresAt(LocalDateTime.now().plusDays(7));
         entity.setDeviceId(deviceId);
@@ -67,92 +121,101 @@ public class RefreshTokenServiceImpl implements RefreshTokenService {
 
         repo.save(entity);
 
-        try {
-            String redisKey = redisPrefix + "active:" + HashUtil.hmacSha256Base64(securityProperties.getBase64Pepper(), raw);
-            redisTemplate.opsForValue().set(redisKey, entity.getId().toString(), redisTtlSeconds, TimeUnit.SECONDS);
-        } catch (Exception ex) {
-            log.warn("Failed to set active refresh token in redis: {}", ex.getMessage());
-        }
-
+        ActiveToken active = ActiveToken.of(entity);
+        afterCommit(() -> cacheActive(hash, active));
         return raw;
     }
 
     @Override
     public boolean validate(String rawToken) {
-        if (revokeService.isRevoked(rawToken)) return false;
-        try {
-            String redisKey = redisPrefix + "active:" + rawToken;
-            String val = redisTemplate.opsForValue().get(redisKey);
-            if (val != null) {
-                UUID tokenId = UUID.fromString(val);
-                return repo.findById(tokenId)
-                        .filter(t -> t.getStatus().equals("ACTIVE") && t.getExpiresAt().isAfter(LocalDateTime.now()))
-                        .isPresent();
-            }
-        } catch (Exception ex) {
-            log.debug("redis check failed: {}", ex.getMessage());
-        }
-        List<UserToken> candidates = repo.findActiveNotExpired(LocalDateTime.now());
-        for (UserToken t : candidates) {
-            try {
-                String decrypted = aes.decrypt(t.getRefreshTokenEncrypted());
-                if (rawToken.equals(decrypted)) {
-                    return true;
-                }
-            } catch (Exception e) {
-            }
-        }
-        return false;
+        return findActiveUserId(rawToken).isPresent();
     }
 
     @Override
     public UUID getUserId(String rawToken) {
+        return findActiveUserId(rawToken).orElseThrow(() -> new RuntimeException("Invalid token"));
+    }
+
+    @Override
+    public Optional<UUID> findActiveUserId(String rawToken) {
+        if (rawToken == null || rawToken.isBlank()) return Optional.empty();
+        String hash = tokenHash(rawToken);
+
         try {
-            String redisKey = redisPrefix + "active:" + rawToken;
-            String idStr = redisTemplate.opsForValue().get(redisKey);
-            if (idStr != null) {
-                UUID tokenId = UUID.fromString(idStr);
-                return repo.findById(tokenId)
-                        .map(UserToken::getUserId)
-                        .orElseThrow(() -> new RuntimeException("Invalid token"));
+            String cached = redisTemplate.opsForValue().get(activeKey(hash));
+            if (cached != null) {
+                ActiveToken active = ActiveToken.parse(cached);
+                return active.isExpired() ? Optional.empty() : Optional.of(active.userId());
             }
         } catch (Exception ex) {
-            log.debug("redis get failed: {}", ex.getMessage());
+            log.debug("redis check failed: {}", ex.getMessage());
         }
 
-        List<UserToken> candidates = repo.findActiveNotExpired(LocalDateTime.now());
-        for (UserToken t : candidates) {
-            try {
-                String decrypted = aes.decrypt(t.getRefreshTokenEncrypted());
-                if (rawToken.equals(decrypted)) {
+        return repo.findByTokenHash(hash)
+                .filter(t -> "ACTIVE".equals(t.getStatus()) && t.getExpiresAt().isAfter(LocalDateTime.now()))
+                .map(t -> {
+                    cacheActive(hash, ActiveToken.of(t));
                     return t.getUserId();
-                }
-            } catch (Exception e) {
-            }
-        }
-
-        throw new RuntimeException("Invalid token");
+                });
     }
 
     @Override
+    @Transactional
     public void revoke(String rawToken) {
-        List<UserToken> candidates = repo.findActiveNotExpired(LocalDateTime.now());
-        for (UserToken t : candidates) {
-            try {
-                String decrypted = aes.decrypt(t.getRefreshTokenEncrypted());
-                if (rawToken.equals(decrypted)) {
-                    t.setStatus("REVOKED");
-                    repo.save(t);
-                    break;
-                }
-            } catch (Exception e) {}
+        String hash = tokenHash(rawToken);
+        // Marker đặt trước khi cập nhật DB: lần đọc nào đã thấy ACTIVE cũng không nạp lại được cache nữa
+        markRevoked(hash);
+        evictActive(hash);
+        repo.revokeByTokenHash(hash);
+        // Một lần đọc đồng thời có thể đã nạp lại key trước khi marker được đặt
+        afterCommit(() -> evictActive(hash));
+    }
+
+    private String activeKey(String hash) {
+        return redisPrefix + "active:" + hash;
+    }
+
+    private String revokedKey(String hash) {
+        return redisPrefix + "revoked:" + hash;
+    }
+
+    private void cacheActive(String hash, ActiveToken active) {
+        long ttl = Math.min(redisTtlSeconds, active.expiresAtEpochSecond() - Instant.now().getEpochSecond());
+        if (ttl <= 0) return;
+        try {
+            redisTemplate.execute(CACHE_UNLESS_REVOKED, List.of(activeKey(hash), revokedKey(hash)),
+                    active.format(), String.valueOf(ttl));
+        } catch (Exception ex) {
+            log.warn("Failed to set active refresh token in redis: {}", ex.getMessage());
         }
+    }
 
+    private void markRevoked(String hash) {
         try {
-            String redisKey = redisPrefix + "active:" + HashUtil.hmacSha256Base64(securityProperties.getBase64Pepper(), rawToken);
-            redisTemplate.delete(redisKey);
+            redisTemplate.opsForValue().set(revokedKey(hash), "1", revokedMarkerTtlSeconds, TimeUnit.SECONDS);
+        } catch (Exception ex) {
+            log.warn("Failed to set revoked refresh token marker in redis: {}", ex.getMessage());
+        }
+    }
+
+    private void evictActive(String hash) {
+        try {
+            redisTemplate.delete(activeKey(hash));
         } catch (Exception ex) {
             log.debug("failed deleting active redis key: {}", ex.getMessage());
         }
     }
+
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
 }
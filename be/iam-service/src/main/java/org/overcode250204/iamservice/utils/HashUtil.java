@@ -2,6 +2,7 @@ package org.overcode250204.iamservice.utils;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 
 public class HashUtil {
@@ -18,4 +19,17 @@ public class HashUtil {
             throw new RuntimeException(e);
         }
     }
+
+    // Cho token (refresh token...): giữ nguyên từng byte, không trim / lowercase như email, kết quả base64url không padding
+    public static String hmacSha256Base64Url(String secretBase64Pepper, String input) {
+        try {
+            byte[] pepper = Base64.getDecoder().decode(secretBase64Pepper);
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(pepper, "HmacSHA256"));
+            byte[] raw = mac.doFinal(input.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+        } catch (Exception e){
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -0,0 +1,147 @@
+package org.overcode250204.iamservice.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.overcode250204.iamservice.services.crypto.impl.AESEncryptionServiceImpl;
+import org.overcode250204.iamservice.utils.HashUtil;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.SecureRandom;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thời gian tra cứu refresh token khi refresh theo số token đang ACTIVE:
+ * - legacyDecryptScan: cách cũ (findActiveNotExpired rồi giải mã AES-GCM từng dòng tới khi khớp).
+ * - hashIndexLookup: HMAC token rồi tra unique index token_hash (đường DB của RefreshTokenServiceImpl khi Redis miss).
+ * Token cần tìm được chọn ngẫu nhiên trong bảng; hashIndexLookup giữ gần như không đổi từ 1k tới 100k token.
+ *
+ * Cần một Postgres trống để seed dữ liệu (benchmark tạo và xoá schema riêng "refresh_token_bench").
+ * Thông tin kết nối đọc từ biến môi trường (JVM fork của JMH kế thừa được, khác với -D truyền cho Maven):
+ *   BENCH_JDBC_URL=jdbc:postgresql://localhost:5432/iam BENCH_JDBC_USER=postgres BENCH_JDBC_PASSWORD=postgres
+ *       mvn -Pjmh test-compile exec:exec -Djmh.include=RefreshTokenLookupBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class RefreshTokenLookupBenchmark {
+    private static final String SCHEMA = "refresh_token_bench";
+    private static final String PEPPER = Base64.getEncoder().encodeToString("refresh-token-benchmark-pepper!!".getBytes());
+
+    @Param({"1000", "10000", "100000"})
+    public int activeTokens;
+
+    private Connection connection;
+    private PreparedStatement scanActive;
+    private PreparedStatement findByHash;
+    private AESEncryptionServiceImpl aes;
+    private String[] rawTokens;
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        aes = new AESEncryptionServiceImpl(new SecretKeySpec(key, "AES"), new SecureRandom());
+
+        connection = DriverManager.getConnection(jdbcProperty("url"), jdbcProperty("user"), jdbcProperty("password"));
+        try (Statement ddl = connection.createStatement()) {
+            ddl.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+            ddl.execute("CREATE SCHEMA " + SCHEMA);
+            // Giống bảng user_tokens do Hibernate sinh ra (unique constraint trên token_hash)
+            ddl.execute("CREATE TABLE " + SCHEMA + ".user_tokens (id uuid PRIMARY KEY, user_id uuid NOT NULL, "
+                    + "refresh_token_encrypted text NOT NULL, token_hash varchar(64) UNIQUE, issued_at timestamp, "
+                    + "expires_at timestamp, device_id varchar(255), status varchar(20))");
+        }
+        seed();
+        try (Statement analyze = connection.createStatement()) {
+            analyze.execute("ANALYZE " + SCHEMA + ".user_tokens");
+        }
+
+        scanActive = connection.prepareStatement("SELECT id, user_id, refresh_token_encrypted FROM " + SCHEMA
+                + ".user_tokens WHERE status = 'ACTIVE' AND expires_at > ?");
+        findByHash = connection.prepareStatement("SELECT id, user_id, status, expires_at FROM " + SCHEMA
+                + ".user_tokens WHERE token_hash = ?");
+    }
+
+    private void seed() throws SQLException {
+        rawTokens = new String[activeTokens];
+        byte[] tokenBytes = new byte[1024];
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + SCHEMA
+                + ".user_tokens VALUES (?, ?, ?, ?, now(), now() + interval '7 days', 'DEVICE', 'ACTIVE')")) {
+            for (int i = 0; i < activeTokens; i++) {
+                // Refresh token Cognito là JWE dài khoảng 1.7k ký tự
+                random.nextBytes(tokenBytes);
+                String raw = Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes) + "." + i;
+                rawTokens[i] = raw;
+                insert.setObject(1, UUID.randomUUID());
+                insert.setObject(2, UUID.randomUUID());
+                insert.setString(3, aes.encrypt(raw));
+                insert.setString(4, HashUtil.hmacSha256Base64Url(PEPPER, raw));
+                insert.addBatch();
+                if (i % 1000 == 999) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        try (Statement ddl = connection.createStatement()) {
+            ddl.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+        }
+        connection.close();
+    }
+
+    private String nextToken() {
+        return rawTokens[random.nextInt(rawTokens.length)];
+    }
+
+    @Benchmark
+    public UUID legacyDecryptScan() throws SQLException {
+        String raw = nextToken();
+        scanActive.setObject(1, LocalDateTime.now());
+        try (ResultSet rs = scanActive.executeQuery()) {
+            while (rs.next()) {
+                if (raw.equals(aes.decrypt(rs.getString(3)))) {
+                    return rs.getObject(2, UUID.class);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public UUID hashIndexLookup() throws SQLException {
+        String raw = nextToken();
+        findByHash.setString(1, HashUtil.hmacSha256Base64Url(PEPPER, raw));
+        try (ResultSet rs = findByHash.executeQuery()) {
+            if (rs.next() && "ACTIVE".equals(rs.getString(3))
+                    && rs.getObject(4, LocalDateTime.class).isAfter(LocalDateTime.now())) {
+                return rs.getObject(2, UUID.class);
+            }
+        }
+        return null;
+    }
+
+    private static String jdbcProperty(String name) {
+        String fallback = switch (name) {
+            case "url" -> "jdbc:postgresql://localhost:5432/iam";
+            default -> "postgres";
+        };
+        String value = System.getenv("BENCH_JDBC_" + name.toUpperCase());
+        return value != null ? value : fallback;
+    }
+}
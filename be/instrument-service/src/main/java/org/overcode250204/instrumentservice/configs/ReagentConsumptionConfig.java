@@ -13,4 +13,6 @@ import java.util.Map;
 @ConfigurationProperties(prefix = "reagent")
 public class ReagentConsumptionConfig {
     private Map<String, Map<String, Double>> consumption;
+    // Ngưỡng (mL) theo reagentName: lô đi xuống dưới ngưỡng thì phát event REAGENT_LOW
+    private Map<String, Double> lowLevel;
 }
\ No newline at end of file
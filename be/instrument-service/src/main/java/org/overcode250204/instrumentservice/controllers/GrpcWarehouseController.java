@@ -31,19 +31,36 @@ public class GrpcWarehouseController {
     @GetMapping("/reagents")
     @PreAuthorize("hasAuthority('INSTRUMENT_READ')")
     public ResponseEntity<BaseResponse<Object>> listReagents(
-            @RequestParam(defaultValue = "0") int page,
-            @RequestParam(defaultValue = "10") int size) {
+            @RequestParam(required = false) Integer page,
+            @RequestParam(required = false) Integer size,
+            @RequestParam(required = false) String pageToken) {
         try {
-            ListReagentsResponse resp = warehouseClientService.listReagents(page, size);
+            Map<String, Object> payload = new LinkedHashMap<>();
+            if (page == null && size == null && pageToken == null) {
+                // Không có tham số phân trang: trả toàn bộ danh sách như trước (FE dùng để chọn reagent)
+                List<Map<String, Object>> items = warehouseClientService.listAllReagents()
+                        .stream()
+                        .map(this::toMap)
+                        .collect(Collectors.toList());
+                payload.put("page", 0);
+                payload.put("size", items.size());
+                payload.put("items", items);
+                payload.put("nextPageToken", null);
+                return ResponseEntity.ok(BaseResponse.success(serviceName, payload));
+            }
+
+            int pageNumber = page != null ? page : 0;
+            int pageSize = size != null ? size : 10;
+            ListReagentsResponse resp = warehouseClientService.listReagents(pageNumber, pageSize, pageToken);
             List<Map<String, Object>> items = resp.getReagentsList()
                     .stream()
                     .map(this::toMap)
                     .collect(Collectors.toList());
 
-            Map<String, Object> payload = new LinkedHashMap<>();
-            payload.put("page", page);
-            payload.put("size", size);
+            payload.put("page", pageNumber);
+            payload.put("size", pageSize);
             payload.put("items", items);
+            payload.put("nextPageToken", resp.getNextPageToken().isEmpty() ? null : resp.getNextPageToken());
 
             return ResponseEntity.ok(BaseResponse.success(serviceName, payload));
         } catch (Exception ex) {
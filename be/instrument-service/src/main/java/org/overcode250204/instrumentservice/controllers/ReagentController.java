@@ -18,6 +18,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/instruments/{instrumentId}/reagents")
@@ -52,16 +53,12 @@ public class ReagentController {
         return ResponseEntity.ok(BaseResponse.success(serviceName, dto));
     }
 
+    // Trả về khi warehouse reply (hoặc 202 khi hết thời gian chờ); servlet thread được nhả trong lúc chờ
     @PostMapping("/install")
     @PreAuthorize("hasAuthority('REAGENT_CREATE')")
-    public ResponseEntity<BaseResponse<Object>> installReagent(@PathVariable UUID instrumentId,
-                                                               @RequestBody InstallReagentCommand cmd) {
-        JsonNode inboxNode = reagentService.requestInstallReagent(instrumentId, cmd);
-        if (inboxNode != null) {
-            return ResponseEntity.ok(BaseResponse.success(serviceName, inboxNode));
-        }
-        // Timed out waiting for warehouse response; return accepted with status
-        return ResponseEntity.accepted().body(BaseResponse.success(serviceName, Map.of("status", "request_sent")));
+    public CompletableFuture<ResponseEntity<BaseResponse<Object>>> installReagent(@PathVariable UUID instrumentId,
+                                                                                  @RequestBody InstallReagentCommand cmd) {
+        return reagentService.requestInstallReagent(instrumentId, cmd).thenApply(this::toResponse);
     }
 
     @PostMapping("/uninstall")
@@ -74,11 +71,15 @@ public class ReagentController {
 
     @PostMapping("/sync")
     @PreAuthorize("hasAuthority('INSTRUMENT_UPDATE')")
-    public ResponseEntity<BaseResponse<Object>> syncReagent(@PathVariable UUID instrumentId) {
-        JsonNode inboxNode = reagentService.requestSyncReagent(instrumentId);
+    public CompletableFuture<ResponseEntity<BaseResponse<Object>>> syncReagent(@PathVariable UUID instrumentId) {
+        return reagentService.requestSyncReagent(instrumentId).thenApply(this::toResponse);
+    }
+
+    private ResponseEntity<BaseResponse<Object>> toResponse(JsonNode inboxNode) {
         if (inboxNode != null) {
             return ResponseEntity.ok(BaseResponse.success(serviceName, inboxNode));
         }
+        // Timed out waiting for warehouse response; return accepted with status
         return ResponseEntity.accepted().body(BaseResponse.success(serviceName, Map.of("status", "request_sent")));
     }
 
@@ -0,0 +1,43 @@
+package org.overcode250204.instrumentservice.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Tiến độ của một run: số sample thành công / lỗi là bộ đếm $inc. Mỗi sample đã có kết quả có một marker
+ * samples.{barcode đã mã hoá} = thành công hay lỗi trong cùng document, và lệnh $inc chỉ khớp khi marker chưa có
+ * hoặc mang kết quả khác, nên ghi lại cùng một sample (message giao lại, consumer chết giữa chừng) không đổi bộ
+ * đếm, và nhiều consumer cùng ghi không mất lượt. Marker không được map vào entity và bị loại khỏi projection.
+ * completed chỉ được bật một lần (điều kiện completed = false) để sự kiện hoàn tất run không phát trùng.
+ */
+@Document(collection = "instrument_run_progress")
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class InstrumentRunProgress {
+
+    @Id
+    private UUID runId;
+
+    private int totalSamplesExpected;
+
+    private int successfulSamples;
+
+    private int failedSamples;
+
+    private boolean completed;
+
+    private LocalDateTime updatedAt;
+
+    public boolean isFinished() {
+        return successfulSamples + failedSamples >= totalSamplesExpected;
+    }
+}
@@ -6,18 +6,20 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.overcode250204.instrumentservice.entity.Instrument;
 import org.overcode250204.instrumentservice.entity.InstrumentRun;
+import org.overcode250204.instrumentservice.entity.InstrumentRunProgress;
 import org.overcode250204.instrumentservice.entity.OutboxEvent;
 import org.overcode250204.instrumentservice.entity.RawTestResult;
 import org.overcode250204.instrumentservice.enums.InstrumentRunStatus;
 import org.overcode250204.instrumentservice.exception.ErrorCode;
 import org.overcode250204.instrumentservice.exception.InstrumentException;
-import org.overcode250204.instrumentservice.repository.InstrumentRepository;
 import org.overcode250204.instrumentservice.repository.InstrumentRunRepository;
 import org.overcode250204.instrumentservice.repository.OutboxRepository;
 import org.overcode250204.instrumentservice.repository.RawTestResultRepository;
 import org.overcode250204.instrumentservice.service.interfaces.EventLogService;
 import org.overcode250204.instrumentservice.service.interfaces.HL7TemplateService;
+import org.overcode250204.instrumentservice.service.interfaces.InstrumentLookupService;
 import org.overcode250204.instrumentservice.service.interfaces.ReagentService;
+import org.overcode250204.instrumentservice.service.interfaces.RunProgressService;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
@@ -36,7 +38,8 @@ public class AnalyzerResultListener {
     private final ObjectMapper objectMapper;
     private final RawTestResultRepository rawTestResultRepository;
     private final InstrumentRunRepository instrumentRunRepository;
-    private final InstrumentRepository instrumentRepository;
+    private final InstrumentLookupService instrumentLookupService;
+    private final RunProgressService runProgressService;
 
     private final HL7TemplateService hl7TemplateService;
     private final HL7Publisher hl7Publisher;
@@ -62,7 +65,6 @@ public class AnalyzerResultListener {
             String userId = (String) payload.get("userId");
             Map<String, Object> rawData = (Map<String, Object>) payload.getOrDefault("rawData", Map.of());
 
-            Instrument instrument = null;
             InstrumentRun run = instrumentRunRepository.findByRunId(runId).orElseThrow(() -> new InstrumentException(ErrorCode.RUN_NOT_FOUND));
             JsonNode reagentSnapshot = run.getReagentSnapshot();
 
@@ -75,7 +77,6 @@ public class AnalyzerResultListener {
                         r.setCreatedAt(LocalDateTime.now());
                         return r;
                     });
-
             if ("SUCCESS".equalsIgnoreCase(status)) {
                 result.setStatus("COMPLETED");
                 result.setCreatedBy(UUID.fromString(userId));
@@ -85,17 +86,15 @@ public class AnalyzerResultListener {
                 result.setPublishedAt(LocalDateTime.now());
 
                 // Build HL7 message
-                instrument = instrumentRepository.findById(instrumentId)
-                        .orElseThrow(() -> new InstrumentException(ErrorCode.INSTRUMENT_NOT_FOUND));
-                String hl7Message = hl7TemplateService.buildOruMessage(instrument, barcode, testType, rawDataNode);
+                InstrumentLookupService.InstrumentSnapshot instrument = instrumentLookupService.getInstrument(instrumentId);
+                String hl7Message = hl7TemplateService.buildOruMessage(instrument.instrument(), barcode, testType, rawDataNode);
                 result.setHl7Message(hl7Message);
                 // --- Try publish HL7 messages ---
                 Map<String, Object> eventPayload = Map.of();
                 Map<String, Object> testResultPayload = Map.of();
                 try {
                     eventPayload = hl7Publisher.publishRawBackup(instrumentId.toString(), runId, barcode, hl7Message);
-                    String instrumentString = objectMapper.writeValueAsString(instrument);
-                    testResultPayload = hl7Publisher.publishTestResult(instrumentId.toString(), barcode, hl7Message, runId, result.getCreatedBy(), reagentSnapshot.toString(), instrumentString);
+                    testResultPayload = hl7Publisher.publishTestResult(instrumentId.toString(), barcode, hl7Message, runId, result.getCreatedBy(), reagentSnapshot.toString(), instrument.json());
                     result.setStatus("SENT");
                     log.info("[AnalyzerResult] HL7 published successfully for barcode={}", barcode);
                 } catch (Exception ex) {
@@ -104,28 +103,24 @@ public class AnalyzerResultListener {
                     log.error("[AnalyzerResult] HL7 publish failed for barcode={}: {}", barcode, ex.getMessage());
                 }
 
-                outboxRepository.save(
+                // Hai outbox event của sample ghi trong một batch insert
+                Instant now = Instant.now();
+                outboxRepository.saveAll(List.of(
                         OutboxEvent.builder()
                                 .aggregateType("hl7.raw.backup")
                                 .aggregateId(instrumentId.toString())
                                 .eventType("HL7_RAW_BACKUP")
                                 .payload(objectMapper.writeValueAsString(eventPayload))
-                                .createdAt(Instant.now())
-                                .build()
-                );
-
-
-                outboxRepository.save(
+                                .createdAt(now)
+                                .build(),
                         OutboxEvent.builder()
                                 .aggregateType("hl7.testresult.publish")
                                 .aggregateId(barcode)
                                 .eventType("HL7_TEST_RESULT")
                                 .payload(objectMapper.writeValueAsString(testResultPayload))
-                                .createdAt(Instant.now())
+                                .createdAt(now)
                                 .build()
-                );
-
-                log.info("[AnalyzerResult] HL7 published successfully for barcode={}", barcode);
+                ));
 
                 rawTestResultRepository.save(result);
                 // Consume reagent
@@ -144,64 +139,72 @@ public class AnalyzerResultListener {
                         "Sample " + barcode + " failed during analysis.", result.getCreatedBy());
             }
 
-            updateRunStatusAfterSample(runId, instrument);
+            updateRunStatusAfterSample(run, barcode, result.getStatus());
 
         } catch (Exception e) {
             log.error("[AnalyzerResult] Error processing analyzer response: {}", e.getMessage(), e);
         }
     }
 
+    private static boolean isSuccess(String status) {
+        return "SENT".equals(status) || "COMPLETED".equals(status);
+    }
 
-    private void updateRunStatusAfterSample(UUID runId, Instrument instrument) {
-        InstrumentRun run = instrumentRunRepository.findByRunId(runId)
-                .orElseThrow(() -> new InstrumentException(ErrorCode.RUN_NOT_FOUND));
-
-        List<RawTestResult> results = rawTestResultRepository.findByRunId(runId);
-
-        long successCount = results.stream()
-                .filter(r -> "SENT".equals(r.getStatus()) || "COMPLETED".equals(r.getStatus()))
-                .count();
-        long failCount = results.stream()
-                .filter(r -> "FAILED".equals(r.getStatus()))
-                .count();
-
-        run.setSuccessfulSamples((int) successCount);
-        run.setFailedSamples((int) failCount);
+    private static boolean isFailure(String status) {
+        return "FAILED".equals(status);
+    }
 
+    private void updateRunStatusAfterSample(InstrumentRun run, String barcode, String newStatus) {
+        UUID runId = run.getRunId();
         int expected = run.getTotalSamplesExpected();
-        if (successCount + failCount >= expected) {
-            run.setEndTime(LocalDateTime.now());
+        // Ghi theo barcode nên luôn gọi, kể cả khi trạng thái đã lưu trùng với trạng thái mới: lần giao lại sau khi
+        // consumer chết giữa lúc lưu kết quả và ghi tiến độ vẫn đếm được sample
+        InstrumentRunProgress progress = isSuccess(newStatus) || isFailure(newStatus)
+                ? runProgressService.recordSample(runId, expected, barcode, isSuccess(newStatus))
+                : runProgressService.getProgress(runId);
+        if (progress == null) {
+            return;
+        }
+        int successCount = progress.getSuccessfulSamples();
+        int failCount = progress.getFailedSamples();
 
-            if (successCount == expected) {
-                run.setStatus(InstrumentRunStatus.COMPLETED);
-            } else if (successCount > 0) {
-                run.setStatus(InstrumentRunStatus.PARTIAL_COMPLETED);
-            } else {
-                run.setStatus(InstrumentRunStatus.FAILED);
-            }
+        // Chỉ consumer bật được cờ completed mới đóng run và phát sự kiện hoàn tất
+        if (!progress.isFinished() || progress.isCompleted() || !runProgressService.claimCompletion(runId)) {
+            return;
+        }
 
-            instrumentRunRepository.save(run);
-
-            systemEventPublisher.publishMonitoringEvent("INSTRUMENT_RUN_COMPLETION_LOG", Map.of(
-                    "instrumentId", instrument.getId().toString(),
-                    "runId", runId.toString(),
-                    "success", successCount,
-                    "failed", failCount
-            ));
-
-            systemEventPublisher.runInstrumentCompleted(Map.of(
-                    "instrumentId", instrument.getId().toString(),
-                    "instrument", instrument,
-                    "runId", runId.toString(),
-                    "success", successCount,
-                    "failed", failCount
-            ));
-
-            eventService.logEvent(instrument.getId(), "RUN_COMPLETED",
-                    "Run completed. Success=" + successCount + ", Fail=" + failCount, run.getCreatedBy());
+        run.setSuccessfulSamples(successCount);
+        run.setFailedSamples(failCount);
+        run.setEndTime(LocalDateTime.now());
+
+        if (successCount == expected) {
+            run.setStatus(InstrumentRunStatus.COMPLETED);
+        } else if (successCount > 0) {
+            run.setStatus(InstrumentRunStatus.PARTIAL_COMPLETED);
         } else {
-            instrumentRunRepository.save(run);
+            run.setStatus(InstrumentRunStatus.FAILED);
         }
+
+        instrumentRunRepository.save(run);
+
+        Instrument instrument = instrumentLookupService.getInstrument(run.getInstrumentId()).instrument();
+        systemEventPublisher.publishMonitoringEvent("INSTRUMENT_RUN_COMPLETION_LOG", Map.of(
+                "instrumentId", instrument.getId().toString(),
+                "runId", runId.toString(),
+                "success", successCount,
+                "failed", failCount
+        ));
+
+        systemEventPublisher.runInstrumentCompleted(Map.of(
+                "instrumentId", instrument.getId().toString(),
+                "instrument", instrument,
+                "runId", runId.toString(),
+                "success", successCount,
+                "failed", failCount
+        ));
+
+        eventService.logEvent(instrument.getId(), "RUN_COMPLETED",
+                "Run completed. Success=" + successCount + ", Fail=" + failCount, run.getCreatedBy());
     }
 
 }
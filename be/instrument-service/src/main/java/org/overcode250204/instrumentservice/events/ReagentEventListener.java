@@ -14,6 +14,7 @@ import org.overcode250204.instrumentservice.exception.InstrumentException;
 import org.overcode250204.instrumentservice.repository.InboxRepository;
 import org.overcode250204.instrumentservice.repository.InstalledReagentRepository;
 import org.overcode250204.instrumentservice.repository.InstrumentRepository;
+import org.overcode250204.instrumentservice.service.interfaces.ReagentLedgerService;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
@@ -21,6 +22,7 @@ import org.springframework.transaction.annotation.Transactional;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -33,6 +35,9 @@ public class ReagentEventListener {
     private final InstalledReagentRepository reagentRepository;
     private final InstrumentRepository instrumentRepository;
     private final InboxRepository inboxRepository;
+    private final ReagentEventPublisher reagentEventPublisher;
+    private final ReagentLedgerService reagentLedger;
+    private final ReplyCorrelationRegistry replyRegistry;
     private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
 
     @KafkaListener(
@@ -59,7 +64,16 @@ public class ReagentEventListener {
                 return;
             }
 
-            processReagentPayload(payload.get(0), false);
+            Map<String, Object> item = payload.get(0);
+            if (processReagentPayload(item, false) && item.get("reservationId") != null) {
+                // Xác nhận đi cùng transaction với việc lưu InstalledReagent (outbox)
+                Map<String, Object> confirmation = new HashMap<>();
+                confirmation.put("reservationId", item.get("reservationId"));
+                confirmation.put("instrumentId", item.get("instrumentId"));
+                confirmation.put("reagentId", item.get("reagentId"));
+                confirmation.put("installedBy", item.get("installedBy"));
+                reagentEventPublisher.publishInstallConfirmation((String) item.get("instrumentId"), confirmation);
+            }
 
             saveInboxEvent(eventId, event);
 
@@ -109,16 +123,16 @@ public class ReagentEventListener {
         }
     }
 
-    private void processReagentPayload(Map<String, Object> payload, boolean isSync) {
+    private boolean processReagentPayload(Map<String, Object> payload, boolean isSync) {
         if ("FAIL".equalsIgnoreCase((String) payload.get("status"))) {
             log.warn("Reagent operation failed from warehouse: reason={}", payload.get("reason"));
-            return;
+            return false;
         }
 
         String instrumentIdStr = (String) payload.get("instrumentId");
         if (instrumentIdStr == null) {
             log.warn("Event payload missing instrumentId: {}", payload);
-            return;
+            return false;
         }
 
         UUID instrumentId = UUID.fromString(instrumentIdStr);
@@ -169,7 +183,9 @@ public class ReagentEventListener {
         reagent.setUninstalledAt(null);
 
         reagentRepository.save(reagent);
+        reagentLedger.evict(instrumentId);
         log.info("Processed reagent [{} - {}] for instrument {}. New quantity: {}", reagent.getReagentName(), reagent.getLotNumber(), instrumentId, newQuantity);
+        return true;
     }
 
     private void saveInboxEvent(UUID eventId, Map<String, Object> event) throws Exception {
@@ -179,5 +195,7 @@ public class ReagentEventListener {
         inboxEvent.setProcessedAt(Instant.now());
         inboxRepository.save(inboxEvent);
         log.info("Marked event {} as processed.", eventId);
+        // Request HTTP đang chờ reply này (nếu nằm trên replica này) nhận kết quả khi transaction commit
+        replyRegistry.complete(eventId, event);
     }
 }
@@ -34,6 +34,18 @@ public class ReagentEventPublisher {
         }
     }
 
+    // Báo warehouse đã install xong để reservation chuyển thành usage; không xác nhận thì hết hạn sẽ trả hàng về kho
+    @Transactional
+    public void publishInstallConfirmation(String instrumentId, Map<String, Object> payload) {
+        try {
+            createOutboxEvent("REAGENT_INSTALL_CONFIRM", List.of(payload), instrumentId, "REAGENT");
+            log.info("[Outbox] Created REAGENT_INSTALL_CONFIRM event for instrumentId: {} reservationId: {}",
+                    instrumentId, payload.get("reservationId"));
+        } catch (Exception e) {
+            log.error("Failed to create outbox event for REAGENT_INSTALL_CONFIRM: {}", e.getMessage(), e);
+        }
+    }
+
     @Transactional
     public void publishUninstallRequest(String instrumentId, Map<String, Object> payload) {
         try {
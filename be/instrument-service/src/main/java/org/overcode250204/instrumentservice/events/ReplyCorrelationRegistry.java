@@ -0,0 +1,167 @@
+package org.overcode250204.instrumentservice.events;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.instrumentservice.entity.InboxEvent;
+import org.overcode250204.instrumentservice.repository.InboxRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request/reply với warehouse qua Kafka: request được đăng ký theo eventId (warehouse trả lời với cùng eventId)
+ * và nhận một CompletableFuture, thay cho việc giữ servlet thread và hỏi inbox mỗi 200ms.
+ *
+ * - Listener reply (ReagentEventListener) hoàn thành future ngay sau khi transaction lưu inbox commit.
+ * - Reply có thể rơi vào replica khác (một consumer group cho mọi replica), hoặc tới trước khi request kịp đăng ký:
+ *   sweep định kỳ tìm mọi request còn chờ trong bảng inbox bằng một câu IN, không phải mỗi request một vòng poll.
+ * - Quá timeout thì future hoàn thành với null (controller trả 202 request_sent như trước).
+ *
+ * Metrics: reagent.reply.pending, reagent.reply.latency{outcome=reply|inbox|timeout|rejected}.
+ */
+@Component
+@Slf4j
+public class ReplyCorrelationRegistry {
+
+    private static final int SWEEP_CHUNK = 500;
+
+    private final InboxRepository inboxRepository;
+    private final ObjectMapper objectMapper;
+    private final long timeoutNanos;
+    private final int maxPending;
+    private final Map<UUID, PendingReply> pending = new ConcurrentHashMap<>();
+    private final Timer replied;
+    private final Timer fromInbox;
+    private final Timer timedOut;
+    private final Timer rejected;
+
+    private record PendingReply(CompletableFuture<JsonNode> future, long registeredAtNanos) {
+    }
+
+    public ReplyCorrelationRegistry(InboxRepository inboxRepository,
+                                    ObjectMapper objectMapper,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${app.reagent.reply.timeout:PT5S}") Duration timeout,
+                                    @Value("${app.reagent.reply.max-pending:10000}") int maxPending) {
+        this.inboxRepository = inboxRepository;
+        this.objectMapper = objectMapper;
+        this.timeoutNanos = timeout.toNanos();
+        this.maxPending = maxPending;
+        this.replied = latency(meterRegistry, "reply");
+        this.fromInbox = latency(meterRegistry, "inbox");
+        this.timedOut = latency(meterRegistry, "timeout");
+        this.rejected = latency(meterRegistry, "rejected");
+        Gauge.builder("reagent.reply.pending", pending, Map::size)
+                .description("Warehouse requests waiting for a reply")
+                .register(meterRegistry);
+    }
+
+    private static Timer latency(MeterRegistry meterRegistry, String outcome) {
+        return Timer.builder("reagent.reply.latency").tag("outcome", outcome)
+                .description("Time from publishing a warehouse request until its reply (or timeout)")
+                .register(meterRegistry);
+    }
+
+    // Future hoàn thành với payload reply, hoặc null khi hết thời gian chờ / đang có quá nhiều request chờ
+    public CompletableFuture<JsonNode> register(UUID correlationId) {
+        if (pending.size() >= maxPending) {
+            log.warn("Too many pending warehouse requests ({}), not waiting for reply {}", pending.size(), correlationId);
+            rejected.record(Duration.ZERO);
+            return CompletableFuture.completedFuture(null);
+        }
+        PendingReply reply = new PendingReply(new CompletableFuture<>(), System.nanoTime());
+        PendingReply existing = pending.putIfAbsent(correlationId, reply);
+        return existing != null ? existing.future() : reply.future();
+    }
+
+    /**
+     * Gọi từ listener reply sau khi đã lưu inbox. Trong transaction thì chờ commit, để người gọi HTTP
+     * nhận reply khi thay đổi của reply (reagent vừa install) đã đọc được.
+     */
+    public void complete(UUID correlationId, Object reply) {
+        if (!pending.containsKey(correlationId)) {
+            return;
+        }
+        JsonNode node = objectMapper.valueToTree(reply);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    finish(correlationId, node, replied);
+                }
+            });
+        } else {
+            finish(correlationId, node, replied);
+        }
+    }
+
+    /**
+     * Hoàn thành các request có reply trong inbox (do replica khác nhận, hoặc tới trước khi đăng ký)
+     * và các request đã quá timeout. Mỗi lần sweep tốn một câu IN cho tối đa SWEEP_CHUNK request.
+     */
+    @Scheduled(fixedDelayString = "${app.reagent.reply.sweep-interval-ms:500}")
+    public void sweep() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<UUID> waiting = new ArrayList<>(pending.keySet());
+        for (int from = 0; from < waiting.size(); from += SWEEP_CHUNK) {
+            List<UUID> chunk = waiting.subList(from, Math.min(from + SWEEP_CHUNK, waiting.size()));
+            try {
+                for (InboxEvent event : inboxRepository.findByEventIdIn(chunk)) {
+                    finish(event.getEventId(), parse(event), fromInbox);
+                }
+            } catch (Exception e) {
+                log.warn("Failed to look up {} pending warehouse replies in inbox: {}", chunk.size(), e.getMessage());
+            }
+        }
+
+        long now = System.nanoTime();
+        pending.forEach((correlationId, reply) -> {
+            if (now - reply.registeredAtNanos() >= timeoutNanos) {
+                log.info("Timeout waiting for warehouse reply {} after {}ms", correlationId, Duration.ofNanos(timeoutNanos).toMillis());
+                finish(correlationId, null, timedOut);
+            }
+        });
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    private void finish(UUID correlationId, JsonNode reply, Timer outcome) {
+        PendingReply removed = pending.remove(correlationId);
+        if (removed == null) {
+            return;
+        }
+        outcome.record(System.nanoTime() - removed.registeredAtNanos(), TimeUnit.NANOSECONDS);
+        removed.future().complete(reply);
+    }
+
+    private JsonNode parse(InboxEvent event) {
+        if (event.getPayload() == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readTree(event.getPayload());
+        } catch (Exception ex) {
+            log.warn("Failed to parse inbox payload json for event {}", event.getEventId(), ex);
+            return null;
+        }
+    }
+}
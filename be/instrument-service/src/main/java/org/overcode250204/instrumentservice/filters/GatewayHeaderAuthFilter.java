@@ -6,16 +6,16 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 
-import net.devh.boot.grpc.client.inject.GrpcClient;
-import org.overcode250204.common.grpc.CognitoSub;
-import org.overcode250204.common.grpc.IamServiceGrpc;
+import org.overcode250204.identity.CognitoIdentityResolver;
+import org.overcode250204.identity.GatewaySignatureVerifier;
 import org.overcode250204.instrumentservice.exception.ErrorCode;
 import org.overcode250204.instrumentservice.exception.InstrumentException;
-import org.overcode250204.utils.HmacUtils;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.RequestAttributeSecurityContextRepository;
+import org.springframework.security.web.context.SecurityContextRepository;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
@@ -27,17 +27,21 @@ import java.util.stream.Collectors;
 @Slf4j
 public class GatewayHeaderAuthFilter extends OncePerRequestFilter {
 
-    @Value("${hmac-secret}")
-    private String hmacSecret;
+    @Autowired
+    private GatewaySignatureVerifier signatureVerifier;
 
-    @GrpcClient("iam-service")
-    private IamServiceGrpc.IamServiceBlockingStub stub;
+    @Autowired
+    private CognitoIdentityResolver identityResolver;
 
     private final static String HEADER_USER_NAME = "X-User-Name";
     private final static String HEADER_GROUPS = "X-Groups";
     private final static String HEADER_PRIVILEGES = "X-Privileges";
     private final static String HEADER_SIGNATURE_GATEWAY = "X-Signature";
 
+    // Filter không chạy lại ở ASYNC dispatch (endpoint trả CompletableFuture): lưu context vào request attribute
+    // để SecurityContextHolderFilter khôi phục cho lượt dispatch đó
+    private final SecurityContextRepository securityContextRepository = new RequestAttributeSecurityContextRepository();
+
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
         String username = request.getHeader(HEADER_USER_NAME);
@@ -54,9 +58,7 @@ public class GatewayHeaderAuthFilter extends OncePerRequestFilter {
             return;
         }
 
-        String data = username + "|" + groups + "|" + privileges;
-        String expectedSignature = HmacUtils.hmacSha256(data, hmacSecret);
-        if (!expectedSignature.equals(signature)) {
+        if (!signatureVerifier.verify(username, groups, privileges, signature)) {
             log.warn("Invalid signature for username {}", username);
             throw new InstrumentException(ErrorCode.GATEWAY_SIGNATURE_INVALID);
         }
@@ -72,9 +74,7 @@ public class GatewayHeaderAuthFilter extends OncePerRequestFilter {
         }
         String userId;
         try {
-            userId = stub.getUserByCognitoSub(
-                    CognitoSub.newBuilder().setCognitoSub(username).build()
-            ).getUserId();
+            userId = identityResolver.resolveUserId(username);
         } catch (Exception e) {
             throw new InstrumentException(ErrorCode.GET_USER_ID_FROM_IAM_SERVICE_ERROR);
         }
@@ -88,6 +88,7 @@ public class GatewayHeaderAuthFilter extends OncePerRequestFilter {
 
         UsernamePasswordAuthenticationToken authorization = new UsernamePasswordAuthenticationToken(userId, null, authorities);
         SecurityContextHolder.getContext().setAuthentication(authorization);
+        securityContextRepository.saveContext(SecurityContextHolder.getContext(), request, response);
         filterChain.doFilter(request, response);
     }
 
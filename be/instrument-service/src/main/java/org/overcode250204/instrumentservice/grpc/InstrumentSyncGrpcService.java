@@ -1,7 +1,9 @@
 package org.overcode250204.instrumentservice.grpc;
 
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import lombok.RequiredArgsConstructor;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import net.devh.boot.grpc.server.service.GrpcService;
 import org.overcode250204.common.grpc.InstrumentSyncServiceGrpc;
@@ -9,59 +11,216 @@ import org.overcode250204.common.grpc.InstrumentSyncUpRequest;
 import org.overcode250204.common.grpc.RawTestResultMessage;
 import org.overcode250204.instrumentservice.entity.RawTestResult;
 import org.overcode250204.instrumentservice.grpc.mapper.RawTestResultMapper;
-import org.overcode250204.instrumentservice.repository.RawTestResultRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 
+/**
+ * Stream raw test result cho sync-up của monitoring-service.
+ *
+ * Kết quả được đọc qua cursor Mongo (mỗi lần batch_size document, giới hạn trong app.sync.max-batch-size) và chỉ
+ * được ghi ra khi call isReady(): client chậm thì server dừng đọc cursor, không giữ cả tập kết quả trong heap.
+ * Mỗi message mang continuation_token; gửi lại token của message cuối đã nhận để tiếp tục sau khi stream đứt.
+ * Client huỷ call (hoặc hết deadline) thì cursor được đóng ngay.
+ *
+ * Thứ tự: theo _id với chế độ barcode / runIds, mới nhất trước (createdAt, _id giảm dần) với chế độ limit.
+ */
 @GrpcService
-@RequiredArgsConstructor
 @Slf4j
 public class InstrumentSyncGrpcService extends InstrumentSyncServiceGrpc.InstrumentSyncServiceImplBase {
 
-    private final RawTestResultRepository rawTestResultRepository;
+    private static final int DEFAULT_LIMIT = 100;
+
+    private final MongoTemplate mongoTemplate;
+    private final int defaultBatchSize;
+    private final int maxBatchSize;
+
+    public InstrumentSyncGrpcService(MongoTemplate mongoTemplate,
+                                     @Value("${app.sync.default-batch-size:200}") int defaultBatchSize,
+                                     @Value("${app.sync.max-batch-size:1000}") int maxBatchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.defaultBatchSize = defaultBatchSize;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    // Index cho từng chế độ, để cursor đi theo index thay vì sort trong bộ nhớ
+    @PostConstruct
+    public void ensureIndexes() {
+        IndexOperations indexOps = mongoTemplate.indexOps(RawTestResult.class);
+        indexOps.createIndex(new Index().on("barcode", Sort.Direction.ASC).named("barcode"));
+        indexOps.createIndex(new Index().on("runId", Sort.Direction.ASC).on("_id", Sort.Direction.ASC).named("run_id_id"));
+        indexOps.createIndex(new Index().on("createdAt", Sort.Direction.DESC).on("_id", Sort.Direction.DESC).named("created_at_id"));
+    }
 
     @Override
     public void syncUpTestResults(InstrumentSyncUpRequest request, StreamObserver<RawTestResultMessage> responseObserver) {
+        ServerCallStreamObserver<RawTestResultMessage> call = (ServerCallStreamObserver<RawTestResultMessage>) responseObserver;
+
+        SyncContinuationToken token;
         try {
-            log.info("Sync-up request received for instrument={}, testOrderId={}, barcode={}",
-                    request.getInstrumentId(), request.getTestOrderId(), request.getBarcode());
+            token = SyncContinuationToken.decode(request.getContinuationToken());
+        } catch (IllegalArgumentException e) {
+            call.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            return;
+        }
 
-            List<RawTestResult> results = new ArrayList<>();
+        int batchSize = request.getBatchSize() > 0 ? Math.min(request.getBatchSize(), maxBatchSize) : defaultBatchSize;
+        Plan plan = plan(request, token);
+        if (plan == null) {
+            call.onCompleted();
+            return;
+        }
+        plan.query.cursorBatchSize(batchSize);
 
-            if (!request.getBarcode().isBlank()) {
-                rawTestResultRepository.findByBarcode(request.getBarcode())
-                        .ifPresent(results::add);
+        log.info("Sync-up request received for instrument={}, barcodes={}, runIds={}, resume={}, batchSize={}",
+                request.getInstrumentId(), request.getBarcodesCount() + (request.getBarcode().isBlank() ? 0 : 1),
+                request.getRunIdsCount(), token != null, batchSize);
 
-            } else if (!request.getRunIdsList().isEmpty()) {
-                for (String id : request.getRunIdsList()) {
-                    try {
-                        results.addAll(rawTestResultRepository.findByRunId(UUID.fromString(id)));
-                    } catch (IllegalArgumentException ex) {
-                        log.warn("Invalid runId: {}", id);
-                    }
+        new ResultPump(call, plan, token != null ? token.sent() : 0).start();
+    }
+
+    // Bộ lọc và thứ tự cho request; plan(...) trả về null nếu chắc chắn không có kết quả
+    private record Plan(Query query, boolean newestFirst) {
+    }
+
+    private Plan plan(InstrumentSyncUpRequest request, SyncContinuationToken token) {
+        Criteria criteria;
+        boolean newestFirst = false;
+        long limit = -1;
+
+        if (!request.getBarcodesList().isEmpty()) {
+            // Sync-up theo batch từ monitoring-service: một truy vấn $in cho cả batch
+            criteria = Criteria.where("barcode").in(request.getBarcodesList());
+
+        } else if (!request.getBarcode().isBlank()) {
+            criteria = Criteria.where("barcode").is(request.getBarcode());
+
+        } else if (!request.getRunIdsList().isEmpty()) {
+            List<UUID> runIds = new ArrayList<>();
+            for (String id : request.getRunIdsList()) {
+                try {
+                    runIds.add(UUID.fromString(id));
+                } catch (IllegalArgumentException ex) {
+                    log.warn("Invalid runId: {}", id);
                 }
-            } else {
-                int limit = request.getLimit() > 0 ? request.getLimit() : 100;
-                results = rawTestResultRepository.findTopN(limit);
             }
+            if (runIds.isEmpty()) {
+                return null;
+            }
+            criteria = Criteria.where("runId").in(runIds);
+
+        } else {
+            criteria = new Criteria();
+            newestFirst = true;
+            limit = request.getLimit() > 0 ? request.getLimit() : DEFAULT_LIMIT;
+        }
 
-            log.info("Found {} raw test results for instrument {}", results.size(), request.getInstrumentId());
+        if (token != null) {
+            if (newestFirst && token.createdAt() != null) {
+                criteria = new Criteria().andOperator(criteria, new Criteria().orOperator(
+                        Criteria.where("createdAt").lt(token.createdAt()),
+                        Criteria.where("createdAt").is(token.createdAt()).and("_id").lt(token.id())));
+            } else {
+                criteria = new Criteria().andOperator(criteria, Criteria.where("_id").gt(token.id()));
+            }
+        }
 
-            // Stream từng record về client (Monitoring Service)
-            for (RawTestResult result : results) {
-                RawTestResultMessage msg = RawTestResultMapper.toGrpc(result);
-                responseObserver.onNext(msg);
+        Query query = Query.query(criteria).with(newestFirst
+                ? Sort.by(Sort.Direction.DESC, "createdAt", "_id")
+                : Sort.by(Sort.Direction.ASC, "_id"));
+        if (limit >= 0) {
+            long remaining = limit - (token != null ? token.sent() : 0);
+            if (remaining <= 0) {
+                return null;
             }
+            query.limit((int) remaining);
+        }
+        // rawData (JSON gốc) không có trong message, không kéo về
+        query.fields().exclude("rawData");
+        return new Plan(query, newestFirst);
+    }
+
+    /**
+     * Đọc cursor và ghi ra stream theo nhịp onReady. Mọi callback của một call (onReady, onCancel) được gRPC
+     * chạy tuần tự nên không cần khoá.
+     */
+    private final class ResultPump implements Runnable {
+
+        private final ServerCallStreamObserver<RawTestResultMessage> call;
+        private final Plan plan;
+        private Stream<RawTestResult> cursor;
+        private Iterator<RawTestResult> results;
+        private long sent;
+        private boolean closed;
+
+        ResultPump(ServerCallStreamObserver<RawTestResultMessage> call, Plan plan, long alreadySent) {
+            this.call = call;
+            this.plan = plan;
+            this.sent = alreadySent;
+        }
+
+        void start() {
+            call.setOnCancelHandler(() -> {
+                log.info("Sync-up stream cancelled by client after {} results", sent);
+                close();
+            });
+            // Cursor chỉ mở khi call sẵn sàng nhận lần đầu (handler được gọi sau khi method trả về)
+            call.setOnReadyHandler(this);
+        }
 
-            responseObserver.onCompleted();
-            log.info(" Sync-up stream completed for instrument {}", request.getInstrumentId());
+        @Override
+        public void run() {
+            if (closed) {
+                return;
+            }
+            try {
+                if (results == null) {
+                    cursor = mongoTemplate.stream(plan.query, RawTestResult.class);
+                    results = cursor.iterator();
+                }
+                while (call.isReady() && !call.isCancelled()) {
+                    if (!results.hasNext()) {
+                        close();
+                        call.onCompleted();
+                        log.info("Sync-up stream completed after {} results", sent);
+                        return;
+                    }
+                    RawTestResult result = results.next();
+                    sent++;
+                    call.onNext(RawTestResultMapper.toGrpcBuilder(result)
+                            .setContinuationToken(new SyncContinuationToken(sent,
+                                    plan.newestFirst ? result.getCreatedAt() : null, result.getId()).encode())
+                            .build());
+                }
+            } catch (Exception e) {
+                if (closed || call.isCancelled()) {
+                    return;
+                }
+                log.error("Error during gRPC sync-up: {}", e.getMessage(), e);
+                close();
+                call.onError(Status.INTERNAL.withDescription(e.getMessage()).withCause(e).asRuntimeException());
+            }
+        }
 
-        } catch (Exception e) {
-            log.error("Error during gRPC sync-up: {}", e.getMessage(), e);
-            responseObserver.onError(e);
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (cursor != null) {
+                cursor.close();
+            }
         }
     }
 }
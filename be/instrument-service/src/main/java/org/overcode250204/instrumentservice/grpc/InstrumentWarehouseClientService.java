@@ -5,6 +5,9 @@ import net.devh.boot.grpc.client.inject.GrpcClient;
 import org.overcode250204.common.grpc.*;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 
 @Service
@@ -24,16 +27,33 @@ public class InstrumentWarehouseClientService {
         }
     }
 
-    public ListReagentsResponse listReagents(int page, int size) {
+    // pageToken (nextPageToken của trang trước) được ưu tiên hơn page
+    public ListReagentsResponse listReagents(int page, int size, String pageToken) {
         try {
-            ListReagentsRequest req = ListReagentsRequest.newBuilder().setPage(page).setSize(size).build();
-            return warehouseStub.listReagents(req);
+            ListReagentsRequest.Builder req = ListReagentsRequest.newBuilder().setPage(page).setSize(size);
+            if (pageToken != null) {
+                req.setPageToken(pageToken);
+            }
+            return warehouseStub.listReagents(req.build());
         } catch (Exception ex) {
             log.error("Failed to list reagents: {}", ex.getMessage());
             throw ex;
         }
     }
 
+    // Toàn bộ catalog qua StreamReagentCatalog: warehouse đọc từng batch keyset, không có giới hạn kích thước trang
+    public List<ReagentInfo> listAllReagents() {
+        try {
+            Iterator<ReagentInfo> stream = warehouseStub.streamReagentCatalog(StreamReagentCatalogRequest.getDefaultInstance());
+            List<ReagentInfo> reagents = new ArrayList<>();
+            stream.forEachRemaining(reagents::add);
+            return reagents;
+        } catch (Exception ex) {
+            log.error("Failed to stream reagent catalog: {}", ex.getMessage());
+            throw ex;
+        }
+    }
+
     public InstrumentInfo getInstrument(UUID instrumentId) {
         try {
             InstrumentRequest req = InstrumentRequest.newBuilder().setInstrumentId(instrumentId.toString()).build();
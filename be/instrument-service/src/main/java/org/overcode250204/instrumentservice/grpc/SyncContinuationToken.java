@@ -0,0 +1,39 @@
+package org.overcode250204.instrumentservice.grpc;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+
+/**
+ * Vị trí trong stream SyncUpTestResults: id (và createdAt với chế độ mới nhất trước) của message cuối đã gửi,
+ * cùng số message đã gửi để giữ đúng limit khi tiếp tục. Dạng base64url của "v1|sent|createdAt|id".
+ */
+public record SyncContinuationToken(long sent, LocalDateTime createdAt, String id) {
+
+    private static final String VERSION = "v1";
+
+    public String encode() {
+        String raw = VERSION + "|" + sent + "|" + (createdAt != null ? createdAt : "") + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // null nếu token rỗng; token hỏng thì IllegalArgumentException
+    public static SyncContinuationToken decode(String token) {
+        if (token == null || token.isBlank()) {
+            return null;
+        }
+        String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        String[] parts = raw.split("\\|", 4);
+        if (parts.length != 4 || !VERSION.equals(parts[0]) || parts[3].isEmpty()) {
+            throw new IllegalArgumentException("Invalid continuation token");
+        }
+        try {
+            return new SyncContinuationToken(
+                    Long.parseLong(parts[1]),
+                    parts[2].isEmpty() ? null : LocalDateTime.parse(parts[2]),
+                    parts[3]);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid continuation token", e);
+        }
+    }
+}
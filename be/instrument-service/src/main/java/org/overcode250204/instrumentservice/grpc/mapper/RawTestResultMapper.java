@@ -11,6 +11,11 @@ import java.time.ZoneOffset;
 public class RawTestResultMapper {
 
     public static RawTestResultMessage toGrpc(RawTestResult entity) {
+        return toGrpcBuilder(entity).build();
+    }
+
+    // Builder để bên gọi gắn thêm trường (continuation token) mà không phải copy message
+    public static RawTestResultMessage.Builder toGrpcBuilder(RawTestResult entity) {
         RawTestResultMessage.Builder builder = RawTestResultMessage.newBuilder();
 
         if (entity.getRunId() != null)
@@ -40,7 +45,7 @@ public class RawTestResultMapper {
             );
         }
 
-        return builder.build();
+        return builder;
     }
 
     private static String nullToEmpty(String value) {
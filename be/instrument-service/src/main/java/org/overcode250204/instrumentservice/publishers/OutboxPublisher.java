@@ -36,6 +36,8 @@ public class OutboxPublisher {
     // Reagent Topics
     @Value("${app.kafka.topics.reagent.install:warehouse.reagent.install.request}")
     private String reagentInstallRequestTopic;
+    @Value("${app.kafka.topics.reagent.install.confirm:warehouse.reagent.install.confirm}")
+    private String reagentInstallConfirmTopic;
     @Value("${app.kafka.topics.reagent.uninstall:warehouse.reagent.uninstall.request}")
     private String reagentUninstallRequestTopic;
     @Value("${app.kafka.topics.reagent.sync.request:warehouse.reagent.sync.request}")
@@ -99,6 +101,7 @@ public class OutboxPublisher {
 
             // Reagent Event Types
             case "REAGENT_INSTALL_REQUEST" -> reagentInstallRequestTopic;
+            case "REAGENT_INSTALL_CONFIRM" -> reagentInstallConfirmTopic;
             case "REAGENT_UNINSTALL_REQUEST" -> reagentUninstallRequestTopic;
             case "REAGENT_SYNC_REQUEST" -> reagentSyncRequestTopic;
 
@@ -4,6 +4,8 @@ import org.overcode250204.instrumentservice.entity.InboxEvent;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -12,4 +14,6 @@ public interface InboxRepository extends JpaRepository<InboxEvent, UUID> {
     boolean existsByEventId(UUID eventId);
 
     Optional<InboxEvent> findByEventId(UUID eventId);
+
+    List<InboxEvent> findByEventIdIn(Collection<UUID> eventIds);
 }
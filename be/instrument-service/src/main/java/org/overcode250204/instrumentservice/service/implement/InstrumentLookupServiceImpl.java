@@ -0,0 +1,104 @@
+package org.overcode250204.instrumentservice.service.implement;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.instrumentservice.entity.Instrument;
+import org.overcode250204.instrumentservice.exception.ErrorCode;
+import org.overcode250204.instrumentservice.exception.InstrumentException;
+import org.overcode250204.instrumentservice.repository.InstrumentRepository;
+import org.overcode250204.instrumentservice.service.interfaces.InstrumentLookupService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Cache instrument cho luồng xử lý kết quả phân tích: mọi sample của một run dùng cùng một instrument,
+ * nên chỉ đọc Postgres và serialize JSON một lần cho mỗi instrument trong thời gian TTL.
+ * InstrumentServiceImpl gọi evict sau khi đổi mode / đồng bộ cấu hình.
+ *
+ * Metrics: instrument.cache.requests{result=hit|miss}, instrument.cache.size.
+ */
+@Service
+@Slf4j
+public class InstrumentLookupServiceImpl implements InstrumentLookupService {
+
+    private final InstrumentRepository instrumentRepository;
+    private final ObjectMapper objectMapper;
+    private final long ttlNanos;
+    private final Map<UUID, CachedInstrument> cache;
+    private final Counter hits;
+    private final Counter misses;
+
+    private record CachedInstrument(InstrumentSnapshot snapshot, long expiresAtNanos) {
+    }
+
+    public InstrumentLookupServiceImpl(InstrumentRepository instrumentRepository,
+                                       ObjectMapper objectMapper,
+                                       MeterRegistry meterRegistry,
+                                       @Value("${app.instrument.cache.max-size:256}") int maxSize,
+                                       @Value("${app.instrument.cache.ttl:PT1M}") Duration ttl) {
+        this.instrumentRepository = instrumentRepository;
+        this.objectMapper = objectMapper;
+        this.ttlNanos = ttl.toNanos();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, CachedInstrument> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.hits = Counter.builder("instrument.cache.requests").tag("result", "hit")
+                .description("Instrument lookups served from the local cache")
+                .register(meterRegistry);
+        this.misses = Counter.builder("instrument.cache.requests").tag("result", "miss")
+                .description("Instrument lookups that read the database")
+                .register(meterRegistry);
+        Gauge.builder("instrument.cache.size", this, InstrumentLookupServiceImpl::size)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public InstrumentSnapshot getInstrument(UUID instrumentId) {
+        synchronized (cache) {
+            CachedInstrument cached = cache.get(instrumentId);
+            if (cached != null && cached.expiresAtNanos() - System.nanoTime() > 0) {
+                hits.increment();
+                return cached.snapshot();
+            }
+        }
+        misses.increment();
+
+        Instrument instrument = instrumentRepository.findById(instrumentId)
+                .orElseThrow(() -> new InstrumentException(ErrorCode.INSTRUMENT_NOT_FOUND));
+        InstrumentSnapshot snapshot;
+        try {
+            snapshot = new InstrumentSnapshot(instrument, objectMapper.writeValueAsString(instrument));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize instrument " + instrumentId, e);
+        }
+        synchronized (cache) {
+            cache.put(instrumentId, new CachedInstrument(snapshot, System.nanoTime() + ttlNanos));
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void evict(UUID instrumentId) {
+        synchronized (cache) {
+            cache.remove(instrumentId);
+        }
+    }
+
+    private int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
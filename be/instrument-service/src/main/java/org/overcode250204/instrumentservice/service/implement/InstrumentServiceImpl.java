@@ -26,6 +26,7 @@ import org.overcode250204.instrumentservice.repository.InstrumentEventLogReposit
 import org.overcode250204.instrumentservice.repository.InstrumentRepository;
 import org.overcode250204.instrumentservice.repository.InstrumentRunRepository;
 import org.overcode250204.instrumentservice.repository.InboxRepository;
+import org.overcode250204.instrumentservice.service.interfaces.InstrumentLookupService;
 import org.overcode250204.instrumentservice.service.interfaces.InstrumentService;
 import org.overcode250204.instrumentservice.utils.AuthUtils;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -50,6 +51,7 @@ public class InstrumentServiceImpl implements InstrumentService {
     private final ObjectMapper objectMapper;
     private final InstrumentConfigurationRepository instrumentConfigurationRepository;
     private final InstrumentWarehouseClientService instrumentWarehouseClientService;
+    private final InstrumentLookupService instrumentLookupService;
 
 
     @Override
@@ -68,6 +70,7 @@ public class InstrumentServiceImpl implements InstrumentService {
         instrument.setLastModeChangeAt(LocalDateTime.now());
         instrument.setUpdatedAt(LocalDateTime.now());
         instrumentRepository.save(instrument);
+        instrumentLookupService.evict(instrumentId);
 
 
         eventPublisher.publishMonitoringEvent(
@@ -215,6 +218,7 @@ public class InstrumentServiceImpl implements InstrumentService {
         }
 
         instrumentRepository.save(instrument);
+        instrumentLookupService.evict(instrument.getId());
 
         try {
             Optional<Instrument> persisted = instrumentRepository.findById(instrument.getId());
@@ -0,0 +1,357 @@
+package org.overcode250204.instrumentservice.service.implement;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.instrumentservice.configs.ReagentConsumptionConfig;
+import org.overcode250204.instrumentservice.entity.InstalledReagent;
+import org.overcode250204.instrumentservice.events.SystemEventPublisher;
+import org.overcode250204.instrumentservice.exception.ErrorCode;
+import org.overcode250204.instrumentservice.exception.InstrumentException;
+import org.overcode250204.instrumentservice.repository.InstalledReagentRepository;
+import org.overcode250204.instrumentservice.service.interfaces.EventLogService;
+import org.overcode250204.instrumentservice.service.interfaces.ReagentLedgerService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sổ reagent của instrument: kiểm tra đủ lượng và trừ lượng tiêu hao cho từng sample.
+ *
+ * Mức còn lại của các lô in-use được giữ trong bộ nhớ theo instrument (LRU + TTL), nên kiểm tra đủ lượng và
+ * chọn lô không phải đọc Postgres cho mỗi sample. Lượng trừ được ghi bằng một câu SQL cho cả sample:
+ * khoá các lô đã chọn, chỉ trừ khi mọi lô đều còn >= lượng cần (hoặc không trừ lô nào), RETURNING mức mới.
+ * Mức mới được ghi ngược vào cache sau khi transaction commit. Cache cũ (replica khác đã trừ, install mới
+ * chưa tới) chỉ làm câu UPDATE không khớp; khi đó cache của instrument được đọc lại và thử thêm một lần.
+ *
+ * Lô đi xuống dưới ngưỡng reagent.low-level của loại đó (lần đầu vượt ngưỡng) sinh event REAGENT_LOW
+ * trong cùng transaction với câu trừ: consume là @Transactional (tham gia transaction của người gọi nếu có),
+ * để câu trừ không commit riêng khi ghi event lỗi.
+ *
+ * Metrics: reagent.ledger.cache.requests{result=hit|miss}, reagent.ledger.conflicts, reagent.ledger.cache.size.
+ */
+@Service
+@Slf4j
+public class ReagentLedgerServiceImpl implements ReagentLedgerService {
+
+    private static final String CONSUME_SQL = """
+            WITH wanted AS (
+                SELECT * FROM unnest(?, ?) AS w(id, qty)
+            ), locked AS (
+                SELECT r.installed_reagent_id AS id, w.qty
+                FROM installed_reagent r JOIN wanted w ON r.installed_reagent_id = w.id
+                WHERE r.in_use AND r.quantity_remaining >= w.qty
+                ORDER BY r.installed_reagent_id
+                FOR UPDATE OF r
+            )
+            UPDATE installed_reagent r SET
+                quantity_remaining = r.quantity_remaining - l.qty,
+                in_use = r.quantity_remaining - l.qty > 0
+            FROM locked l
+            WHERE r.installed_reagent_id = l.id AND (SELECT count(*) FROM locked) = ?
+            RETURNING r.installed_reagent_id, r.quantity_remaining
+            """;
+
+    private final InstalledReagentRepository reagentRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final ReagentConsumptionConfig reagentConfig;
+    private final EventLogService eventService;
+    private final SystemEventPublisher systemEventPublisher;
+    private final long ttlNanos;
+    private final Map<UUID, InstrumentLevels> cache;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter conflicts;
+
+    // Một lô in-use; quantity đổi dưới khoá của InstrumentLevels chứa nó
+    private static final class Lot {
+        final UUID id;
+        final UUID reagentId;
+        final String name;
+        final String lotNumber;
+        final LocalDateTime installedAt;
+        double quantity;
+
+        Lot(InstalledReagent reagent) {
+            this.id = reagent.getInstalledReagentId();
+            this.reagentId = reagent.getReagentId();
+            this.name = reagent.getReagentName();
+            this.lotNumber = reagent.getLotNumber();
+            this.installedAt = reagent.getInstalledAt();
+            this.quantity = reagent.getQuantityRemaining() != null ? reagent.getQuantityRemaining() : 0.0;
+        }
+    }
+
+    // Các lô in-use của một instrument theo reagentName, lô install trước đứng trước
+    private static final class InstrumentLevels {
+        final Map<String, List<Lot>> lots = new HashMap<>();
+        final long expiresAtNanos;
+
+        InstrumentLevels(List<InstalledReagent> reagents, long expiresAtNanos) {
+            this.expiresAtNanos = expiresAtNanos;
+            for (InstalledReagent reagent : reagents) {
+                lots.computeIfAbsent(reagent.getReagentName(), name -> new ArrayList<>()).add(new Lot(reagent));
+            }
+            Comparator<Lot> fifo = Comparator.comparing(lot -> lot.installedAt, Comparator.nullsLast(Comparator.naturalOrder()));
+            lots.values().forEach(list -> list.sort(fifo));
+        }
+    }
+
+    private record Level(UUID installedReagentId, double remaining) {
+    }
+
+    public ReagentLedgerServiceImpl(InstalledReagentRepository reagentRepository,
+                                    JdbcTemplate jdbcTemplate,
+                                    ReagentConsumptionConfig reagentConfig,
+                                    EventLogService eventService,
+                                    SystemEventPublisher systemEventPublisher,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${app.reagent.level-cache.max-size:256}") int maxSize,
+                                    @Value("${app.reagent.level-cache.ttl:PT30S}") Duration ttl) {
+        this.reagentRepository = reagentRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.reagentConfig = reagentConfig;
+        this.eventService = eventService;
+        this.systemEventPublisher = systemEventPublisher;
+        this.ttlNanos = ttl.toNanos();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, InstrumentLevels> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.hits = Counter.builder("reagent.ledger.cache.requests").tag("result", "hit")
+                .description("Reagent level lookups served from the local cache")
+                .register(meterRegistry);
+        this.misses = Counter.builder("reagent.ledger.cache.requests").tag("result", "miss")
+                .description("Reagent level lookups that read the database")
+                .register(meterRegistry);
+        this.conflicts = Counter.builder("reagent.ledger.conflicts")
+                .description("Consumptions whose cached levels were stale and had to be reloaded")
+                .register(meterRegistry);
+        Gauge.builder("reagent.ledger.cache.size", this, ReagentLedgerServiceImpl::size)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public boolean hasSufficient(UUID instrumentId, Map<String, Double> required) {
+        // Cache báo thiếu có thể là do cache cũ: đọc lại một lần trước khi trả lời
+        return isSufficient(levels(instrumentId, false), required)
+                || isSufficient(levels(instrumentId, true), required);
+    }
+
+    private boolean isSufficient(InstrumentLevels levels, Map<String, Double> required) {
+        synchronized (levels) {
+            for (Map.Entry<String, Double> entry : required.entrySet()) {
+                List<Lot> lots = levels.lots.get(entry.getKey());
+                if (lots == null || lots.isEmpty()) {
+                    log.warn("⚠ No reagent in use for type={}", entry.getKey());
+                    return false;
+                }
+                double totalAvailable = 0.0;
+                for (Lot lot : lots) {
+                    totalAvailable += lot.quantity;
+                }
+                if (totalAvailable < entry.getValue()) {
+                    log.warn("Not enough reagent {} (needed={}, available={})", entry.getKey(), entry.getValue(), totalAvailable);
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    @Transactional
+    public void consume(UUID instrumentId, Map<String, Double> required) {
+        if (required.isEmpty()) {
+            return;
+        }
+        for (int attempt = 0; ; attempt++) {
+            boolean reload = attempt > 0;
+            InstrumentLevels levels = levels(instrumentId, reload);
+
+            Map<Lot, Double> picks;
+            try {
+                picks = pick(levels, required);
+            } catch (InstrumentException e) {
+                if (reload) {
+                    throw e;
+                }
+                continue;
+            }
+
+            List<Level> updated = decrement(picks);
+            if (updated.size() == picks.size()) {
+                onConsumed(instrumentId, levels, picks, updated);
+                return;
+            }
+            // Không trừ lô nào: mức trong cache đã cũ
+            conflicts.increment();
+            if (reload) {
+                throw new InstrumentException(ErrorCode.REAGENT_LOW);
+            }
+            log.info("Reagent levels of instrument {} changed outside this replica, reloading", instrumentId);
+        }
+    }
+
+    // Mỗi loại reagent lấy lô install sớm nhất còn đủ lượng cần
+    private Map<Lot, Double> pick(InstrumentLevels levels, Map<String, Double> required) {
+        Map<Lot, Double> picks = new LinkedHashMap<>();
+        synchronized (levels) {
+            for (Map.Entry<String, Double> entry : required.entrySet()) {
+                List<Lot> lots = levels.lots.get(entry.getKey());
+                if (lots == null || lots.isEmpty()) {
+                    throw new InstrumentException(ErrorCode.REAGENT_NOT_FOUND);
+                }
+                Lot selected = lots.stream()
+                        .filter(lot -> lot.quantity >= entry.getValue())
+                        .findFirst()
+                        .orElseThrow(() -> new InstrumentException(ErrorCode.REAGENT_LOW));
+                picks.put(selected, entry.getValue());
+            }
+        }
+        return picks;
+    }
+
+    private List<Level> decrement(Map<Lot, Double> picks) {
+        UUID[] ids = new UUID[picks.size()];
+        BigDecimal[] quantities = new BigDecimal[picks.size()];
+        int i = 0;
+        for (Map.Entry<Lot, Double> pick : picks.entrySet()) {
+            ids[i] = pick.getKey().id;
+            quantities[i] = BigDecimal.valueOf(pick.getValue());
+            i++;
+        }
+        return jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(CONSUME_SQL);
+            statement.setArray(1, connection.createArrayOf("uuid", ids));
+            statement.setArray(2, connection.createArrayOf("numeric", quantities));
+            statement.setInt(3, ids.length);
+            return statement;
+        }, (rs, rowNum) -> new Level(rs.getObject(1, UUID.class), rs.getDouble(2)));
+    }
+
+    private void onConsumed(UUID instrumentId, InstrumentLevels levels, Map<Lot, Double> picks, List<Level> updated) {
+        Map<UUID, Double> remaining = new HashMap<>();
+        updated.forEach(level -> remaining.put(level.installedReagentId(), level.remaining()));
+
+        Map<String, Double> thresholds = reagentConfig.getLowLevel();
+        for (Map.Entry<Lot, Double> pick : picks.entrySet()) {
+            Lot lot = pick.getKey();
+            double after = remaining.get(lot.id);
+            double before = after + pick.getValue();
+            log.info("Consumed {} mL of {} (lot {}), remaining {}", pick.getValue(), lot.name, lot.lotNumber, after);
+
+            Double threshold = thresholds != null ? thresholds.get(lot.name) : null;
+            if (threshold != null && before > threshold && after <= threshold) {
+                publishLowLevel(instrumentId, lot, after, threshold);
+            }
+        }
+
+        // Ghi mức mới vào cache khi transaction của người gọi (nếu có) đã commit
+        Runnable writeThrough = () -> {
+            synchronized (levels) {
+                for (Lot lot : picks.keySet()) {
+                    // Hai sample commit lệch thứ tự: giữ mức thấp hơn (ngoài ledger chỉ install làm tăng mức, và install thì evict)
+                    lot.quantity = Math.min(lot.quantity, remaining.get(lot.id));
+                    if (lot.quantity <= 0) {
+                        levels.lots.get(lot.name).remove(lot);
+                    }
+                }
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == STATUS_COMMITTED) {
+                        writeThrough.run();
+                    } else {
+                        evictNow(instrumentId);
+                    }
+                }
+            });
+        } else {
+            writeThrough.run();
+        }
+    }
+
+    private void publishLowLevel(UUID instrumentId, Lot lot, double remaining, double threshold) {
+        log.warn("Reagent {} (lot {}) on instrument {} dropped to {} (threshold {})",
+                lot.name, lot.lotNumber, instrumentId, remaining, threshold);
+        eventService.logEvent(instrumentId, "REAGENT_LOW",
+                String.format("Reagent %s lot %s is low: %.2f remaining (threshold %.2f)", lot.name, lot.lotNumber, remaining, threshold),
+                null);
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("instrumentId", instrumentId.toString());
+        payload.put("reagentId", lot.reagentId != null ? lot.reagentId.toString() : null);
+        payload.put("reagentName", lot.name);
+        payload.put("lotNumber", lot.lotNumber);
+        payload.put("quantityRemaining", remaining);
+        payload.put("threshold", threshold);
+        systemEventPublisher.publishMonitoringEvent("REAGENT_LEVEL_LOW", payload);
+    }
+
+    private InstrumentLevels levels(UUID instrumentId, boolean reload) {
+        if (!reload) {
+            synchronized (cache) {
+                InstrumentLevels cached = cache.get(instrumentId);
+                if (cached != null && cached.expiresAtNanos - System.nanoTime() > 0) {
+                    hits.increment();
+                    return cached;
+                }
+            }
+        }
+        misses.increment();
+
+        InstrumentLevels loaded = new InstrumentLevels(reagentRepository.findByInstrumentIdAndInUseTrue(instrumentId),
+                System.nanoTime() + ttlNanos);
+        synchronized (cache) {
+            cache.put(instrumentId, loaded);
+        }
+        return loaded;
+    }
+
+    @Override
+    public void evict(UUID instrumentId) {
+        evictNow(instrumentId);
+        // Trong transaction: xoá thêm lần nữa sau commit, tránh lần đọc chen giữa nạp lại mức chưa commit
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    evictNow(instrumentId);
+                }
+            });
+        }
+    }
+
+    private void evictNow(UUID instrumentId) {
+        synchronized (cache) {
+            cache.remove(instrumentId);
+        }
+    }
+
+    private int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
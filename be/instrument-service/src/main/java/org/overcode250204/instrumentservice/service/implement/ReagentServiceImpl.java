@@ -9,16 +9,16 @@ import org.overcode250204.instrumentservice.configs.ReagentConsumptionConfig;
 import org.overcode250204.instrumentservice.dtos.InstallReagentCommand;
 import org.overcode250204.instrumentservice.dtos.ReagentDTO;
 import org.overcode250204.instrumentservice.dtos.UninstallReagentCommand;
-import org.overcode250204.instrumentservice.entity.InboxEvent;
 import org.overcode250204.instrumentservice.entity.InstalledReagent;
 import org.overcode250204.instrumentservice.events.ReagentEventPublisher;
+import org.overcode250204.instrumentservice.events.ReplyCorrelationRegistry;
 import org.overcode250204.instrumentservice.events.SystemEventPublisher;
 import org.overcode250204.instrumentservice.exception.ErrorCode;
 import org.overcode250204.instrumentservice.exception.InstrumentException;
 import org.overcode250204.instrumentservice.grpc.InstrumentWarehouseClientService;
-import org.overcode250204.instrumentservice.repository.InboxRepository;
 import org.overcode250204.instrumentservice.repository.InstalledReagentRepository;
 import org.overcode250204.instrumentservice.repository.InstrumentRepository;
+import org.overcode250204.instrumentservice.service.interfaces.ReagentLedgerService;
 import org.overcode250204.instrumentservice.service.interfaces.ReagentService;
 import org.overcode250204.instrumentservice.utils.AuthUtils;
 import org.overcode250204.common.grpc.ReagentInfo;
@@ -29,6 +29,7 @@ import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 @Service
@@ -39,13 +40,14 @@ public class ReagentServiceImpl implements ReagentService {
     private final ReagentConsumptionConfig reagentConfig;
     private final InstalledReagentRepository reagentRepository;
     private final InstrumentRepository instrumentRepository;
-    private final InboxRepository inboxRepository;
     private final ObjectMapper objectMapper;
     private final ReagentEventPublisher reagentEventPublisher;
     private final SystemEventPublisher systemEventPublisher;
     private final InstrumentWarehouseClientService warehouseClientService;
+    private final ReagentLedgerService reagentLedger;
+    private final ReplyCorrelationRegistry replyRegistry;
 
-    // Kiểm tra lượng reagent đủ cho quá trình chạy test
+    // Kiểm tra lượng reagent đủ cho quá trình chạy test (mức reagent lấy từ cache của ledger)
     @Override
     public boolean hasSufficientReagent(UUID instrumentId, String testType, int samplesNeeded) {
 
@@ -55,27 +57,9 @@ public class ReagentServiceImpl implements ReagentService {
             return false;
         }
 
-        for (Map.Entry<String, Double> entry : reagentUsage.entrySet()) {
-            String reagentType = entry.getKey();
-            double required = entry.getValue() * samplesNeeded;
-            List<InstalledReagent> reagents = reagentRepository
-                    .findByInstrumentIdAndReagentNameAndInUseTrueOrderByInstalledAtAsc(instrumentId, reagentType);
-
-            if (reagents.isEmpty()) {
-                log.warn("⚠ No reagent in use for type={} instrument={}", reagentType, instrumentId);
-                return false;
-            }
-            double totalAvailable = 0.0;
-
-            for (InstalledReagent r : reagents) {
-                double remain = r.getQuantityRemaining() != null ? r.getQuantityRemaining() : 0.0;
-                totalAvailable += remain;
-            }
-
-            if (totalAvailable < required) {
-                log.warn("Not enough reagent {} for testType={} (needed={}, all candidates insufficient)", reagentType, testType, required);
-                return false;
-            }
+        if (!reagentLedger.hasSufficient(instrumentId, requiredFor(reagentUsage, samplesNeeded))) {
+            log.warn("Not enough reagent for testType={} samples={} on instrument={}", testType, samplesNeeded, instrumentId);
+            return false;
         }
 
         log.info("Reagent check passed for instrument={} testType={} samples={}", instrumentId, testType, samplesNeeded);
@@ -83,7 +67,8 @@ public class ReagentServiceImpl implements ReagentService {
     }
 
 
-    // Tiêu hao reagent khi chạy test
+    // Tiêu hao reagent khi chạy test: mọi loại reagent của sample được trừ trong một câu SQL có điều kiện,
+    // event REAGENT_LOW (nếu có) ghi cùng transaction với câu trừ
     @Override
     @Transactional
     public void consumeReagent(UUID instrumentId, String testType, int samplesUsed) {
@@ -93,31 +78,14 @@ public class ReagentServiceImpl implements ReagentService {
             return;
         }
 
-        reagents.forEach((reagentType, perSample) -> {
-            double total = perSample * samplesUsed;
-            List<InstalledReagent> candidates = reagentRepository
-                    .findByInstrumentIdAndReagentNameAndInUseTrueOrderByInstalledAtAsc(instrumentId, reagentType);
-
-            if (candidates.isEmpty()) {
-                throw new InstrumentException(ErrorCode.REAGENT_NOT_FOUND);
-            }
-
-            InstalledReagent selected = candidates.stream()
-                    .filter(r -> Optional.ofNullable(r.getQuantityRemaining()).orElse(0.0) >= total)
-                    .findFirst()
-                    .orElseThrow(() -> new InstrumentException(ErrorCode.REAGENT_LOW));
-
-            double remaining = Optional.ofNullable(selected.getQuantityRemaining()).orElse(0.0);
-            selected.setQuantityRemaining(remaining - total);
-
-            if (selected.getQuantityRemaining() <= 0) {
-                selected.setInUse(false);
-            }
-
-            reagentRepository.save(selected);
-            log.info("Consumed {} mL of {} for {}", total, reagentType, testType);
+        reagentLedger.consume(instrumentId, requiredFor(reagents, samplesUsed));
+        log.info("Consumed reagents for {} x{} on instrument {}", testType, samplesUsed, instrumentId);
+    }
 
-        });
+    private static Map<String, Double> requiredFor(Map<String, Double> perSample, int samples) {
+        Map<String, Double> required = new LinkedHashMap<>();
+        perSample.forEach((reagentType, amount) -> required.put(reagentType, amount * samples));
+        return required;
     }
 
     @Override
@@ -146,7 +114,7 @@ public class ReagentServiceImpl implements ReagentService {
     }
 
     @Override
-    public JsonNode requestInstallReagent(UUID instrumentId, InstallReagentCommand cmd) {
+    public CompletableFuture<JsonNode> requestInstallReagent(UUID instrumentId, InstallReagentCommand cmd) {
         if (cmd.getQuantity() <= 0) {
             throw new InstrumentException(ErrorCode.INVALID_QUANTITY);
         }
@@ -235,43 +203,17 @@ public class ReagentServiceImpl implements ReagentService {
             ));
         }
 
-        // Wait for inbox event to be processed by ReagentEventListener with a timeout
         if (eventId == null) {
             log.error("Failed to create outbox event for install request");
             throw new InstrumentException(ErrorCode.REAGENT_INSTALL_PUBLISH_FAILED);
         }
 
-        final UUID eventUuid = UUID.fromString(eventId);
-        final long timeoutMs = 5000L; // total wait time
-        final long pollIntervalMs = 200L;
-        long waited = 0L;
-
-        try {
-            while (waited < timeoutMs) {
-                if (inboxRepository.existsByEventId(eventUuid)) {
-                    String payloadStr = inboxRepository.findByEventId(eventUuid).map(InboxEvent::getPayload).orElse(null);
-                    if (payloadStr == null) return null;
-                    try {
-                        return objectMapper.readTree(payloadStr);
-                    } catch (Exception ex) {
-                        log.warn("Failed to parse inbox payload json for event {}", eventId, ex);
-                        return null;
-                    }
-                }
-                Thread.sleep(pollIntervalMs);
-                waited += pollIntervalMs;
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            log.warn("Interrupted while waiting for inbox event {}", eventId);
-        }
-
-        log.info("Timeout waiting for inbox event {} after {}ms", eventId, timeoutMs);
-        return null;
+        // Reply của warehouse hoàn thành future (servlet thread không phải chờ); hết thời gian chờ thì null
+        return replyRegistry.register(UUID.fromString(eventId));
     }
-    // java
+
     @Override
-    public JsonNode requestSyncReagent(UUID instrumentId) {
+    public CompletableFuture<JsonNode> requestSyncReagent(UUID instrumentId) {
 
         Map<String, Object> payload = new HashMap<>();
         payload.put("instrumentId", instrumentId.toString());
@@ -313,34 +255,10 @@ public class ReagentServiceImpl implements ReagentService {
             ));
             reagentRepository.delete(istalledReagent);
         }
+        reagentLedger.evict(instrumentId);
 
-        final UUID eventUuid = UUID.fromString(eventId);
-        final long timeoutMs = 5000L;
-        final long pollIntervalMs = 200L;
-        long waited = 0L;
-
-        try {
-            while (waited < timeoutMs) {
-                if (inboxRepository.existsByEventId(eventUuid)) {
-                    String payloadStr = inboxRepository.findByEventId(eventUuid).map(InboxEvent::getPayload).orElse(null);
-                    if (payloadStr == null) return null;
-                    try {
-                        return objectMapper.readTree(payloadStr);
-                    } catch (Exception ex) {
-                        log.warn("Failed to parse inbox payload json for event {}", eventId, ex);
-                        return null;
-                    }
-                }
-                Thread.sleep(pollIntervalMs);
-                waited += pollIntervalMs;
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            log.warn("Interrupted while waiting for inbox event {}", eventId);
-        }
-
-        log.info("Timeout waiting for inbox event {} after {}ms", eventId, timeoutMs);
-        return null;
+        // Reply của warehouse hoàn thành future (servlet thread không phải chờ); hết thời gian chờ thì null
+        return replyRegistry.register(UUID.fromString(eventId));
     }
 
 
@@ -415,6 +333,7 @@ public class ReagentServiceImpl implements ReagentService {
             reagentRepository.save(reagent);
             log.info("Uninstalled reagent [{}] for instrument {}. Quantity set to {}. ", reagent.getReagentName(), reagent.getInstrument().getId(), newQuantity);
         }
+        reagentLedger.evict(instrumentId);
     }
 
     @Override
@@ -435,6 +354,7 @@ public class ReagentServiceImpl implements ReagentService {
 
         reagent.setInUse(cmd.getInUse());
         InstalledReagent saved = reagentRepository.save(reagent);
+        reagentLedger.evict(instrumentId);
         return new ReagentDTO(saved);
     }
 
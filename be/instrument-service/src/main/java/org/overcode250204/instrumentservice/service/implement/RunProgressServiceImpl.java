@@ -0,0 +1,126 @@
+package org.overcode250204.instrumentservice.service.implement;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.instrumentservice.entity.InstrumentRun;
+import org.overcode250204.instrumentservice.entity.InstrumentRunProgress;
+import org.overcode250204.instrumentservice.entity.RawTestResult;
+import org.overcode250204.instrumentservice.service.interfaces.RunProgressService;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.UUID;
+
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class RunProgressServiceImpl implements RunProgressService {
+
+    private final MongoTemplate mongoTemplate;
+
+    // auto-index-creation tắt mặc định: tạo index cho hai truy vấn mỗi sample (run theo runId, kết quả theo runId + barcode)
+    @PostConstruct
+    public void ensureIndexes() {
+        mongoTemplate.indexOps(InstrumentRun.class)
+                .createIndex(new Index().on("runId", Sort.Direction.ASC).named("run_id_idx"));
+        mongoTemplate.indexOps(RawTestResult.class)
+                .createIndex(new Index().on("runId", Sort.Direction.ASC).on("barcode", Sort.Direction.ASC)
+                        .named("run_id_barcode_idx"));
+    }
+
+    @Override
+    public InstrumentRunProgress recordSample(UUID runId, int totalSamplesExpected, String barcode, boolean success) {
+        String marker = "samples." + sampleKey(barcode);
+        String counter = counterField(success);
+        while (true) {
+            // Sample chưa có kết quả: đặt marker và +1 trong cùng một lệnh (upsert tạo document ở sample đầu tiên)
+            try {
+                InstrumentRunProgress progress = mongoTemplate.findAndModify(
+                        progressQuery(runId).addCriteria(Criteria.where(marker).exists(false)),
+                        new Update().set(marker, success)
+                                .inc(counter, 1)
+                                .setOnInsert("totalSamplesExpected", totalSamplesExpected)
+                                .setOnInsert("completed", false)
+                                .set("updatedAt", LocalDateTime.now()),
+                        FindAndModifyOptions.options().upsert(true).returnNew(true), InstrumentRunProgress.class);
+                return copyCounters(runId, progress);
+            } catch (DuplicateKeyException ex) {
+                // Document đã có marker của sample, hoặc consumer khác vừa tạo document của run
+            }
+            // Kết quả mới khác kết quả cũ: chuyển sample sang bộ đếm kia
+            InstrumentRunProgress switched = mongoTemplate.findAndModify(
+                    progressQuery(runId).addCriteria(Criteria.where(marker).is(!success)),
+                    new Update().set(marker, success)
+                            .inc(counter, 1)
+                            .inc(counterField(!success), -1)
+                            .set("updatedAt", LocalDateTime.now()),
+                    FindAndModifyOptions.options().returnNew(true), InstrumentRunProgress.class);
+            if (switched != null) {
+                return copyCounters(runId, switched);
+            }
+            // Cùng kết quả: giao lại, bộ đếm giữ nguyên
+            InstrumentRunProgress unchanged = mongoTemplate.findOne(
+                    progressQuery(runId).addCriteria(Criteria.where(marker).is(success)), InstrumentRunProgress.class);
+            if (unchanged != null) {
+                return copyCounters(runId, unchanged);
+            }
+            // Document vừa được tạo bởi sample khác và chưa có marker này: thử lại lệnh đầu
+        }
+    }
+
+    // Chép số đếm sang InstrumentRun cho màn hình theo dõi run; $set không cần đọc lại document run
+    private InstrumentRunProgress copyCounters(UUID runId, InstrumentRunProgress progress) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("runId").is(runId)),
+                new Update().set("successfulSamples", progress.getSuccessfulSamples())
+                        .set("failedSamples", progress.getFailedSamples()),
+                InstrumentRun.class);
+        return progress;
+    }
+
+    @Override
+    public InstrumentRunProgress getProgress(UUID runId) {
+        return mongoTemplate.findOne(progressQuery(runId), InstrumentRunProgress.class);
+    }
+
+    @Override
+    public boolean claimCompletion(UUID runId) {
+        Query notCompleted = byRunId(runId).addCriteria(Criteria.where("completed").is(false));
+        boolean claimed = mongoTemplate.updateFirst(notCompleted, Update.update("completed", true),
+                InstrumentRunProgress.class).getModifiedCount() == 1;
+        if (!claimed) {
+            log.debug("[RunProgress] Run {} already completed by another consumer", runId);
+        }
+        return claimed;
+    }
+
+    private static Query byRunId(UUID runId) {
+        return Query.query(Criteria.where("_id").is(runId));
+    }
+
+    // Không kéo map marker (một khoá mỗi sample) về theo mỗi lần ghi
+    private static Query progressQuery(UUID runId) {
+        Query query = byRunId(runId);
+        query.fields().exclude("samples");
+        return query;
+    }
+
+    // Barcode có thể chứa '.' hoặc bắt đầu bằng '$', không dùng trực tiếp làm tên field được
+    static String sampleKey(String barcode) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(barcode.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String counterField(boolean success) {
+        return success ? "successfulSamples" : "failedSamples";
+    }
+}
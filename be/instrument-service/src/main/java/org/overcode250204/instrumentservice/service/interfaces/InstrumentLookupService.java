@@ -0,0 +1,17 @@
+package org.overcode250204.instrumentservice.service.interfaces;
+
+import org.overcode250204.instrumentservice.entity.Instrument;
+
+import java.util.UUID;
+
+public interface InstrumentLookupService {
+
+    // Instrument kèm bản JSON đã serialize sẵn (dùng trong payload HL7_TEST_RESULT của từng sample)
+    record InstrumentSnapshot(Instrument instrument, String json) {
+    }
+
+    InstrumentSnapshot getInstrument(UUID instrumentId);
+
+    void evict(UUID instrumentId);
+
+}
@@ -0,0 +1,18 @@
+package org.overcode250204.instrumentservice.service.interfaces;
+
+import java.util.Map;
+import java.util.UUID;
+
+public interface ReagentLedgerService {
+
+    // Tổng lượng reagent đang in-use của instrument có đủ cho lượng cần theo từng loại (reagentName -> mL) không
+    boolean hasSufficient(UUID instrumentId, Map<String, Double> required);
+
+    // Trừ lượng cần của mọi loại reagent cho một sample, hoặc không trừ gì (REAGENT_NOT_FOUND / REAGENT_LOW).
+    // Chạy trong transaction (của người gọi, hoặc transaction riêng): câu trừ và event REAGENT_LOW commit cùng nhau
+    void consume(UUID instrumentId, Map<String, Double> required);
+
+    // Gọi khi reagent của instrument được install / sync / uninstall / đổi cờ inUse ngoài ledger
+    void evict(UUID instrumentId);
+
+}
@@ -8,6 +8,7 @@ import org.overcode250204.instrumentservice.dtos.UpdateReagentInUseCommand;
 
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public interface ReagentService {
     boolean hasSufficientReagent(UUID instrumentId, String testType, int samplesNeeded);
@@ -18,11 +19,11 @@ public interface ReagentService {
 
     List<ReagentDTO> getInstalledReagents(UUID instrumentId);
 
-    JsonNode requestInstallReagent(UUID instrumentId, InstallReagentCommand cmd);
+    CompletableFuture<JsonNode> requestInstallReagent(UUID instrumentId, InstallReagentCommand cmd);
 
     void requestUninstallReagent(UUID instrumentId, UninstallReagentCommand cmd);
 
-    JsonNode requestSyncReagent(UUID instrumentId);
+    CompletableFuture<JsonNode> requestSyncReagent(UUID instrumentId);
 
     // New methods for inUse flag
     ReagentDTO getReagent(UUID instrumentId, UUID reagentId);
@@ -0,0 +1,18 @@
+package org.overcode250204.instrumentservice.service.interfaces;
+
+import org.overcode250204.instrumentservice.entity.InstrumentRunProgress;
+
+import java.util.UUID;
+
+public interface RunProgressService {
+
+    // Ghi kết quả mới nhất của một sample (theo barcode, gọi lại với cùng kết quả không đổi gì), trả về tiến độ mới
+    // và chép số đếm sang InstrumentRun
+    InstrumentRunProgress recordSample(UUID runId, int totalSamplesExpected, String barcode, boolean success);
+
+    InstrumentRunProgress getProgress(UUID runId);
+
+    // true cho đúng một lời gọi trên mỗi run: người gọi đó chịu trách nhiệm đóng run
+    boolean claimCompletion(UUID runId);
+
+}
@@ -0,0 +1,166 @@
+package org.overcode250204.instrumentservice.benchmarks;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.bson.UuidRepresentation;
+import org.openjdk.jmh.annotations.*;
+import org.overcode250204.instrumentservice.entity.InstrumentRun;
+import org.overcode250204.instrumentservice.entity.InstrumentRunProgress;
+import org.overcode250204.instrumentservice.entity.RawTestResult;
+import org.overcode250204.instrumentservice.enums.InstrumentRunStatus;
+import org.overcode250204.instrumentservice.service.implement.RunProgressServiceImpl;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Một run 1.000 sample đi qua phần Mongo của AnalyzerResultListener, mỗi invocation là cả run:
+ * - fullRescan: cách cũ, mỗi sample đọc lại toàn bộ raw_test_results của run để đếm rồi lưu lại document run (O(n²)).
+ * - incrementalProgress: RunProgressServiceImpl, mỗi sample một findAndModify $inc có điều kiện theo marker của sample
+ *   trên instrument_run_progress.
+ * Cả hai đều đọc run theo runId và kết quả theo runId + barcode như listener.
+ *
+ * Cần một MongoDB (benchmark tạo và xoá database riêng "instrument_run_bench").
+ * Thông tin kết nối đọc từ biến môi trường (JVM fork của JMH kế thừa được, khác với -D truyền cho Maven):
+ *   BENCH_MONGO_URI=mongodb://localhost:27017 mvn -Pjmh test-compile exec:exec -Djmh.include=AnalyzerRunProgressBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AnalyzerRunProgressBenchmark {
+    private static final String DATABASE = "instrument_run_bench";
+
+    @Param({"1000"})
+    public int samples;
+
+    private MongoClient client;
+    private MongoTemplate mongoTemplate;
+    private RunProgressServiceImpl runProgressService;
+    private UUID runId;
+    private UUID instrumentId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        client = MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(mongoUri()))
+                .uuidRepresentation(UuidRepresentation.STANDARD)
+                .build());
+        client.getDatabase(DATABASE).drop();
+        mongoTemplate = new MongoTemplate(client, DATABASE);
+        runProgressService = new RunProgressServiceImpl(mongoTemplate);
+        runProgressService.ensureIndexes();
+        instrumentId = UUID.randomUUID();
+    }
+
+    // Giống BloodAnalysisServiceImpl: run RUNNING và một RawTestResult QUEUED cho mỗi barcode
+    @Setup(Level.Invocation)
+    public void newRun() {
+        runId = UUID.randomUUID();
+        InstrumentRun run = new InstrumentRun();
+        run.setRunId(runId);
+        run.setInstrumentId(instrumentId);
+        run.setStatus(InstrumentRunStatus.RUNNING);
+        run.setStartTime(LocalDateTime.now());
+        run.setTotalSamplesExpected(samples);
+        mongoTemplate.insert(run);
+
+        List<RawTestResult> queued = new ArrayList<>(samples);
+        for (int i = 0; i < samples; i++) {
+            RawTestResult result = new RawTestResult();
+            result.setRunId(runId);
+            result.setInstrumentId(instrumentId);
+            result.setBarcode(barcode(i));
+            result.setStatus("QUEUED");
+            queued.add(result);
+        }
+        mongoTemplate.insertAll(queued);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.getDatabase(DATABASE).drop();
+        client.close();
+    }
+
+    private static String barcode(int i) {
+        return "BC" + i;
+    }
+
+    // 1/20 sample thất bại để có cả hai bộ đếm
+    private static String outcome(int i) {
+        return i % 20 == 0 ? "FAILED" : "SENT";
+    }
+
+    private InstrumentRun loadRun() {
+        return mongoTemplate.findOne(Query.query(Criteria.where("runId").is(runId)), InstrumentRun.class);
+    }
+
+    private void completeSample(int i) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("runId").is(runId).and("barcode").is(barcode(i))),
+                Update.update("status", outcome(i)).set("publishedAt", LocalDateTime.now()), RawTestResult.class);
+    }
+
+    @Benchmark
+    public InstrumentRun fullRescan() {
+        InstrumentRun run = null;
+        for (int i = 0; i < samples; i++) {
+            run = loadRun();
+            mongoTemplate.findOne(Query.query(Criteria.where("runId").is(runId).and("barcode").is(barcode(i))),
+                    RawTestResult.class);
+            completeSample(i);
+
+            // updateRunStatusAfterSample cũ: đọc lại run và toàn bộ kết quả
+            run = loadRun();
+            List<RawTestResult> results = mongoTemplate.find(Query.query(Criteria.where("runId").is(runId)),
+                    RawTestResult.class);
+            long success = results.stream().filter(r -> "SENT".equals(r.getStatus())).count();
+            long failed = results.stream().filter(r -> "FAILED".equals(r.getStatus())).count();
+            run.setSuccessfulSamples((int) success);
+            run.setFailedSamples((int) failed);
+            if (success + failed >= run.getTotalSamplesExpected()) {
+                run.setStatus(failed == 0 ? InstrumentRunStatus.COMPLETED : InstrumentRunStatus.PARTIAL_COMPLETED);
+            }
+            mongoTemplate.save(run);
+        }
+        return run;
+    }
+
+    @Benchmark
+    public InstrumentRunProgress incrementalProgress() {
+        InstrumentRunProgress progress = null;
+        for (int i = 0; i < samples; i++) {
+            InstrumentRun run = loadRun();
+            mongoTemplate.findOne(Query.query(Criteria.where("runId").is(runId).and("barcode").is(barcode(i))),
+                    RawTestResult.class);
+            completeSample(i);
+
+            boolean success = "SENT".equals(outcome(i));
+            progress = runProgressService.recordSample(runId, run.getTotalSamplesExpected(), barcode(i), success);
+            if (progress.isFinished() && runProgressService.claimCompletion(runId)) {
+                run.setSuccessfulSamples(progress.getSuccessfulSamples());
+                run.setFailedSamples(progress.getFailedSamples());
+                run.setStatus(progress.getFailedSamples() == 0
+                        ? InstrumentRunStatus.COMPLETED : InstrumentRunStatus.PARTIAL_COMPLETED);
+                mongoTemplate.save(run);
+            }
+        }
+        return progress;
+    }
+
+    private static String mongoUri() {
+        String value = System.getenv("BENCH_MONGO_URI");
+        return value != null ? value : "mongodb://localhost:27017";
+    }
+}
@@ -0,0 +1,144 @@
+package org.overcode250204.instrumentservice.controllers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.identity.CognitoIdentityResolver;
+import org.overcode250204.identity.GatewaySignatureVerifier;
+import org.overcode250204.instrumentservice.configs.SecurityConfig;
+import org.overcode250204.instrumentservice.exception.CustomAccessDeniedHandler;
+import org.overcode250204.instrumentservice.exception.CustomAuthenticationEntryPoint;
+import org.overcode250204.instrumentservice.exception.ErrorCode;
+import org.overcode250204.instrumentservice.exception.InstrumentException;
+import org.overcode250204.instrumentservice.service.interfaces.ReagentService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Endpoint install / sync trả CompletableFuture nên response được ghi ở ASYNC dispatch; qua filter chain thật
+ * (GatewayHeaderAuthFilter + SecurityConfig) lượt dispatch đó vẫn phải mang authentication của request gốc.
+ */
+@WebMvcTest(controllers = ReagentController.class, properties = {
+        "CONFIG_SERVER_URL=optional:configserver:",
+        "PROFILES_ACTIVE=test",
+        "spring.cloud.config.enabled=false"
+})
+@Import({SecurityConfig.class, CustomAccessDeniedHandler.class, CustomAuthenticationEntryPoint.class,
+        ReagentControllerAsyncSecurityTest.GatewayConfig.class})
+class ReagentControllerAsyncSecurityTest {
+
+    private static final String SECRET = "gateway-test-secret";
+
+    @TestConfiguration
+    static class GatewayConfig {
+        @Bean
+        GatewaySignatureVerifier gatewaySignatureVerifier() {
+            return new GatewaySignatureVerifier(SECRET);
+        }
+
+        @Bean
+        CognitoIdentityResolver cognitoIdentityResolver() {
+            return new CognitoIdentityResolver(sub -> "user-" + sub, 16, Duration.ofMinutes(5), new SimpleMeterRegistry());
+        }
+
+        @Bean
+        ReagentService reagentService() {
+            return mock(ReagentService.class);
+        }
+    }
+
+    @Autowired
+    private MockMvc mockMvc;
+    @Autowired
+    private ReagentService reagentService;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @BeforeEach
+    void resetService() {
+        reset(reagentService);
+    }
+
+    private static MockHttpServletRequestBuilder signed(MockHttpServletRequestBuilder request, String privileges) throws Exception {
+        String username = "cognito-sub";
+        String groups = "LAB_MANAGER";
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        String signature = Base64.getEncoder().encodeToString(
+                mac.doFinal((username + "|" + groups + "|" + privileges).getBytes(StandardCharsets.UTF_8)));
+        return request.header("X-User-Name", username)
+                .header("X-Groups", groups)
+                .header("X-Privileges", privileges)
+                .header("X-Signature", signature);
+    }
+
+    @Test
+    void syncReplyIsWrittenOnAuthenticatedAsyncDispatch() throws Exception {
+        UUID instrumentId = UUID.randomUUID();
+        CompletableFuture<JsonNode> reply = new CompletableFuture<>();
+        when(reagentService.requestSyncReagent(eq(instrumentId))).thenReturn(reply);
+
+        MvcResult started = mockMvc.perform(signed(post("/instruments/{id}/reagents/sync", instrumentId), "INSTRUMENT_UPDATE"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        // Warehouse trả lời sau khi servlet thread đã được nhả
+        reply.complete(objectMapper.readTree("{\"eventType\":\"REAGENT_SYNC_RESPONSE\"}"));
+
+        mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data.eventType").value("REAGENT_SYNC_RESPONSE"));
+    }
+
+    @Test
+    void installTimeoutIsAcceptedOnAsyncDispatch() throws Exception {
+        UUID instrumentId = UUID.randomUUID();
+        when(reagentService.requestInstallReagent(eq(instrumentId), any()))
+                .thenReturn(CompletableFuture.supplyAsync(() -> null));
+
+        MvcResult started = mockMvc.perform(signed(post("/instruments/{id}/reagents/install", instrumentId), "REAGENT_CREATE")
+                        .contentType("application/json")
+                        .content("{}"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isAccepted());
+    }
+
+    @Test
+    void unsignedRequestNeverReachesTheService() throws Exception {
+        InstrumentException ex = assertThrows(InstrumentException.class,
+                () -> mockMvc.perform(post("/instruments/{id}/reagents/sync", UUID.randomUUID())));
+        assertEquals(ErrorCode.GATEWAY_SIGNATURE_INVALID, ex.getErrorCode());
+        verifyNoInteractions(reagentService);
+    }
+}
@@ -0,0 +1,210 @@
+package org.overcode250204.instrumentservice.events;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.instrumentservice.entity.InboxEvent;
+import org.overcode250204.instrumentservice.repository.InboxRepository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tải giả lập cho request install / sync chờ reply của warehouse: REQUESTS request tới cùng lúc, pool servlet
+ * SERVLET_THREADS thread, warehouse trả lời 50-400ms sau khi handler publish request; một phần ba reply
+ * do replica khác nhận (chỉ có trong inbox).
+ * - polling: vòng lặp cũ, mỗi request giữ một servlet thread và hỏi inbox mỗi 200ms tới khi có reply;
+ * - registry: ReplyCorrelationRegistry, thread được nhả ngay sau khi đăng ký, reply hoàn thành future
+ *   (hoặc sweep tìm trong inbox cho các reply của replica khác).
+ * In latency p50/p99, tổng thời gian servlet thread bị giữ và số truy vấn inbox của mỗi cách.
+ */
+@Slf4j
+class ReplyCorrelationRegistryLoadTest {
+
+    private static final int REQUESTS = 300;
+    private static final int SERVLET_THREADS = 16;
+    private static final long POLL_INTERVAL_MS = 200;
+    private static final long TIMEOUT_MS = 5000;
+
+    private final Map<UUID, InboxEvent> inbox = new ConcurrentHashMap<>();
+    private final AtomicInteger inboxQueries = new AtomicInteger();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private InboxRepository inboxRepository;
+    private ScheduledExecutorService warehouse;
+
+    private record Result(String name, long p50Ms, long p99Ms, long threadHeldMs, int peakBusyThreads, int queries) {
+        @Override
+        public String toString() {
+            return String.format("%-8s p50=%5dms p99=%5dms servlet-thread-held=%7dms peak-busy-threads=%3d inbox-queries=%5d",
+                    name, p50Ms, p99Ms, threadHeldMs, peakBusyThreads, queries);
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        inboxRepository = mock(InboxRepository.class);
+        when(inboxRepository.existsByEventId(any())).thenAnswer(inv -> {
+            inboxQueries.incrementAndGet();
+            return inbox.containsKey(inv.<UUID>getArgument(0));
+        });
+        when(inboxRepository.findByEventId(any())).thenAnswer(inv -> {
+            inboxQueries.incrementAndGet();
+            return Optional.ofNullable(inbox.get(inv.<UUID>getArgument(0)));
+        });
+        when(inboxRepository.findByEventIdIn(any())).thenAnswer(inv -> {
+            inboxQueries.incrementAndGet();
+            List<InboxEvent> found = new ArrayList<>();
+            for (UUID id : inv.<Collection<UUID>>getArgument(0)) {
+                InboxEvent event = inbox.get(id);
+                if (event != null) {
+                    found.add(event);
+                }
+            }
+            return found;
+        });
+        warehouse = Executors.newScheduledThreadPool(4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        warehouse.shutdownNow();
+    }
+
+    // Warehouse trả lời sau delay: ghi inbox, và nếu reply rơi vào replica này thì gọi listener
+    private void scheduleReply(UUID eventId, long delayMs, boolean thisReplica, ReplyCorrelationRegistry registry) {
+        warehouse.schedule(() -> {
+            Map<String, Object> event = Map.of("eventId", eventId.toString(), "eventType", "REAGENT_INSTALL_RESPONSE",
+                    "payload", List.of(Map.of("status", "SUCCESS")));
+            try {
+                inbox.put(eventId, new InboxEvent(UUID.randomUUID(), eventId, objectMapper.writeValueAsString(event), Instant.now()));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            if (thisReplica && registry != null) {
+                registry.complete(eventId, event);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Vòng chờ cũ của ReagentServiceImpl.requestInstallReagent / requestSyncReagent
+    private JsonNode legacyPoll(UUID eventUuid) throws Exception {
+        long waited = 0L;
+        while (waited < TIMEOUT_MS) {
+            if (inboxRepository.existsByEventId(eventUuid)) {
+                String payloadStr = inboxRepository.findByEventId(eventUuid).map(InboxEvent::getPayload).orElse(null);
+                return payloadStr == null ? null : objectMapper.readTree(payloadStr);
+            }
+            Thread.sleep(POLL_INTERVAL_MS);
+            waited += POLL_INTERVAL_MS;
+        }
+        return null;
+    }
+
+    private Result run(String name, boolean useRegistry) throws Exception {
+        inbox.clear();
+        inboxQueries.set(0);
+        ReplyCorrelationRegistry registry = useRegistry
+                ? new ReplyCorrelationRegistry(inboxRepository, objectMapper, new SimpleMeterRegistry(), Duration.ofMillis(TIMEOUT_MS), 10_000)
+                : null;
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor();
+        if (registry != null) {
+            // @Scheduled sweep với cùng chu kỳ như vòng poll cũ
+            sweeper.scheduleWithFixedDelay(registry::sweep, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        ExecutorService servletPool = Executors.newFixedThreadPool(SERVLET_THREADS);
+        Random random = new Random(42);
+        AtomicLong threadHeldNanos = new AtomicLong();
+        AtomicInteger busy = new AtomicInteger();
+        AtomicInteger peakBusy = new AtomicInteger();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        AtomicInteger missing = new AtomicInteger();
+
+        try {
+            for (int i = 0; i < REQUESTS; i++) {
+                UUID eventId = UUID.randomUUID();
+                long replyDelayMs = 50 + random.nextInt(351);
+                boolean thisReplica = i % 3 != 0;
+                long arrivedAt = System.nanoTime();
+
+                servletPool.submit(() -> {
+                    long start = System.nanoTime();
+                    peakBusy.accumulateAndGet(busy.incrementAndGet(), Math::max);
+                    try {
+                        // Handler publish request (outbox) rồi chờ; warehouse trả lời sau replyDelayMs
+                        scheduleReply(eventId, replyDelayMs, thisReplica, registry);
+                        if (registry == null) {
+                            JsonNode reply = legacyPoll(eventId);
+                            recordReply(reply, arrivedAt, latencies, missing, done);
+                        } else {
+                            registry.register(eventId).whenComplete((reply, error) -> recordReply(reply, arrivedAt, latencies, missing, done));
+                        }
+                    } finally {
+                        busy.decrementAndGet();
+                        threadHeldNanos.addAndGet(System.nanoTime() - start);
+                    }
+                    return null;
+                });
+            }
+            assertTrue(done.await(2, TimeUnit.MINUTES), name + " did not finish");
+        } finally {
+            servletPool.shutdownNow();
+            sweeper.shutdownNow();
+        }
+
+        assertEquals(0, missing.get(), name + " requests without reply");
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        return new Result(name,
+                sorted.get(sorted.size() / 2),
+                sorted.get((int) Math.ceil(sorted.size() * 0.99) - 1),
+                TimeUnit.NANOSECONDS.toMillis(threadHeldNanos.get()),
+                peakBusy.get(),
+                inboxQueries.get());
+    }
+
+    private static void recordReply(JsonNode reply, long arrivedAt, List<Long> latencies, AtomicInteger missing, CountDownLatch done) {
+        if (reply == null) {
+            missing.incrementAndGet();
+        }
+        latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - arrivedAt));
+        done.countDown();
+    }
+
+    @Test
+    void registryFreesServletThreadsAndCutsLatency() throws Exception {
+        Result polling = run("polling", false);
+        Result registry = run("registry", true);
+        log.info("{}", polling);
+        log.info("{}", registry);
+
+        // Polling: 300 request xếp hàng trên 16 thread, mỗi request giữ thread tới khi có reply
+        // Registry: thread chỉ bị giữ lúc đăng ký, latency ~ thời gian warehouse trả lời (+ một chu kỳ sweep cho replica khác)
+        assertTrue(registry.p99Ms() < polling.p99Ms() / 2, "p99 " + registry.p99Ms() + " vs " + polling.p99Ms());
+        assertTrue(registry.p99Ms() < 400 + 2 * POLL_INTERVAL_MS + 200, "registry p99 " + registry.p99Ms());
+        assertTrue(registry.threadHeldMs() * 50 < polling.threadHeldMs(),
+                "thread held " + registry.threadHeldMs() + " vs " + polling.threadHeldMs());
+        assertTrue(registry.queries() * 10 < polling.queries(), "queries " + registry.queries() + " vs " + polling.queries());
+    }
+}
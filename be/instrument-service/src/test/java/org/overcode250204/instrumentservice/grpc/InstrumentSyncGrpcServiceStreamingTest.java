@@ -0,0 +1,316 @@
+package org.overcode250204.instrumentservice.grpc;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.UuidRepresentation;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.common.grpc.InstrumentSyncServiceGrpc;
+import org.overcode250204.common.grpc.InstrumentSyncUpRequest;
+import org.overcode250204.common.grpc.RawTestResultMessage;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * InstrumentSyncGrpcService qua in-process gRPC với MongoDB thật:
+ * - 500k kết quả qua một client chậm: số message server đã ghi mà client chưa nhận luôn nhỏ (flow control),
+ *   server chỉ đọc cursor theo nhịp đó nên không giữ tập kết quả trong heap;
+ * - client huỷ giữa chừng thì cursor Mongo được đóng, continuation token tiếp tục đúng chỗ;
+ * - chế độ limit (mới nhất trước) tiếp tục qua các document trùng createdAt.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+@Slf4j
+class InstrumentSyncGrpcServiceStreamingTest {
+
+    @Container
+    static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7.0");
+
+    private static final int RESULTS = 500_000;
+    private static final int RUNS = 10;
+    private static final int CLIENT_WINDOW = 64;
+
+    private static MongoClient client;
+    private static MongoTemplate mongoTemplate;
+    private static final List<UUID> runIds = new ArrayList<>();
+
+    private Server server;
+    private ManagedChannel channel;
+    // Số message server đã ghi ra stream (đếm ở ServerCall.sendMessage)
+    private final AtomicLong serverSent = new AtomicLong();
+
+    @BeforeAll
+    static void seed() {
+        client = MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(MONGO.getReplicaSetUrl()))
+                .uuidRepresentation(UuidRepresentation.STANDARD)
+                .build());
+        mongoTemplate = new MongoTemplate(client, "instrument_sync_stream_test");
+        mongoTemplate.getDb().drop();
+
+        for (int r = 0; r < RUNS; r++) {
+            runIds.add(UUID.randomUUID());
+        }
+        UUID instrumentId = UUID.randomUUID();
+        LocalDateTime base = LocalDateTime.of(2025, 1, 1, 8, 0);
+        String rawPadding = "x".repeat(512);
+        List<Document> chunk = new ArrayList<>(10_000);
+        for (int i = 0; i < RESULTS; i++) {
+            chunk.add(new Document("_id", new ObjectId())
+                    .append("runId", runIds.get(i % RUNS))
+                    .append("instrumentId", instrumentId)
+                    .append("barcode", "BC-" + i)
+                    .append("hl7Message", "MSH|^~\\&|ANALYZER|LAB|LIS|LAB|20250101||ORU^R01|MSG" + i + "|P|2.5\rOBX|1|NM|WBC||7.1")
+                    .append("status", "RECEIVED")
+                    .append("testType", "CBC")
+                    .append("backedUp", false)
+                    // 7 document cùng một createdAt
+                    .append("createdAt", Date.from(base.plusSeconds(i / 7).toInstant(ZoneOffset.UTC)))
+                    .append("rawData", new Document("payload", rawPadding)));
+            if (chunk.size() == 10_000) {
+                mongoTemplate.getCollection("raw_test_results").insertMany(chunk);
+                chunk.clear();
+            }
+        }
+    }
+
+    @AfterAll
+    static void disconnect() {
+        client.close();
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        InstrumentSyncGrpcService service = new InstrumentSyncGrpcService(mongoTemplate, 200, 1000);
+        service.ensureIndexes();
+
+        ServerInterceptor sentCounter = new ServerInterceptor() {
+            @Override
+            public <Q, A> ServerCall.Listener<Q> interceptCall(ServerCall<Q, A> call, Metadata headers, ServerCallHandler<Q, A> next) {
+                return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+                    @Override
+                    public void sendMessage(A message) {
+                        serverSent.incrementAndGet();
+                        super.sendMessage(message);
+                    }
+                }, headers);
+            }
+        };
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .addService(ServerInterceptors.intercept(service, sentCounter))
+                .build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private InstrumentSyncUpRequest.Builder allRuns() {
+        InstrumentSyncUpRequest.Builder request = InstrumentSyncUpRequest.newBuilder().setBatchSize(500);
+        runIds.forEach(runId -> request.addRunIds(runId.toString()));
+        return request;
+    }
+
+    /**
+     * Client nhận theo cửa sổ CLIENT_WINDOW message, thỉnh thoảng dừng lại như một consumer chậm;
+     * có thể huỷ call sau cancelAfter message.
+     */
+    private static final class SlowClient implements ClientResponseObserver<InstrumentSyncUpRequest, RawTestResultMessage> {
+
+        final AtomicLong serverSent;
+        final long cancelAfter;
+        final CountDownLatch done = new CountDownLatch(1);
+        final Set<String> barcodes = new HashSet<>();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        ClientCallStreamObserver<InstrumentSyncUpRequest> call;
+        long received;
+        long maxInFlight;
+        String lastToken;
+        String lastId;
+        boolean ordered = true;
+
+        SlowClient(AtomicLong serverSent, long cancelAfter) {
+            this.serverSent = serverSent;
+            this.cancelAfter = cancelAfter;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<InstrumentSyncUpRequest> requestStream) {
+            call = requestStream;
+            requestStream.disableAutoRequestWithInitial(CLIENT_WINDOW);
+        }
+
+        @Override
+        public void onNext(RawTestResultMessage msg) {
+            received++;
+            maxInFlight = Math.max(maxInFlight, serverSent.get() - received);
+            barcodes.add(msg.getBarcode());
+            lastToken = msg.getContinuationToken();
+            String id = SyncContinuationToken.decode(lastToken).id();
+            ordered &= lastId == null || id.compareTo(lastId) > 0;
+            lastId = id;
+
+            if (received == cancelAfter) {
+                call.cancel("client stopped", null);
+                done.countDown();
+                return;
+            }
+            if (received % 5_000 == 0) {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (received % CLIENT_WINDOW == 0) {
+                call.request(CLIENT_WINDOW);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error.set(t);
+            done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            done.countDown();
+        }
+    }
+
+    @Test
+    void streams500kResultsWithBoundedInFlightMessages() throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        SlowClient observer = new SlowClient(serverSent, -1);
+        long start = System.nanoTime();
+        InstrumentSyncServiceGrpc.newStub(channel).syncUpTestResults(allRuns().build(), observer);
+        assertTrue(observer.done.await(5, TimeUnit.MINUTES), "stream did not finish");
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        log.info("Streamed {} results in {}s ({}/s), max in-flight {}, heap {}MB -> {}MB",
+                observer.received, String.format("%.1f", seconds), Math.round(observer.received / seconds),
+                observer.maxInFlight, heapBefore >> 20, heapAfter >> 20);
+
+        assertNull(observer.error.get());
+        assertEquals(RESULTS, observer.received);
+        assertEquals(RESULTS, observer.barcodes.size());
+        assertTrue(observer.ordered, "results not in _id order");
+        // Server chỉ ghi khi client còn cửa sổ nhận: không dồn hàng trăm nghìn message vào buffer của transport
+        assertTrue(observer.maxInFlight <= 4 * CLIENT_WINDOW, "max in-flight " + observer.maxInFlight);
+    }
+
+    @Test
+    void cancelledStreamClosesCursorAndResumesFromContinuationToken() throws Exception {
+        InstrumentSyncUpRequest request = InstrumentSyncUpRequest.newBuilder()
+                .addRunIds(runIds.get(0).toString())
+                .setBatchSize(300)
+                .build();
+        SlowClient first = new SlowClient(serverSent, 12_345);
+        InstrumentSyncServiceGrpc.newStub(channel).syncUpTestResults(request, first);
+        assertTrue(first.done.await(1, TimeUnit.MINUTES));
+        assertEquals(12_345, first.received);
+
+        // Cursor của stream bị huỷ được đóng
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (openCursors() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, openCursors());
+
+        SlowClient rest = new SlowClient(serverSent, -1);
+        InstrumentSyncServiceGrpc.newStub(channel).syncUpTestResults(
+                request.toBuilder().setContinuationToken(first.lastToken).build(), rest);
+        assertTrue(rest.done.await(1, TimeUnit.MINUTES));
+        assertNull(rest.error.get());
+
+        int perRun = RESULTS / RUNS;
+        assertEquals(perRun - 12_345, rest.received);
+        Set<String> all = new HashSet<>(first.barcodes);
+        all.addAll(rest.barcodes);
+        assertEquals(perRun, all.size());
+    }
+
+    @Test
+    void newestFirstLimitResumesAcrossEqualTimestamps() {
+        InstrumentSyncServiceGrpc.InstrumentSyncServiceBlockingStub stub = InstrumentSyncServiceGrpc.newBlockingStub(channel);
+        InstrumentSyncUpRequest request = InstrumentSyncUpRequest.newBuilder().setLimit(1_000).setBatchSize(100).build();
+
+        List<RawTestResultMessage> full = new ArrayList<>();
+        stub.syncUpTestResults(request).forEachRemaining(full::add);
+        assertEquals(1_000, full.size());
+        for (int k = 0; k < full.size(); k++) {
+            assertEquals("BC-" + (RESULTS - 1 - k), full.get(k).getBarcode());
+        }
+
+        // 403 không chia hết cho 7: token rơi vào giữa một nhóm trùng createdAt
+        String token = full.get(402).getContinuationToken();
+        List<String> resumed = new ArrayList<>();
+        stub.syncUpTestResults(request.toBuilder().setContinuationToken(token).build())
+                .forEachRemaining(msg -> resumed.add(msg.getBarcode()));
+
+        assertEquals(full.subList(403, 1_000).stream().map(RawTestResultMessage::getBarcode).toList(), resumed);
+    }
+
+    @Test
+    void invalidContinuationTokenIsRejected() {
+        Iterator<RawTestResultMessage> results = InstrumentSyncServiceGrpc.newBlockingStub(channel)
+                .syncUpTestResults(allRuns().setContinuationToken("not-a-token").build());
+
+        StatusRuntimeException ex = assertThrows(StatusRuntimeException.class, results::hasNext);
+        assertEquals(Status.Code.INVALID_ARGUMENT, ex.getStatus().getCode());
+    }
+
+    private static long openCursors() {
+        Document status = mongoTemplate.getDb().runCommand(new Document("serverStatus", 1));
+        Document cursor = status.get("metrics", Document.class).get("cursor", Document.class);
+        return ((Number) cursor.get("open", Document.class).get("total")).longValue();
+    }
+}
@@ -0,0 +1,219 @@
+package org.overcode250204.instrumentservice.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.instrumentservice.configs.ReagentConsumptionConfig;
+import org.overcode250204.instrumentservice.entity.InstalledReagent;
+import org.overcode250204.instrumentservice.entity.Instrument;
+import org.overcode250204.instrumentservice.enums.InstrumentStatus;
+import org.overcode250204.instrumentservice.events.SystemEventPublisher;
+import org.overcode250204.instrumentservice.exception.ErrorCode;
+import org.overcode250204.instrumentservice.exception.InstrumentException;
+import org.overcode250204.instrumentservice.repository.InstalledReagentRepository;
+import org.overcode250204.instrumentservice.repository.InstrumentRepository;
+import org.overcode250204.instrumentservice.service.implement.ReagentLedgerServiceImpl;
+import org.overcode250204.instrumentservice.service.interfaces.EventLogService;
+import org.overcode250204.instrumentservice.service.interfaces.ReagentLedgerService;
+import org.overcode250204.testsupport.PostgresContentionTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Nhiều run cùng tiêu hao reagent của một instrument trên Postgres thật, qua hai ledger (hai replica,
+ * hai cache riêng): không lô nào xuống âm, số sample được chạy đúng bằng sức chứa của các lô,
+ * và mỗi lần vượt ngưỡng low-level chỉ sinh một event.
+ */
+@DataJpaTest(properties = {
+        "spring.config.import=",
+        "spring.cloud.config.enabled=false",
+        "spring.profiles.active=test",
+        "spring.jpa.hibernate.ddl-auto=create-drop"
+})
+@Import(ReagentLedgerConcurrencyTest.LedgerConfig.class)
+class ReagentLedgerConcurrencyTest extends PostgresContentionTest {
+
+    private static final int THREADS = 32;
+    private static final int SAMPLES_PER_THREAD = 25;
+    // Lượng tiêu hao một sample CBC
+    private static final Map<String, Double> PER_SAMPLE = Map.of("DILUENT", 1.5, "LYSING", 0.1);
+
+    @TestConfiguration
+    static class LedgerConfig {
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+        @Bean
+        ReagentConsumptionConfig reagentConsumptionConfig() {
+            ReagentConsumptionConfig config = new ReagentConsumptionConfig();
+            config.setConsumption(Map.of("CBC", PER_SAMPLE));
+            config.setLowLevel(Map.of("DILUENT", 20.0, "LYSING", 1.0));
+            return config;
+        }
+
+        @Bean
+        EventLogService eventLogService() {
+            return mock(EventLogService.class);
+        }
+
+        @Bean
+        SystemEventPublisher systemEventPublisher() {
+            return mock(SystemEventPublisher.class);
+        }
+    }
+
+    @Autowired
+    private InstrumentRepository instrumentRepository;
+    @Autowired
+    private InstalledReagentRepository reagentRepository;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private ReagentConsumptionConfig reagentConfig;
+    @Autowired
+    private EventLogService eventLogService;
+    @Autowired
+    private SystemEventPublisher systemEventPublisher;
+
+    private MeterRegistry registryA;
+    private ReagentLedgerService replicaA;
+    private ReagentLedgerService replicaB;
+
+    @BeforeEach
+    void setUp() {
+        reset(eventLogService, systemEventPublisher);
+        registryA = new SimpleMeterRegistry();
+        replicaA = ledger(registryA);
+        replicaB = ledger(new SimpleMeterRegistry());
+    }
+
+    private ReagentLedgerService ledger(MeterRegistry registry) {
+        return new ReagentLedgerServiceImpl(reagentRepository, jdbcTemplate, reagentConfig, eventLogService,
+                systemEventPublisher, registry, 16, Duration.ofMinutes(5));
+    }
+
+    private Instrument seedInstrument() {
+        Instrument instrument = new Instrument();
+        instrument.setId(UUID.randomUUID());
+        instrument.setName("Analyzer");
+        instrument.setStatus(InstrumentStatus.READY);
+        return instrumentRepository.save(instrument);
+    }
+
+    private InstalledReagent seedLot(Instrument instrument, String name, double quantity, LocalDateTime installedAt) {
+        InstalledReagent reagent = new InstalledReagent();
+        reagent.setInstrument(instrument);
+        reagent.setReagentId(UUID.randomUUID());
+        reagent.setReagentName(name);
+        reagent.setLotNumber(name + "-" + quantity);
+        reagent.setQuantityRemaining(quantity);
+        reagent.setUnit("mL");
+        reagent.setInstalledAt(installedAt);
+        reagent.setInUse(true);
+        return reagentRepository.save(reagent);
+    }
+
+    private double remaining(InstalledReagent lot) {
+        return reagentRepository.findById(lot.getInstalledReagentId()).orElseThrow().getQuantityRemaining();
+    }
+
+    @Test
+    void concurrentRunsNeverDriveALevelNegative() throws Exception {
+        Instrument instrument = seedInstrument();
+        LocalDateTime now = LocalDateTime.now();
+        // DILUENT: lô đầu đủ 66 sample (dư 1.0), lô sau 26 sample (dư 1.0) -> 92 sample; LYSING đủ 100
+        InstalledReagent diluentA = seedLot(instrument, "DILUENT", 100.0, now.minusDays(2));
+        InstalledReagent diluentB = seedLot(instrument, "DILUENT", 40.0, now.minusDays(1));
+        InstalledReagent lysing = seedLot(instrument, "LYSING", 10.0, now.minusDays(1));
+        UUID instrumentId = instrument.getId();
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+
+        AtomicInteger consumed = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        runConcurrently(THREADS, t -> {
+            // Nửa số thread trên replica A, nửa trên B; xen kẽ có / không có transaction bên ngoài
+            ReagentLedgerService ledger = t % 2 == 0 ? replicaA : replicaB;
+            boolean inTransaction = t % 4 < 2;
+            for (int i = 0; i < SAMPLES_PER_THREAD; i++) {
+                try {
+                    if (inTransaction) {
+                        tx.executeWithoutResult(status -> ledger.consume(instrumentId, PER_SAMPLE));
+                    } else {
+                        ledger.consume(instrumentId, PER_SAMPLE);
+                    }
+                    consumed.incrementAndGet();
+                } catch (InstrumentException e) {
+                    assertEquals(ErrorCode.REAGENT_LOW, e.getErrorCode());
+                    rejected.incrementAndGet();
+                }
+            }
+        });
+
+        assertEquals(92, consumed.get());
+        assertEquals(THREADS * SAMPLES_PER_THREAD - 92, rejected.get());
+        assertEquals(1.0, remaining(diluentA), 1e-9);
+        assertEquals(1.0, remaining(diluentB), 1e-9);
+        assertEquals(10.0 - 92 * 0.1, remaining(lysing), 1e-9);
+        for (InstalledReagent lot : reagentRepository.findByInstrumentId(instrumentId)) {
+            assertTrue(lot.getQuantityRemaining() >= 0, "negative level: " + lot.getQuantityRemaining());
+        }
+
+        // Mỗi lô vượt ngưỡng đúng một lần: hai lô DILUENT (ngưỡng 20) và lô LYSING (ngưỡng 1)
+        verify(eventLogService, times(3)).logEvent(eq(instrumentId), eq("REAGENT_LOW"), anyString(), isNull());
+        verify(systemEventPublisher, times(3)).publishMonitoringEvent(eq("REAGENT_LEVEL_LOW"), anyMap());
+
+        // Cache cũ của replica nào cũng không làm trừ quá: thêm một sample đều bị từ chối
+        for (ReagentLedgerService ledger : List.of(replicaA, replicaB)) {
+            InstrumentException ex = assertThrows(InstrumentException.class, () -> ledger.consume(instrumentId, PER_SAMPLE));
+            assertEquals(ErrorCode.REAGENT_LOW, ex.getErrorCode());
+        }
+        assertEquals(1.0, remaining(diluentA), 1e-9);
+    }
+
+    @Test
+    void staleCacheIsReloadedInsteadOfOverdrawing() {
+        Instrument instrument = seedInstrument();
+        InstalledReagent diluent = seedLot(instrument, "DILUENT", 3.0, LocalDateTime.now());
+        UUID instrumentId = instrument.getId();
+
+        // A nạp cache với 3.0, sau đó B trừ 1.5 mà A không biết
+        assertTrue(replicaA.hasSufficient(instrumentId, Map.of("DILUENT", 3.0)));
+        replicaB.consume(instrumentId, Map.of("DILUENT", 1.5));
+
+        // Cache của A vẫn báo đủ 2.0, câu UPDATE có điều kiện từ chối, A đọc lại và báo thiếu
+        InstrumentException ex = assertThrows(InstrumentException.class,
+                () -> replicaA.consume(instrumentId, Map.of("DILUENT", 2.0)));
+        assertEquals(ErrorCode.REAGENT_LOW, ex.getErrorCode());
+        assertEquals(1.5, remaining(diluent), 1e-9);
+        assertEquals(1.0, registryA.counter("reagent.ledger.conflicts").count());
+
+        // Sau khi đọc lại, A trừ được đúng phần còn lại; lô hết thì không còn in-use
+        replicaA.consume(instrumentId, Map.of("DILUENT", 1.5));
+        InstalledReagent empty = reagentRepository.findById(diluent.getInstalledReagentId()).orElseThrow();
+        assertEquals(0.0, empty.getQuantityRemaining(), 1e-9);
+        assertFalse(empty.isInUse());
+        assertFalse(replicaA.hasSufficient(instrumentId, Map.of("DILUENT", 0.1)));
+    }
+}
@@ -0,0 +1,152 @@
+package org.overcode250204.instrumentservice.service;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.bson.Document;
+import org.bson.UuidRepresentation;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.instrumentservice.entity.InstrumentRun;
+import org.overcode250204.instrumentservice.entity.InstrumentRunProgress;
+import org.overcode250204.instrumentservice.service.implement.RunProgressServiceImpl;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tiến độ run trên MongoDB thật: message giao lại cho cùng sample (kể cả sau khi consumer chết giữa lúc lưu
+ * kết quả và ghi tiến độ) không làm lệch bộ đếm, và run vẫn hoàn tất đúng một lần.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class RunProgressServiceTest {
+
+    @Container
+    static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7.0");
+
+    private static MongoClient client;
+    private static MongoTemplate mongoTemplate;
+
+    private RunProgressServiceImpl runProgressService;
+    private UUID runId;
+
+    @BeforeAll
+    static void connect() {
+        client = MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(MONGO.getReplicaSetUrl()))
+                .uuidRepresentation(UuidRepresentation.STANDARD)
+                .build());
+        mongoTemplate = new MongoTemplate(client, "instrument_run_progress_test");
+    }
+
+    @AfterAll
+    static void disconnect() {
+        client.close();
+    }
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate.getDb().drop();
+        runProgressService = new RunProgressServiceImpl(mongoTemplate);
+        runProgressService.ensureIndexes();
+        InstrumentRun run = new InstrumentRun();
+        run.setTotalSamplesExpected(3);
+        runId = mongoTemplate.insert(run).getRunId();
+    }
+
+    @Test
+    void redeliveredSampleIsCountedOnce() {
+        runProgressService.recordSample(runId, 3, "B-1", true);
+        // Giao lại sau khi consumer đã lưu RawTestResult nhưng chết trước khi ghi tiến độ, hoặc giao lại thường
+        runProgressService.recordSample(runId, 3, "B-1", true);
+        InstrumentRunProgress progress = runProgressService.recordSample(runId, 3, "B-1", true);
+
+        assertEquals(1, progress.getSuccessfulSamples());
+        assertEquals(0, progress.getFailedSamples());
+        assertFalse(progress.isFinished());
+        InstrumentRun run = mongoTemplate.findOne(Query.query(Criteria.where("runId").is(runId)), InstrumentRun.class);
+        assertEquals(1, run.getSuccessfulSamples());
+    }
+
+    @Test
+    void newOutcomeOfASampleReplacesTheOldOne() {
+        runProgressService.recordSample(runId, 3, "B-1", false);
+        runProgressService.recordSample(runId, 3, "B-2", true);
+        InstrumentRunProgress progress = runProgressService.recordSample(runId, 3, "B-1", true);
+
+        assertEquals(2, progress.getSuccessfulSamples());
+        assertEquals(0, progress.getFailedSamples());
+
+        progress = runProgressService.recordSample(runId, 3, "B-3", false);
+        assertTrue(progress.isFinished());
+        assertEquals(2, progress.getSuccessfulSamples());
+        assertEquals(1, progress.getFailedSamples());
+    }
+
+    @Test
+    void barcodesWithDotsAndDollarsGetTheirOwnMarker() {
+        runProgressService.recordSample(runId, 3, "$B.1", true);
+        runProgressService.recordSample(runId, 3, "$B", false);
+        InstrumentRunProgress progress = runProgressService.recordSample(runId, 3, "$B.1", true);
+
+        assertEquals(1, progress.getSuccessfulSamples());
+        assertEquals(1, progress.getFailedSamples());
+        Document stored = mongoTemplate.getCollection("instrument_run_progress").find().first();
+        assertEquals(2, stored.get("samples", Document.class).size());
+    }
+
+    @Test
+    void concurrentRedeliveriesCompleteTheRunExactlyOnce() throws Exception {
+        int samples = 200;
+        InstrumentRun run = new InstrumentRun();
+        run.setTotalSamplesExpected(samples);
+        UUID bigRun = mongoTemplate.insert(run).getRunId();
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        AtomicInteger completions = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            // Mỗi sample được giao hai lần, trên hai consumer khác nhau
+            for (int copy = 0; copy < 2; copy++) {
+                for (int i = 0; i < samples; i++) {
+                    String barcode = "S-" + i;
+                    boolean success = i % 10 != 0;
+                    futures.add(pool.submit(() -> {
+                        InstrumentRunProgress progress = runProgressService.recordSample(bigRun, samples, barcode, success);
+                        if (progress.isFinished() && !progress.isCompleted() && runProgressService.claimCompletion(bigRun)) {
+                            completions.incrementAndGet();
+                        }
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        InstrumentRunProgress progress = runProgressService.getProgress(bigRun);
+        assertEquals(180, progress.getSuccessfulSamples());
+        assertEquals(20, progress.getFailedSamples());
+        assertTrue(progress.isCompleted());
+        assertEquals(1, completions.get());
+    }
+}
@@ -5,6 +5,7 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.overcode250204.monitoringservice.entities.EventTemplate;
 import org.overcode250204.monitoringservice.repositories.EventTemplateRepo;
+import org.overcode250204.monitoringservice.services.MessageTemplateService;
 import org.springframework.stereotype.Component;
 
 @Slf4j
@@ -13,6 +14,7 @@ import org.springframework.stereotype.Component;
 public class EventTemplateSeeder {
 
     private final EventTemplateRepo repo;
+    private final MessageTemplateService messageTemplateService;
 
     @PostConstruct
     public void init() {
@@ -294,6 +296,9 @@ public class EventTemplateSeeder {
                 "Sync-Up data missing for barcode {barcode}. Requesting from Instrument Service.",
                 "AUDIT",
                 "Triggered by Sync-Up Worker when backup data is missing (SRS 3.2.2.2)");
+
+        // Nạp lại cache template đã biên dịch với các template vừa seed
+        messageTemplateService.refresh();
     }
 
     private void seed(String eventName, String template, String severity, String desc) {
@@ -37,6 +37,11 @@ public class HL7BackupController {
         return ResponseEntity.ok(BaseResponse.success(SERVICE_NAME, result));
     }
 
+    @GetMapping("/{id}/raw")
+    public ResponseEntity<BaseResponse<String>> getArchivedMessage(@PathVariable String id) {
+        return ResponseEntity.ok(BaseResponse.success(SERVICE_NAME, hl7BackupService.readArchivedMessage(id)));
+    }
+
 
     @GetMapping("/run/{runId}")
     public ResponseEntity<BaseResponse<?>> getByRunId(@PathVariable String runId) {
@@ -15,6 +15,12 @@ public class SyncUpRequestsDTO {
     private String sourceService;
     private String messageId;
     private String status; // String để client gửi, service sẽ convert sang Enum
+    private String instrumentId;
+    private Integer totalBarcodes;
+    private Integer checkpoint;
+    private Integer syncedBarcodes;
+    private Integer notFoundBarcodes;
+    private Integer failedBarcodes;
     private LocalDateTime processedAt;
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
@@ -28,6 +34,12 @@ public class SyncUpRequestsDTO {
                 .sourceService(entity.getSourceService())
                 .messageId(entity.getMessageId())
                 .status(entity.getStatus().name())
+                .instrumentId(entity.getInstrumentId())
+                .totalBarcodes(entity.getTotalBarcodes())
+                .checkpoint(entity.getCheckpoint())
+                .syncedBarcodes(entity.getSyncedBarcodes())
+                .notFoundBarcodes(entity.getNotFoundBarcodes())
+                .failedBarcodes(entity.getFailedBarcodes())
                 .processedAt(entity.getProcessedAt())
                 .createdAt(entity.getCreatedAt())
                 .updatedAt(entity.getUpdatedAt())
@@ -38,6 +50,7 @@ public class SyncUpRequestsDTO {
         return SyncUpRequests.builder()
                 .sourceService(this.sourceService)
                 .messageId(this.messageId)
+                .instrumentId(this.instrumentId)
                 .status(SyncUpRequestsStatus.valueOf(this.status))
                 .build();
     }
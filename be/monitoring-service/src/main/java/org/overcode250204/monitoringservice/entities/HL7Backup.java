@@ -24,8 +24,19 @@ public class HL7Backup {
 
     private String barcode;
 
+    // Segment trên S3 chứa message (bản cũ: mỗi message một object riêng, các trường offset để null)
     private String s3Key;
 
+    // Block gzip chứa message nằm ở byte [segmentOffset, segmentOffset + segmentLength) của segment,
+    // message là [messageOffset, messageOffset + messageLength) của block sau khi giải nén
+    private Long segmentOffset;
+
+    private Integer segmentLength;
+
+    private Integer messageOffset;
+
+    private Integer messageLength;
+
     private String instrumentId;
 
     private String hl7Message;
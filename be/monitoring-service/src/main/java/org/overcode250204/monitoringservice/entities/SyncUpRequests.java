@@ -25,6 +25,20 @@ public class SyncUpRequests {
     private SyncUpRequestsStatus status;
     private LocalDateTime processedAt;
 
+    // Instrument của các barcode (nếu bên yêu cầu biết), khoá chia lượt của SyncUpEngine
+    private String instrumentId;
+
+    // Tiến độ: checkpoint = số barcode đầu danh sách đã xử lý xong, chạy lại tiếp từ đây sau khi restart
+    private Integer totalBarcodes;
+    private Integer checkpoint;
+    private Integer syncedBarcodes;
+    private Integer notFoundBarcodes;
+    private Integer failedBarcodes;
+
+    // Replica đang xử lý request và hạn lease; hết hạn thì replica khác được nhận tiếp
+    private String leaseOwner;
+    private LocalDateTime leaseUntil;
+
     @CreatedDate
     private LocalDateTime createdAt;
 
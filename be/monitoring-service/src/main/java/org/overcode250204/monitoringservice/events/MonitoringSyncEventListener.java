@@ -4,10 +4,13 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.overcode250204.monitoringservice.grpc.InstrumentSyncGrpcClient;
+import org.overcode250204.monitoringservice.dtos.SyncUpRequestsDTO;
+import org.overcode250204.monitoringservice.enums.SyncUpRequestsStatus;
+import org.overcode250204.monitoringservice.services.SyncUpRequestsService;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
 
+import java.util.List;
 import java.util.Map;
 
 @Slf4j
@@ -17,7 +20,7 @@ public class MonitoringSyncEventListener {
 
     private final ObjectMapper objectMapper;
 
-    private final InstrumentSyncGrpcClient instrumentSyncGrpcClient;
+    private final SyncUpRequestsService syncUpRequestsService;
 
     @KafkaListener(
             topics = "${app.kafka.topics.monitoring.logs:monitoring.logs.publish}",
@@ -34,8 +37,20 @@ public class MonitoringSyncEventListener {
 
             log.info("[Monitoring] Received TEST_SYNC_REQUESTED for barcode={} (requestedBy={})",
                     barcode, requestedBy);
-
-            instrumentSyncGrpcClient.syncUpByBarcode(barcode, requestedBy);
+            if (barcode == null || barcode.isBlank()) {
+                log.warn("[Monitoring] TEST_SYNC_REQUESTED without barcode, ignored");
+                return;
+            }
+
+            // Đưa vào hàng đợi của SyncUpEngine (retry, checkpoint, xoay vòng theo instrument) như request gRPC
+            Object instrumentId = payload.get("instrumentId");
+            SyncUpRequestsDTO dto = SyncUpRequestsDTO.builder()
+                    .sourceService(requestedBy)
+                    .messageId(objectMapper.writeValueAsString(List.of(barcode)))
+                    .instrumentId(instrumentId != null ? instrumentId.toString() : null)
+                    .status(SyncUpRequestsStatus.PENDING.name())
+                    .build();
+            syncUpRequestsService.create(dto);
 
         } catch (Exception e) {
             log.error("[Monitoring] Failed to process TEST_SYNC_REQUESTED event", e);
@@ -6,13 +6,11 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 
-import net.devh.boot.grpc.client.inject.GrpcClient;
-import org.overcode250204.common.grpc.CognitoSub;
-import org.overcode250204.common.grpc.IamServiceGrpc;
+import org.overcode250204.identity.CognitoIdentityResolver;
+import org.overcode250204.identity.GatewaySignatureVerifier;
 import org.overcode250204.monitoringservice.exceptions.ErrorCode;
 import org.overcode250204.monitoringservice.exceptions.MonitoringException;
-import org.overcode250204.utils.HmacUtils;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -27,11 +25,11 @@ import java.util.stream.Collectors;
 @Slf4j
 public class GatewayHeaderAuthFilter extends OncePerRequestFilter {
 
-    @Value("${hmac-secret}")
-    private String hmacSecret;
+    @Autowired
+    private GatewaySignatureVerifier signatureVerifier;
 
-    @GrpcClient("iam-service")
-    private IamServiceGrpc.IamServiceBlockingStub iamStub;
+    @Autowired
+    private CognitoIdentityResolver identityResolver;
 
     private final static String HEADER_USER_NAME = "X-User-Name";
     private final static String HEADER_GROUPS = "X-Groups";
@@ -54,18 +52,14 @@ public class GatewayHeaderAuthFilter extends OncePerRequestFilter {
             return;
         }
 
-        String data = username + "|" + groups + "|" + privileges;
-        String expectedSignature = HmacUtils.hmacSha256(data, hmacSecret);
-        if (!expectedSignature.equals(signature)) {
+        if (!signatureVerifier.verify(username, groups, privileges, signature)) {
             log.warn("Invalid signature for username {}", username);
             throw new MonitoringException(ErrorCode.GATEWAY_SIGNATURE_INVALID);
         }
 
         String userId;
         try {
-            userId = iamStub.getUserByCognitoSub(
-                    CognitoSub.newBuilder().setCognitoSub(username).build()
-            ).getUserId();
+            userId = identityResolver.resolveUserId(username);
         } catch (Exception e) {
             throw new MonitoringException(ErrorCode.GET_USER_ID_FROM_IAM_SERVICE_ERROR);
         }
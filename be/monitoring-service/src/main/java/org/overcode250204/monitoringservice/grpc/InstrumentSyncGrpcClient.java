@@ -1,6 +1,8 @@
 package org.overcode250204.monitoringservice.grpc;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import lombok.extern.slf4j.Slf4j;
 import net.devh.boot.grpc.client.inject.GrpcClient;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -12,143 +14,254 @@ import org.overcode250204.common.grpc.InstrumentSyncUpRequest;
 import org.overcode250204.monitoringservice.entities.OutboxEvent;
 import org.overcode250204.monitoringservice.repositories.OutboxEventRepository;
 
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Client stream SyncUpTestResults của instrument-service.
+ *
+ * Mỗi lần gọi gửi cả một batch barcode trong một stream, dùng async stub với flow control thủ công: chỉ xin
+ * thêm app.sync-up.window message sau khi các message đã nhận được ghi xuống outbox, nên client chậm không
+ * làm phình buffer của gRPC. Callback của một call chạy tuần tự trên executor riêng của client.
+ */
 @Slf4j
 @Component
 public class InstrumentSyncGrpcClient {
 
+    /**
+     * Kết quả một stream: synced là các barcode đã ghi RAW_RESULT_SYNCED xuống outbox, continuationToken là token
+     * của message cuối đã ghi outbox (null nếu chưa ghi message nào), error khác null nếu stream bị đứt giữa chừng
+     * (gửi lại cùng batch với continuationToken để nhận tiếp phần còn lại).
+     */
+    public record BatchResult(Set<String> synced, int results, String continuationToken, Throwable error) {
+    }
+
     private final OutboxEventRepository outboxRepository;
     private final ObjectMapper objectMapper;
     @GrpcClient("instrument-service")
-    private InstrumentSyncServiceGrpc.InstrumentSyncServiceBlockingStub syncStub;
+    private InstrumentSyncServiceGrpc.InstrumentSyncServiceStub syncStub;
     @Value("${app.kafka.topics.monitoring.logs:monitoring.logs.publish}")
     private String monitoringLogsTopic;
+    @Value("${app.sync-up.window:200}")
+    private int window;
+    @Value("${app.sync-up.stream-timeout-ms:300000}")
+    private long streamTimeoutMs;
+
+    private final ExecutorService callbackExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger sequence = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "instrument-sync-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public InstrumentSyncGrpcClient(OutboxEventRepository outboxRepository, ObjectMapper objectMapper) {
         this.outboxRepository = outboxRepository;
         this.objectMapper = objectMapper;
     }
 
-    @Transactional
-    public void syncUpByBarcode(String barcode, String requestedBy) {
-        InstrumentSyncUpRequest request = InstrumentSyncUpRequest.newBuilder()
-                .setBarcode(barcode)
-                .setLimit(1)
-                .build();
+    public CompletableFuture<BatchResult> syncUpBatch(String instrumentId, List<String> barcodes, String requestedBy,
+                                                      String continuationToken) {
+        InstrumentSyncUpRequest.Builder builder = InstrumentSyncUpRequest.newBuilder()
+                .setInstrumentId(instrumentId != null ? instrumentId : "")
+                .addAllBarcodes(barcodes)
+                .setBatchSize(window);
+        if (continuationToken != null) {
+            builder.setContinuationToken(continuationToken);
+        }
+        InstrumentSyncUpRequest request = builder.build();
 
-        log.info("[Monitoring] Sending SyncUpRequest for barcode={}", barcode);
+        log.debug("[Monitoring] Sending SyncUpRequest for {} barcodes instrument={} resume={}",
+                barcodes.size(), instrumentId, continuationToken != null);
 
-        try {
-            Iterator<RawTestResultMessage> responses = syncStub.syncUpTestResults(request);
-            int count = 0;
-
-            while (responses.hasNext()) {
-                RawTestResultMessage msg = responses.next();
-                count++;
-
-                // --------------------------------------------------
-                // CHỈ MỘT PAYLOAD DUY NHẤT
-                // --------------------------------------------------
-                Map<String, Object> payload = Map.of(
-                        "barcode", msg.getBarcode(),
-                        "hl7Message", msg.getHl7Message(),
-                        "testType", msg.getTestType(),
-                        "status", msg.getStatus(),
-                        "runId", msg.getRunId(),
-                        "instrumentCode", msg.getInstrumentCode(),
-                        "sourceService", "monitoring-service",
-                        "syncedBy", requestedBy,
-                        "timestamp", LocalDateTime.now().toString()
-                );
-
-                Map<String, Object> finalEvent = Map.of(
-                        "eventId", UUID.randomUUID().toString(),
-                        "eventType", "RAW_RESULT_SYNCED",
-                        "payload", payload
-                );
-
-                outboxRepository.save(
-                        OutboxEvent.builder()
-                                .id(UUID.randomUUID().toString())
-                                .aggregateType(monitoringLogsTopic)
-                                .aggregateId(msg.getBarcode())
-                                .eventType("RAW_RESULT_SYNCED")
-                                .payload(objectMapper.writeValueAsString(finalEvent))
-                                .status("PENDING")
-                                .createdAt(LocalDateTime.now())
-                                .build()
-                );
+        CompletableFuture<BatchResult> future = new CompletableFuture<>();
+        syncStub.withExecutor(callbackExecutor)
+                .withDeadlineAfter(streamTimeoutMs, TimeUnit.MILLISECONDS)
+                .syncUpTestResults(request, new BatchObserver(requestedBy, future));
+        return future;
+    }
+
+    private final class BatchObserver implements ClientResponseObserver<InstrumentSyncUpRequest, RawTestResultMessage> {
+
+        private final String requestedBy;
+        private final CompletableFuture<BatchResult> future;
+        private final Set<String> synced = new HashSet<>();
+        // Message đã nhận nhưng chưa ghi outbox
+        private final List<OutboxEvent> buffer = new ArrayList<>();
+        private final List<String> bufferedBarcodes = new ArrayList<>();
+        private String bufferedToken;
+        // Token của message cuối đã ghi outbox
+        private String flushedToken;
+        private ClientCallStreamObserver<InstrumentSyncUpRequest> call;
+        private int results;
+
+        BatchObserver(String requestedBy, CompletableFuture<BatchResult> future) {
+            this.requestedBy = requestedBy;
+            this.future = future;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<InstrumentSyncUpRequest> requestStream) {
+            this.call = requestStream;
+            requestStream.disableAutoRequestWithInitial(window);
+        }
+
+        @Override
+        public void onNext(RawTestResultMessage msg) {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                buffer.add(syncedEvent(msg));
+                bufferedBarcodes.add(msg.getBarcode());
+                bufferedToken = msg.getContinuationToken().isEmpty() ? null : msg.getContinuationToken();
+                results++;
+                if (buffer.size() >= window) {
+                    flush();
+                    call.request(window);
+                }
+            } catch (Exception e) {
+                // Không ghi được outbox: dừng stream, các barcode chưa ghi sẽ được gửi lại
+                future.complete(new BatchResult(synced, results, flushedToken, e));
+                call.cancel("outbox write failed", e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (future.isDone()) {
+                return;
+            }
+            log.warn("[Monitoring] gRPC SyncUp stream failed after {} results: {}", results, t.getMessage());
+            try {
+                flush();
+            } catch (Exception e) {
+                t.addSuppressed(e);
+            }
+            future.complete(new BatchResult(synced, results, flushedToken, t));
+        }
+
+        @Override
+        public void onCompleted() {
+            if (future.isDone()) {
+                return;
             }
+            try {
+                flush();
+                future.complete(new BatchResult(synced, results, flushedToken, null));
+            } catch (Exception e) {
+                future.complete(new BatchResult(synced, results, flushedToken, e));
+            }
+        }
 
-            // NOT FOUND
-            if (count == 0) {
-                Map<String, Object> payload = Map.of(
-                        "barcode", barcode,
-                        "status", "NOT_FOUND",
-                        "reason", "No raw results returned by instrument",
-                        "sourceService", "monitoring-service",
-                        "syncedBy", requestedBy,
-                        "timestamp", LocalDateTime.now().toString()
-                );
-
-                Map<String, Object> finalEvent = Map.of(
-                        "eventId", UUID.randomUUID().toString(),
-                        "eventType", "RAW_RESULT_NOT_FOUND",
-                        "payload", payload
-                );
-
-                outboxRepository.save(
-                        OutboxEvent.builder()
-                                .id(UUID.randomUUID().toString())
-                                .aggregateType(monitoringLogsTopic)
-                                .aggregateId(barcode)
-                                .eventType("RAW_RESULT_NOT_FOUND")
-                                .payload(objectMapper.writeValueAsString(finalEvent))
-                                .status("PENDING")
-                                .createdAt(LocalDateTime.now())
-                                .build()
-                );
+        private void flush() {
+            if (buffer.isEmpty()) {
+                return;
             }
+            outboxRepository.insert(buffer);
+            synced.addAll(bufferedBarcodes);
+            flushedToken = bufferedToken;
+            buffer.clear();
+            bufferedBarcodes.clear();
+        }
 
-        } catch (Exception e) {
-            log.error("[Monitoring] gRPC SyncUp FAILED for barcode={}", barcode, e);
+        private OutboxEvent syncedEvent(RawTestResultMessage msg) {
+            // --------------------------------------------------
+            // CHỈ MỘT PAYLOAD DUY NHẤT
+            // --------------------------------------------------
+            Map<String, Object> payload = Map.of(
+                    "barcode", msg.getBarcode(),
+                    "hl7Message", msg.getHl7Message(),
+                    "testType", msg.getTestType(),
+                    "status", msg.getStatus(),
+                    "runId", msg.getRunId(),
+                    "instrumentCode", msg.getInstrumentCode(),
+                    "sourceService", "monitoring-service",
+                    "syncedBy", requestedBy,
+                    "timestamp", LocalDateTime.now().toString()
+            );
+            return outboxEvent(msg.getBarcode(), "RAW_RESULT_SYNCED", payload);
+        }
+    }
 
+    // NOT FOUND: stream kết thúc bình thường nhưng không có kết quả cho các barcode này
+    public void recordNotFound(Collection<String> barcodes, String requestedBy) {
+        List<OutboxEvent> events = new ArrayList<>(barcodes.size());
+        for (String barcode : barcodes) {
             Map<String, Object> payload = Map.of(
                     "barcode", barcode,
-                    "error", e.getMessage(),
+                    "status", "NOT_FOUND",
+                    "reason", "No raw results returned by instrument",
                     "sourceService", "monitoring-service",
+                    "syncedBy", requestedBy,
                     "timestamp", LocalDateTime.now().toString()
             );
+            events.add(outboxEvent(barcode, "RAW_RESULT_NOT_FOUND", payload));
+        }
+        if (!events.isEmpty()) {
+            outboxRepository.insert(events);
+        }
+    }
 
-            Map<String, Object> finalEvent = Map.of(
-                    "eventId", UUID.randomUUID().toString(),
-                    "eventType", "RAW_RESULT_SYNC_FAILED",
-                    "payload", payload
+    // Hết số lần thử mà stream vẫn lỗi
+    public void recordFailed(Collection<String> barcodes, Throwable error) {
+        List<OutboxEvent> events = new ArrayList<>(barcodes.size());
+        for (String barcode : barcodes) {
+            Map<String, Object> payload = Map.of(
+                    "barcode", barcode,
+                    "error", String.valueOf(error.getMessage()),
+                    "sourceService", "monitoring-service",
+                    "timestamp", LocalDateTime.now().toString()
             );
+            events.add(outboxEvent(barcode, "RAW_RESULT_SYNC_FAILED", payload));
+        }
+        if (!events.isEmpty()) {
+            outboxRepository.insert(events);
+        }
+    }
 
-            try {
-                outboxRepository.save(
-                        OutboxEvent.builder()
-                                .id(UUID.randomUUID().toString())
-                                .aggregateType(monitoringLogsTopic)
-                                .aggregateId(barcode)
-                                .eventType("RAW_RESULT_SYNC_FAILED")
-                                .payload(objectMapper.writeValueAsString(finalEvent))
-                                .status("PENDING")
-                                .createdAt(LocalDateTime.now())
-                                .build()
-                );
-            } catch (JsonProcessingException ee) {
-                log.error("[Monitoring] JSON serialization failed for RAW_RESULT_SYNC_FAILED", ee);
-            }
+    private OutboxEvent outboxEvent(String barcode, String eventType, Map<String, Object> payload) {
+        Map<String, Object> finalEvent = Map.of(
+                "eventId", UUID.randomUUID().toString(),
+                "eventType", eventType,
+                "payload", payload
+        );
+        try {
+            return OutboxEvent.builder()
+                    .id(UUID.randomUUID().toString())
+                    .aggregateType(monitoringLogsTopic)
+                    .aggregateId(barcode)
+                    .eventType(eventType)
+                    .payload(objectMapper.writeValueAsString(finalEvent))
+                    .status("PENDING")
+                    .createdAt(LocalDateTime.now())
+                    .build();
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("JSON serialization failed for " + eventType, e);
         }
     }
+
+    @PreDestroy
+    public void shutdown() {
+        callbackExecutor.shutdownNow();
+    }
 }
@@ -35,6 +35,7 @@ public class MonitoringGrpcServiceImpl extends MonitoringServiceGrpc.MonitoringS
             SyncUpRequestsDTO dto = SyncUpRequestsDTO.builder()
                     .sourceService(request.getSourceService())
                     .messageId(messagePayload) // Lưu payload (list barcodes) vào messageId
+                    .instrumentId(request.getInstrumentId().isBlank() ? null : request.getInstrumentId())
                     .status(SyncUpRequestsStatus.PENDING.name()) // Đặt là PENDING
                     .build();
 
@@ -4,55 +4,26 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
-import org.overcode250204.monitoringservice.entities.SyncUpRequests;
-import org.overcode250204.monitoringservice.enums.SyncUpRequestsStatus;
-import org.overcode250204.monitoringservice.repositories.SyncUpRequestsRepo;
-import org.overcode250204.monitoringservice.grpc.InstrumentSyncGrpcClient;
-
-import java.util.List;
+import org.overcode250204.monitoringservice.services.SyncUpEngine;
 
 @Component
 @RequiredArgsConstructor
 @Slf4j
 public class SyncUpRequestWorker {
 
-    private final SyncUpRequestsRepo repo;
-    private final ObjectMapper objectMapper;
-    private final InstrumentSyncGrpcClient instrumentClient;
+    private final SyncUpEngine syncUpEngine;
 
-    @Scheduled(fixedDelay = 2000)
-    @Transactional
+    // Nhận request PENDING (hoặc hết lease) và chia cho SyncUpEngine; việc sync chạy bất đồng bộ trong engine
+    @Scheduled(fixedDelayString = "${app.sync-up.poll-interval-ms:2000}")
     public void processPendingSyncRequests() {
-
-        List<SyncUpRequests> pending = repo.findByStatus(SyncUpRequestsStatus.PENDING);
-        if (pending.isEmpty()) return;
-
-        log.info("[SyncWorker] Found {} sync requests pending...", pending.size());
-
-        for (SyncUpRequests req : pending) {
-
-            List<String> barcodes = parseBarcodes(req.getMessageId());
-
-            for (String barcode : barcodes) {
-                instrumentClient.syncUpByBarcode(barcode, req.getSourceService());
-            }
-
-            req.setStatus(SyncUpRequestsStatus.COMPLETED);
-            repo.save(req);
-        }
-    }
-
-    private List<String> parseBarcodes(String json) {
         try {
-            return objectMapper.readValue(json, new TypeReference<List<String>>() {
-            });
+            int claimed = syncUpEngine.poll();
+            if (claimed > 0) {
+                log.info("[SyncWorker] Claimed {} sync requests, {} active", claimed, syncUpEngine.activeRequests());
+            }
         } catch (Exception e) {
-            log.error("Failed to parse barcode list from SyncUpRequest", e);
-            return List.of();
+            log.error("[SyncWorker] Failed to poll sync requests", e);
         }
     }
 }
@@ -0,0 +1,103 @@
+package org.overcode250204.monitoringservice.services;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.monitoringservice.entities.EventLogs;
+import org.overcode250204.monitoringservice.utils.CompiledTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Ghi EventLogs cho một poll batch các monitoring event.
+ *
+ * EventLogs được dựng cho từng record trước khi ghi; record hỏng (payload sai kiểu...) bị bỏ qua riêng lẻ
+ * và không được ghi inbox, các record còn lại của batch vẫn được ghi.
+ *
+ * Mỗi batch chỉ có hai lượt ghi Mongo, đều là bulk unordered:
+ * 1. insert event_logs, eventLogId = eventId nên event đã ghi trước đó bị từ chối (duplicate key) và không được đếm.
+ * 2. ghi inbox_event cho các event của batch (MongoInboxService), sau khi event_logs đã được ghi.
+ * Bước 1 lỗi thì chưa có gì trong inbox, lần giao lại của Kafka xử lý lại cả batch; bước 2 lỗi thì lần giao lại
+ * chỉ còn ghi inbox.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class EventLogIngestService {
+
+    private final MongoInboxService inboxService;
+    private final MessageTemplateService messageTemplateService;
+
+    /**
+     * @return số EventLogs được ghi (không tính event trùng, thiếu eventId hoặc hỏng)
+     */
+    public int ingest(List<Map<String, Object>> messages) {
+        Map<UUID, Map<String, Object>> byEventId = new LinkedHashMap<>();
+        Map<UUID, EventLogs> logsByEventId = new LinkedHashMap<>();
+        for (Map<String, Object> message : messages) {
+            UUID eventId = eventIdOf(message);
+            if (eventId == null) {
+                log.error("[Monitoring] Skip event without valid eventId: {}", message);
+                continue;
+            }
+            if (byEventId.containsKey(eventId)) {
+                log.info("[Inbox] Skip duplicate monitoring log {}", eventId);
+                continue;
+            }
+            try {
+                logsByEventId.put(eventId, toEventLog(eventId, message));
+                byEventId.put(eventId, message);
+            } catch (RuntimeException e) {
+                log.error("[Monitoring] Skip malformed monitoring event {}: {}", eventId, message, e);
+            }
+        }
+        if (byEventId.isEmpty()) {
+            return 0;
+        }
+
+        List<EventLogs> logs = new ArrayList<>(logsByEventId.values());
+        int duplicates = inboxService.insertIgnoringDuplicates(EventLogs.class, logs).size();
+        inboxService.claim(byEventId);
+        return logs.size() - duplicates;
+    }
+
+    @SuppressWarnings("unchecked")
+    private EventLogs toEventLog(UUID eventId, Map<String, Object> message) {
+        String eventName = (String) message.get("eventType");
+        Map<String, Object> payload = (Map<String, Object>) message.get("payload");
+
+        String performedBy = "SYSTEM";
+        if (payload != null && payload.containsKey("performedBy")) {
+            performedBy = (String) payload.get("performedBy");
+        }
+
+        CompiledTemplate template = messageTemplateService.resolve(eventName, payload);
+        return EventLogs.builder()
+                .eventLogId(eventId.toString())
+                .eventName(eventName)
+                .sourceService((String) message.get("source"))
+                .payload(payload)
+                .message(template.render(eventName, payload))
+                .severity(template.getSeverity())
+                .performedBy(performedBy)
+                .createdAt(LocalDateTime.now())
+                .build();
+    }
+
+    static UUID eventIdOf(Map<String, Object> message) {
+        Object eventId = message != null ? message.get("eventId") : null;
+        if (eventId == null) {
+            return null;
+        }
+        try {
+            return UUID.fromString(eventId.toString());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -5,9 +5,11 @@ import lombok.extern.slf4j.Slf4j;
 import org.overcode250204.monitoringservice.entities.HL7Backup;
 import org.overcode250204.monitoringservice.exceptions.AppException;
 import org.overcode250204.monitoringservice.repositories.HL7BackupRepo;
+import org.overcode250204.monitoringservice.utils.HL7SegmentWriter;
 import org.springframework.data.domain.*;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
 
@@ -17,6 +19,7 @@ import java.util.*;
 public class HL7BackupService {
 
     private final HL7BackupRepo repo;
+    private final S3BackupService s3BackupService;
 
     public Map<String, Object> getAll(int page, int size, String sortField, String sortOrder) {
         Sort sort = sortOrder.equalsIgnoreCase("desc")
@@ -39,6 +42,19 @@ public class HL7BackupService {
                 .orElseThrow(() -> new AppException(404, "HL7 backup not found with ID: " + id));
     }
 
+    // Đọc lại message gốc từ S3: backup trong segment chỉ tải block gzip chứa nó (ranged GET)
+    public String readArchivedMessage(String id) {
+        HL7Backup backup = getById(id);
+        if (backup.getS3Key() == null) {
+            throw new AppException(404, "HL7 backup has no archived object: " + id);
+        }
+        if (backup.getSegmentOffset() == null) {
+            return new String(s3BackupService.readObject(backup.getS3Key()), StandardCharsets.UTF_8);
+        }
+        byte[] block = s3BackupService.readRange(backup.getS3Key(), backup.getSegmentOffset(), backup.getSegmentLength());
+        return HL7SegmentWriter.readMessage(block, backup.getMessageOffset(), backup.getMessageLength());
+    }
+
 
     public List<HL7Backup> getByRunId(String runId) {
         return repo.findByRunId(runId);
@@ -0,0 +1,284 @@
+package org.overcode250204.monitoringservice.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.monitoringservice.entities.HL7Backup;
+import org.overcode250204.monitoringservice.entities.OutboxEvent;
+import org.overcode250204.monitoringservice.enums.RawTestResultStatus;
+import org.overcode250204.monitoringservice.utils.HL7SegmentWriter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Gom các message HL7_RAW_BACKUP trong bộ nhớ và ghi thành segment nén trên S3 (xem HL7SegmentWriter),
+ * thay cho một file tạm + một putObject cho mỗi message.
+ *
+ * - Segment được đóng khi đủ app.hl7.archive.segment-max-bytes hoặc message cũ nhất đã chờ segment-max-age.
+ * - Sau khi putObject thành công mới ghi HL7Backup (kèm offset trong segment) và outbox xác nhận, sau đó mới ghi
+ *   inbox rồi acknowledge offset Kafka. Id của HL7Backup và outbox suy ra từ eventId, nên lần ghi lại sau khi chết
+ *   giữa chừng (trước khi có inbox) bị bỏ qua như duplicate; inbox chỉ loại những event đã ghi đủ cả hai.
+ * - Lỗi S3 / Mongo được thử lại với backoff; trong lúc đó buffer đầy (max-pending) sẽ chặn listener.
+ *
+ * Toàn bộ việc ghi chạy trên một thread "hl7-archiver", nên ack luôn theo đúng thứ tự nhận.
+ */
+@Slf4j
+@Service
+public class HL7SegmentArchiver {
+
+    public record ArchiveRequest(UUID eventId, Map<String, Object> event, String runId, String barcode,
+                                 String instrumentCode, String hl7Message, Acknowledgment ack) {
+    }
+
+    private static final DateTimeFormatter KEY_TIME = DateTimeFormatter.ofPattern("yyyy/MM/dd/HHmmss");
+    private static final long MAX_RETRY_BACKOFF_MS = 30_000;
+
+    private final S3BackupService s3BackupService;
+    private final MongoInboxService inboxService;
+    private final ObjectMapper objectMapper;
+    private final String monitoringEventsTopic;
+    private final long segmentMaxBytes;
+    private final long segmentMaxAgeNanos;
+    private final int blockSize;
+    private final long retryBackoffMs;
+
+    private final Semaphore capacity;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile boolean shuttingDown;
+
+    private final Object lock = new Object();
+    private List<ArchiveRequest> pending = new ArrayList<>();
+    private long pendingBytes;
+    private long oldestNanos;
+
+    public HL7SegmentArchiver(S3BackupService s3BackupService,
+                              MongoInboxService inboxService,
+                              ObjectMapper objectMapper,
+                              @Value("${app.kafka.topics.monitoring.events:monitoring.events}") String monitoringEventsTopic,
+                              @Value("${app.hl7.archive.segment-max-bytes:8388608}") long segmentMaxBytes,
+                              @Value("${app.hl7.archive.segment-max-age:PT5S}") Duration segmentMaxAge,
+                              @Value("${app.hl7.archive.block-size:65536}") int blockSize,
+                              @Value("${app.hl7.archive.max-pending:20000}") int maxPending,
+                              @Value("${app.hl7.archive.retry-backoff-ms:1000}") long retryBackoffMs) {
+        this.s3BackupService = s3BackupService;
+        this.inboxService = inboxService;
+        this.objectMapper = objectMapper;
+        this.monitoringEventsTopic = monitoringEventsTopic;
+        this.segmentMaxBytes = segmentMaxBytes;
+        this.segmentMaxAgeNanos = segmentMaxAge.toNanos();
+        this.blockSize = blockSize;
+        this.retryBackoffMs = retryBackoffMs;
+        this.capacity = new Semaphore(maxPending);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hl7-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tickMs = Math.max(50, Math.min(500, segmentMaxAge.toMillis() / 5));
+        executor.scheduleWithFixedDelay(this::flushIfDue, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Đưa message vào segment đang mở. Chặn khi đã có max-pending message chưa ghi xong.
+     * ack của request được gọi sau khi message đã nằm trong một segment bền vững trên S3.
+     */
+    public void submit(ArchiveRequest request) throws InterruptedException {
+        capacity.acquire();
+        boolean full;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                oldestNanos = System.nanoTime();
+            }
+            pending.add(request);
+            pendingBytes += request.hl7Message().length();
+            full = pendingBytes >= segmentMaxBytes;
+        }
+        if (full && flushRequested.compareAndSet(false, true)) {
+            executor.execute(this::flushIfDue);
+        }
+    }
+
+    private void flushIfDue() {
+        flushRequested.set(false);
+        List<ArchiveRequest> batch;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            boolean due = pendingBytes >= segmentMaxBytes
+                    || System.nanoTime() - oldestNanos >= segmentMaxAgeNanos
+                    || shuttingDown;
+            if (!due) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+            pendingBytes = 0;
+        }
+        try {
+            archive(batch);
+        } catch (RuntimeException e) {
+            // Chỉ xảy ra khi đang shutdown: không ack, Kafka sẽ giao lại sau khi khởi động
+            log.error("[HL7Archiver] Dropped {} unarchived messages during shutdown", batch.size(), e);
+        } finally {
+            capacity.release(batch.size());
+        }
+    }
+
+    private void archive(List<ArchiveRequest> batch) {
+        // Bỏ bản trùng trong batch và event đã có trong inbox (đã nằm trong một segment trước)
+        Map<UUID, ArchiveRequest> fresh = new LinkedHashMap<>();
+        for (ArchiveRequest request : batch) {
+            fresh.putIfAbsent(request.eventId(), request);
+        }
+        fresh.keySet().removeAll(retry("inbox lookup", () -> inboxService.findProcessed(fresh.keySet())));
+
+        if (!fresh.isEmpty()) {
+            HL7SegmentWriter writer = new HL7SegmentWriter(blockSize);
+            List<ArchiveRequest> ordered = new ArrayList<>(fresh.values());
+            for (ArchiveRequest request : ordered) {
+                writer.append(request.hl7Message());
+            }
+            byte[] segment = writer.finish();
+            String key = "hl7/segments/" + LocalDateTime.now(ZoneOffset.UTC).format(KEY_TIME)
+                    + "-" + UUID.randomUUID() + ".hl7.gz";
+
+            retry("upload " + key, () -> {
+                s3BackupService.uploadSegment(key, segment);
+                return null;
+            });
+            retry("persist " + key, () -> {
+                persist(key, ordered, writer.entries());
+                return null;
+            });
+            log.info("[HL7Archiver] Archived {} messages ({} received) into {} ({}B)",
+                    ordered.size(), batch.size(), key, segment.length);
+        }
+
+        for (ArchiveRequest request : batch) {
+            request.ack().acknowledge();
+        }
+    }
+
+    private void persist(String key, List<ArchiveRequest> ordered, List<HL7SegmentWriter.Entry> entries) {
+        Map<UUID, Map<String, Object>> events = new LinkedHashMap<>();
+        for (ArchiveRequest request : ordered) {
+            events.put(request.eventId(), request.event());
+        }
+        List<HL7Backup> backups = new ArrayList<>(ordered.size());
+        List<OutboxEvent> confirmations = new ArrayList<>(ordered.size());
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < ordered.size(); i++) {
+            ArchiveRequest request = ordered.get(i);
+            HL7SegmentWriter.Entry entry = entries.get(i);
+            backups.add(HL7Backup.builder()
+                    .backupId(request.eventId().toString())
+                    .runId(request.runId())
+                    .barcode(request.barcode())
+                    .instrumentId(request.instrumentCode())
+                    .hl7Message(request.hl7Message())
+                    .s3Key(key)
+                    .segmentOffset(entry.segmentOffset())
+                    .segmentLength(entry.segmentLength())
+                    .messageOffset(entry.messageOffset())
+                    .messageLength(entry.messageLength())
+                    .status(RawTestResultStatus.RECEIVED)
+                    .createdAt(now)
+                    .build());
+            confirmations.add(confirmation(request));
+        }
+
+        // Bản đã ghi ở lần trước (chết trước khi ghi inbox) vẫn trỏ tới segment cũ, còn đọc được
+        inboxService.insertIgnoringDuplicates(HL7Backup.class, backups);
+        inboxService.insertIgnoringDuplicates(OutboxEvent.class, confirmations);
+        inboxService.claim(events);
+    }
+
+    // Gửi xác nhận lại Kafka topic khác
+    private OutboxEvent confirmation(ArchiveRequest request) {
+        UUID confirmationId = UUID.nameUUIDFromBytes(
+                ("HL7_BACKUP_CONFIRMED:" + request.eventId()).getBytes(StandardCharsets.UTF_8));
+        Map<String, Object> confirmPayload = Map.of(
+                "eventId", confirmationId.toString(),
+                "eventType", "HL7_BACKUP_CONFIRMED",
+                "payload", Map.of(
+                        "runId", String.valueOf(request.runId()),
+                        "barcode", String.valueOf(request.barcode()),
+                        "status", "SUCCESS"
+                ),
+                "timestamp", LocalDateTime.now().toString()
+        );
+        try {
+            return OutboxEvent.builder()
+                    .id(confirmationId.toString())
+                    .aggregateType(monitoringEventsTopic)
+                    .aggregateId(request.barcode())
+                    .eventType("HL7_BACKUP_CONFIRMED")
+                    .payload(objectMapper.writeValueAsString(confirmPayload))
+                    .status("PENDING")
+                    .build();
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private interface Step<T> {
+        T run();
+    }
+
+    // Thử lại tới khi thành công; khi shutdown chỉ thử một lần
+    private <T> T retry(String name, Step<T> step) {
+        long backoff = retryBackoffMs;
+        while (true) {
+            try {
+                return step.run();
+            } catch (RuntimeException e) {
+                if (shuttingDown) {
+                    throw e;
+                }
+                log.warn("[HL7Archiver] {} failed ({}), retrying in {}ms", name, e.getMessage(), backoff);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                backoff = Math.min(backoff * 2, MAX_RETRY_BACKOFF_MS);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shuttingDown = true;
+        executor.execute(this::flushIfDue);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
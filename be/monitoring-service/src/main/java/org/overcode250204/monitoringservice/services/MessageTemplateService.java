@@ -1,56 +1,97 @@
 package org.overcode250204.monitoringservice.services;
 
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.overcode250204.monitoringservice.entities.EventTemplate;
 import org.overcode250204.monitoringservice.repositories.EventTemplateRepo;
+import org.overcode250204.monitoringservice.utils.CompiledTemplate;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Render message của EventLogs từ event_templates.
+ *
+ * Toàn bộ template được biên dịch sẵn vào bộ nhớ (CompiledTemplate), luồng ghi log không đọc Mongo.
+ * Cache được nạp lại khi EventTemplateSeeder chạy xong, khi template được ghi / xoá qua service này,
+ * và định kỳ (app.monitoring.template-refresh-ms) để thấy thay đổi từ replica khác.
+ */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class MessageTemplateService {
 
+    private static final CompiledTemplate MISSING_TEMPLATE = CompiledTemplate.compile("Event {eventName}", "INFO");
+
     private final EventTemplateRepo templateRepository;
 
     @Value("${app.monitoring.autoCreateTemplate:false}")
     private boolean autoCreateTemplate;
 
+    // Thay nguyên map khi nạp lại, người đọc không cần khoá
+    private volatile Map<String, CompiledTemplate> templates = Map.of();
+
+    @PostConstruct
+    @Scheduled(fixedDelayString = "${app.monitoring.template-refresh-ms:60000}",
+            initialDelayString = "${app.monitoring.template-refresh-ms:60000}")
+    public void refresh() {
+        Map<String, CompiledTemplate> compiled = new HashMap<>();
+        for (EventTemplate template : templateRepository.findAll()) {
+            if (template.getEventName() != null && template.getTemplate() != null) {
+                compiled.put(template.getEventName(), compile(template));
+            }
+        }
+        templates = Map.copyOf(compiled);
+        log.debug("[MessageTemplateService] Loaded {} templates", compiled.size());
+    }
 
     public String renderMessage(String eventName, Map<String, Object> payload) {
-        EventTemplate templateEntity = templateRepository.findByEventName(eventName)
-                .orElseGet(() -> createTemplateIfMissing(eventName, payload));
+        return resolve(eventName, payload).render(eventName, payload);
+    }
+
+    public String resolveSeverity(String eventName) {
+        CompiledTemplate template = templates.get(eventName);
+        return template != null ? template.getSeverity() : "INFO";
+    }
 
-        String message = templateEntity.getTemplate();
-        for (Map.Entry<String, Object> entry : payload.entrySet()) {
-            message = message.replace("{" + entry.getKey() + "}", String.valueOf(entry.getValue()));
+    // Template đã biên dịch cho event; dùng một lần cho cả message và severity
+    public CompiledTemplate resolve(String eventName, Map<String, Object> payload) {
+        CompiledTemplate template = templates.get(eventName);
+        if (template != null) {
+            return template;
         }
+        return createTemplateIfMissing(eventName, payload);
+    }
 
-        return message.replace("{eventName}", eventName);
+    public EventTemplate saveTemplate(EventTemplate template) {
+        EventTemplate saved = templateRepository.save(template);
+        refresh();
+        return saved;
     }
 
-    public String resolveSeverity(String eventName) {
-        return templateRepository.findByEventName(eventName)
-                .map(EventTemplate::getSeverity)
-                .orElse("INFO");
+    public void deleteTemplate(String eventName) {
+        templateRepository.findByEventName(eventName).ifPresent(templateRepository::delete);
+        refresh();
+    }
+
+    private static CompiledTemplate compile(EventTemplate template) {
+        return CompiledTemplate.compile(template.getTemplate(),
+                template.getSeverity() != null ? template.getSeverity() : "INFO");
     }
 
-    private EventTemplate createTemplateIfMissing(String eventName, Map<String, Object> payload) {
+    private CompiledTemplate createTemplateIfMissing(String eventName, Map<String, Object> payload) {
         if (!autoCreateTemplate) {
             log.warn("[MessageTemplateService] Template not found for '{}', autoCreateTemplate=false", eventName);
-            return EventTemplate.builder()
-                    .eventName(eventName)
-                    .template("Event {eventName}")
-                    .severity("INFO")
-                    .description("Template not found, please define manually")
-                    .build();
+            return MISSING_TEMPLATE;
         }
 
         // Create new template
-        String autoTemplate = "Event " + eventName + " occurred with payload: " + payload.keySet();
+        String autoTemplate = "Event " + eventName + " occurred with payload: "
+                + (payload != null ? payload.keySet() : "[]");
 
         EventTemplate newTemplate = EventTemplate.builder()
                 .eventName(eventName)
@@ -66,6 +107,10 @@ public class MessageTemplateService {
             log.error("[MessageTemplateService] Failed to save new template for '{}'", eventName, e);
         }
 
-        return newTemplate;
+        CompiledTemplate compiled = compile(newTemplate);
+        Map<String, CompiledTemplate> updated = new HashMap<>(templates);
+        updated.put(eventName, compiled);
+        templates = Map.copyOf(updated);
+        return compiled;
     }
 }
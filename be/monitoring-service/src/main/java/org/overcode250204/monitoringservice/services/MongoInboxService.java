@@ -0,0 +1,117 @@
+package org.overcode250204.monitoringservice.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.bulk.BulkWriteError;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.monitoringservice.entities.InboxEvent;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Inbox (inbox_event) cho các Kafka listener xử lý theo batch: claim cả batch bằng một bulk insert unordered,
+ * lỗi duplicate key (11000) trên unique index eventId nghĩa là event đã được xử lý trước đó.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class MongoInboxService {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+    private final ObjectMapper objectMapper;
+
+    // auto-index-creation tắt mặc định, unique index eventId là thứ chặn event trùng
+    @PostConstruct
+    public void ensureIndexes() {
+        mongoTemplate.indexOps(InboxEvent.class)
+                .createIndex(new Index().on("eventId", Sort.Direction.ASC).unique().named("event_id_unique"));
+    }
+
+    /**
+     * Ghi inbox cho các event (eventId → message gốc, lưu dạng JSON) và trả về các eventId claim được lần này.
+     */
+    public Set<UUID> claim(Map<UUID, ?> messagesByEventId) {
+        if (messagesByEventId.isEmpty()) {
+            return new HashSet<>();
+        }
+        List<UUID> eventIds = new ArrayList<>(messagesByEventId.keySet());
+        List<InboxEvent> rows = new ArrayList<>(eventIds.size());
+        Instant now = Instant.now();
+        for (UUID eventId : eventIds) {
+            rows.add(new InboxEvent(UUID.randomUUID().toString(), eventId, toJson(messagesByEventId.get(eventId)), now));
+        }
+
+        Set<UUID> claimed = new HashSet<>(eventIds);
+        for (int index : insertIgnoringDuplicates(InboxEvent.class, rows)) {
+            UUID duplicate = eventIds.get(index);
+            claimed.remove(duplicate);
+            log.info("[Inbox] Skip duplicate event {}", duplicate);
+        }
+        return claimed;
+    }
+
+    // Các eventId đã có trong inbox (một truy vấn $in)
+    public Set<UUID> findProcessed(Collection<UUID> eventIds) {
+        Set<UUID> processed = new HashSet<>();
+        if (eventIds.isEmpty()) {
+            return processed;
+        }
+        Query query = Query.query(Criteria.where("eventId").in(eventIds));
+        query.fields().include("eventId");
+        for (InboxEvent row : mongoTemplate.find(query, InboxEvent.class)) {
+            processed.add(row.getEventId());
+        }
+        return processed;
+    }
+
+    /**
+     * Bulk insert unordered; trả về vị trí các document bị từ chối vì duplicate key, lỗi khác được ném ra.
+     */
+    public List<Integer> insertIgnoringDuplicates(Class<?> type, List<?> documents) {
+        if (documents.isEmpty()) {
+            return List.of();
+        }
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, type);
+        bulk.insert(documents);
+        try {
+            bulk.execute();
+            return List.of();
+        } catch (BulkOperationException e) {
+            List<Integer> duplicates = new ArrayList<>();
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+                duplicates.add(error.getIndex());
+            }
+            return duplicates;
+        }
+    }
+
+    private String toJson(Object message) {
+        try {
+            return objectMapper.writeValueAsString(message);
+        } catch (JsonProcessingException e) {
+            return String.valueOf(message);
+        }
+    }
+}
@@ -4,13 +4,11 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-
 @Slf4j
 @Service
 @RequiredArgsConstructor
@@ -21,42 +19,35 @@ public class S3BackupService {
     @Value("${aws.s3.bucket}")
     private String bucketName;
 
-    public String uploadHL7(String barcode, String hl7Message) {
-        String key = "hl7/" + barcode + "-" + System.currentTimeMillis() + ".hl7";
-        Path tempFile = null;
-
-        try {
-            // Tạo file tạm để upload
-            tempFile = Files.createTempFile("hl7-", ".tmp");
-            Files.writeString(tempFile, hl7Message);
-
-            // Upload lên S3
-            PutObjectRequest request = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(key)
-                    .build();
-
-            s3Client.putObject(request, tempFile);
-
-            log.info("[S3BackupService] Uploaded HL7 to S3 key={}", key);
-            return key;
-
-        } catch (IOException e) {
-            log.error("[S3BackupService] Error creating temp file or writing content", e);
-            throw new RuntimeException("Failed to write temporary file for upload", e);
-
-        } catch (Exception e) {
-            log.error("[S3BackupService] Error uploading HL7 to S3", e);
-            throw new RuntimeException("Failed to upload HL7 message to S3", e);
-
-        } finally {
-            if (tempFile != null) {
-                try {
-                    Files.deleteIfExists(tempFile);
-                } catch (IOException ignored) {
-                }
-            }
-        }
+    // Ghi cả segment từ bộ nhớ; putObject trả về thành công nghĩa là object đã bền vững trên S3
+    public void uploadSegment(String key, byte[] content) {
+        PutObjectRequest request = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .contentType("application/gzip")
+                .contentLength((long) content.length)
+                .build();
+
+        s3Client.putObject(request, RequestBody.fromBytes(content));
+        log.info("[S3BackupService] Uploaded HL7 segment key={} size={}B", key, content.length);
+    }
+
+    // Ranged GET: chỉ tải [offset, offset + length) của object
+    public byte[] readRange(String key, long offset, int length) {
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .range("bytes=" + offset + "-" + (offset + length - 1))
+                .build();
+        return s3Client.getObjectAsBytes(request).asByteArray();
     }
-}
 
+    // Object HL7 đơn lẻ của các backup trước khi có segment
+    public byte[] readObject(String key) {
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build();
+        return s3Client.getObjectAsBytes(request).asByteArray();
+    }
+}
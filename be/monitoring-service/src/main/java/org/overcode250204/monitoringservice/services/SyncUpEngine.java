@@ -0,0 +1,569 @@
+package org.overcode250204.monitoringservice.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.monitoringservice.entities.SyncUpRequests;
+import org.overcode250204.monitoringservice.enums.SyncUpRequestsStatus;
+import org.overcode250204.monitoringservice.grpc.InstrumentSyncGrpcClient;
+import com.mongodb.client.result.UpdateResult;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chạy các SyncUpRequests song song thay vì gọi từng barcode một.
+ *
+ * - Barcode của một request được chia thành batch (app.sync-up.batch-size), mỗi batch là một stream
+ *   SyncUpTestResults (xem InstrumentSyncGrpcClient).
+ * - Tối đa app.sync-up.max-streams stream cùng lúc, mỗi instrument tối đa app.sync-up.max-streams-per-instrument.
+ *   Batch được lấy xoay vòng giữa các instrument (instrumentId của request, không có thì theo sourceService),
+ *   nên một đợt sync lớn sau sự cố không chặn các request nhỏ của instrument khác.
+ * - Stream lỗi được gửi lại (app.sync-up.max-attempts lần) với continuation_token của message cuối đã ghi outbox,
+ *   nên chỉ nhận tiếp các kết quả chưa ghi; hết lượt thì barcode chưa có kết quả nào bị ghi RAW_RESULT_SYNC_FAILED.
+ * - Sau mỗi batch, checkpoint (số barcode đầu danh sách đã xong liên tục) và bộ đếm được ghi vào
+ *   sync_up_requests cùng lease của replica. Replica chết thì lease hết hạn, request được nhận lại và chạy
+ *   tiếp từ checkpoint (các batch đã xong sau checkpoint có thể bị gửi lại một lần).
+ * - Mọi lần ghi tiến độ / COMPLETED chỉ khớp khi leaseOwner vẫn là replica này (id riêng mỗi process). Không khớp,
+ *   hoặc gia hạn lease không giữ được request, nghĩa là replica khác đã nhận request: request bị bỏ khỏi replica này.
+ *
+ * Metrics: sync.up.barcodes{result=synced|not_found|failed}, sync.up.batch.duration, các gauge
+ * sync.up.streams.active, sync.up.requests.active và sync.up.barcodes.pending.
+ */
+@Slf4j
+@Service
+public class SyncUpEngine {
+
+    private final MongoTemplate mongoTemplate;
+    private final ObjectMapper objectMapper;
+    private final InstrumentSyncGrpcClient instrumentClient;
+    private final int batchSize;
+    private final int maxStreams;
+    private final int maxStreamsPerInstrument;
+    private final int maxActiveRequests;
+    private final int maxAttempts;
+    private final long retryBackoffMs;
+    private final Duration lease;
+    private final String owner;
+
+    private final Counter syncedCounter;
+    private final Counter notFoundCounter;
+    private final Counter failedCounter;
+    private final Timer batchTimer;
+
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "sync-up-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Toàn bộ trạng thái điều phối dưới lock; lời gọi gRPC / Mongo nằm ngoài lock
+    private final Object lock = new Object();
+    private final Map<String, Job> jobs = new HashMap<>();
+    // Thứ tự xoay vòng giữa các instrument
+    private final Map<String, Lane> lanes = new LinkedHashMap<>();
+    private final Deque<Lane> ring = new ArrayDeque<>();
+    private int activeStreams;
+    private final AtomicInteger pendingBarcodes = new AtomicInteger();
+    private volatile boolean stopped;
+
+    public SyncUpEngine(MongoTemplate mongoTemplate,
+                        ObjectMapper objectMapper,
+                        InstrumentSyncGrpcClient instrumentClient,
+                        MeterRegistry meterRegistry,
+                        @Value("${app.sync-up.batch-size:500}") int batchSize,
+                        @Value("${app.sync-up.max-streams:8}") int maxStreams,
+                        @Value("${app.sync-up.max-streams-per-instrument:2}") int maxStreamsPerInstrument,
+                        @Value("${app.sync-up.max-active-requests:64}") int maxActiveRequests,
+                        @Value("${app.sync-up.max-attempts:3}") int maxAttempts,
+                        @Value("${app.sync-up.retry-backoff-ms:1000}") long retryBackoffMs,
+                        @Value("${app.sync-up.lease:PT2M}") Duration lease) {
+        this.mongoTemplate = mongoTemplate;
+        this.objectMapper = objectMapper;
+        this.instrumentClient = instrumentClient;
+        this.batchSize = batchSize;
+        this.maxStreams = maxStreams;
+        this.maxStreamsPerInstrument = maxStreamsPerInstrument;
+        this.maxActiveRequests = maxActiveRequests;
+        this.maxAttempts = maxAttempts;
+        this.retryBackoffMs = retryBackoffMs;
+        this.lease = lease;
+        // Hostname có thể trùng giữa các process (container restart, nhiều instance cùng máy)
+        this.owner = hostName() + "-" + UUID.randomUUID();
+
+        this.syncedCounter = barcodeCounter(meterRegistry, "synced");
+        this.notFoundCounter = barcodeCounter(meterRegistry, "not_found");
+        this.failedCounter = barcodeCounter(meterRegistry, "failed");
+        this.batchTimer = Timer.builder("sync.up.batch.duration")
+                .description("Duration of one sync-up stream (batch of barcodes)")
+                .register(meterRegistry);
+        Gauge.builder("sync.up.streams.active", this, engine -> engine.activeStreams())
+                .description("Sync-up streams currently open to instrument-service")
+                .register(meterRegistry);
+        Gauge.builder("sync.up.requests.active", this, engine -> engine.activeRequests())
+                .description("Sync-up requests being processed by this replica")
+                .register(meterRegistry);
+        Gauge.builder("sync.up.barcodes.pending", pendingBarcodes, AtomicInteger::get)
+                .description("Barcodes of active sync-up requests not processed yet")
+                .register(meterRegistry);
+    }
+
+    private static Counter barcodeCounter(MeterRegistry registry, String result) {
+        return Counter.builder("sync.up.barcodes").tag("result", result)
+                .description("Barcodes processed by sync-up")
+                .register(registry);
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "monitoring-service";
+        }
+    }
+
+    /**
+     * Gia hạn lease của các request đang chạy, nhận thêm request (PENDING hoặc lease đã hết hạn)
+     * tới max-active-requests và mở stream cho các slot còn trống. Trả về số request nhận thêm.
+     */
+    public int poll() {
+        if (stopped) {
+            return 0;
+        }
+        renewLeases();
+
+        int claimed = 0;
+        while (activeRequests() < maxActiveRequests) {
+            SyncUpRequests request = claimNext();
+            if (request == null) {
+                break;
+            }
+            claimed++;
+            start(request);
+        }
+        dispatch();
+        return claimed;
+    }
+
+    public int activeStreams() {
+        synchronized (lock) {
+            return activeStreams;
+        }
+    }
+
+    public int activeRequests() {
+        synchronized (lock) {
+            return jobs.size();
+        }
+    }
+
+    private SyncUpRequests claimNext() {
+        LocalDateTime now = LocalDateTime.now();
+        Set<String> running;
+        synchronized (lock) {
+            running = new HashSet<>(jobs.keySet());
+        }
+        Criteria claimable = new Criteria().orOperator(
+                Criteria.where("status").is(SyncUpRequestsStatus.PENDING),
+                new Criteria().andOperator(
+                        Criteria.where("status").is(SyncUpRequestsStatus.IN_PROGRESS),
+                        new Criteria().orOperator(
+                                Criteria.where("leaseUntil").lt(now),
+                                Criteria.where("leaseOwner").is(owner))));
+        Query query = Query.query(new Criteria().andOperator(claimable, Criteria.where("_id").nin(running)))
+                .with(Sort.by(Sort.Direction.ASC, "createdAt"));
+        Update update = new Update()
+                .set("status", SyncUpRequestsStatus.IN_PROGRESS)
+                .set("leaseOwner", owner)
+                .set("leaseUntil", now.plus(lease))
+                .set("updatedAt", now);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), SyncUpRequests.class);
+    }
+
+    private void start(SyncUpRequests request) {
+        List<String> barcodes = parseBarcodes(request.getMessageId());
+        if (barcodes == null) {
+            finish(request.getSyncUpRequestId(), SyncUpRequestsStatus.FAILED);
+            return;
+        }
+        Job job = new Job(request, barcodes);
+        if (job.checkpoint >= barcodes.size()) {
+            if (!persistProgress(job, true)) {
+                log.warn("[SyncUp] Lost lease of request {} before completing it", job.id);
+            }
+            return;
+        }
+        if (job.checkpoint > 0) {
+            log.info("[SyncUp] Resuming request {} from checkpoint {}/{}", job.id, job.checkpoint, barcodes.size());
+        }
+        synchronized (lock) {
+            jobs.put(job.id, job);
+            Lane lane = lanes.computeIfAbsent(job.laneKey, key -> {
+                Lane created = new Lane(key);
+                ring.addLast(created);
+                return created;
+            });
+            lane.jobs.addLast(job);
+        }
+        pendingBarcodes.addAndGet(barcodes.size() - job.checkpoint);
+        log.info("[SyncUp] Started request {} ({} barcodes, lane {})", job.id, barcodes.size(), job.laneKey);
+    }
+
+    // Mở stream cho các slot trống, lấy batch xoay vòng theo instrument
+    private void dispatch() {
+        List<Batch> launch = new ArrayList<>();
+        synchronized (lock) {
+            while (!stopped && activeStreams < maxStreams) {
+                Batch batch = nextBatch();
+                if (batch == null) {
+                    break;
+                }
+                activeStreams++;
+                launch.add(batch);
+            }
+        }
+        for (Batch batch : launch) {
+            launch(batch);
+        }
+    }
+
+    // Gọi trong lock
+    private Batch nextBatch() {
+        for (int i = 0, lanesToVisit = ring.size(); i < lanesToVisit; i++) {
+            Lane lane = ring.pollFirst();
+            ring.addLast(lane);
+            if (lane.inFlight >= maxStreamsPerInstrument) {
+                continue;
+            }
+            for (int j = 0, jobsToVisit = lane.jobs.size(); j < jobsToVisit; j++) {
+                Job job = lane.jobs.pollFirst();
+                lane.jobs.addLast(job);
+                if (job.nextIndex < job.barcodes.size()) {
+                    int from = job.nextIndex;
+                    int to = Math.min(from + batchSize, job.barcodes.size());
+                    job.nextIndex = to;
+                    job.inFlight++;
+                    lane.inFlight++;
+                    return new Batch(job, lane, from, to, new ArrayList<>(job.barcodes.subList(from, to)), Set.of(), null,
+                            1, System.nanoTime());
+                }
+            }
+        }
+        return null;
+    }
+
+    private void launch(Batch batch) {
+        CompletableFuture<InstrumentSyncGrpcClient.BatchResult> stream;
+        try {
+            stream = instrumentClient.syncUpBatch(batch.job.instrumentId, batch.barcodes, batch.job.requestedBy,
+                    batch.continuationToken);
+        } catch (RuntimeException e) {
+            stream = CompletableFuture.completedFuture(new InstrumentSyncGrpcClient.BatchResult(Set.of(), 0, null, e));
+        }
+        stream.whenComplete((result, ex) -> {
+            boolean retrying = false;
+            try {
+                retrying = onBatchResult(batch, result != null ? result
+                        : new InstrumentSyncGrpcClient.BatchResult(Set.of(), 0, null, ex));
+            } catch (Exception e) {
+                // Thường là Mongo lỗi: bỏ request khỏi replica này, lần poll sau nhận lại và chạy tiếp từ checkpoint
+                log.error("[SyncUp] Failed to record batch [{}, {}) of request {}, releasing it", batch.from, batch.to, batch.job.id, e);
+                abandon(batch.job);
+            } finally {
+                // Slot chỉ được giữ khi batch được hẹn gửi lại; mọi đường khác (kể cả request đã bị bỏ) đều trả slot
+                if (!retrying) {
+                    release(batch);
+                }
+            }
+        });
+    }
+
+    // Trả về true khi batch được hẹn gửi lại (slot vẫn được giữ)
+    private boolean onBatchResult(Batch batch, InstrumentSyncGrpcClient.BatchResult result) {
+        Job job = batch.job;
+        if (job.abandoned) {
+            return false;
+        }
+        // Barcode có kết quả đã ghi outbox, cộng dồn qua các lần gửi lại
+        Set<String> syncedSoFar = new HashSet<>(batch.synced);
+        int synced = 0;
+        for (String barcode : result.synced()) {
+            if (syncedSoFar.add(barcode)) {
+                synced++;
+            }
+        }
+        List<String> unsynced = new ArrayList<>();
+        for (String barcode : batch.barcodes) {
+            if (!syncedSoFar.contains(barcode)) {
+                unsynced.add(barcode);
+            }
+        }
+        int failed = 0;
+        int notFound = 0;
+
+        if (result.error() != null) {
+            if (batch.attempt < maxAttempts && !stopped) {
+                // Giữ slot của stream, gửi lại cả batch sau backoff và tiếp tục sau message cuối đã ghi outbox
+                String token = result.continuationToken() != null ? result.continuationToken() : batch.continuationToken;
+                long backoff = retryBackoffMs << (batch.attempt - 1);
+                log.warn("[SyncUp] Batch [{}, {}) of request {} failed (attempt {}) after {} results, resuming in {}ms: {}",
+                        batch.from, batch.to, job.id, batch.attempt, result.results(), backoff, result.error().getMessage());
+                addCounts(job, synced, 0, 0);
+                Batch retry = new Batch(job, batch.lane, batch.from, batch.to, batch.barcodes, syncedSoFar, token,
+                        batch.attempt + 1, batch.startedNanos);
+                retryScheduler.schedule(() -> launch(retry), backoff, TimeUnit.MILLISECONDS);
+                return true;
+            }
+            log.error("[SyncUp] Batch [{}, {}) of request {} failed after {} attempts", batch.from, batch.to, job.id, batch.attempt,
+                    result.error());
+            instrumentClient.recordFailed(unsynced, result.error());
+            failed = unsynced.size();
+        } else {
+            instrumentClient.recordNotFound(unsynced, job.requestedBy);
+            notFound = unsynced.size();
+        }
+
+        addCounts(job, synced, notFound, failed);
+        batchTimer.record(System.nanoTime() - batch.startedNanos, TimeUnit.NANOSECONDS);
+
+        boolean done;
+        synchronized (lock) {
+            job.completed.put(batch.from, batch.to);
+            while (job.completed.containsKey(job.checkpoint)) {
+                job.checkpoint = job.completed.remove(job.checkpoint);
+            }
+            done = job.checkpoint >= job.barcodes.size();
+        }
+        pendingBarcodes.addAndGet(-(batch.to - batch.from));
+        if (!persistProgress(job, done)) {
+            log.warn("[SyncUp] Lost lease of request {} to another replica, releasing it", job.id);
+            abandon(job);
+            return false;
+        }
+        if (done) {
+            log.info("[SyncUp] Completed request {}: synced={}, notFound={}, failed={}",
+                    job.id, job.synced, job.notFound, job.failed);
+        }
+        return false;
+    }
+
+    private void addCounts(Job job, int synced, int notFound, int failed) {
+        synchronized (lock) {
+            job.synced += synced;
+            job.notFound += notFound;
+            job.failed += failed;
+        }
+        syncedCounter.increment(synced);
+        notFoundCounter.increment(notFound);
+        failedCounter.increment(failed);
+    }
+
+    // Trả slot stream; request xong thì bỏ khỏi lane, lane không còn request / stream thì bỏ khỏi vòng
+    private void release(Batch batch) {
+        synchronized (lock) {
+            activeStreams--;
+            Lane lane = batch.lane;
+            lane.inFlight--;
+            Job job = batch.job;
+            job.inFlight--;
+            if (job.inFlight == 0 && job.checkpoint >= job.barcodes.size()) {
+                jobs.remove(job.id);
+                lane.jobs.remove(job);
+            }
+            if (lane.jobs.isEmpty() && lane.inFlight == 0 && lanes.remove(lane.key, lane)) {
+                ring.remove(lane);
+            }
+        }
+        dispatch();
+    }
+
+    // Batch đang chạy của request vẫn trả slot qua release khi stream kết thúc
+    private void abandon(Job job) {
+        int unfinished;
+        synchronized (lock) {
+            if (job.abandoned) {
+                return;
+            }
+            job.abandoned = true;
+            jobs.remove(job.id);
+            Lane lane = lanes.get(job.laneKey);
+            if (lane != null) {
+                lane.jobs.remove(job);
+            }
+            unfinished = job.barcodes.size() - job.checkpoint;
+            for (Map.Entry<Integer, Integer> done : job.completed.entrySet()) {
+                unfinished -= done.getValue() - done.getKey();
+            }
+        }
+        pendingBarcodes.addAndGet(-unfinished);
+    }
+
+    // Chỉ ghi khi replica này còn giữ lease; trả về false nếu replica khác đã nhận request
+    private boolean persistProgress(Job job, boolean done) {
+        Update update;
+        synchronized (lock) {
+            update = new Update()
+                    .set("totalBarcodes", job.barcodes.size())
+                    .set("checkpoint", job.checkpoint)
+                    .set("syncedBarcodes", job.synced)
+                    .set("notFoundBarcodes", job.notFound)
+                    .set("failedBarcodes", job.failed)
+                    .set("updatedAt", LocalDateTime.now());
+        }
+        if (done) {
+            update.set("status", SyncUpRequestsStatus.COMPLETED)
+                    .set("processedAt", LocalDateTime.now())
+                    .unset("leaseOwner")
+                    .unset("leaseUntil");
+        } else {
+            update.set("leaseUntil", LocalDateTime.now().plus(lease));
+        }
+        return mongoTemplate.updateFirst(ownedBy(job.id), update, SyncUpRequests.class).getMatchedCount() == 1;
+    }
+
+    // Request mà gia hạn không giữ được (lease đã bị replica khác nhận) bị bỏ khỏi replica này
+    private void renewLeases() {
+        Map<String, Job> running;
+        synchronized (lock) {
+            running = new HashMap<>(jobs);
+        }
+        if (running.isEmpty()) {
+            return;
+        }
+        UpdateResult renewed = mongoTemplate.updateMulti(
+                Query.query(Criteria.where("_id").in(running.keySet()).and("leaseOwner").is(owner)),
+                new Update().set("leaseUntil", LocalDateTime.now().plus(lease)),
+                SyncUpRequests.class);
+        if (renewed.getMatchedCount() >= running.size()) {
+            return;
+        }
+        Query owned = Query.query(Criteria.where("_id").in(running.keySet()).and("leaseOwner").is(owner));
+        owned.fields().include("_id");
+        for (SyncUpRequests request : mongoTemplate.find(owned, SyncUpRequests.class)) {
+            running.remove(request.getSyncUpRequestId());
+        }
+        for (Job job : running.values()) {
+            boolean finished;
+            synchronized (lock) {
+                finished = job.checkpoint >= job.barcodes.size();
+            }
+            // Request vừa COMPLETED (đã bỏ leaseOwner) còn chờ trả slot: không phải mất lease
+            if (!finished) {
+                log.warn("[SyncUp] Lost lease of request {} to another replica, releasing it", job.id);
+                abandon(job);
+            }
+        }
+    }
+
+    private Query ownedBy(String id) {
+        return Query.query(Criteria.where("_id").is(id).and("leaseOwner").is(owner));
+    }
+
+    private void finish(String id, SyncUpRequestsStatus status) {
+        mongoTemplate.updateFirst(ownedBy(id),
+                new Update().set("status", status)
+                        .set("processedAt", LocalDateTime.now())
+                        .set("updatedAt", LocalDateTime.now())
+                        .unset("leaseOwner")
+                        .unset("leaseUntil"),
+                SyncUpRequests.class);
+    }
+
+    private List<String> parseBarcodes(String json) {
+        try {
+            return objectMapper.readValue(json, new TypeReference<List<String>>() {
+            });
+        } catch (Exception e) {
+            log.error("Failed to parse barcode list from SyncUpRequest", e);
+            return null;
+        }
+    }
+
+    // Dừng nhận batch mới; stream đang chạy bị huỷ khi channel đóng, lease hết hạn thì request chạy tiếp từ checkpoint
+    @PreDestroy
+    public void shutdown() {
+        stopped = true;
+        retryScheduler.shutdownNow();
+    }
+
+    private static final class Job {
+        final String id;
+        final String requestedBy;
+        final String instrumentId;
+        final String laneKey;
+        final List<String> barcodes;
+        int checkpoint;
+        int nextIndex;
+        int inFlight;
+        int synced;
+        int notFound;
+        int failed;
+        volatile boolean abandoned;
+        // Batch đã xong nằm sau checkpoint: from → to
+        final TreeMap<Integer, Integer> completed = new TreeMap<>();
+
+        Job(SyncUpRequests request, List<String> barcodes) {
+            this.id = request.getSyncUpRequestId();
+            this.requestedBy = request.getSourceService();
+            this.instrumentId = request.getInstrumentId();
+            this.laneKey = request.getInstrumentId() != null
+                    ? request.getInstrumentId()
+                    : "source:" + request.getSourceService();
+            this.barcodes = barcodes;
+            this.checkpoint = Math.min(valueOf(request.getCheckpoint()), barcodes.size());
+            this.nextIndex = checkpoint;
+            this.synced = valueOf(request.getSyncedBarcodes());
+            this.notFound = valueOf(request.getNotFoundBarcodes());
+            this.failed = valueOf(request.getFailedBarcodes());
+        }
+
+        private static int valueOf(Integer value) {
+            return value != null ? value : 0;
+        }
+    }
+
+    private static final class Lane {
+        final String key;
+        final Deque<Job> jobs = new ArrayDeque<>();
+        int inFlight;
+
+        Lane(String key) {
+            this.key = key;
+        }
+    }
+
+    // continuationToken: token của message cuối đã ghi outbox ở các lần gửi trước (null ở lần đầu)
+    private record Batch(Job job, Lane lane, int from, int to, List<String> barcodes, Set<String> synced,
+                         String continuationToken, int attempt, long startedNanos) {
+    }
+}
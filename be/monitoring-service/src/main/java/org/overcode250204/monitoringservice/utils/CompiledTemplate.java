@@ -0,0 +1,76 @@
+package org.overcode250204.monitoringservice.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Template "{key}" đã tách sẵn thành các đoạn chữ và placeholder, render một lượt bằng StringBuilder
+ * thay cho chuỗi String.replace theo từng key của payload.
+ *
+ * Kết quả giống cách cũ: placeholder lấy giá trị từ payload, {eventName} không có trong payload thì lấy tên event,
+ * placeholder không có giá trị được giữ nguyên.
+ */
+public final class CompiledTemplate {
+
+    private static final String EVENT_NAME = "eventName";
+
+    private final String severity;
+    // Phần tử chẵn là đoạn chữ, phần tử lẻ là tên placeholder
+    private final String[] parts;
+    private final int literalLength;
+
+    private CompiledTemplate(String severity, String[] parts, int literalLength) {
+        this.severity = severity;
+        this.parts = parts;
+        this.literalLength = literalLength;
+    }
+
+    public static CompiledTemplate compile(String template, String severity) {
+        List<String> parts = new ArrayList<>();
+        int literalLength = 0;
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            int open = template.indexOf('{', i);
+            int close = open < 0 ? -1 : template.indexOf('}', open + 1);
+            if (open < 0 || close < 0) {
+                literal.append(template, i, template.length());
+                break;
+            }
+            int nestedOpen = template.lastIndexOf('{', close);
+            literal.append(template, i, nestedOpen);
+            parts.add(literal.toString());
+            literalLength += literal.length();
+            literal.setLength(0);
+            parts.add(template.substring(nestedOpen + 1, close));
+            i = close + 1;
+        }
+        parts.add(literal.toString());
+        literalLength += literal.length();
+        return new CompiledTemplate(severity, parts.toArray(String[]::new), literalLength);
+    }
+
+    public String render(String eventName, Map<String, Object> payload) {
+        StringBuilder out = new StringBuilder(literalLength + 16 * (parts.length / 2));
+        for (int i = 0; i < parts.length; i++) {
+            if ((i & 1) == 0) {
+                out.append(parts[i]);
+                continue;
+            }
+            String key = parts[i];
+            if (payload != null && payload.containsKey(key)) {
+                out.append(payload.get(key));
+            } else if (EVENT_NAME.equals(key)) {
+                out.append(eventName);
+            } else {
+                out.append('{').append(key).append('}');
+            }
+        }
+        return out.toString();
+    }
+
+    public String getSeverity() {
+        return severity;
+    }
+}
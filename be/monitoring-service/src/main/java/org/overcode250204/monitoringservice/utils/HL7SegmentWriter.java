@@ -0,0 +1,83 @@
+package org.overcode250204.monitoringservice.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Dựng một segment backup HL7: các message được gom thành block khoảng blockSize byte, mỗi block nén gzip riêng
+ * rồi nối liền nhau. Chuỗi gzip member nối nhau vẫn là một file .gz hợp lệ (gunzip cả segment ra toàn bộ message,
+ * mỗi message kết thúc bằng '\n'), đồng thời mỗi block giải nén độc lập được nên đọc một message chỉ cần
+ * ranged GET đúng block của nó.
+ */
+public final class HL7SegmentWriter {
+
+    public record Entry(long segmentOffset, int segmentLength, int messageOffset, int messageLength) {
+    }
+
+    private final int blockSize;
+    private final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final List<Entry> entries = new ArrayList<>();
+    // Vị trí trong block của các message chưa đóng block: {messageOffset, messageLength}
+    private final List<int[]> openMessages = new ArrayList<>();
+
+    public HL7SegmentWriter(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    // Thêm message, trả về chỉ số của nó trong entries()
+    public int append(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (block.size() > 0 && block.size() + bytes.length > blockSize) {
+            closeBlock();
+        }
+        openMessages.add(new int[]{block.size(), bytes.length});
+        block.writeBytes(bytes);
+        block.write('\n');
+        return entries.size() + openMessages.size() - 1;
+    }
+
+    public byte[] finish() {
+        closeBlock();
+        return segment.toByteArray();
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    private void closeBlock() {
+        if (block.size() == 0) {
+            return;
+        }
+        long offset = segment.size();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(segment, 8192)) {
+            block.writeTo(gzip);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int length = (int) (segment.size() - offset);
+        for (int[] message : openMessages) {
+            entries.add(new Entry(offset, length, message[0], message[1]));
+        }
+        openMessages.clear();
+        block.reset();
+    }
+
+    // Giải nén một block đọc bằng ranged GET và lấy ra message
+    public static String readMessage(byte[] compressedBlock, int messageOffset, int messageLength) {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressedBlock))) {
+            byte[] plain = in.readAllBytes();
+            return new String(plain, messageOffset, messageLength, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
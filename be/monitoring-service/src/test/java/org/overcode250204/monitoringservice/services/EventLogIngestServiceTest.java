@@ -0,0 +1,95 @@
+package org.overcode250204.monitoringservice.services;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.overcode250204.monitoringservice.entities.EventLogs;
+import org.overcode250204.monitoringservice.utils.CompiledTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Record hỏng trong poll batch chỉ bị bỏ qua riêng nó: không được ghi inbox, các record tốt vẫn được ghi;
+ * inbox chỉ được ghi sau event_logs, nên lỗi khi ghi event_logs không để lại dòng inbox nào.
+ */
+class EventLogIngestServiceTest {
+
+    private MongoInboxService inboxService;
+    private EventLogIngestService ingestService;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        inboxService = mock(MongoInboxService.class);
+        when(inboxService.claim(anyMap())).thenAnswer(inv -> new HashSet<>(inv.<Map<UUID, ?>>getArgument(0).keySet()));
+        MessageTemplateService templateService = mock(MessageTemplateService.class);
+        when(templateService.resolve(any(), any())).thenReturn(CompiledTemplate.compile("Event {eventName}", "INFO"));
+        ingestService = new EventLogIngestService(inboxService, templateService);
+    }
+
+    private static Map<String, Object> event(int i, Object payload) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("eventId", new UUID(0L, i).toString());
+        message.put("eventType", "TEST_ORDER_CREATED");
+        message.put("source", "test-order-service");
+        message.put("payload", payload);
+        return message;
+    }
+
+    private static List<Map<String, Object>> batchWithOneMalformed() {
+        List<Map<String, Object>> batch = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            // Record thứ 3 có payload là chuỗi thay vì object: ClassCastException khi dựng EventLogs
+            batch.add(event(i, i == 3 ? "not-an-object" : Map.of("performedBy", "user-" + i)));
+        }
+        return batch;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void malformedRecordIsSkippedAndTheRestOfTheBatchIsLogged() {
+        assertEquals(4, ingestService.ingest(batchWithOneMalformed()));
+
+        InOrder order = inOrder(inboxService);
+        ArgumentCaptor<List<EventLogs>> inserted = ArgumentCaptor.forClass(List.class);
+        order.verify(inboxService).insertIgnoringDuplicates(eq(EventLogs.class), inserted.capture());
+        assertEquals(Set.of("1", "2", "4", "5"), inserted.getValue().stream()
+                .map(log -> String.valueOf(UUID.fromString(log.getEventLogId()).getLeastSignificantBits()))
+                .collect(Collectors.toSet()));
+        assertEquals("user-4", inserted.getValue().get(2).getPerformedBy());
+
+        ArgumentCaptor<Map<UUID, ?>> recorded = ArgumentCaptor.forClass(Map.class);
+        order.verify(inboxService).claim(recorded.capture());
+        assertFalse(recorded.getValue().containsKey(new UUID(0L, 3)));
+        assertEquals(4, recorded.getValue().size());
+    }
+
+    @Test
+    void alreadyLoggedEventsAreNotCounted() {
+        when(inboxService.insertIgnoringDuplicates(eq(EventLogs.class), anyList())).thenReturn(List.of(0, 3));
+
+        assertEquals(2, ingestService.ingest(batchWithOneMalformed()));
+    }
+
+    @Test
+    void inboxIsNotWrittenWhenWritingLogsFails() {
+        when(inboxService.insertIgnoringDuplicates(eq(EventLogs.class), anyList()))
+                .thenThrow(new IllegalStateException("mongo unavailable"));
+
+        assertThrows(IllegalStateException.class, () -> ingestService.ingest(batchWithOneMalformed()));
+
+        verify(inboxService, never()).claim(anyMap());
+    }
+}
@@ -0,0 +1,200 @@
+package org.overcode250204.monitoringservice.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.UuidRepresentation;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.monitoringservice.entities.EventLogs;
+import org.overcode250204.monitoringservice.entities.EventTemplate;
+import org.overcode250204.monitoringservice.entities.InboxEvent;
+import org.overcode250204.monitoringservice.repositories.EventTemplateRepo;
+import org.overcode250204.monitoringservice.utils.CompiledTemplate;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Phát lại 100k monitoring event theo từng poll batch 500 record qua EventLogIngestService trên MongoDB thật,
+ * có lẫn event bị giao lại (trong cùng batch và ở batch sau): mỗi eventId chỉ sinh đúng một EventLogs.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+@Slf4j
+class EventLogIngestThroughputTest {
+
+    @Container
+    static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7.0");
+
+    private static final int EVENTS = 100_000;
+    private static final int POLL_SIZE = 500;
+    private static final String[] EVENT_TYPES = {
+            "IAM_USER_LOGIN", "INSTRUMENT_MODE_CHANGED", "TEST_ORDER_CREATED", "SYNC_UP_REQUESTED", "UNKNOWN_EVENT"
+    };
+
+    private static MongoClient client;
+    private static MongoTemplate mongoTemplate;
+
+    private MessageTemplateService templateService;
+    private EventLogIngestService ingestService;
+
+    @BeforeAll
+    static void connect() {
+        client = MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(MONGO.getReplicaSetUrl()))
+                .uuidRepresentation(UuidRepresentation.STANDARD)
+                .build());
+        mongoTemplate = new MongoTemplate(client, "monitoring_ingest_test");
+    }
+
+    @AfterAll
+    static void disconnect() {
+        client.close();
+    }
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate.getDb().drop();
+        EventTemplateRepo templateRepo = new MongoRepositoryFactory(mongoTemplate).getRepository(EventTemplateRepo.class);
+        templateRepo.saveAll(List.of(
+                template("IAM_USER_LOGIN", "User {ipAddress} successfully logged in", "INFO"),
+                template("INSTRUMENT_MODE_CHANGED", "Instrument {instrumentId} changed mode from {oldMode} to {newMode} ({eventName})", "AUDIT"),
+                template("TEST_ORDER_CREATED", "Test order {testOrderId} created by {performedBy}", "AUDIT"),
+                template("SYNC_UP_REQUESTED", "Sync-Up job requested by {serviceName} for {barcodeCount} barcodes", "AUDIT")));
+
+        templateService = new MessageTemplateService(templateRepo);
+        templateService.refresh();
+        MongoInboxService inboxService = new MongoInboxService(mongoTemplate, new ObjectMapper());
+        inboxService.ensureIndexes();
+        ingestService = new EventLogIngestService(inboxService, templateService);
+    }
+
+    private static EventTemplate template(String eventName, String template, String severity) {
+        return EventTemplate.builder().eventName(eventName).template(template).severity(severity).build();
+    }
+
+    private static Map<String, Object> event(int i) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("ipAddress", "10.0.0." + (i % 255));
+        payload.put("instrumentId", "INS-" + (i % 40));
+        payload.put("oldMode", "READY");
+        payload.put("newMode", "MAINTENANCE");
+        payload.put("testOrderId", "TO-" + i);
+        payload.put("performedBy", "user-" + (i % 100));
+        payload.put("serviceName", "test-order-service");
+        payload.put("barcodeCount", i % 50);
+
+        Map<String, Object> message = new HashMap<>();
+        message.put("eventId", new UUID(0L, i + 1L).toString());
+        message.put("eventType", EVENT_TYPES[i % EVENT_TYPES.length]);
+        message.put("source", "instrument-service");
+        message.put("payload", payload);
+        return message;
+    }
+
+    // Luồng record như consumer nhận: thỉnh thoảng một record lặp lại ngay trong poll hoặc được giao lại ở poll sau
+    private static List<List<Map<String, Object>>> polls(int events, long seed) {
+        Random random = new Random(seed);
+        List<List<Map<String, Object>>> polls = new ArrayList<>();
+        List<Map<String, Object>> current = new ArrayList<>(POLL_SIZE);
+        for (int i = 0; i < events; i++) {
+            current.add(event(i));
+            if (random.nextInt(100) < 2) {
+                current.add(event(i));
+            }
+            if (i > 0 && random.nextInt(100) < 2) {
+                current.add(event(random.nextInt(i)));
+            }
+            if (current.size() >= POLL_SIZE) {
+                polls.add(current);
+                current = new ArrayList<>(POLL_SIZE);
+            }
+        }
+        if (!current.isEmpty()) {
+            polls.add(current);
+        }
+        return polls;
+    }
+
+    @Test
+    void replayOf100kEventsLogsEachEventOnce() {
+        List<List<Map<String, Object>>> polls = polls(EVENTS, 7);
+        int delivered = polls.stream().mapToInt(List::size).sum();
+
+        long start = System.nanoTime();
+        int logged = 0;
+        for (List<Map<String, Object>> poll : polls) {
+            logged += ingestService.ingest(poll);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        log.info("Ingested {} records ({} unique) in {}s: {} records/s",
+                delivered, EVENTS, String.format("%.2f", seconds), Math.round(delivered / seconds));
+
+        assertEquals(EVENTS, logged);
+        assertEquals(EVENTS, mongoTemplate.count(new Query(), EventLogs.class));
+        assertEquals(EVENTS, mongoTemplate.count(new Query(), InboxEvent.class));
+
+        EventLogs modeChanged = mongoTemplate.findById(new UUID(0L, 2L).toString(), EventLogs.class);
+        assertNotNull(modeChanged);
+        assertEquals("Instrument INS-1 changed mode from READY to MAINTENANCE (INSTRUMENT_MODE_CHANGED)", modeChanged.getMessage());
+        assertEquals("AUDIT", modeChanged.getSeverity());
+        assertEquals("user-1", modeChanged.getPerformedBy());
+
+        EventLogs unknown = mongoTemplate.findById(new UUID(0L, 5L).toString(), EventLogs.class);
+        assertNotNull(unknown);
+        assertEquals("Event UNKNOWN_EVENT", unknown.getMessage());
+        assertEquals("INFO", unknown.getSeverity());
+
+        // Cả luồng bị giao lại (ví dụ consumer group reset offset): không ghi thêm gì
+        int replayed = 0;
+        for (List<Map<String, Object>> poll : polls(EVENTS, 11)) {
+            replayed += ingestService.ingest(poll);
+        }
+        assertEquals(0, replayed);
+        assertEquals(EVENTS, mongoTemplate.count(new Query(), EventLogs.class));
+    }
+
+    @Test
+    void compiledTemplateMatchesChainedReplace() {
+        Map<String, Object> payload = new HashMap<>(castPayload(event(3).get("payload")));
+        payload.put("missing", null);
+        String[] templates = {
+                "User {ipAddress} successfully logged in",
+                "Instrument {instrumentId} changed mode from {oldMode} to {newMode} ({eventName})",
+                "Sync-Up {unknownKey} for {barcodeCount} barcodes {",
+                "{performedBy}{performedBy} {missing} }{ {eventName}",
+                "no placeholders"
+        };
+        for (String template : templates) {
+            String legacy = template;
+            for (Map.Entry<String, Object> entry : payload.entrySet()) {
+                legacy = legacy.replace("{" + entry.getKey() + "}", String.valueOf(entry.getValue()));
+            }
+            legacy = legacy.replace("{eventName}", "SOME_EVENT");
+
+            assertEquals(legacy, CompiledTemplate.compile(template, "INFO").render("SOME_EVENT", payload), template);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> castPayload(Object payload) {
+        return (Map<String, Object>) payload;
+    }
+}
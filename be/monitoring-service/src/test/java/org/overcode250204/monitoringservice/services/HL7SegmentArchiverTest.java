@@ -0,0 +1,333 @@
+package org.overcode250204.monitoringservice.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.UuidRepresentation;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.monitoringservice.entities.HL7Backup;
+import org.overcode250204.monitoringservice.entities.OutboxEvent;
+import org.overcode250204.monitoringservice.repositories.HL7BackupRepo;
+import org.overcode250204.monitoringservice.repositories.OutboxEventRepository;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * HL7SegmentArchiver trên MongoDB thật với một S3 giả trong bộ nhớ (putObject / ranged getObject):
+ * ack chỉ xảy ra sau khi segment chứa message đã được put, message đọc lại đúng bằng ranged GET,
+ * S3 lỗi thì giữ ack tới khi put lại thành công, event giao lại chỉ sinh một HL7Backup.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+@Slf4j
+class HL7SegmentArchiverTest {
+
+    @Container
+    static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7.0");
+
+    private static final String BUCKET = "hl7-test-bucket";
+
+    private static MongoClient client;
+    private static MongoTemplate mongoTemplate;
+
+    private InMemoryS3 s3;
+    private HL7BackupRepo backupRepo;
+    private OutboxEventRepository outboxRepo;
+    private S3BackupService s3BackupService;
+    private HL7SegmentArchiver archiver;
+
+    @BeforeAll
+    static void connect() {
+        client = MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(MONGO.getReplicaSetUrl()))
+                .uuidRepresentation(UuidRepresentation.STANDARD)
+                .build());
+        mongoTemplate = new MongoTemplate(client, "monitoring_hl7_archive_test");
+    }
+
+    @AfterAll
+    static void disconnect() {
+        client.close();
+    }
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate.getDb().drop();
+        MongoRepositoryFactory repositories = new MongoRepositoryFactory(mongoTemplate);
+        backupRepo = repositories.getRepository(HL7BackupRepo.class);
+        outboxRepo = repositories.getRepository(OutboxEventRepository.class);
+
+        s3 = new InMemoryS3();
+        s3BackupService = new S3BackupService(s3);
+        ReflectionTestUtils.setField(s3BackupService, "bucketName", BUCKET);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (archiver != null) {
+            archiver.shutdown();
+        }
+    }
+
+    private HL7SegmentArchiver newArchiver(long segmentMaxBytes, Duration segmentMaxAge) {
+        return newArchiver(segmentMaxBytes, segmentMaxAge, new MongoInboxService(mongoTemplate, new ObjectMapper()));
+    }
+
+    private HL7SegmentArchiver newArchiver(long segmentMaxBytes, Duration segmentMaxAge, MongoInboxService inboxService) {
+        inboxService.ensureIndexes();
+        archiver = new HL7SegmentArchiver(s3BackupService, inboxService, new ObjectMapper(),
+                "monitoring.events", segmentMaxBytes, segmentMaxAge, 16 * 1024, 20_000, 20);
+        return archiver;
+    }
+
+    private static String hl7(int i) {
+        return "MSH|^~\\&|ANALYZER|LAB|LIS|LAB|20250101120000||ORU^R01|MSG" + i + "|P|2.5\r"
+                + "PID|1||PAT" + (i % 997) + "||DOE^JOHN\r"
+                + "OBR|1||BC" + i + "|CBC^Complete Blood Count\r"
+                + "OBX|1|NM|WBC||" + (4 + i % 7) + "." + (i % 10) + "|10^9/L|4-10|N\r"
+                + "OBX|2|NM|HGB||" + (120 + i % 40) + "|g/L|120-160|N";
+    }
+
+    // Gửi một message như listener; ack kiểm tra ngay lúc được gọi rằng message đã nằm trong một segment trên S3
+    private HL7SegmentArchiver.ArchiveRequest request(UUID eventId, int i, CountDownLatch acked, List<String> violations) {
+        String message = hl7(i);
+        Map<String, Object> data = new HashMap<>();
+        data.put("runId", "RUN-" + (i / 100));
+        data.put("barcode", "BC" + i);
+        data.put("instrumentCode", "INS-" + (i % 5));
+        data.put("hl7Message", message);
+        Map<String, Object> event = new HashMap<>();
+        event.put("eventId", eventId.toString());
+        event.put("eventType", "HL7_RAW_BACKUP");
+        event.put("payload", data);
+        return new HL7SegmentArchiver.ArchiveRequest(eventId, event, "RUN-" + (i / 100), "BC" + i, "INS-" + (i % 5),
+                message, () -> {
+                    if (!s3.containsMessage(message)) {
+                        violations.add("acked before upload: BC" + i);
+                    }
+                    acked.countDown();
+                });
+    }
+
+    @Test
+    void messagesAreArchivedIntoFewSegmentsAndReadBackWithRangedGets() throws Exception {
+        int messages = 5_000;
+        newArchiver(256 * 1024, Duration.ofMillis(500));
+        CountDownLatch acked = new CountDownLatch(messages);
+        List<String> violations = new ArrayList<>();
+
+        for (int i = 0; i < messages; i++) {
+            archiver.submit(request(new UUID(0L, i + 1L), i, acked, violations));
+        }
+        assertTrue(acked.await(60, TimeUnit.SECONDS), "not all messages were acknowledged");
+        assertEquals(List.of(), violations);
+
+        List<HL7Backup> backups = backupRepo.findAll();
+        assertEquals(messages, backups.size());
+        assertEquals(messages, outboxRepo.count());
+        int segments = s3.objects.size();
+        log.info("Archived {} messages into {} segments ({} puts)", messages, segments, s3.puts.get());
+        assertTrue(segments >= 2 && segments <= 20, "unexpected segment count " + segments);
+
+        HL7BackupService backupService = new HL7BackupService(backupRepo, s3BackupService);
+        for (HL7Backup backup : backups) {
+            assertNotNull(backup.getSegmentOffset());
+            assertTrue(backup.getS3Key().startsWith("hl7/segments/"));
+            assertEquals(backup.getHl7Message(), backupService.readArchivedMessage(backup.getBackupId()));
+        }
+        // Mỗi lần đọc chỉ tải một block gzip, không phải cả segment
+        assertTrue(s3.largestRangeRead.get() < 16 * 1024, "ranged read too large: " + s3.largestRangeRead.get());
+
+        // Cả segment vẫn là một file .gz hợp lệ
+        String key = backups.get(0).getS3Key();
+        String whole = gunzip(s3.objects.get(key));
+        assertTrue(whole.contains(backups.get(0).getHl7Message() + "\n"));
+    }
+
+    @Test
+    void failedUploadIsRetriedAndNothingIsAcknowledgedEarly() throws Exception {
+        int messages = 500;
+        newArchiver(64 * 1024 * 1024, Duration.ofMillis(200));
+        s3.failNextPuts.set(3);
+        CountDownLatch acked = new CountDownLatch(messages);
+        List<String> violations = new ArrayList<>();
+
+        for (int i = 0; i < messages; i++) {
+            archiver.submit(request(new UUID(1L, i + 1L), i, acked, violations));
+        }
+        assertTrue(acked.await(30, TimeUnit.SECONDS), "not all messages were acknowledged");
+        assertEquals(List.of(), violations);
+        assertEquals(0, s3.failNextPuts.get());
+        assertEquals(s3.objects.size() + 3, s3.puts.get());
+        assertEquals(messages, backupRepo.count());
+    }
+
+    @Test
+    void redeliveredEventsAreArchivedOnce() throws Exception {
+        int messages = 300;
+        newArchiver(64 * 1024 * 1024, Duration.ofMillis(200));
+        List<String> violations = new ArrayList<>();
+
+        // Lần đầu + bản lặp trong cùng segment
+        CountDownLatch first = new CountDownLatch(messages + 50);
+        for (int i = 0; i < messages; i++) {
+            archiver.submit(request(new UUID(2L, i + 1L), i, first, violations));
+        }
+        for (int i = 0; i < 50; i++) {
+            archiver.submit(request(new UUID(2L, i + 1L), i, first, violations));
+        }
+        assertTrue(first.await(30, TimeUnit.SECONDS));
+        int segments = s3.objects.size();
+
+        // Kafka giao lại cả loạt sau khi đã ghi: vẫn ack nhưng không tạo segment / HL7Backup mới
+        CountDownLatch replay = new CountDownLatch(messages);
+        for (int i = 0; i < messages; i++) {
+            archiver.submit(request(new UUID(2L, i + 1L), i, replay, violations));
+        }
+        assertTrue(replay.await(30, TimeUnit.SECONDS));
+
+        assertEquals(List.of(), violations);
+        assertEquals(messages, backupRepo.count());
+        assertEquals(messages, outboxRepo.findAll().stream().map(OutboxEvent::getAggregateId).distinct().count());
+        assertEquals(segments, s3.objects.size());
+    }
+
+    @Test
+    void failedInboxWriteAfterBackupsDoesNotDuplicateThem() throws Exception {
+        int messages = 200;
+        AtomicInteger failNextClaims = new AtomicInteger(1);
+        // Chết sau khi đã ghi HL7Backup và outbox, trước khi ghi inbox
+        MongoInboxService flakyInbox = new MongoInboxService(mongoTemplate, new ObjectMapper()) {
+            @Override
+            public Set<UUID> claim(Map<UUID, ?> messagesByEventId) {
+                if (failNextClaims.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                    throw new IllegalStateException("mongo unavailable");
+                }
+                return super.claim(messagesByEventId);
+            }
+        };
+        newArchiver(64 * 1024 * 1024, Duration.ofMillis(200), flakyInbox);
+        List<String> violations = new ArrayList<>();
+
+        CountDownLatch acked = new CountDownLatch(messages);
+        for (int i = 0; i < messages; i++) {
+            archiver.submit(request(new UUID(3L, i + 1L), i, acked, violations));
+        }
+
+        assertTrue(acked.await(30, TimeUnit.SECONDS), "not all messages were acknowledged");
+        assertEquals(List.of(), violations);
+        assertEquals(0, failNextClaims.get());
+        assertEquals(messages, backupRepo.count());
+        assertEquals(messages, outboxRepo.count());
+        assertEquals(messages, flakyInbox.findProcessed(
+                IntStream.range(0, messages).mapToObj(i -> new UUID(3L, i + 1L)).toList()).size());
+    }
+
+    private static String gunzip(byte[] gz) {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gz))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * S3 giả: giữ object trong bộ nhớ, hỗ trợ "Range: bytes=a-b" và có thể làm hỏng n lần put kế tiếp.
+     */
+    private static final class InMemoryS3 implements S3Client {
+
+        final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        final Set<String> uploadedMessages = ConcurrentHashMap.newKeySet();
+        final AtomicInteger failNextPuts = new AtomicInteger();
+        final AtomicInteger puts = new AtomicInteger();
+        final AtomicInteger largestRangeRead = new AtomicInteger();
+
+        boolean containsMessage(String message) {
+            return uploadedMessages.contains(message);
+        }
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+            puts.incrementAndGet();
+            if (failNextPuts.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                throw S3Exception.builder().statusCode(503).message("Slow Down").build();
+            }
+            assertEquals(BUCKET, request.bucket());
+            byte[] content;
+            try (InputStream in = body.contentStreamProvider().newStream()) {
+                content = in.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            objects.put(request.key(), content);
+            uploadedMessages.addAll(Arrays.asList(gunzip(content).split("\n")));
+            return PutObjectResponse.builder().build();
+        }
+
+        @Override
+        public ResponseBytes<GetObjectResponse> getObjectAsBytes(GetObjectRequest request) {
+            byte[] content = objects.get(request.key());
+            if (content == null) {
+                throw NoSuchKeyException.builder().message(request.key()).build();
+            }
+            if (request.range() != null) {
+                String[] range = request.range().substring("bytes=".length()).split("-");
+                int from = Integer.parseInt(range[0]);
+                int to = Math.min(Integer.parseInt(range[1]), content.length - 1);
+                content = Arrays.copyOfRange(content, from, to + 1);
+                largestRangeRead.accumulateAndGet(content.length, Math::max);
+            }
+            return ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), content);
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package org.overcode250204.monitoringservice.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.result.UpdateResult;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.UuidRepresentation;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.common.grpc.InstrumentSyncServiceGrpc;
+import org.overcode250204.common.grpc.InstrumentSyncUpRequest;
+import org.overcode250204.common.grpc.RawTestResultMessage;
+import org.overcode250204.monitoringservice.entities.OutboxEvent;
+import org.overcode250204.monitoringservice.entities.SyncUpRequests;
+import org.overcode250204.monitoringservice.enums.SyncUpRequestsStatus;
+import org.overcode250204.monitoringservice.grpc.InstrumentSyncGrpcClient;
+import org.overcode250204.monitoringservice.repositories.OutboxEventRepository;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * SyncUpEngine chạy đầu-cuối: MongoDB thật (sync_up_requests, outbox) và instrument-service giả qua
+ * in-process gRPC server. Kiểm tra giới hạn stream đồng thời, chia lượt giữa instrument, batch nhiều barcode,
+ * gửi lại khi stream đứt (tiếp tục từ continuation_token) mà không ghi trùng outbox, chạy tiếp từ checkpoint sau
+ * khi replica khác chết, trả slot stream khi request bị bỏ vì ghi tiến độ lỗi, và không ghi gì khi đã mất lease.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class SyncUpEngineTest {
+
+    @Container
+    static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7.0");
+
+    private static final int BATCH_SIZE = 100;
+    private static final int MAX_STREAMS = 4;
+    private static final int MAX_STREAMS_PER_INSTRUMENT = 2;
+
+    private static MongoClient client;
+    private static MongoTemplate mongoTemplate;
+
+    private FakeInstrumentSync instrument;
+    private Server server;
+    private ManagedChannel channel;
+    private OutboxEventRepository outboxRepo;
+    private InstrumentSyncGrpcClient syncClient;
+    private SimpleMeterRegistry meterRegistry;
+    private SyncUpEngine engine;
+
+    @BeforeAll
+    static void connect() {
+        client = MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(MONGO.getReplicaSetUrl()))
+                .uuidRepresentation(UuidRepresentation.STANDARD)
+                .build());
+        mongoTemplate = new MongoTemplate(client, "monitoring_sync_up_test");
+    }
+
+    @AfterAll
+    static void disconnect() {
+        client.close();
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        mongoTemplate.getDb().drop();
+        outboxRepo = new MongoRepositoryFactory(mongoTemplate).getRepository(OutboxEventRepository.class);
+
+        instrument = new FakeInstrumentSync();
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).addService(instrument).build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        syncClient = new InstrumentSyncGrpcClient(outboxRepo, objectMapper);
+        ReflectionTestUtils.setField(syncClient, "syncStub", InstrumentSyncServiceGrpc.newStub(channel));
+        ReflectionTestUtils.setField(syncClient, "monitoringLogsTopic", "monitoring.logs.publish");
+        ReflectionTestUtils.setField(syncClient, "window", 50);
+        ReflectionTestUtils.setField(syncClient, "streamTimeoutMs", 30_000L);
+
+        meterRegistry = new SimpleMeterRegistry();
+        engine = new SyncUpEngine(mongoTemplate, objectMapper, syncClient, meterRegistry,
+                BATCH_SIZE, MAX_STREAMS, MAX_STREAMS_PER_INSTRUMENT, 64, 3, 10, Duration.ofMinutes(2));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        engine.shutdown();
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        syncClient.shutdown();
+    }
+
+    private static List<String> barcodes(String prefix, int count) {
+        List<String> barcodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            barcodes.add(prefix + "-" + i);
+        }
+        return barcodes;
+    }
+
+    private SyncUpRequests request(String id, String instrumentId, List<String> barcodes, int createdOffsetSeconds)
+            throws Exception {
+        SyncUpRequests request = SyncUpRequests.builder()
+                .syncUpRequestId(id)
+                .sourceService("test-order-service")
+                .instrumentId(instrumentId)
+                .messageId(new ObjectMapper().writeValueAsString(barcodes))
+                .status(SyncUpRequestsStatus.PENDING)
+                .createdAt(LocalDateTime.now().plusSeconds(createdOffsetSeconds))
+                .build();
+        return mongoTemplate.insert(request);
+    }
+
+    private Map<String, SyncUpRequests> runUntilCompleted(int requests) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (System.nanoTime() < deadline) {
+            engine.poll();
+            long completed = mongoTemplate.count(
+                    Query.query(Criteria.where("status").is(SyncUpRequestsStatus.COMPLETED)), SyncUpRequests.class);
+            if (completed == requests && engine.activeStreams() == 0) {
+                return mongoTemplate.findAll(SyncUpRequests.class).stream()
+                        .collect(Collectors.toMap(SyncUpRequests::getSyncUpRequestId, Function.identity()));
+            }
+            Thread.sleep(10);
+        }
+        fail("sync-up requests did not complete in time");
+        return Map.of();
+    }
+
+    // Mỗi barcode đúng một dòng outbox (SYNCED / NOT_FOUND / SYNC_FAILED)
+    private Map<String, Long> outboxPerEventType(int expectedBarcodes) {
+        List<OutboxEvent> events = outboxRepo.findAll();
+        assertEquals(expectedBarcodes, events.size());
+        assertEquals(expectedBarcodes, events.stream().map(OutboxEvent::getAggregateId).distinct().count());
+        return events.stream().collect(Collectors.groupingBy(OutboxEvent::getEventType, Collectors.counting()));
+    }
+
+    private double barcodeCounter(String result) {
+        return meterRegistry.get("sync.up.barcodes").tag("result", result).counter().count();
+    }
+
+    @Test
+    void largeOutageIsSyncedInParallelBatchesWithoutStarvingOtherInstruments() throws Exception {
+        // 5% barcode của instrument lớn không có kết quả
+        List<String> large = barcodes("A", 4_000);
+        for (int i = 0; i < large.size(); i += 20) {
+            instrument.missing.add(large.get(i));
+        }
+        request("req-a", "INS-A", large, 0);
+        request("req-b", "INS-B", barcodes("B", 150), 1);
+        request("req-c", null, barcodes("C", 80), 2);
+
+        Map<String, SyncUpRequests> done = runUntilCompleted(3);
+
+        int total = 4_000 + 150 + 80;
+        Map<String, Long> perType = outboxPerEventType(total);
+        assertEquals(200L, perType.get("RAW_RESULT_NOT_FOUND"));
+        assertEquals(total - 200L, perType.get("RAW_RESULT_SYNCED"));
+        assertNull(perType.get("RAW_RESULT_SYNC_FAILED"));
+
+        SyncUpRequests a = done.get("req-a");
+        assertEquals(4_000, a.getTotalBarcodes());
+        assertEquals(4_000, a.getCheckpoint());
+        assertEquals(3_800, a.getSyncedBarcodes());
+        assertEquals(200, a.getNotFoundBarcodes());
+        assertNull(a.getLeaseOwner());
+
+        // Giới hạn stream và batch nhiều barcode mỗi stream
+        assertTrue(instrument.maxActive.get() <= MAX_STREAMS, "max streams " + instrument.maxActive.get());
+        assertTrue(instrument.maxActive.get() > 1, "streams never overlapped");
+        instrument.maxActivePerInstrument.forEach((key, max) ->
+                assertTrue(max.get() <= MAX_STREAMS_PER_INSTRUMENT, key + " max streams " + max.get()));
+        assertEquals(40 + 2 + 1, instrument.calls.get());
+
+        // Request nhỏ của instrument khác không phải chờ hết đợt sync lớn
+        assertTrue(done.get("req-b").getProcessedAt().isBefore(a.getProcessedAt()));
+        assertTrue(done.get("req-c").getProcessedAt().isBefore(a.getProcessedAt()));
+
+        assertEquals(total - 200, barcodeCounter("synced"));
+        assertEquals(200, barcodeCounter("not_found"));
+        assertEquals(0, meterRegistry.get("sync.up.barcodes.pending").gauge().value());
+        assertEquals(43, meterRegistry.get("sync.up.batch.duration").timer().count());
+    }
+
+    @Test
+    void brokenStreamsResumeAfterTheLastFlushedResult() throws Exception {
+        instrument.failuresToInject.set(2);
+        request("req-retry", "INS-R", barcodes("R", 1_000), 0);
+
+        SyncUpRequests done = runUntilCompleted(1).get("req-retry");
+
+        Map<String, Long> perType = outboxPerEventType(1_000);
+        assertEquals(1_000L, perType.get("RAW_RESULT_SYNCED"));
+        assertEquals(1_000, done.getSyncedBarcodes());
+        assertEquals(0, done.getFailedBarcodes());
+        assertEquals(10 + 2, instrument.calls.get());
+        // Stream đứt ở message thứ 51, outbox đã ghi tới message thứ 50 (window 50)
+        assertEquals(List.of("49", "49"), instrument.resumeTokens);
+        assertEquals(1_000, barcodeCounter("synced"));
+    }
+
+    @Test
+    void requestOfDeadReplicaResumesFromCheckpoint() throws Exception {
+        List<String> all = barcodes("K", 1_000);
+        SyncUpRequests orphan = request("req-resume", "INS-K", all, 0);
+        orphan.setStatus(SyncUpRequestsStatus.IN_PROGRESS);
+        orphan.setTotalBarcodes(1_000);
+        orphan.setCheckpoint(300);
+        orphan.setSyncedBarcodes(300);
+        orphan.setNotFoundBarcodes(0);
+        orphan.setFailedBarcodes(0);
+        orphan.setLeaseOwner("dead-replica");
+        orphan.setLeaseUntil(LocalDateTime.now().minusSeconds(5));
+        mongoTemplate.save(orphan);
+
+        // Request khác vẫn còn lease hợp lệ: không được nhận
+        SyncUpRequests leased = request("req-leased", "INS-L", barcodes("L", 10), 1);
+        leased.setStatus(SyncUpRequestsStatus.IN_PROGRESS);
+        leased.setLeaseOwner("live-replica");
+        leased.setLeaseUntil(LocalDateTime.now().plusMinutes(5));
+        mongoTemplate.save(leased);
+
+        SyncUpRequests done = runUntilCompleted(1).get("req-resume");
+
+        assertEquals(1_000, done.getCheckpoint());
+        assertEquals(1_000, done.getSyncedBarcodes());
+        assertEquals(Set.copyOf(all.subList(300, 1_000)), Set.copyOf(instrument.requested));
+        outboxPerEventType(700);
+        assertEquals(SyncUpRequestsStatus.IN_PROGRESS,
+                mongoTemplate.findById("req-leased", SyncUpRequests.class).getStatus());
+    }
+
+    @Test
+    void abandonedRequestReturnsSlotsOfBatchesStillInFlight() throws Exception {
+        // Ghi tiến độ lần đầu lỗi (Mongo chập chờn) trong khi batch thứ hai của cùng request còn đang chạy
+        FlakyMongoTemplate flaky = new FlakyMongoTemplate(client, 1);
+        engine.shutdown();
+        engine = new SyncUpEngine(flaky, new ObjectMapper(), syncClient, meterRegistry,
+                BATCH_SIZE, MAX_STREAMS, MAX_STREAMS_PER_INSTRUMENT, 64, 3, 10, Duration.ofMinutes(2));
+        instrument.gate = new CountDownLatch(1);
+        instrument.gatedBarcode = "F-100";
+        request("req-flaky", "INS-F", barcodes("F", 200), 0);
+
+        engine.poll();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while ((flaky.failed.get() == 0 || engine.activeRequests() > 0 || engine.activeStreams() > 1)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, flaky.failed.get(), "progress write never failed");
+        // Batch đầu đã trả slot, batch thứ hai vẫn giữ slot
+        assertEquals(1, engine.activeStreams());
+        assertEquals(0, engine.activeRequests());
+
+        // Batch thứ hai kết thúc sau khi request đã bị bỏ: slot của stream và của instrument phải được trả
+        instrument.gate.countDown();
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (engine.activeStreams() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, engine.activeStreams());
+
+        // Lần poll sau nhận lại request từ checkpoint 0 và chạy xong
+        SyncUpRequests done = runUntilCompleted(1).get("req-flaky");
+        assertEquals(200, done.getCheckpoint());
+        assertEquals(200, done.getSyncedBarcodes());
+        assertEquals(0, engine.activeStreams());
+        assertEquals(0, engine.activeRequests());
+        assertEquals(0, meterRegistry.get("sync.up.barcodes.pending").gauge().value());
+    }
+
+    @Test
+    void requestTakenOverByAnotherReplicaIsNotWritten() throws Exception {
+        instrument.gate = new CountDownLatch(1);
+        instrument.gatedBarcode = "T-0";
+        request("req-taken", "INS-T", barcodes("T", 100), 0);
+
+        engine.poll();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (instrument.calls.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        // Lease hết hạn trong lúc stream chạy và replica khác đã nhận request
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is("req-taken")),
+                new Update().set("leaseOwner", "other-replica").set("leaseUntil", LocalDateTime.now().plusMinutes(5)),
+                SyncUpRequests.class);
+
+        engine.poll();
+        assertEquals(0, engine.activeRequests());
+
+        instrument.gate.countDown();
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (engine.activeStreams() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, engine.activeStreams());
+        engine.poll();
+        assertEquals(0, engine.activeRequests());
+
+        SyncUpRequests taken = mongoTemplate.findById("req-taken", SyncUpRequests.class);
+        assertEquals(SyncUpRequestsStatus.IN_PROGRESS, taken.getStatus());
+        assertEquals("other-replica", taken.getLeaseOwner());
+        assertNull(taken.getCheckpoint());
+        assertEquals(0, meterRegistry.get("sync.up.barcodes.pending").gauge().value());
+    }
+
+    /**
+     * MongoTemplate lỗi ở failures lần ghi tiến độ (checkpoint) đầu tiên.
+     */
+    private static final class FlakyMongoTemplate extends MongoTemplate {
+
+        final AtomicInteger failuresLeft;
+        final AtomicInteger failed = new AtomicInteger();
+
+        FlakyMongoTemplate(MongoClient client, int failures) {
+            super(client, "monitoring_sync_up_test");
+            this.failuresLeft = new AtomicInteger(failures);
+        }
+
+        @Override
+        public UpdateResult updateFirst(Query query, UpdateDefinition update, Class<?> entityClass) {
+            if (update.modifies("checkpoint") && failuresLeft.getAndDecrement() > 0) {
+                failed.incrementAndGet();
+                throw new IllegalStateException("mongo unavailable");
+            }
+            return super.updateFirst(query, update, entityClass);
+        }
+    }
+
+    /**
+     * instrument-service giả: mỗi barcode (trừ missing) có một kết quả; có thể làm đứt stream giữa chừng.
+     * continuation_token là vị trí của message trong danh sách barcode của request.
+     */
+    private static final class FakeInstrumentSync extends InstrumentSyncServiceGrpc.InstrumentSyncServiceImplBase {
+
+        final Set<String> missing = ConcurrentHashMap.newKeySet();
+        final List<String> requested = Collections.synchronizedList(new ArrayList<>());
+        final List<String> resumeTokens = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger failuresToInject = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final Map<String, AtomicInteger> activePerInstrument = new ConcurrentHashMap<>();
+        final Map<String, AtomicInteger> maxActivePerInstrument = new ConcurrentHashMap<>();
+        // Stream có gatedBarcode chờ gate (một lần) trước khi trả kết quả
+        volatile CountDownLatch gate;
+        volatile String gatedBarcode;
+
+        @Override
+        public void syncUpTestResults(InstrumentSyncUpRequest request, StreamObserver<RawTestResultMessage> responseObserver) {
+            calls.incrementAndGet();
+            String lane = request.getInstrumentId();
+            AtomicInteger laneActive = activePerInstrument.computeIfAbsent(lane, key -> new AtomicInteger());
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            maxActivePerInstrument.computeIfAbsent(lane, key -> new AtomicInteger())
+                    .accumulateAndGet(laneActive.incrementAndGet(), Math::max);
+            try {
+                requested.addAll(request.getBarcodesList());
+                int start = 0;
+                if (!request.getContinuationToken().isEmpty()) {
+                    resumeTokens.add(request.getContinuationToken());
+                    start = Integer.parseInt(request.getContinuationToken()) + 1;
+                }
+                CountDownLatch waitFor = gate;
+                if (waitFor != null && request.getBarcodesList().contains(gatedBarcode)) {
+                    gate = null;
+                    waitFor.await(30, TimeUnit.SECONDS);
+                }
+                Thread.sleep(5);
+                boolean fail = failuresToInject.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+                List<String> barcodes = request.getBarcodesList();
+                for (int i = start; i < barcodes.size(); i++) {
+                    if (fail && i >= barcodes.size() / 2) {
+                        responseObserver.onError(Status.UNAVAILABLE.withDescription("connection reset").asRuntimeException());
+                        return;
+                    }
+                    String barcode = barcodes.get(i);
+                    if (missing.contains(barcode)) {
+                        continue;
+                    }
+                    responseObserver.onNext(RawTestResultMessage.newBuilder()
+                            .setBarcode(barcode)
+                            .setRunId("RUN-" + lane)
+                            .setHl7Message("MSH|^~\\&|ANALYZER|" + barcode)
+                            .setStatus("RECEIVED")
+                            .setTestType("CBC")
+                            .setInstrumentCode(lane)
+                            .setContinuationToken(String.valueOf(i))
+                            .build());
+                }
+                responseObserver.onCompleted();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                responseObserver.onError(Status.CANCELLED.asRuntimeException());
+            } finally {
+                laneActive.decrementAndGet();
+                active.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.overcode250204.patientservice.configs.aesgcm;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * AES-GCM cho các cột mã hoá (định dạng base64(iv || ciphertext || tag), giống AESEncryptionServiceImpl cũ).
+ *
+ * Mỗi thread giữ một Cipher cho encrypt, một cho decrypt và hai buffer tạm: Cipher.getInstance chỉ chạy một lần
+ * mỗi thread, và SunJCE bỏ qua bước mở rộng key khi init lại với cùng một key. IV lấy từ SecureRandom dùng chung.
+ * Encrypt ghi iv và ciphertext thẳng vào một mảng; decrypt giải base64 vào buffer của thread rồi giải mã tại chỗ
+ * (iv đọc theo offset), không cắt mảng trung gian.
+ */
+public final class AesGcmCipherEngine {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_SIZE = 12;
+    private static final int TAG_BIT_LENGTH = 128;
+    private static final int TAG_SIZE = TAG_BIT_LENGTH / 8;
+    // Buffer lớn hơn mức này (vd test_results_json rất dài) không được giữ lại trên thread
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private final SecretKey key;
+    private final SecureRandom secureRandom;
+    private final ThreadLocal<ThreadState> state = ThreadLocal.withInitial(ThreadState::new);
+
+    private static final class ThreadState {
+        private Cipher encryptCipher;
+        private Cipher decryptCipher;
+        private final byte[] iv = new byte[IV_SIZE];
+        private byte[] decoded = new byte[256];
+        private byte[] plain = new byte[256];
+    }
+
+    public AesGcmCipherEngine(SecretKey key, SecureRandom secureRandom) {
+        this.key = key;
+        this.secureRandom = secureRandom;
+    }
+
+    public String encrypt(String plaintext) throws GeneralSecurityException {
+        byte[] input = plaintext.getBytes(StandardCharsets.UTF_8);
+        byte[] combined = new byte[IV_SIZE + input.length + TAG_SIZE];
+
+        ThreadState threadState = state.get();
+        secureRandom.nextBytes(threadState.iv);
+        System.arraycopy(threadState.iv, 0, combined, 0, IV_SIZE);
+
+        if (threadState.encryptCipher == null) {
+            threadState.encryptCipher = Cipher.getInstance(TRANSFORMATION);
+        }
+        Cipher cipher = threadState.encryptCipher;
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BIT_LENGTH, combined, 0, IV_SIZE));
+        cipher.doFinal(input, 0, input.length, combined, IV_SIZE);
+
+        return Base64.getEncoder().encodeToString(combined);
+    }
+
+    public String decrypt(String base64Ciphertext) throws GeneralSecurityException {
+        // Chuỗi base64 chỉ có ký tự ASCII, getBytes(ISO_8859_1) là copy thẳng từ chuỗi compact
+        byte[] encoded = base64Ciphertext.getBytes(StandardCharsets.ISO_8859_1);
+
+        ThreadState threadState = state.get();
+        byte[] decoded = buffer(threadState.decoded, encoded.length * 3 / 4);
+        int length = Base64.getDecoder().decode(encoded, decoded);
+        if (length < IV_SIZE + TAG_SIZE) {
+            throw new GeneralSecurityException("Ciphertext too short");
+        }
+
+        if (threadState.decryptCipher == null) {
+            threadState.decryptCipher = Cipher.getInstance(TRANSFORMATION);
+        }
+        Cipher cipher = threadState.decryptCipher;
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BIT_LENGTH, decoded, 0, IV_SIZE));
+        byte[] plain = buffer(threadState.plain, length - IV_SIZE - TAG_SIZE);
+        int plainLength = cipher.doFinal(decoded, IV_SIZE, length - IV_SIZE, plain, 0);
+        String result = new String(plain, 0, plainLength, StandardCharsets.UTF_8);
+
+        retain(threadState, decoded, plain);
+        return result;
+    }
+
+    private static byte[] buffer(byte[] current, int size) {
+        return current.length >= size ? current : new byte[Math.max(size, current.length * 2)];
+    }
+
+    private static void retain(ThreadState threadState, byte[] decoded, byte[] plain) {
+        if (decoded.length <= MAX_RETAINED_BUFFER) {
+            threadState.decoded = decoded;
+        }
+        if (plain.length <= MAX_RETAINED_BUFFER) {
+            threadState.plain = plain;
+        }
+    }
+}
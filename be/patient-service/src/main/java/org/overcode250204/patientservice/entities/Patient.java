@@ -16,6 +16,9 @@ import java.util.List;
 import java.util.UUID;
 
 @Entity(name = "patient")
+// Unique index ux_patient_email_hash / ux_patient_phone_hash do PatientBlindIndexBackfill tạo sau khi backfill,
+// không để ddl-auto tạo trước khi các hash trùng được xử lý
+@Table(name = "patient")
 @AllArgsConstructor
 @NoArgsConstructor
 @Getter
@@ -43,14 +46,15 @@ public class Patient {
     @Column(name = "gender")
     private Gender gender;
 
-    @Column(name = "phone", unique = true)
+    // Mã hoá với IV ngẫu nhiên: tìm kiếm / kiểm tra trùng phải đi qua phoneHash
+    @Column(name = "phone")
     @Convert(converter = EncryptionConverter.class)
     private String phone;
 
     @Column(name = "cognito_sub")
     private String cognitoSub;
 
-    @Column(name = "email", unique = true)
+    @Column(name = "email")
     @Convert(converter = EncryptionConverter.class)
     private String email;
 
@@ -58,10 +62,11 @@ public class Patient {
     @Convert(converter = EncryptionConverter.class)
     private String address;
 
-    @Column(name = "email_hash")
+    // Blind index (HashUtil.emailBlindIndex / phoneBlindIndex), phải cập nhật cùng lúc với email / phone
+    @Column(name = "email_hash", length = 44)
     private String emailHash;
 
-    @Column(name = "phone_hash")
+    @Column(name = "phone_hash", length = 44)
     private String phoneHash;
 
 
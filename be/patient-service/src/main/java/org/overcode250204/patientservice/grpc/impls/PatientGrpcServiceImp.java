@@ -39,8 +39,8 @@ public class PatientGrpcServiceImp extends PatientServiceGrpc.PatientServiceImpl
     @Override
     public void ensurePatient(PatientIdentityInfo request, StreamObserver<PatientRecord> responseObserver) {
         LocalDate dob = LocalDate.parse(request.getDob());
-        String emailHash = hashUtil.hmacSha256Base64(request.getEmail());
-        String phoneHash = hashUtil.hmacSha256Base64(request.getPhone());
+        String emailHash = hashUtil.emailBlindIndex(request.getEmail());
+        String phoneHash = hashUtil.phoneBlindIndex(request.getPhone());
         Optional<Patient> patientExist = patientRepository.findByDateOfBirthAndPhoneOrEmail(dob, phoneHash, emailHash);
         boolean createdNew = false;
         Patient patient;
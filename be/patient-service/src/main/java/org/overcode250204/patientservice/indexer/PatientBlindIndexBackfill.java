@@ -0,0 +1,153 @@
+package org.overcode250204.patientservice.indexer;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.patientservice.entities.Patient;
+import org.overcode250204.patientservice.repositories.PatientRepository;
+import org.overcode250204.patientservice.utils.HashUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Tính lại email_hash / phone_hash cho bệnh nhân đã có từ trước khi có blind index chuẩn hoá
+ * (số điện thoại trước đây chỉ trim + lowercase). Duyệt theo keyset trên id, mỗi batch một transaction,
+ * chỉ ghi những dòng có hash thay đổi nên chạy lại nhiều lần vẫn an toàn.
+ *
+ * Unique index ux_patient_email_hash / ux_patient_phone_hash được tạo sau backfill, nên khi cả hai đã tồn tại thì
+ * backfill đã xong và không cần duyệt lại bảng. Chỉ khi còn thiếu index mới chạy, trên một thread riêng sau khi
+ * ứng dụng sẵn sàng để không chặn startup; bệnh nhân ghi đồng thời đã dùng hash chuẩn hoá, và trùng lặp còn sót
+ * được xử lý khi tạo index (bảng bị khoá ghi lúc đó).
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class PatientBlindIndexBackfill {
+
+    static final String EMAIL_INDEX = "ux_patient_email_hash";
+    static final String PHONE_INDEX = "ux_patient_phone_hash";
+
+    private static final int BATCH_SIZE = 200;
+    private static final UUID MIN_ID = new UUID(0L, 0L);
+
+    private final PatientRepository patientRepository;
+    private final HashUtil hashUtil;
+    private final TransactionTemplate transactionTemplate;
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${app.blind-index.backfill-on-startup:true}")
+    private boolean enabled;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        Thread.ofPlatform().name("patient-blind-index-backfill").daemon().start(() -> {
+            try {
+                run();
+            } catch (Exception ex) {
+                log.error("Blind index backfill failed, will retry on next startup", ex);
+            }
+        });
+    }
+
+    public void run() {
+        if (indexExists(EMAIL_INDEX) && indexExists(PHONE_INDEX)) {
+            return;
+        }
+        if (enabled) {
+            backfill();
+        }
+        createUniqueIndexes();
+    }
+
+    public void backfill() {
+        UUID afterId = MIN_ID;
+        int updated = 0;
+        while (true) {
+            UUID cursor = afterId;
+            BatchResult result = transactionTemplate.execute(status -> backfillBatch(cursor));
+            if (result == null || result.lastId() == null) {
+                break;
+            }
+            updated += result.updated();
+            afterId = result.lastId();
+        }
+        if (updated > 0) {
+            log.info("Recomputed blind index for {} patients", updated);
+        }
+    }
+
+    /**
+     * Tạo hai unique index nếu chưa có. Hash còn trùng mà backfill không xử lý (dòng có hash không đổi, hoặc
+     * backfill bị tắt) được để null, giữ bệnh nhân tạo sớm nhất. Bảng bị khoá ghi trong lúc chạy để các replica
+     * khởi động cùng lúc chạy lần lượt.
+     */
+    public void createUniqueIndexes() {
+        transactionTemplate.executeWithoutResult(status -> {
+            if (indexExists(EMAIL_INDEX) && indexExists(PHONE_INDEX)) {
+                return;
+            }
+            jdbcTemplate.execute("LOCK TABLE patient IN SHARE ROW EXCLUSIVE MODE");
+            createUniqueIndex(EMAIL_INDEX, "email_hash");
+            createUniqueIndex(PHONE_INDEX, "phone_hash");
+        });
+    }
+
+    private void createUniqueIndex(String indexName, String column) {
+        if (indexExists(indexName)) {
+            return;
+        }
+        int cleared = jdbcTemplate.update("UPDATE patient SET " + column + " = NULL WHERE patient_id IN ("
+                + "SELECT patient_id FROM (SELECT patient_id, row_number() OVER (PARTITION BY " + column
+                + " ORDER BY created_at, patient_id) AS rn FROM patient WHERE " + column + " IS NOT NULL) ranked WHERE rn > 1)");
+        if (cleared > 0) {
+            log.warn("Cleared {} duplicate {} values before creating {}", cleared, column, indexName);
+        }
+        jdbcTemplate.execute("CREATE UNIQUE INDEX " + indexName + " ON patient (" + column + ")");
+        log.info("Created unique index {}", indexName);
+    }
+
+    private boolean indexExists(String indexName) {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, indexName));
+    }
+
+    private BatchResult backfillBatch(UUID afterId) {
+        List<Patient> batch = patientRepository.findBatchAfter(afterId, PageRequest.of(0, BATCH_SIZE));
+        if (batch.isEmpty()) {
+            return new BatchResult(null, 0);
+        }
+        int updated = 0;
+        for (Patient patient : batch) {
+            String emailHash = hashUtil.emailBlindIndex(patient.getEmail());
+            String phoneHash = hashUtil.phoneBlindIndex(patient.getPhone());
+            if (Objects.equals(emailHash, patient.getEmailHash()) && Objects.equals(phoneHash, patient.getPhoneHash())) {
+                continue;
+            }
+            // Trùng với bệnh nhân khác: để null cho tới khi dữ liệu được xử lý tay, không chặn cả batch
+            if (emailHash != null && patientRepository.existsByEmailHashAndIdNot(emailHash, patient.getId())) {
+                log.warn("Patient {} shares email with another patient, email blind index left empty", patient.getId());
+                emailHash = null;
+            }
+            if (phoneHash != null && patientRepository.existsByPhoneHashAndIdNot(phoneHash, patient.getId())) {
+                log.warn("Patient {} shares phone with another patient, phone blind index left empty", patient.getId());
+                phoneHash = null;
+            }
+            patient.setEmailHash(emailHash);
+            patient.setPhoneHash(phoneHash);
+            // flush từng dòng để kiểm tra trùng của các dòng sau trong cùng batch thấy được giá trị mới
+            patientRepository.saveAndFlush(patient);
+            updated++;
+        }
+        return new BatchResult(batch.get(batch.size() - 1).getId(), updated);
+    }
+
+    private record BatchResult(UUID lastId, int updated) {
+    }
+}
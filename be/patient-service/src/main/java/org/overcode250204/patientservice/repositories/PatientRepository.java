@@ -1,6 +1,7 @@
 package org.overcode250204.patientservice.repositories;
 
 import org.overcode250204.patientservice.entities.Patient;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
@@ -18,9 +19,17 @@ public interface PatientRepository extends JpaRepository<Patient, UUID> {
 """)
     Optional<Patient> findByDateOfBirthAndPhoneOrEmail(@Param("dateOfBirth") LocalDate dateOfBirth, @Param("phoneHash") String phoneHash, @Param("emailHash") String emailHash);
 
-    boolean existsByEmail(String email);
+    // Kiểm tra trùng qua blind index (unique index ux_patient_email_hash / ux_patient_phone_hash)
+    boolean existsByEmailHash(String emailHash);
 
-    boolean existsByPhone(String phone);
+    boolean existsByPhoneHash(String phoneHash);
+
+    boolean existsByEmailHashAndIdNot(String emailHash, UUID id);
+
+    boolean existsByPhoneHashAndIdNot(String phoneHash, UUID id);
+
+    @Query("SELECT p FROM patient p WHERE p.id > :afterId ORDER BY p.id")
+    List<Patient> findBatchAfter(@Param("afterId") UUID afterId, Pageable pageable);
 
     Optional<Patient> findByPatientCode(UUID patientCode);
 
@@ -76,12 +76,18 @@ public class MedicalRecordServiceImpl implements MedicalRecordService {
         MedicalRecord savedRecord = null;
         Patient savedPatient = null;
         try {
-            String emailHash = hashUtil.hmacSha256Base64(dto.getEmail());
-            String phoneHash = hashUtil.hmacSha256Base64(dto.getPhoneNumber());
+            String emailHash = hashUtil.emailBlindIndex(dto.getEmail());
+            String phoneHash = hashUtil.phoneBlindIndex(dto.getPhoneNumber());
             Optional<Patient> patientExisted = patientRepository.findByDateOfBirthAndPhoneOrEmail(dto.getDateOfBirth(), phoneHash, emailHash);
             if (!patientExisted.isEmpty()) {
                 throw new PatientException(ErrorCode.PATIENT_EXISTED);
             }
+            if (emailHash != null && patientRepository.existsByEmailHash(emailHash)) {
+                throw new PatientException(ErrorCode.EMAIL_ALREADY_USED);
+            }
+            if (phoneHash != null && patientRepository.existsByPhoneHash(phoneHash)) {
+                throw new PatientException(ErrorCode.PHONE_ALREADY_USED);
+            }
             Patient patient = new Patient();
             patient.setFullName(dto.getFullName());
             patient.setDateOfBirth(dto.getDateOfBirth());
@@ -107,6 +113,8 @@ public class MedicalRecordServiceImpl implements MedicalRecordService {
             List<String> changes = List.of(String.format("New MedicalRecord (ID: %s) created for Patient (ID: %s)",
                     savedRecord.getId(), savedPatient.getId()));
             createOutboxEvent(savedRecord, "PATIENT_MEDICALRECORD_CREATED", changes, createdByLabUser);
+        } catch (PatientException e) {
+            throw e;
         } catch (Exception e) {
             throw new PatientException(ErrorCode.ERROR_TO_CREATE_MEDICAL_RECORD);
         }
@@ -121,23 +129,28 @@ public class MedicalRecordServiceImpl implements MedicalRecordService {
     public MedicalRecordDTO updateRecord(UUID recordId, MedicalRecordUpdateDTO medicalRecordUpdateDTO, String updatedBy) {
         MedicalRecord medicalRecord = null;
         try {
+            //Find medical record by Id
+            medicalRecord = medicalRecordRepository.findById(recordId)
+                    .orElseThrow(() -> new PatientException(ErrorCode.RECORD_NOT_FOUND));
+
+            //If patientCode of medical record doesn't matching with patientCode at client request that will throw ex
+            Patient patient = medicalRecord.getPatient();
+
+            // Trùng email / phone với bệnh nhân khác: một lần tra unique index blind index cho mỗi cột
+            String newEmailHash = null;
+            String newPhoneHash = null;
             if (medicalRecordUpdateDTO.getPatientDTO() != null) {
                 PatientDTO patientDTO = medicalRecordUpdateDTO.getPatientDTO();
+                newEmailHash = hashUtil.emailBlindIndex(patientDTO.getEmail());
+                newPhoneHash = hashUtil.phoneBlindIndex(patientDTO.getPhoneNumber());
 
-                if (patientDTO.getEmail() != null && patientRepository.existsByEmail(patientDTO.getEmail())) {
+                if (newEmailHash != null && patientRepository.existsByEmailHashAndIdNot(newEmailHash, patient.getId())) {
                     throw new PatientException(ErrorCode.EMAIL_ALREADY_USED);
                 }
-                if (patientDTO.getPhoneNumber() != null && patientRepository.existsByPhone(patientDTO.getPhoneNumber())) {
+                if (newPhoneHash != null && patientRepository.existsByPhoneHashAndIdNot(newPhoneHash, patient.getId())) {
                     throw new PatientException(ErrorCode.PHONE_ALREADY_USED);
                 }
             }
-
-            //Find medical record by Id
-            medicalRecord = medicalRecordRepository.findById(recordId)
-                    .orElseThrow(() -> new PatientException(ErrorCode.RECORD_NOT_FOUND));
-
-            //If patientCode of medical record doesn't matching with patientCode at client request that will throw ex
-            Patient patient = medicalRecord.getPatient();
             createHistoryVersion(patient, medicalRecord, updatedBy);
 
 
@@ -149,6 +162,12 @@ public class MedicalRecordServiceImpl implements MedicalRecordService {
                 auditLogUtils.updateField(patient.getEmail(), patientDTO.getEmail(), patient::setEmail, "email", changes);
                 auditLogUtils.updateField(patient.getAddress(), patientDTO.getAddress(), patient::setAddress, "address", changes);
                 auditLogUtils.updateField(patient.getFullName(), patientDTO.getFullName(), patient::setFullName, "fullName", changes);
+                if (newEmailHash != null) {
+                    patient.setEmailHash(newEmailHash);
+                }
+                if (newPhoneHash != null) {
+                    patient.setPhoneHash(newPhoneHash);
+                }
 
                 patient.setUpdatedBy(UUID.fromString(updatedBy));
                 patient.setUpdatedAt(Instant.now());
@@ -201,6 +220,8 @@ public class MedicalRecordServiceImpl implements MedicalRecordService {
                 outboxEvent.setAggregateType("PATIENT_MEDICALRECORD_UPDATED_TESTORDER");
                 outboxRepository.save(outboxEvent);
             }
+        } catch (PatientException e) {
+            throw e;
         } catch (Exception e) {
             throw new PatientException(ErrorCode.FAIL_TO_UPDATE_MEDICALRECORD);
         }
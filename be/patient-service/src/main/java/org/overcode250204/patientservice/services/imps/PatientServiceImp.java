@@ -15,6 +15,7 @@ import org.overcode250204.patientservice.repositories.PatientRepository;
 import org.overcode250204.patientservice.services.MedicalRecordSyncService;
 import org.overcode250204.patientservice.services.PatientService;
 import org.overcode250204.patientservice.utils.AuditLogUtils;
+import org.overcode250204.patientservice.utils.HashUtil;
 import org.overcode250204.patientservice.utils.MaskData;
 import org.springframework.stereotype.Service;
 
@@ -40,6 +41,8 @@ public class PatientServiceImp implements PatientService {
 
     private final MedicalRecordSyncService medicalRecordSyncService;
 
+    private final HashUtil hashUtil;
+
     @Override
     public PatientDTO updatePatient(UUID patientCode, PatientDTO patientDTO, String updatedBy) {
 
@@ -48,11 +51,13 @@ public class PatientServiceImp implements PatientService {
         try {
             Patient patient = patientRepository.findByPatientCode(patientCode)
                     .orElseThrow(() -> new PatientException(ErrorCode.PATIENT_CODE_DOES_NOT_EXIST));
-            if (patientRepository.existsByEmail(patientDTO.getEmail())) {
+            String emailHash = hashUtil.emailBlindIndex(patientDTO.getEmail());
+            String phoneHash = hashUtil.phoneBlindIndex(patientDTO.getPhoneNumber());
+            if (emailHash != null && patientRepository.existsByEmailHashAndIdNot(emailHash, patient.getId())) {
                 throw new PatientException(ErrorCode.EMAIL_IS_USED);
             }
 
-            if (patientRepository.existsByPhone(patientDTO.getPhoneNumber())) {
+            if (phoneHash != null && patientRepository.existsByPhoneHashAndIdNot(phoneHash, patient.getId())) {
                 throw new PatientException(ErrorCode.PHONE_IS_USED);
             }
             List<String> changes = new ArrayList<>();
@@ -63,11 +68,13 @@ public class PatientServiceImp implements PatientService {
             auditLogUtils.updateField(patient.getGender(), patientDTO.getGender(), patient::setGender, "gender", changes);
             if (patientDTO.getEmail() != null) {
                 patient.setEmail(patientDTO.getEmail());
+                patient.setEmailHash(emailHash);
                 changes.add(String.format("Field 'email' was updated (from: '%s' to: '%s')",
                         MaskData.maskData(patient.getEmail(), true), MaskData.maskData(patientDTO.getEmail(), true)));
             }
             if (patientDTO.getPhoneNumber() != null) {
                 patient.setPhone(patientDTO.getPhoneNumber());
+                patient.setPhoneHash(phoneHash);
                 changes.add(String.format("Field 'phone' was updated (from: '%s' to: '%s')",
                         MaskData.maskData(patient.getPhone(), true), MaskData.maskData(patientDTO.getPhoneNumber(), true)));
             }
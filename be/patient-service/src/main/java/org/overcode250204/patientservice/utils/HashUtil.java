@@ -5,24 +5,52 @@ import org.springframework.stereotype.Component;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 
+/**
+ * HMAC-SHA256 với pepper, dùng làm blind index cho các cột PII mã hoá (AES-GCM IV ngẫu nhiên nên không so sánh
+ * được trực tiếp). Giá trị được chuẩn hoá trước khi băm để cùng một email / số điện thoại luôn ra cùng một index.
+ */
 @Component
 public class HashUtil {
 
     @Value("${security.pepper.base64}")
     private String base64;
 
-    public String hmacSha256Base64(String input) {
+    // Mac đã init theo thread, tránh Mac.getInstance + decode pepper cho mỗi lần băm (backfill băm cả bảng)
+    private final ThreadLocal<Mac> mac = ThreadLocal.withInitial(() -> {
         try {
-            byte[] pepper = Base64.getDecoder().decode(base64);
-            SecretKeySpec key = new SecretKeySpec(pepper, "HmacSHA256");
-            Mac mac = Mac.getInstance("HmacSHA256");
-            mac.init(key);
-            byte[] raw = mac.doFinal(input.trim().toLowerCase().getBytes("UTF-8"));
-            return Base64.getEncoder().encodeToString(raw);
-        } catch (Exception e){
+            Mac instance = Mac.getInstance("HmacSHA256");
+            instance.init(new SecretKeySpec(Base64.getDecoder().decode(base64), "HmacSHA256"));
+            return instance;
+        } catch (Exception e) {
             throw new RuntimeException(e);
         }
+    });
+
+    public String hmacSha256Base64(String input) {
+        return hmac(input.trim().toLowerCase());
+    }
+
+    // Giống hmacSha256Base64 (trim + lowercase), khớp emailHash mà iam-service gửi trong iam.patient.created
+    public String emailBlindIndex(String email) {
+        if (email == null || email.isBlank()) return null;
+        return hmac(email.trim().toLowerCase());
+    }
+
+    // Chỉ giữ chữ số, "+84" / "84" đầu số đổi về "0": "+84 912-345-678" và "0912345678" cùng một index
+    public String phoneBlindIndex(String phone) {
+        if (phone == null || phone.isBlank()) return null;
+        String digits = phone.replaceAll("\\D", "");
+        if (digits.startsWith("84") && digits.length() == 11) {
+            digits = "0" + digits.substring(2);
+        }
+        return digits.isEmpty() ? null : hmac(digits);
+    }
+
+    private String hmac(String normalized) {
+        byte[] raw = mac.get().doFinal(normalized.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(raw);
     }
 }
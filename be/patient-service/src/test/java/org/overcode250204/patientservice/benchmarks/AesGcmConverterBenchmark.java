@@ -0,0 +1,150 @@
+package org.overcode250204.patientservice.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.overcode250204.patientservice.configs.aesgcm.EncryptionConverter;
+import org.overcode250204.patientservice.services.AESEncryptionService;
+import org.overcode250204.patientservice.services.imps.AESEncryptionServiceImpl;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * So sánh AESEncryptionServiceImpl cũ (Cipher.getInstance + mảng trung gian cho mỗi lần gọi) với bản dùng
+ * AesGcmCipherEngine: encrypt / decrypt một cột ngắn (email) và hydrate một trang 20 MedicalRecord qua
+ * EncryptionConverter (patient phone / email / address, 3 clinical note, 2 test record ~2KB JSON mỗi record).
+ *
+ * Không cần hạ tầng ngoài:
+ *   mvn -Pjmh test-compile exec:exec -Djmh.include=AesGcmConverterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class AesGcmConverterBenchmark {
+    private static final int PAGE_SIZE = 20;
+    private static final int NOTES_PER_RECORD = 3;
+    private static final int TESTS_PER_RECORD = 2;
+
+    @Param({"legacy", "pooled"})
+    public String implementation;
+
+    private EncryptionConverter converter;
+    private String email;
+    private String encryptedEmail;
+    // [record][cột]: các giá trị đã mã hoá của một trang MedicalRecord
+    private String[][] encryptedPage;
+
+    // Bản AESEncryptionServiceImpl trước khi có AesGcmCipherEngine
+    static final class LegacyAESEncryptionService implements AESEncryptionService {
+        private final SecretKey key;
+        private final SecureRandom secureRandom;
+
+        LegacyAESEncryptionService(SecretKey key, SecureRandom secureRandom) {
+            this.key = key;
+            this.secureRandom = secureRandom;
+        }
+
+        @Override
+        public String encrypt(String plaintext) {
+            try {
+                byte[] iv = new byte[12];
+                secureRandom.nextBytes(iv);
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+                byte[] ct = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+                byte[] combined = new byte[iv.length + ct.length];
+                System.arraycopy(iv, 0, combined, 0, iv.length);
+                System.arraycopy(ct, 0, combined, iv.length, ct.length);
+                return Base64.getEncoder().encodeToString(combined);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String decrypt(String base64Ciphertext) {
+            try {
+                byte[] all = Base64.getDecoder().decode(base64Ciphertext);
+                byte[] iv = new byte[12];
+                System.arraycopy(all, 0, iv, 0, 12);
+                byte[] ct = new byte[all.length - 12];
+                System.arraycopy(all, 12, ct, 0, ct.length);
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+                return new String(cipher.doFinal(ct), StandardCharsets.UTF_8);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        byte[] keyBytes = new byte[32];
+        SecureRandom secureRandom = new SecureRandom();
+        secureRandom.nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+
+        AESEncryptionService service = "legacy".equals(implementation)
+                ? new LegacyAESEncryptionService(key, secureRandom)
+                : new AESEncryptionServiceImpl(key, secureRandom);
+        converter = new EncryptionConverter(service);
+
+        email = "nguyen.van.an@example.com";
+        encryptedEmail = converter.convertToDatabaseColumn(email);
+
+        String note = "Bệnh nhân ổn định, tiếp tục theo dõi công thức máu sau 2 tuần. ".repeat(5);
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 25; i++) {
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"parameter\":\"PARAM_").append(i)
+                    .append("\",\"value\":").append(4.2 + i)
+                    .append(",\"unit\":\"10^9/L\",\"flag\":\"NORMAL\",\"range\":\"3.5-10.0\"}");
+        }
+        String testResultsJson = json.append("]").toString();
+
+        encryptedPage = new String[PAGE_SIZE][];
+        for (int r = 0; r < PAGE_SIZE; r++) {
+            String[] columns = new String[3 + NOTES_PER_RECORD + TESTS_PER_RECORD];
+            columns[0] = converter.convertToDatabaseColumn("09" + (10_000_000 + r));
+            columns[1] = converter.convertToDatabaseColumn("patient" + r + "@example.com");
+            columns[2] = converter.convertToDatabaseColumn(r + " Lê Lợi, Quận 1, TP. Hồ Chí Minh");
+            for (int n = 0; n < NOTES_PER_RECORD; n++) {
+                columns[3 + n] = converter.convertToDatabaseColumn(note);
+            }
+            for (int t = 0; t < TESTS_PER_RECORD; t++) {
+                columns[3 + NOTES_PER_RECORD + t] = converter.convertToDatabaseColumn(testResultsJson);
+            }
+            encryptedPage[r] = columns;
+        }
+    }
+
+    @Benchmark
+    public String encryptField() {
+        return converter.convertToDatabaseColumn(email);
+    }
+
+    @Benchmark
+    public String decryptField() {
+        return converter.convertToEntityAttribute(encryptedEmail);
+    }
+
+    // Số trang MedicalRecord / ms: mọi cột mã hoá của trang đi qua convertToEntityAttribute như lúc Hibernate load
+    @Benchmark
+    public void hydrateMedicalRecordPage(Blackhole blackhole) {
+        for (String[] record : encryptedPage) {
+            for (String column : record) {
+                blackhole.consume(converter.convertToEntityAttribute(column));
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.overcode250204.patientservice.indexer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.overcode250204.patientservice.entities.Patient;
+import org.overcode250204.patientservice.repositories.PatientRepository;
+import org.overcode250204.patientservice.utils.HashUtil;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Backfill blind index với repository giả lập trong bộ nhớ: bệnh nhân có số điện thoại / email trùng sau khi
+ * chuẩn hoá được để null, và unique index chỉ được tạo sau khi backfill xong.
+ */
+class PatientBlindIndexBackfillTest {
+
+    private final List<Patient> table = new ArrayList<>();
+    private PatientRepository patientRepository;
+    private JdbcTemplate jdbcTemplate;
+    private HashUtil hashUtil;
+    private PatientBlindIndexBackfill backfill;
+
+    @BeforeEach
+    void setUp() {
+        hashUtil = new HashUtil();
+        ReflectionTestUtils.setField(hashUtil, "base64", Base64.getEncoder().encodeToString("test-pepper-0123456789".getBytes()));
+
+        patientRepository = mock(PatientRepository.class);
+        when(patientRepository.findBatchAfter(any(), any())).thenAnswer(inv -> {
+            UUID afterId = inv.getArgument(0);
+            int size = inv.<Pageable>getArgument(1).getPageSize();
+            return table.stream().filter(p -> p.getId().compareTo(afterId) > 0)
+                    .sorted((a, b) -> a.getId().compareTo(b.getId())).limit(size).toList();
+        });
+        when(patientRepository.existsByEmailHashAndIdNot(any(), any()))
+                .thenAnswer(inv -> takenByOther(Patient::getEmailHash, inv.getArgument(0), inv.getArgument(1)));
+        when(patientRepository.existsByPhoneHashAndIdNot(any(), any()))
+                .thenAnswer(inv -> takenByOther(Patient::getPhoneHash, inv.getArgument(0), inv.getArgument(1)));
+        when(patientRepository.saveAndFlush(any())).thenAnswer(inv -> inv.getArgument(0));
+
+        jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.queryForObject(anyString(), eq(Boolean.class), anyString())).thenReturn(false);
+
+        PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+
+        backfill = new PatientBlindIndexBackfill(patientRepository, hashUtil, new TransactionTemplate(transactionManager), jdbcTemplate);
+        ReflectionTestUtils.setField(backfill, "enabled", true);
+    }
+
+    private boolean takenByOther(Function<Patient, String> column, String hash, UUID id) {
+        return table.stream().anyMatch(p -> !p.getId().equals(id) && Objects.equals(column.apply(p), hash));
+    }
+
+    private Patient patient(long id, String email, String phone, String legacyPhoneHash) {
+        Patient patient = Patient.builder()
+                .id(new UUID(0L, id))
+                .fullName("Patient " + id)
+                .email(email)
+                .phone(phone)
+                .emailHash(hashUtil.emailBlindIndex(email))
+                .phoneHash(legacyPhoneHash)
+                .build();
+        table.add(patient);
+        return patient;
+    }
+
+    // Hash số điện thoại trước khi chuẩn hoá: chỉ trim + lowercase
+    private String legacyHash(String phone) {
+        return hashUtil.hmacSha256Base64(phone);
+    }
+
+    @Test
+    void collidingPhonesAreLeftEmptyBeforeTheUniqueIndexesAreCreated() {
+        Patient first = patient(1, "a@example.com", "0912 345 678", legacyHash("0912 345 678"));
+        Patient second = patient(2, "b@example.com", "+84 912 345 678", legacyHash("+84 912 345 678"));
+        Patient third = patient(3, "c@example.com", "098-765-4321", legacyHash("098-765-4321"));
+
+        backfill.run();
+
+        String phoneHash = hashUtil.phoneBlindIndex("0912345678");
+        assertEquals(phoneHash, first.getPhoneHash());
+        // Cùng số với bệnh nhân 1 sau khi chuẩn hoá: để trống, không chặn backfill
+        assertNull(second.getPhoneHash());
+        assertEquals(hashUtil.emailBlindIndex("b@example.com"), second.getEmailHash());
+        assertEquals(hashUtil.phoneBlindIndex("0987654321"), third.getPhoneHash());
+
+        InOrder order = inOrder(patientRepository, jdbcTemplate);
+        order.verify(patientRepository).saveAndFlush(third);
+        order.verify(jdbcTemplate).execute("LOCK TABLE patient IN SHARE ROW EXCLUSIVE MODE");
+        order.verify(jdbcTemplate).execute("CREATE UNIQUE INDEX ux_patient_email_hash ON patient (email_hash)");
+        order.verify(jdbcTemplate).execute("CREATE UNIQUE INDEX ux_patient_phone_hash ON patient (phone_hash)");
+    }
+
+    @Test
+    void collisionWithAnUnchangedRowKeepsTheExistingHolder() {
+        // Bệnh nhân 2 đã có hash chuẩn (không cần ghi lại); bệnh nhân 1 cùng số nhưng còn hash cũ
+        Patient first = patient(1, "a@example.com", "84912345678", legacyHash("84912345678"));
+        Patient second = patient(2, "b@example.com", "0912345678", hashUtil.phoneBlindIndex("0912345678"));
+
+        backfill.backfill();
+
+        assertNull(first.getPhoneHash());
+        assertEquals(hashUtil.phoneBlindIndex("0912345678"), second.getPhoneHash());
+        verify(patientRepository).saveAndFlush(first);
+        verify(patientRepository, never()).saveAndFlush(second);
+    }
+
+    @Test
+    void existingIndexesSkipTheBackfill() {
+        patient(1, "a@example.com", "0912 345 678", legacyHash("0912 345 678"));
+        when(jdbcTemplate.queryForObject(anyString(), eq(Boolean.class), anyString())).thenReturn(true);
+
+        backfill.run();
+
+        verifyNoInteractions(patientRepository);
+        verify(jdbcTemplate, never()).execute(anyString());
+        verify(jdbcTemplate, never()).update(anyString());
+    }
+}
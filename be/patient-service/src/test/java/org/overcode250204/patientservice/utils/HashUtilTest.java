@@ -0,0 +1,57 @@
+package org.overcode250204.patientservice.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Chuẩn hoá của blind index: cùng một số điện thoại / email viết khác nhau phải ra cùng một hash.
+ */
+class HashUtilTest {
+
+    private HashUtil hashUtil;
+
+    @BeforeEach
+    void setUp() {
+        hashUtil = new HashUtil();
+        ReflectionTestUtils.setField(hashUtil, "base64", Base64.getEncoder().encodeToString("test-pepper-0123456789".getBytes()));
+    }
+
+    @Test
+    void phoneBlindIndexKeepsDigitsOnlyAndFoldsLeading84() {
+        String expected = hashUtil.phoneBlindIndex("0912345678");
+
+        assertEquals(expected, hashUtil.phoneBlindIndex("+84 912-345-678"));
+        assertEquals(expected, hashUtil.phoneBlindIndex("84912345678"));
+        assertEquals(expected, hashUtil.phoneBlindIndex("(091) 234.5678"));
+        assertEquals(expected, hashUtil.phoneBlindIndex(" 0912 345 678 "));
+        assertNotEquals(expected, hashUtil.phoneBlindIndex("0912345679"));
+    }
+
+    @Test
+    void phoneBlindIndexFoldsOnlyAFullLengthCountryCode() {
+        // "84" chỉ là mã quốc gia khi đứng trước 9 chữ số; số ngắn hơn / dài hơn giữ nguyên
+        assertNotEquals(hashUtil.phoneBlindIndex("0123"), hashUtil.phoneBlindIndex("84123"));
+        assertNotEquals(hashUtil.phoneBlindIndex("0912345678"), hashUtil.phoneBlindIndex("840912345678"));
+    }
+
+    @Test
+    void phoneBlindIndexIsNullWithoutDigits() {
+        assertNull(hashUtil.phoneBlindIndex(null));
+        assertNull(hashUtil.phoneBlindIndex("   "));
+        assertNull(hashUtil.phoneBlindIndex("+-()"));
+    }
+
+    @Test
+    void emailBlindIndexMatchesTheHashSentByIam() {
+        String expected = hashUtil.hmacSha256Base64("Alice@Example.com");
+
+        assertEquals(expected, hashUtil.emailBlindIndex("  alice@example.COM "));
+        assertNull(hashUtil.emailBlindIndex(" "));
+        assertEquals(44, expected.length());
+    }
+}
@@ -2,12 +2,13 @@ package org.overcode250204.testorderservice.controllers;
 
 import lombok.RequiredArgsConstructor;
 import org.overcode250204.base.BaseResponse;
+import org.overcode250204.testorderservice.dtos.BulkExportRequestDTO;
+import org.overcode250204.testorderservice.dtos.ExportJobDTO;
 import org.overcode250204.testorderservice.services.ExportJobService;
+import org.overcode250204.testorderservice.utils.AuthUtils;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
 
 import java.util.UUID;
 
@@ -38,4 +39,16 @@ public class ExportJobController {
         return ResponseEntity.ok(BaseResponse.success("test-order-service", url));
     }
 
+    @PostMapping("/bulk")
+    public ResponseEntity<BaseResponse<ExportJobDTO>> startBulkExport(@RequestBody BulkExportRequestDTO request) {
+        String exportedBy = AuthUtils.getCurrentUser().getPrincipal().toString();
+        ExportJobDTO job = exportJobService.startBulkExport(request.getTestOrderIds(), request.getFileType(), exportedBy);
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(BaseResponse.success("test-order-service", job));
+    }
+
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<BaseResponse<ExportJobDTO>> getExportJob(@PathVariable UUID jobId) {
+        return ResponseEntity.ok(BaseResponse.success("test-order-service", exportJobService.getExportJob(jobId)));
+    }
+
 }
@@ -0,0 +1,13 @@
+package org.overcode250204.testorderservice.dtos;
+
+import lombok.*;
+
+import java.util.List;
+
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class AiOrderReviewResponseDTO {
+    private List<AiReviewResponseDTO> reviews;
+}
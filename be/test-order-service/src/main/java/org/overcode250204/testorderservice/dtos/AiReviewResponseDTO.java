@@ -7,6 +7,7 @@ import lombok.*;
 @NoArgsConstructor
 @AllArgsConstructor
 public class AiReviewResponseDTO {
+    private String parameter;
     private Boolean ai_has_issue;
     private String ai_review_comment;
 
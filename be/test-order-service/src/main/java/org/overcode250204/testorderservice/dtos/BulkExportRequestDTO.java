@@ -0,0 +1,17 @@
+package org.overcode250204.testorderservice.dtos;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.overcode250204.testorderservice.models.enums.ExportFileType;
+
+import java.util.List;
+import java.util.UUID;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class BulkExportRequestDTO {
+    private List<UUID> testOrderIds;
+    private ExportFileType fileType;
+}
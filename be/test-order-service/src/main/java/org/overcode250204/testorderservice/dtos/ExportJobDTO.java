@@ -0,0 +1,27 @@
+package org.overcode250204.testorderservice.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.overcode250204.testorderservice.models.enums.ExportFileType;
+import org.overcode250204.testorderservice.models.enums.ExportStatus;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+@Getter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ExportJobDTO {
+    private UUID id;
+    private ExportFileType exportFileType;
+    private ExportStatus status;
+    private Integer totalItems;
+    private Integer processedItems;
+    private Integer failedItems;
+    private String manifestUrl; // CSV liệt kê file của từng test order, có khi job hoàn tất
+    private LocalDateTime createdAt;
+    private LocalDateTime completedAt;
+}
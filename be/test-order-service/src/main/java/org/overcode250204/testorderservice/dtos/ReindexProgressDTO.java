@@ -0,0 +1,25 @@
+package org.overcode250204.testorderservice.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+@Getter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ReindexProgressDTO {
+    private String status; // IDLE, RUNNING, COMPLETED, FAILED
+    private String targetIndex;
+    private Instant startedAt;
+    private Instant finishedAt;
+    private Long totalOrders; // số order (chưa xoá) lúc bắt đầu job
+    private Long indexedOrders;
+    private Long replayedOrders; // order thay đổi real-time trong lúc rebuild, ghi lại sau khi chuyển alias
+    private Double percentComplete;
+    private Double docsPerSecond;
+    private String error;
+}
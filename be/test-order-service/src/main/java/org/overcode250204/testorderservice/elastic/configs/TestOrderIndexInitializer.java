@@ -12,7 +12,15 @@ import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 
+/**
+ * "test_orders_index" là alias trỏ tới một index có version (test_orders_index_v...),
+ * để bulk reindex có thể build index mới rồi chuyển alias một cách atomic.
+ * Cluster cũ vẫn có thể còn "test_orders_index" là index thật; lần bulk reindex đầu tiên
+ * sẽ thay nó bằng alias.
+ */
 @Component
 @RequiredArgsConstructor
 @Slf4j
@@ -23,12 +31,14 @@ public class TestOrderIndexInitializer {
     @Value("classpath:elastic/test_orders_index.json")
     private Resource indexConfig;
 
-    private static final String INDEX_NAME = "test_orders_index";
+    public static final String INDEX_NAME = "test_orders_index";
+
+    private static final DateTimeFormatter VERSION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
 
     @PostConstruct
     public void initIndex() {
         try {
-            // 1. Kiểm tra xem index đã tồn tại chưa
+            // 1. Kiểm tra xem alias (hoặc index cũ cùng tên) đã tồn tại chưa
             BooleanResponse exists = esClient.indices().exists(e -> e.index(INDEX_NAME));
 
             if (exists.value()) {
@@ -36,23 +46,38 @@ public class TestOrderIndexInitializer {
                 return;
             }
 
-            // 2. Nếu chưa, tạo mới từ file JSON
-            if (!indexConfig.exists()) {
-                log.error("[Elasticsearch] Configuration file not found: {}", indexConfig.getFilename());
+            // 2. Nếu chưa, tạo index có version từ file JSON và gắn alias
+            String versionedIndex = createVersionedIndex();
+            if (versionedIndex == null) {
                 return;
             }
-
-            try (InputStream input = indexConfig.getInputStream()) {
-                esClient.indices().create(c -> c
-                        .index(INDEX_NAME)
-                        .withJson(input) // Phép màu nằm ở đây: Đọc trực tiếp JSON
-                );
-                log.info("[Elasticsearch] Index '{}' created successfully from JSON config.", INDEX_NAME);
-            }
+            esClient.indices().putAlias(a -> a.index(versionedIndex).name(INDEX_NAME));
+            log.info("[Elasticsearch] Alias '{}' -> '{}' created.", INDEX_NAME, versionedIndex);
 
         } catch (IOException e) {
             log.error("[Elasticsearch] Failed to initialize index '{}': {}", INDEX_NAME, e.getMessage(), e);
             // Không ném lỗi để tránh làm sập app, nhưng nên alert
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Tạo một index mới "test_orders_index_v{timestamp}" từ file JSON config (chưa gắn alias).
+     * @return tên index vừa tạo, hoặc null nếu không tìm thấy file config
+     */
+    public String createVersionedIndex() throws IOException {
+        if (!indexConfig.exists()) {
+            log.error("[Elasticsearch] Configuration file not found: {}", indexConfig.getFilename());
+            return null;
+        }
+
+        String versionedIndex = INDEX_NAME + "_v" + LocalDateTime.now().format(VERSION_FORMAT);
+        try (InputStream input = indexConfig.getInputStream()) {
+            esClient.indices().create(c -> c
+                    .index(versionedIndex)
+                    .withJson(input) // Phép màu nằm ở đây: Đọc trực tiếp JSON
+            );
+        }
+        log.info("[Elasticsearch] Index '{}' created successfully from JSON config.", versionedIndex);
+        return versionedIndex;
+    }
+}
@@ -1,8 +1,11 @@
 package org.overcode250204.testorderservice.elastic.controllers;
 
 import lombok.RequiredArgsConstructor;
+import org.overcode250204.testorderservice.dtos.ReindexProgressDTO;
 import org.overcode250204.testorderservice.elastic.services.TestOrderBulkReindexService;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -17,15 +20,26 @@ public class AdminController {
 
     /**
      * Kích hoạt tác vụ bulk reindex cho TestOrders.
-     * Tác vụ này chạy bất đồng bộ.
+     * Tác vụ này chạy bất đồng bộ, build vào index mới rồi chuyển alias khi xong.
      */
     @PostMapping("/reindex-test-orders")
     public ResponseEntity<String> triggerTestOrderReindex() {
         // Gọi service bất đồng bộ
-        reindexService.startFullReindex();
+        if (!reindexService.startFullReindex()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body("Tác vụ reindex TestOrders đang chạy, xem tiến độ tại /reindex-test-orders/progress.");
+        }
 
         // Trả về 202 Accepted ngay lập tức
         return ResponseEntity.accepted()
                 .body("Đã chấp nhận yêu cầu: Tác vụ reindex TestOrders đang bắt đầu chạy ngầm...");
     }
+
+    /**
+     * Tiến độ và throughput (documents/giây) của tác vụ reindex gần nhất.
+     */
+    @GetMapping("/reindex-test-orders/progress")
+    public ResponseEntity<ReindexProgressDTO> getTestOrderReindexProgress() {
+        return ResponseEntity.ok(reindexService.getProgress());
+    }
 }
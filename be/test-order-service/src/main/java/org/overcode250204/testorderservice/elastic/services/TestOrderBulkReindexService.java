@@ -1,10 +1,28 @@
 package org.overcode250204.testorderservice.elastic.services;
 
+import org.overcode250204.testorderservice.dtos.ReindexProgressDTO;
+
+import java.util.Collection;
+import java.util.UUID;
+
 // Interface cho dịch vụ reindex hàng loạt (bulk) từ SQL sang Elasticsearch.
 public interface TestOrderBulkReindexService {
     /**
-     * Bắt đầu quá trình reindex toàn bộ.
-     * Tác vụ này nên được chạy bất đồng bộ.
+     * Bắt đầu quá trình reindex toàn bộ vào một index mới, rồi chuyển alias khi hoàn tất.
+     * Tác vụ chạy bất đồng bộ; search vẫn dùng index cũ trong suốt quá trình rebuild.
+     * @return false nếu đã có một job reindex đang chạy
+     */
+    boolean startFullReindex();
+
+    /**
+     * Tiến độ và throughput của job reindex gần nhất.
+     */
+    ReindexProgressDTO getProgress();
+
+    /**
+     * Ghi nhận các order sắp được index real-time (qua alias, có thể vào index cũ nếu đang rebuild) vào bảng dùng
+     * chung, để job reindex trên bất kỳ replica nào ghi lại chúng vào index mới sau khi chuyển alias.
+     * Phải gọi trước khi ghi ES: ghi được commit trong transaction riêng.
      */
-    void startFullReindex();
+    void recordLiveChange(Collection<UUID> orderIds);
 }
@@ -0,0 +1,17 @@
+package org.overcode250204.testorderservice.elastic.services;
+
+import java.util.UUID;
+
+public interface TestOrderIndexQueue {
+    /**
+     * Đưa một TestOrder vào hàng đợi re-index. Các lần enqueue cùng một order trong
+     * cửa sổ debounce được gộp lại thành một lần re-index.
+     * @param orderId ID của TestOrder cần re-index
+     */
+    void enqueue(UUID orderId);
+
+    /**
+     * Số order đang chờ re-index (chưa được lấy ra để ghi vào Elasticsearch).
+     */
+    int depth();
+}
@@ -1,5 +1,6 @@
 package org.overcode250204.testorderservice.elastic.services;
 
+import java.util.Collection;
 import java.util.UUID;
 
 public interface TestOrderIndexingService {
@@ -14,4 +15,11 @@ public interface TestOrderIndexingService {
      * @param orderId ID của TestOrder cha cần re-index
      */
     void reindexTestOrder(UUID orderId);
+
+    /**
+     * Re-index nhiều TestOrder cùng lúc: tải order + results theo tập ID (set-based)
+     * và ghi vào Elasticsearch bằng một bulk request.
+     * @param orderIds ID của các TestOrder cần re-index
+     */
+    void reindexTestOrders(Collection<UUID> orderIds);
 }
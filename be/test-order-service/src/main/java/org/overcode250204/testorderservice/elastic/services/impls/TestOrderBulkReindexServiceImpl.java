@@ -1,108 +1,409 @@
 package org.overcode250204.testorderservice.elastic.services.impls;
 
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch.indices.update_aliases.Action;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.testorderservice.dtos.ReindexProgressDTO;
+import org.overcode250204.testorderservice.elastic.configs.TestOrderIndexInitializer;
 import org.overcode250204.testorderservice.elastic.documents.TestOrderDocument;
 import org.overcode250204.testorderservice.elastic.mappers.TestOrderDocumentMapper;
-import org.overcode250204.testorderservice.elastic.repositories.TestOrderDocumentRepository;
 import org.overcode250204.testorderservice.elastic.services.TestOrderBulkReindexService;
 import org.overcode250204.testorderservice.models.entites.TestOrders;
 import org.overcode250204.testorderservice.models.entites.TestResults;
+import org.overcode250204.testorderservice.repositories.ReindexLiveChangeRepository;
 import org.overcode250204.testorderservice.repositories.TestOrdersRepository;
 import org.overcode250204.testorderservice.repositories.TestResultsRepository;
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
+/**
+ * Bulk reindex không downtime:
+ * 1. Tạo index mới test_orders_index_v{timestamp} (tắt refresh trong lúc nạp).
+ * 2. Một producer đọc SQL bằng keyset pagination trên (created_at, id), mỗi trang một transaction read-only ngắn,
+ *    map sang document rồi đẩy vào hàng đợi có giới hạn (back-pressure khi ES ghi chậm).
+ * 3. Nhiều writer lấy batch từ hàng đợi và ghi vào index mới bằng ES bulk API.
+ * 4. Refresh, chuyển alias "test_orders_index" sang index mới trong một lệnh _aliases atomic, xoá index cũ.
+ * 5. Ghi lại vào index mới các order đã được index real-time (vào index cũ) trong lúc rebuild. Các thay đổi này
+ *    được ghi vào bảng reindex_live_change bởi mọi replica, nên thay đổi do replica khác xử lý cũng được ghi lại.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class TestOrderBulkReindexServiceImpl implements TestOrderBulkReindexService {
 
-    // Kích thước của mỗi lô (batch)
-    private static final int BATCH_SIZE = 500;
+    private static final String ALIAS = TestOrderIndexInitializer.INDEX_NAME;
+    // Marker kết thúc cho writers (so sánh theo identity)
+    private static final List<TestOrderDocument> END_OF_STREAM = Collections.unmodifiableList(new ArrayList<>());
 
     private final TestOrdersRepository testOrderRepository; // JPA Repo (để đọc data từ SQL)
-    private final TestOrderDocumentRepository documentRepository; // ES Repo (để ghi data vào Elastic)
     private final TestResultsRepository testResultsRepository;
-
+    private final ReindexLiveChangeRepository liveChangeRepository;
+    private final ElasticsearchOperations elasticsearchOperations;
+    private final ElasticsearchClient esClient;
+    private final TestOrderIndexInitializer indexInitializer;
     private final TestOrderDocumentMapper mapper;
+    private final PlatformTransactionManager transactionManager;
+
+    // Kích thước của mỗi lô (batch) = số document mỗi bulk request
+    @Value("${app.reindex.batch-size:2000}")
+    private int batchSize = 2000;
+
+    @Value("${app.reindex.writer-threads:4}")
+    private int writerThreads = 4;
+
+    @Value("${app.reindex.queue-capacity:8}")
+    private int queueCapacity = 8;
+
+    // Bù lệch đồng hồ giữa các replica khi lọc thay đổi theo thời điểm bắt đầu job (ghi lại thừa thì vô hại)
+    @Value("${app.reindex.live-change-clock-skew:PT1M}")
+    private Duration liveChangeClockSkew = Duration.ofMinutes(1);
 
+    @Value("${app.reindex.live-change-retention:P1D}")
+    private Duration liveChangeRetention = Duration.ofDays(1);
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong indexedOrders = new AtomicLong();
+    private final AtomicLong replayedOrders = new AtomicLong();
+
+    private ExecutorService reindexExecutor;
+    private volatile String status = "IDLE";
+    private volatile String targetIndex;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile long totalOrders;
+    private volatile String error;
+
+    @PostConstruct
+    public void init() {
+        reindexExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("es-bulk-reindex-", 0).factory());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reindexExecutor.shutdownNow();
+    }
 
     @Override
-    @Async // Rất quan trọng: Chạy tác vụ này trên một thread riêng biệt
-    @Transactional(readOnly = true) // Cần Transactional để `findAllWithPatient` hoạt động
-    public void startFullReindex() {
-        log.info(">>> BẮT ĐẦU BULK REINDEX JOB CHO TEST ORDERS...");
+    public boolean startFullReindex() {
+        if (!running.compareAndSet(false, true)) {
+            log.warn("Bulk reindex đang chạy, bỏ qua yêu cầu mới.");
+            return false;
+        }
+        indexedOrders.set(0);
+        replayedOrders.set(0);
+        totalOrders = 0;
+        targetIndex = null;
+        finishedAt = null;
+        error = null;
+        startedAt = Instant.now();
+        status = "RUNNING";
+
+        reindexExecutor.execute(this::runFullReindex);
+        return true;
+    }
+
+    @Override
+    public ReindexProgressDTO getProgress() {
+        long indexed = indexedOrders.get();
+        Instant start = startedAt;
+        Instant end = finishedAt != null ? finishedAt : Instant.now();
+        double seconds = start == null ? 0 : Math.max(Duration.between(start, end).toMillis(), 1) / 1000.0;
+        long total = totalOrders;
+
+        return ReindexProgressDTO.builder()
+                .status(status)
+                .targetIndex(targetIndex)
+                .startedAt(start)
+                .finishedAt(finishedAt)
+                .totalOrders(total)
+                .indexedOrders(indexed)
+                .replayedOrders(replayedOrders.get())
+                .percentComplete(total == 0 ? null : Math.min(100.0, indexed * 100.0 / total))
+                .docsPerSecond(seconds == 0 ? null : indexed / seconds)
+                .error(error)
+                .build();
+    }
 
-        // Xóa sạch index cũ (tùy chọn, nhưng khuyến khích)
-        log.info("Xóa dữ liệu cũ trên index 'test_orders_index'...");
-        documentRepository.deleteAll();
-        log.info("Đã xóa dữ liệu cũ.");
+    @Override
+    public void recordLiveChange(Collection<UUID> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        liveChangeRepository.record(orderIds.toArray(UUID[]::new), Instant.now());
+    }
 
-        Pageable pageable = PageRequest.of(0, BATCH_SIZE);
-        Page<TestOrders> page;
-        int batchCount = 0;
+    @Scheduled(fixedDelayString = "${app.reindex.live-change-prune-interval-ms:3600000}")
+    public void pruneLiveChanges() {
+        Instant before = Instant.now().minus(liveChangeRetention);
+        // Không xoá thay đổi mà job đang chạy trên replica này còn cần ghi lại
+        Instant start = startedAt;
+        if (running.get() && start != null && start.minus(liveChangeClockSkew).isBefore(before)) {
+            before = start.minus(liveChangeClockSkew);
+        }
+        int deleted = liveChangeRepository.deleteChangedBefore(before);
+        if (deleted > 0) {
+            log.info("Đã xoá {} reindex live change cũ hơn {}.", deleted, before);
+        }
+    }
 
+    private void runFullReindex() {
+        log.info(">>> BẮT ĐẦU BULK REINDEX JOB CHO TEST ORDERS...");
+        String newIndex = null;
         try {
-            do {
-                // 1. ĐỌC TỪ SQL (đã JOIN FETCH)
-                page = testOrderRepository.findAllWithPatient(pageable);
-                List<TestOrders> orders = page.getContent();
+            totalOrders = testOrderRepository.countByIsDeletedFalse();
+            newIndex = indexInitializer.createVersionedIndex();
+            if (newIndex == null) {
+                throw new IllegalStateException("Index configuration not found");
+            }
+            String index = newIndex;
+            targetIndex = index;
+            setRefreshInterval(index, "-1");
+
+            loadAll(IndexCoordinates.of(index));
+
+            setRefreshInterval(index, "1s");
+            esClient.indices().refresh(r -> r.index(index));
+            Set<String> previousIndices = swapAlias(index);
+
+            // Từ đây ghi real-time đã vào index mới; ghi lại các order thay đổi trong lúc rebuild (trên mọi replica)
+            List<UUID> changed = liveChangeRepository.findOrderIdsChangedSince(startedAt.minus(liveChangeClockSkew));
+            replayLiveChanges(changed, IndexCoordinates.of(index));
 
-                if (orders.isEmpty()) {
-                    log.info("Không tìm thấy record nào, kết thúc.");
+            deleteIndices(previousIndices);
+            status = "COMPLETED";
+            log.info(">>> KẾT THÚC BULK REINDEX JOB. {} orders -> '{}', {} ghi lại sau khi chuyển alias.",
+                    indexedOrders.get(), newIndex, replayedOrders.get());
+        } catch (Exception e) {
+            status = "FAILED";
+            error = e.getMessage();
+            log.error("LỖI NGHIÊM TRỌNG trong quá trình reindex: {}", e.getMessage(), e);
+            // Alias chưa được chuyển: index cũ vẫn phục vụ search, chỉ dọn index dở dang
+            if (newIndex != null && !isAliasTarget(newIndex)) {
+                deleteIndices(Set.of(newIndex));
+            }
+        } finally {
+            finishedAt = Instant.now();
+            running.set(false);
+        }
+    }
+
+    // Producer (thread hiện tại) đọc keyset page, writers ghi bulk song song qua hàng đợi có giới hạn
+    private void loadAll(IndexCoordinates index) throws Exception {
+        BlockingQueue<List<TestOrderDocument>> queue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicReference<Exception> writerFailure = new AtomicReference<>();
+        List<Future<?>> writers = new ArrayList<>(writerThreads);
+        for (int i = 0; i < writerThreads; i++) {
+            writers.add(reindexExecutor.submit(() -> writeBatches(queue, index, writerFailure)));
+        }
+
+        TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+        KeysetCursor last = null;
+        int pageCount = 0;
+        try {
+            while (true) {
+                KeysetCursor cursor = last;
+                PageResult page = readOnly.execute(status -> readPage(cursor));
+                if (page == null || page.documents().isEmpty()) {
                     break;
                 }
+                offer(queue, page.documents(), writerFailure);
+                last = page.last();
+                pageCount++;
+                if (page.documents().size() < batchSize) {
+                    break;
+                }
+            }
+        } finally {
+            for (int i = 0; i < writerThreads; i++) {
+                offer(queue, END_OF_STREAM, writerFailure);
+            }
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        if (writerFailure.get() != null) {
+            throw writerFailure.get();
+        }
+        log.info("Đã đọc {} trang từ SQL.", pageCount);
+    }
 
-                log.info("Đang xử lý batch {}... ({} records)",
-                        page.getNumber(), orders.size());
-
-                // 2. Lấy dữ liệu con của Test Results
-                // Lấy danh sách ID của các order trong batch này
-                List<UUID> orderIds = orders.stream()
-                        .map(TestOrders::getId)
-                        .toList();
+    private PageResult readPage(KeysetCursor cursor) {
+        List<TestOrders> orders = new ArrayList<>(batchSize);
+        if (cursor == null || cursor.createdAt() == null) {
+            // Order không có created_at được đọc trước theo id: so sánh created_at > :createdAt sẽ bỏ sót chúng
+            orders.addAll(cursor == null
+                    ? testOrderRepository.findFirstUndatedKeysetPageWithPatient(Limit.of(batchSize))
+                    : testOrderRepository.findUndatedKeysetPageWithPatient(cursor.id(), Limit.of(batchSize)));
+            if (orders.size() < batchSize) {
+                orders.addAll(testOrderRepository.findFirstKeysetPageWithPatient(Limit.of(batchSize - orders.size())));
+            }
+        } else {
+            orders.addAll(testOrderRepository.findKeysetPageWithPatient(cursor.createdAt(), cursor.id(), Limit.of(batchSize)));
+        }
+        if (orders.isEmpty()) {
+            return new PageResult(List.of(), null);
+        }
+        // Chỉ giữ lại khoá keyset của phần tử cuối, không giữ entity ngoài transaction
+        TestOrders last = orders.get(orders.size() - 1);
+        return new PageResult(toDocuments(orders), new KeysetCursor(last.getCreatedAt(), last.getId()));
+    }
 
-                // Thực hiện 1 query để lấy TẤT CẢ results cho batch này
-                List<TestResults> allResults = testResultsRepository.findByTestOrder_IdIn(orderIds);
+    private List<TestOrderDocument> toDocuments(List<TestOrders> orders) {
+        // Thực hiện 1 query để lấy TẤT CẢ results cho batch này, nhóm theo TestOrder ID
+        List<UUID> orderIds = orders.stream().map(TestOrders::getId).toList();
+        Map<UUID, List<TestResults>> resultsMap = testResultsRepository.findByTestOrder_IdIn(orderIds).stream()
+                .collect(Collectors.groupingBy(result -> result.getTestOrder().getId()));
 
-                // Nhóm các results lại theo TestOrder ID để map dễ dàng
-                Map<UUID, List<TestResults>> resultsMap = allResults.stream()
-                        .collect(Collectors.groupingBy(result -> result.getTestOrder().getId()));
+        return orders.stream()
+                .map(order -> mapper.mapToDocument(order, resultsMap.getOrDefault(order.getId(), Collections.emptyList())))
+                .toList();
+    }
 
-                // 3. BIẾN ĐỔI (MAP)
-                List<TestOrderDocument> documents = orders.stream()
-                        .map(order -> {
-                            // Lấy danh sách results cho order này từ Map
-                            List<TestResults> orderResults = resultsMap.getOrDefault(order.getId(), Collections.emptyList());
-                            // Gọi mapper với 2 tham số
-                            return mapper.mapToDocument(order, orderResults);
-                        })
-                        .toList();
+    private void writeBatches(BlockingQueue<List<TestOrderDocument>> queue, IndexCoordinates index,
+                              AtomicReference<Exception> writerFailure) {
+        try {
+            while (true) {
+                List<TestOrderDocument> documents = queue.take();
+                if (documents == END_OF_STREAM) {
+                    return;
+                }
+                if (writerFailure.get() != null) {
+                    continue; // tiếp tục rút hàng đợi để producer không bị block
+                }
+                // save(Iterable, IndexCoordinates) là một bulk request vào index mới
+                elasticsearchOperations.save(documents, index);
+                indexedOrders.addAndGet(documents.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writerFailure.compareAndSet(null, e);
+        } catch (Exception e) {
+            log.error("Bulk write vào '{}' thất bại: {}", index.getIndexName(), e.getMessage());
+            writerFailure.compareAndSet(null, e);
+            // Rút nốt hàng đợi đến END_OF_STREAM
+            writeBatches(queue, index, writerFailure);
+        }
+    }
 
-                // 4. GHI HÀNG LOẠT VÀO ES
-                // saveAll() của Spring Data ES chính là một lệnh bulk
-                documentRepository.saveAll(documents);
+    private void offer(BlockingQueue<List<TestOrderDocument>> queue, List<TestOrderDocument> documents,
+                       AtomicReference<Exception> writerFailure) throws InterruptedException {
+        if (writerFailure.get() != null && documents != END_OF_STREAM) {
+            throw new IllegalStateException("Bulk write failed", writerFailure.get());
+        }
+        queue.put(documents);
+    }
 
-                pageable = page.nextPageable();
-                batchCount++;
+    // Một lệnh _aliases: gắn alias vào index mới, gỡ khỏi các index cũ (hoặc xoá index cũ trùng tên alias)
+    private Set<String> swapAlias(String newIndex) throws Exception {
+        Set<String> previousIndices = new HashSet<>();
+        boolean legacyConcreteIndex = false;
+        if (esClient.indices().existsAlias(a -> a.name(ALIAS)).value()) {
+            previousIndices.addAll(esClient.indices().getAlias(a -> a.name(ALIAS)).result().keySet());
+        } else {
+            legacyConcreteIndex = esClient.indices().exists(e -> e.index(ALIAS)).value();
+        }
 
-            } while (page.hasNext());
+        List<Action> actions = new ArrayList<>();
+        actions.add(Action.of(a -> a.add(add -> add.index(newIndex).alias(ALIAS))));
+        for (String previous : previousIndices) {
+            actions.add(Action.of(a -> a.remove(remove -> remove.index(previous).alias(ALIAS))));
+        }
+        if (legacyConcreteIndex) {
+            actions.add(Action.of(a -> a.removeIndex(remove -> remove.index(ALIAS))));
+        }
+        esClient.indices().updateAliases(u -> u.actions(actions));
+        log.info("Đã chuyển alias '{}' -> '{}' (trước đó: {}{}).", ALIAS, newIndex, previousIndices,
+                legacyConcreteIndex ? ", index cũ cùng tên đã bị xoá" : "");
+        return previousIndices;
+    }
 
-            log.info(">>> KẾT THÚC BULK REINDEX JOB. Tổng số batch đã xử lý: {}", batchCount);
+    private void replayLiveChanges(List<UUID> changed, IndexCoordinates index) {
+        if (changed == null || changed.isEmpty()) {
+            return;
+        }
+        List<UUID> ids = List.copyOf(changed);
+        TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            List<UUID> chunk = ids.subList(from, Math.min(from + batchSize, ids.size()));
+            List<TestOrderDocument> documents = readOnly.execute(status -> toDocuments(
+                    testOrderRepository.findAllByIdInWithPatient(chunk).stream()
+                            .filter(order -> !Boolean.TRUE.equals(order.getIsDeleted()))
+                            .toList()));
+            if (documents == null) {
+                continue;
+            }
+            if (!documents.isEmpty()) {
+                elasticsearchOperations.save(documents, index);
+            }
+            // Order đã bị xoá (hoặc không còn tồn tại) cũng phải bị xoá khỏi index mới
+            Set<String> kept = documents.stream().map(TestOrderDocument::getId).collect(Collectors.toSet());
+            for (UUID id : chunk) {
+                if (!kept.contains(id.toString())) {
+                    elasticsearchOperations.delete(id.toString(), index);
+                }
+            }
+            replayedOrders.addAndGet(chunk.size());
+        }
+    }
 
+    private boolean isAliasTarget(String index) {
+        try {
+            return esClient.indices().existsAlias(a -> a.name(ALIAS).index(index)).value();
         } catch (Exception e) {
-            log.error("LỖI NGHIÊM TRỌNG trong quá trình reindex: {}", e.getMessage(), e);
+            return true; // không chắc chắn thì không xoá
         }
     }
-}
\ No newline at end of file
+
+    private void setRefreshInterval(String index, String interval) throws Exception {
+        esClient.indices().putSettings(p -> p.index(index).settings(s -> s.refreshInterval(t -> t.time(interval))));
+    }
+
+    private void deleteIndices(Set<String> indices) {
+        for (String index : indices) {
+            try {
+                esClient.indices().delete(d -> d.index(index));
+                log.info("Đã xoá index '{}'.", index);
+            } catch (Exception e) {
+                log.warn("Không xoá được index '{}': {}", index, e.getMessage());
+            }
+        }
+    }
+
+    private record KeysetCursor(LocalDateTime createdAt, UUID id) {
+    }
+
+    private record PageResult(List<TestOrderDocument> documents, KeysetCursor last) {
+    }
+}
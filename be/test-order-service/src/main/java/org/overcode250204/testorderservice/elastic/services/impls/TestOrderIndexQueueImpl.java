@@ -0,0 +1,171 @@
+package org.overcode250204.testorderservice.elastic.services.impls;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.testorderservice.elastic.services.TestOrderIndexQueue;
+import org.overcode250204.testorderservice.elastic.services.TestOrderIndexingService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hàng đợi re-index gộp (coalescing) cho TestOrder.
+ * Mỗi order chỉ có một entry đang chờ, giữ thời điểm được enqueue lần đầu; entry được lấy ra khi đã
+ * chờ đủ cửa sổ debounce, rồi chia thành các batch re-index set-based + ES bulk.
+ * Số batch đang ghi vào ES bị giới hạn bởi max-in-flight: khi hết permit, các order còn lại
+ * ở yên trong hàng đợi đến lần flush sau.
+ *
+ * Entry bị xoá khỏi hàng đợi TRƯỚC khi đọc DB, nên thay đổi commit sau thời điểm đó sẽ enqueue lại
+ * và được re-index ở batch kế tiếp.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class TestOrderIndexQueueImpl implements TestOrderIndexQueue {
+    private final TestOrderIndexingService indexingService;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.elastic.index-queue.debounce:PT0.5S}")
+    private Duration debounce = Duration.ofMillis(500);
+
+    @Value("${app.elastic.index-queue.batch-size:200}")
+    private int batchSize = 200;
+
+    @Value("${app.elastic.index-queue.max-in-flight:2}")
+    private int maxInFlight = 2;
+
+    private final Map<UUID, Long> pending = new ConcurrentHashMap<>();
+
+    private ExecutorService indexExecutor;
+    private Semaphore inFlightBatches;
+    private Timer batchTimer;
+    private Counter failedOrders;
+
+    @PostConstruct
+    public void init() {
+        indexExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("es-reindex-", 0).factory());
+        inFlightBatches = new Semaphore(maxInFlight);
+
+        Gauge.builder("testorder.index.queue.depth", pending, Map::size)
+                .description("Number of test orders waiting to be re-indexed")
+                .register(meterRegistry);
+        Gauge.builder("testorder.index.queue.lag", this, queue -> queue.oldestPendingAgeSeconds())
+                .description("Age of the oldest pending re-index request")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        batchTimer = Timer.builder("testorder.index.batch")
+                .description("Time to load and bulk-index one re-index batch")
+                .register(meterRegistry);
+        failedOrders = Counter.builder("testorder.index.failed")
+                .description("Test orders whose re-index batch failed and were re-queued")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        indexExecutor.shutdown();
+    }
+
+    @Override
+    public void enqueue(UUID orderId) {
+        pending.putIfAbsent(orderId, System.nanoTime());
+    }
+
+    @Override
+    public int depth() {
+        return pending.size();
+    }
+
+    @Scheduled(fixedDelayString = "${app.elastic.index-queue.poll-interval-ms:100}")
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long readyBefore = System.nanoTime() - debounce.toNanos();
+        List<UUID> batch = new ArrayList<>(batchSize);
+        for (Map.Entry<UUID, Long> entry : pending.entrySet()) {
+            if (entry.getValue() - readyBefore > 0) {
+                continue;
+            }
+            batch.add(entry.getKey());
+            if (batch.size() == batchSize) {
+                if (!submit(batch)) {
+                    return;
+                }
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            submit(batch);
+        }
+    }
+
+    // Trả về false khi đã đủ max-in-flight batch; các order của batch vẫn nằm trong hàng đợi
+    private boolean submit(List<UUID> orderIds) {
+        if (!inFlightBatches.tryAcquire()) {
+            return false;
+        }
+        List<UUID> claimed = new ArrayList<>(orderIds.size());
+        for (UUID orderId : orderIds) {
+            if (pending.remove(orderId) != null) {
+                claimed.add(orderId);
+            }
+        }
+        try {
+            indexExecutor.execute(() -> indexBatch(claimed));
+        } catch (RuntimeException e) {
+            inFlightBatches.release();
+            requeue(claimed);
+            throw e;
+        }
+        return true;
+    }
+
+    private void indexBatch(List<UUID> claimed) {
+        long start = System.nanoTime();
+        try {
+            indexingService.reindexTestOrders(claimed);
+        } catch (Exception e) {
+            log.error("[IndexQueue] Failed to re-index {} orders, re-queueing: {}", claimed.size(), e.getMessage(), e);
+            failedOrders.increment(claimed.size());
+            requeue(claimed);
+        } finally {
+            batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            inFlightBatches.release();
+        }
+    }
+
+    // Enqueue lại với thời điểm hiện tại để batch lỗi được thử lại sau một cửa sổ debounce, không lặp liên tục
+    private void requeue(List<UUID> claimed) {
+        long now = System.nanoTime();
+        claimed.forEach(orderId -> pending.putIfAbsent(orderId, now));
+    }
+
+    private double oldestPendingAgeSeconds() {
+        long now = System.nanoTime();
+        long oldest = now;
+        for (Long enqueuedAt : pending.values()) {
+            if (enqueuedAt - oldest < 0) {
+                oldest = enqueuedAt;
+            }
+        }
+        return (now - oldest) / 1_000_000_000.0;
+    }
+}
@@ -1,20 +1,34 @@
 package org.overcode250204.testorderservice.elastic.services.impls;
 
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.overcode250204.testorderservice.elastic.documents.TestOrderDocument;
 import org.overcode250204.testorderservice.elastic.mappers.TestOrderDocumentMapper;
 import org.overcode250204.testorderservice.elastic.repositories.TestOrderDocumentRepository;
+import org.overcode250204.testorderservice.elastic.services.TestOrderBulkReindexService;
 import org.overcode250204.testorderservice.elastic.services.TestOrderIndexingService;
 import org.overcode250204.testorderservice.models.entites.TestOrders;
 import org.overcode250204.testorderservice.models.entites.TestResults;
 import org.overcode250204.testorderservice.repositories.TestOrdersRepository;
 import org.overcode250204.testorderservice.repositories.TestResultsRepository;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.document.Document;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
@@ -24,11 +38,17 @@ public class TestOrderIndexingServiceImpl implements TestOrderIndexingService {
     private final TestOrderDocumentRepository documentRepository;
     private final TestResultsRepository testResultsRepository;
     private final TestOrderDocumentMapper mapper;
+    private final ElasticsearchOperations elasticsearchOperations;
+    private final ElasticsearchClient esClient;
+    // Ghi nhận các thay đổi real-time để bulk reindex (nếu đang chạy) ghi lại sau khi chuyển alias
+    private final TestOrderBulkReindexService bulkReindexService;
 
     @Override
     @Transactional
     public void deleteOrder(UUID orderId) {
         try {
+            // Ghi nhận trước khi ghi ES, để bulk reindex đang chạy không bỏ sót thay đổi nếu ghi ES thành công
+            bulkReindexService.recordLiveChange(List.of(orderId));
             // Đồng bộ (ES) - Hard Delete
             documentRepository.deleteById(orderId.toString()); // Phải .toString()
             log.info("Successfully soft-deleted order in SQL and hard-deleted in ES: {}", orderId);
@@ -54,6 +74,7 @@ public class TestOrderIndexingServiceImpl implements TestOrderIndexingService {
             // 3. Map và Lưu vào ES
             // (Mapper của bạn cần cả 2 tham số)
             TestOrderDocument document = mapper.mapToDocument(order, results);
+            bulkReindexService.recordLiveChange(List.of(orderId));
             documentRepository.save(document);
             log.info("[Re-index] Successfully re-indexed order: {}", orderId);
 
@@ -63,4 +84,62 @@ public class TestOrderIndexingServiceImpl implements TestOrderIndexingService {
             throw new RuntimeException("Failed to re-index order: " + e.getMessage(), e);
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    @Transactional(readOnly = true)
+    public void reindexTestOrders(Collection<UUID> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        List<UUID> ids = List.copyOf(orderIds);
+
+        // 1 query cho order (kèm patient) + 1 query cho toàn bộ results của batch
+        List<TestOrders> orders = testOrderRepository.findAllByIdInWithPatient(ids).stream()
+                .filter(order -> !Boolean.TRUE.equals(order.getIsDeleted()))
+                .toList();
+        Map<UUID, List<TestResults>> resultsByOrder = testResultsRepository.findByTestOrder_IdIn(ids).stream()
+                .collect(Collectors.groupingBy(result -> result.getTestOrder().getId()));
+
+        List<TestOrderDocument> documents = orders.stream()
+                .map(order -> mapper.mapToDocument(order, resultsByOrder.getOrDefault(order.getId(), Collections.emptyList())))
+                .toList();
+
+        // Order không còn (hoặc đã soft-delete) phải bị xoá khỏi index, không để document cũ sống mãi
+        Set<UUID> found = orders.stream().map(TestOrders::getId).collect(Collectors.toSet());
+        List<UUID> removed = ids.stream().filter(id -> !found.contains(id)).toList();
+
+        bulkReindexService.recordLiveChange(ids);
+        bulkWrite(documents, removed);
+        log.info("[Re-index] Bulk re-indexed {} orders, removed {} from the index.", documents.size(), removed.size());
+    }
+
+    /**
+     * Ghi các document và xoá các id trong cùng một bulk request. Document được map qua converter của
+     * Spring Data nên giữ đúng field / định dạng ngày như documentRepository.save.
+     */
+    private void bulkWrite(List<TestOrderDocument> documents, List<UUID> removedIds) {
+        if (documents.isEmpty() && removedIds.isEmpty()) {
+            return;
+        }
+        String index = elasticsearchOperations.getIndexCoordinatesFor(TestOrderDocument.class).getIndexName();
+        List<BulkOperation> operations = new ArrayList<>(documents.size() + removedIds.size());
+        for (TestOrderDocument document : documents) {
+            Document source = elasticsearchOperations.getElasticsearchConverter().mapObject(document);
+            operations.add(BulkOperation.of(op -> op.index(i -> i.index(index).id(document.getId()).document(source))));
+        }
+        for (UUID id : removedIds) {
+            operations.add(BulkOperation.of(op -> op.delete(d -> d.index(index).id(id.toString()))));
+        }
+        try {
+            BulkResponse response = esClient.bulk(b -> b.operations(operations));
+            // delete một id chưa có trong index trả về not_found nhưng không có error, không tính là lỗi
+            List<BulkResponseItem> failed = response.items().stream().filter(item -> item.error() != null).toList();
+            if (!failed.isEmpty()) {
+                throw new RuntimeException("Bulk re-index failed for " + failed.size() + " orders, first: "
+                        + failed.getFirst().id() + " - " + failed.getFirst().error().reason());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to bulk re-index orders: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.overcode250204.testorderservice.events;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.testorderservice.services.AIReviewService;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class AIReviewListener {
+    private final AIReviewService aiReviewService;
+
+    /**
+     * Chỉ chạy SAU KHI transaction của processRawResults đã commit,
+     * để các lời gọi LLM không giữ DB transaction. Việc review chạy trên executor riêng của AIReviewService.
+     */
+    @TransactionalEventListener
+    public void handleReviewRequested(TestResultsReviewRequestedEvent event) {
+        if (event == null || event.getTestOrderIds() == null || event.getTestOrderIds().isEmpty()
+                || event.getTestResultIds() == null || event.getTestResultIds().isEmpty()) {
+            log.warn("[AIReview] Received empty TestResultsReviewRequestedEvent.");
+            return;
+        }
+        log.info("[AIReview] Scheduling AI review for {} new results of {} test orders.",
+                event.getTestResultIds().size(), event.getTestOrderIds().size());
+        aiReviewService.reviewOrdersAsync(event.getTestOrderIds(), event.getTestResultIds());
+    }
+}
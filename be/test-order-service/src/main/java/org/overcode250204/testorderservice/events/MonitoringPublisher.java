@@ -40,7 +40,9 @@ public class MonitoringPublisher {
                     eventType,
                     objectMapper.writeValueAsString(envelope),
                     "PENDING",
-                    Instant.now()
+                    Instant.now(),
+                    0,
+                    null
             );
 
             outboxRepository.save(outboxLog);
@@ -1,25 +1,22 @@
 package org.overcode250204.testorderservice.events;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.inbox.InboxDeduplicator;
 import org.overcode250204.testorderservice.dtos.HL7TestResult;
 import org.overcode250204.testorderservice.exceptions.ErrorCode;
 import org.overcode250204.testorderservice.exceptions.TestOrderException;
-import org.overcode250204.testorderservice.models.entites.InboxEvent;
 import org.overcode250204.testorderservice.models.entites.TestResultRaw;
 import org.overcode250204.testorderservice.models.entites.TestResults;
-import org.overcode250204.testorderservice.repositories.InboxRepository;
 import org.overcode250204.testorderservice.services.HL7ParserService;
 import org.overcode250204.testorderservice.services.TestResultProcessingService;
 import org.overcode250204.testorderservice.services.TestResultRawService;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
-import java.time.Instant;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 @Slf4j
@@ -27,8 +24,10 @@ import java.util.UUID;
 @RequiredArgsConstructor
 public class MonitoringSyncConsumer {
 
-    private final ObjectMapper objectMapper;
-    private final InboxRepository inboxRepository;
+    private static final Set<String> HANDLED_EVENT_TYPES =
+            Set.of("RAW_RESULT_SYNCED", "RAW_RESULT_NOT_FOUND", "RAW_RESULT_SYNC_FAILED");
+
+    private final InboxDeduplicator inboxDeduplicator;
 
     private final HL7ParserService hl7ParserService;
     private final TestResultRawService testResultRawService;
@@ -36,10 +35,14 @@ public class MonitoringSyncConsumer {
 
     @KafkaListener(
             topics = "monitoring.logs.publish",
-            groupId = "${spring.kafka.consumer.group-id}"
+            groupId = "${spring.kafka.consumer.group-id}",
+            containerFactory = "batchKafkaListenerContainerFactory"
     )
-    @Transactional
-    public void onMonitoringSyncEvent(Map<String, Object> message) {
+    public void onMonitoringSyncEvents(List<Map<String, Object>> messages) {
+        inboxDeduplicator.process(messages, this::eventIdOf, this::onMonitoringSyncEvent);
+    }
+
+    private void onMonitoringSyncEvent(Map<String, Object> message) {
         try {
             String eventType = (String) message.get("eventType");
             if (eventType == null) {
@@ -67,9 +70,6 @@ public class MonitoringSyncConsumer {
     // --------------------------------------------------------------------
 
     private void handleSynced(Map<String, Object> message) throws Exception {
-        UUID eventId = extractEventId(message);
-        if (isProcessed(eventId)) return;
-
         Map<String, Object> payload = extractPayload(message);
         String barcode = (String) payload.get("barcode");
         String hl7Message = (String) payload.get("hl7Message");
@@ -89,9 +89,6 @@ public class MonitoringSyncConsumer {
     }
 
     private void handleNotFound(Map<String, Object> message) throws Exception {
-        UUID eventId = extractEventId(message);
-        if (isProcessed(eventId)) return;
-
         Map<String, Object> payload = extractPayload(message);
         String barcode = (String) payload.get("barcode");
 
@@ -101,9 +98,6 @@ public class MonitoringSyncConsumer {
     }
 
     private void handleFailed(Map<String, Object> message) throws Exception {
-        UUID eventId = extractEventId(message);
-        if (isProcessed(eventId)) return;
-
         Map<String, Object> payload = extractPayload(message);
         String barcode = (String) payload.get("barcode");
 
@@ -116,29 +110,16 @@ public class MonitoringSyncConsumer {
     // SHARED UTILITIES
     // --------------------------------------------------------------------
 
-    private UUID extractEventId(Map<String, Object> message) {
-        String id = (String) message.get("eventId");
-        if (id == null)
-            throw new TestOrderException(ErrorCode.EVENT_ID_MISSING);
-        return UUID.fromString(id);
+    // Chỉ các eventType được xử lý mới bắt buộc có eventId; message khác vẫn chỉ được log như trước
+    private UUID eventIdOf(Map<String, Object> message) {
+        String eventType = (String) message.get("eventType");
+        if (eventType == null || !HANDLED_EVENT_TYPES.contains(eventType)) {
+            return null;
+        }
+        return InboxDeduplicator.parseEventId(message.get("eventId"));
     }
 
     private Map<String, Object> extractPayload(Map<String, Object> message) {
         return (Map<String, Object>) message.get("payload");
     }
-
-    private boolean isProcessed(UUID eventId) throws Exception {
-        if (inboxRepository.existsByEventId(eventId)) {
-            log.info("[TestOrder] Event {} already processed", eventId);
-            return true;
-        }
-
-        InboxEvent inbox = new InboxEvent();
-        inbox.setEventId(eventId);
-        inbox.setPayload(objectMapper.writeValueAsString(Map.of("eventId", eventId)));
-        inbox.setProcessedAt(Instant.now());
-
-        inboxRepository.save(inbox);
-        return false;
-    }
 }
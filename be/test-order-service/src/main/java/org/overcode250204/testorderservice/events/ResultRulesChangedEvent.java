@@ -0,0 +1,16 @@
+package org.overcode250204.testorderservice.events;
+
+import org.springframework.context.ApplicationEvent;
+
+public class ResultRulesChangedEvent extends ApplicationEvent {
+    private final String ruleType;
+
+    public ResultRulesChangedEvent(Object source, String ruleType) {
+        super(source);
+        this.ruleType = ruleType;
+    }
+
+    public String getRuleType() {
+        return ruleType;
+    }
+}
@@ -2,8 +2,7 @@
 
     import lombok.RequiredArgsConstructor;
     import lombok.extern.slf4j.Slf4j;
-    import org.overcode250204.testorderservice.elastic.services.TestOrderIndexingService; // <-- Import service re-index
-    import org.springframework.scheduling.annotation.Async;
+    import org.overcode250204.testorderservice.elastic.services.TestOrderIndexQueue;
     import org.springframework.stereotype.Component;
     import org.springframework.transaction.event.TransactionalEventListener; // <-- Import @TransactionalEventListener
 
@@ -13,15 +12,15 @@
     @RequiredArgsConstructor
     @Slf4j
     public class TestOrderIndexListener {
-        // Service chứa logic re-index mà chúng ta đã tạo trước đó
-        private final TestOrderIndexingService indexingService;
+        // Hàng đợi gộp các order cần re-index, ghi vào ES theo bulk batch
+        private final TestOrderIndexQueue indexQueue;
 
         /**
          * Lắng nghe sự kiện TestResultChangedEvent.
          * Chỉ chạy SAU KHI transaction (từ TestResultProcessingServiceImpl) đã commit thành công.
-         * Chạy bất đồng bộ (@Async) để không block thread chính.
+         * Chỉ enqueue (không block thread chính); nhiều event của cùng một order trong cửa sổ debounce
+         * được gộp thành một lần re-index.
          */
-        @Async
         @TransactionalEventListener
         public void handleTestResultChange(TestResultChangedEvent event) {
             if (event == null || event.getTestOrderId() == null) {
@@ -30,14 +29,7 @@
             }
 
             UUID orderId = event.getTestOrderId();
-            log.info("[EventListener] Received TestResultChangedEvent for order: {}. Triggering re-index.", orderId);
-
-            try {
-                // Gọi method re-index mà bạn đã thêm vào TestOrderIndexingService
-                indexingService.reindexTestOrder(orderId);
-            } catch (Exception e) {
-                log.error("[EventListener] Failed to re-index order {}: {}", orderId, e.getMessage(), e);
-                // (Trong thực tế, bạn có thể muốn thêm logic retry ở đây)
-            }
+            log.debug("[EventListener] Received TestResultChangedEvent for order: {}. Queueing re-index.", orderId);
+            indexQueue.enqueue(orderId);
         }
     }
@@ -0,0 +1,26 @@
+package org.overcode250204.testorderservice.events;
+
+import org.springframework.context.ApplicationEvent;
+
+import java.util.List;
+import java.util.UUID;
+
+public class TestResultsReviewRequestedEvent extends ApplicationEvent {
+    private final List<UUID> testOrderIds;
+    // Chỉ các kết quả vừa được chuẩn hoá mới cần review; kết quả cũ của order chỉ làm ngữ cảnh cho prompt
+    private final List<UUID> testResultIds;
+
+    public TestResultsReviewRequestedEvent(Object source, List<UUID> testOrderIds, List<UUID> testResultIds) {
+        super(source);
+        this.testOrderIds = testOrderIds;
+        this.testResultIds = testResultIds;
+    }
+
+    public List<UUID> getTestOrderIds() {
+        return testOrderIds;
+    }
+
+    public List<UUID> getTestResultIds() {
+        return testResultIds;
+    }
+}
@@ -19,6 +19,8 @@ public enum ErrorCode implements ServiceErrorCode {
     EXPORT_EXCEL_FAILED(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to export XLSX to S3"),
     EXPORT_PDF_FAILED(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to export PDF to S3"),
     EXPORT_PDF_NOT_ALLOWED(HttpStatus.BAD_REQUEST, "PDF export is only allowed for completed test orders"),
+    EXPORT_BULK_INVALID_REQUEST(HttpStatus.BAD_REQUEST, "Bulk export requires between 1 and the configured maximum of test orders"),
+    EXPORT_JOB_NOT_FOUND(HttpStatus.NOT_FOUND, "Export job not found"),
     RAW_RESULTS_NOT_READY_FOR_PROCESSING(HttpStatus.BAD_REQUEST, "Raw results not ready for processing"),
     FAIL_TO_CREAT_AUDIT_LOG(HttpStatus.INTERNAL_SERVER_ERROR, "Fail to create audit log"),
     PATIENT_CODE_DOES_NOT_EXIST(HttpStatus.BAD_REQUEST, "Patient code doesn't exist"),
@@ -47,4 +47,21 @@ public class ExportJob {
     @Column(name = "status", length = 20)
     @Enumerated(EnumType.STRING)
     private ExportStatus status = ExportStatus.PENDING;
+
+    // Tiến độ của bulk export (nhiều test order trong một job)
+    @Column(name = "total_items")
+    private Integer totalItems;
+
+    @Column(name = "processed_items")
+    private Integer processedItems;
+
+    @Column(name = "failed_items")
+    private Integer failedItems;
+
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+
+    // Lần cuối bulk export báo tiến độ; job PROCESSING quá lâu không cập nhật coi như replica chạy nó đã chết
+    @Column(name = "heartbeat_at")
+    private LocalDateTime heartbeatAt;
 }
\ No newline at end of file
@@ -10,6 +10,8 @@ import java.time.Instant;
 import java.util.UUID;
 
 @Entity(name = "inbox_event")
+// Unique index uk_inbox_event_event_id do InboxDeduplicator.migrateSchema tạo (sau khi xoá dòng trùng)
+@Table(indexes = @Index(name = "idx_inbox_event_processed_at", columnList = "processed_at"))
 @Getter
 @Setter
 @NoArgsConstructor
@@ -22,8 +24,10 @@ public class InboxEvent {
     @Column(name = "event_id")
     private UUID eventId;
 
+    // Không còn được ghi bởi InboxDeduplicator, giữ lại cho dữ liệu cũ
     @Column(name = "payload", columnDefinition = "text")
     private String payload;
 
+    @Column(name = "processed_at")
     private Instant processedAt;
 }
@@ -10,6 +10,7 @@ import java.time.Instant;
 import java.util.UUID;
 
 @Entity(name = "outbox_event")
+@Table(indexes = @Index(name = "idx_outbox_event_status_create_at", columnList = "status, create_at"))
 @Getter
 @Setter
 @NoArgsConstructor
@@ -38,11 +39,22 @@ public class OutboxEvent {
     @Column(name = "create_at")
     private Instant createdAt;
 
+    // Số lần relay đã claim event này (dùng để giới hạn retry)
+    @Column(name = "attempts")
+    private Integer attempts;
+
+    // Thời điểm một replica claim event (PROCESSING); quá lease thì replica khác được claim lại
+    @Column(name = "claimed_at")
+    private Instant claimedAt;
+
     @PrePersist
     public void prePersist() {
         if (this.status == null) {
             this.status = "PENDING";
         }
+        if (this.attempts == null) {
+            this.attempts = 0;
+        }
     }
 
 
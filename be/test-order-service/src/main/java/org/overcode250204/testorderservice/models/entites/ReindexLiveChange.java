@@ -0,0 +1,24 @@
+package org.overcode250204.testorderservice.models.entites;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.Instant;
+import java.util.UUID;
+
+// Order vừa được index real-time (trên bất kỳ replica nào), để bulk reindex ghi lại vào index mới sau khi chuyển alias
+@Entity(name = "reindex_live_change")
+@Table(indexes = @Index(name = "idx_reindex_live_change_changed_at", columnList = "changed_at"))
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ReindexLiveChange {
+    @Id
+    @Column(name = "order_id")
+    private UUID orderId;
+
+    @Column(name = "changed_at", nullable = false)
+    private Instant changedAt;
+}
@@ -0,0 +1,19 @@
+package org.overcode250204.testorderservice.models.entites;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import lombok.*;
+
+// Tăng mỗi khi một bộ rule được ghi, để mọi replica biết cần build lại snapshot trong bộ nhớ
+@Entity(name = "rule_set_version")
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class RuleSetVersion {
+    @Id
+    private String ruleSet;
+
+    private long version;
+}
@@ -18,7 +18,10 @@ import java.util.UUID;
 
 
 @Entity
-@Table(name = "test_orders")
+@Table(name = "test_orders", indexes = {
+        // Keyset pagination cho bulk reindex
+        @Index(name = "idx_test_orders_created_at_id", columnList = "created_at, id")
+})
 @Getter
 @Setter
 @NoArgsConstructor
@@ -2,6 +2,7 @@ package org.overcode250204.testorderservice.models.entites;
 
 import jakarta.persistence.*;
 import lombok.*;
+import org.hibernate.annotations.ColumnDefault;
 import org.overcode250204.testorderservice.models.enums.TestOrderType;
 
 import java.util.UUID;
@@ -40,4 +41,9 @@ public class UnitConversionMapping {
 
     @Column(name = "is_activated")
     private Boolean isActivated = true;
+
+    @Version
+    @Column(name = "version")
+    @ColumnDefault("0")
+    private Long version;
 }
\ No newline at end of file
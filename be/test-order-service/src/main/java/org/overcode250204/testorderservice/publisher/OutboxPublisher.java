@@ -1,20 +1,33 @@
 package org.overcode250204.testorderservice.publisher;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.overcode250204.testorderservice.models.entites.OutboxEvent;
 import org.overcode250204.testorderservice.repositories.OutboxRepository;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.util.List;
-import java.util.Map;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Relay outbox -> Kafka, an toàn khi chạy nhiều replica test-order-service:
+ * 1. Claim một batch có giới hạn bằng FOR UPDATE SKIP LOCKED và đánh dấu PROCESSING (1 transaction ngắn).
+ * 2. Gửi cả batch, để producer tự gom theo batch-size / linger.ms.
+ * 3. Khi các send future hoàn tất, đánh dấu SENT / FAILED bằng một bulk UPDATE cho mỗi trạng thái.
+ */
 @Component
 @RequiredArgsConstructor
 @Slf4j
@@ -26,35 +39,103 @@ public class OutboxPublisher {
 
     private final KafkaTemplate<String, Object> kafkaTemplate;
 
+    private final PlatformTransactionManager transactionManager;
 
-    @Scheduled(fixedDelay = 2000)
-    @Transactional
+    @Value("${app.outbox.batch-size:200}")
+    private int batchSize;
+
+    @Value("${app.outbox.max-batches-per-poll:10}")
+    private int maxBatchesPerPoll;
+
+    @Value("${app.outbox.max-attempts:10}")
+    private int maxAttempts;
+
+    @Value("${app.outbox.lease:PT2M}")
+    private Duration lease;
+
+    @Value("${app.outbox.send-timeout:PT30S}")
+    private Duration sendTimeout;
+
+    @Scheduled(fixedDelayString = "${app.outbox.poll-interval-ms:2000}")
     public void publishPending() {
-        List<OutboxEvent> pending = outboxRepository.findByStatus("PENDING");
-        for (OutboxEvent event : pending) {
+        // Xả backlog theo từng batch có giới hạn, không load toàn bộ PENDING vào bộ nhớ
+        for (int i = 0; i < maxBatchesPerPoll; i++) {
+            ClaimedBatch batch = claimBatch();
+            if (batch.events().isEmpty()) {
+                return;
+            }
+            publishBatch(batch);
+            if (batch.events().size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    // claimedAt là token của lần claim: updateStatus chỉ ghi khi row còn mang đúng giá trị này
+    private record ClaimedBatch(Instant claimedAt, List<OutboxEvent> events) {
+    }
+
+    private ClaimedBatch claimBatch() {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        // Postgres lưu timestamp tới micro giây, cắt bớt để so sánh bằng ở updateStatus khớp giá trị đã ghi
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        List<OutboxEvent> batch = transactionTemplate.execute(status -> {
+            outboxRepository.failExhaustedLeases(maxAttempts, now.minus(lease));
+            List<OutboxEvent> locked = outboxRepository.lockNextBatch(batchSize, maxAttempts, now.minus(lease));
+            if (!locked.isEmpty()) {
+                outboxRepository.markProcessing(locked.stream().map(OutboxEvent::getId).toList(), now);
+            }
+            return locked;
+        });
+        return new ClaimedBatch(now, batch == null ? List.of() : batch);
+    }
+
+    private void publishBatch(ClaimedBatch claimed) {
+        List<OutboxEvent> batch = claimed.events();
+        Map<UUID, CompletableFuture<SendResult<String, Object>>> inFlight = new LinkedHashMap<>();
+        List<UUID> failedIds = new ArrayList<>();
+
+        for (OutboxEvent event : batch) {
             try {
                 Map<String, Object> payload = objectMapper.readValue(event.getPayload(), Map.class);
                 payload.put("eventId", event.getId());
                 String topic = resolveTopic(event.getEventType());
                 if (topic == null) {
                     log.warn("No binding found for eventType: {}, skipping...", event.getEventType());
+                    failedIds.add(event.getId());
                     continue;
                 }
                 ProducerRecord<String, Object> record = new ProducerRecord<>(topic, event.getAggregateId(), payload);
-                kafkaTemplate.send(record).whenComplete((result, exception) -> {
-                    if (exception == null) {
-                        event.setStatus("SENT");
-                        outboxRepository.save(event);
-                        log.info("Sent event {} to topic {}", event.getEventType(), topic);
-                    } else {
-                        log.error("Failed to send event {}: {}", event.getEventType(), exception.getMessage());
-                    }
-                });
-
+                inFlight.put(event.getId(), kafkaTemplate.send(record));
             } catch (Exception e) {
-                log.error("Failed to publish pending eventId: {}, Error: {}", event.getId() ,e.getMessage());
+                log.error("Failed to publish pending eventId: {}, Error: {}", event.getId(), e.getMessage());
+                failedIds.add(event.getId());
             }
         }
+
+        // Chờ cả batch hoàn tất (producer đã gom record theo linger.ms), không xử lý từng callback riêng lẻ
+        try {
+            CompletableFuture.allOf(inFlight.values().toArray(CompletableFuture[]::new))
+                    .get(sendTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("Outbox batch did not fully complete within {}: {}", sendTimeout, e.getMessage());
+        }
+
+        List<UUID> sentIds = new ArrayList<>();
+        inFlight.forEach((id, future) -> {
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                sentIds.add(id);
+            } else {
+                failedIds.add(id);
+            }
+        });
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!sentIds.isEmpty()) outboxRepository.updateStatus(sentIds, "SENT", claimed.claimedAt());
+            if (!failedIds.isEmpty()) outboxRepository.updateStatus(failedIds, "FAILED", claimed.claimedAt());
+        });
+        log.info("Outbox batch published: {} sent, {} failed.", sentIds.size(), failedIds.size());
     }
 
     private String resolveTopic(String eventType) {
@@ -1,11 +1,34 @@
 package org.overcode250204.testorderservice.repositories;
 
 import org.overcode250204.testorderservice.models.entites.ExportJob;
+import org.overcode250204.testorderservice.models.enums.ExportStatus;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
 import java.util.UUID;
 
 @Repository
 public interface ExportJobRepository extends JpaRepository<ExportJob, UUID> {
+    // Tăng bộ đếm tiến độ ngay trên DB, an toàn khi nhiều worker cùng cập nhật một job
+    @Transactional
+    @Modifying
+    @Query("UPDATE ExportJob j SET j.processedItems = j.processedItems + :processed, " +
+            "j.failedItems = j.failedItems + :failed, j.heartbeatAt = :now WHERE j.id = :id")
+    int incrementProgress(@Param("id") UUID id, @Param("processed") int processed, @Param("failed") int failed,
+                          @Param("now") LocalDateTime now);
+
+    // Đánh dấu FAILED các job PROCESSING không còn báo tiến độ (replica chạy job bị tắt / chết giữa chừng)
+    @Transactional
+    @Modifying
+    @Query("UPDATE ExportJob j SET j.status = :failedStatus, j.completedAt = :now " +
+            "WHERE j.status = :processingStatus AND COALESCE(j.heartbeatAt, j.createdAt) < :staleBefore")
+    int failStaleJobs(@Param("processingStatus") ExportStatus processingStatus,
+                      @Param("failedStatus") ExportStatus failedStatus,
+                      @Param("staleBefore") LocalDateTime staleBefore,
+                      @Param("now") LocalDateTime now);
 }
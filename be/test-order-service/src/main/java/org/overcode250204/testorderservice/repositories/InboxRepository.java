@@ -8,5 +8,4 @@ import java.util.UUID;
 
 @Repository
 public interface InboxRepository extends JpaRepository<InboxEvent, UUID> {
-    boolean existsByEventId(UUID eventId);
 }
@@ -2,8 +2,13 @@ package org.overcode250204.testorderservice.repositories;
 
 import org.overcode250204.testorderservice.models.entites.OutboxEvent;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -12,4 +17,44 @@ public interface OutboxRepository extends JpaRepository<OutboxEvent, UUID> {
 
     List<OutboxEvent> findByStatus(String status);
 
+    /**
+     * Khoá một batch event cần gửi. SKIP LOCKED để nhiều replica cùng poll mà không claim trùng row.
+     * Lấy cả event PROCESSING đã quá lease (replica claim trước đó bị chết giữa chừng), cùng giới hạn maxAttempts.
+     */
+    @Query(value = """
+    SELECT * FROM outbox_event e
+    WHERE COALESCE(e.attempts, 0) < :maxAttempts
+      AND (e.status IN ('PENDING', 'FAILED')
+           OR (e.status = 'PROCESSING' AND e.claimed_at < :leaseExpiredBefore))
+    ORDER BY e.create_at
+    LIMIT :batchSize
+    FOR UPDATE SKIP LOCKED
+    """, nativeQuery = true)
+    List<OutboxEvent> lockNextBatch(@Param("batchSize") int batchSize,
+                                    @Param("maxAttempts") int maxAttempts,
+                                    @Param("leaseExpiredBefore") Instant leaseExpiredBefore);
+
+    /**
+     * Event PROCESSING quá lease mà đã hết lượt retry thì chuyển FAILED, để không kẹt PROCESSING mãi.
+     */
+    @Modifying
+    @Query("UPDATE outbox_event e SET e.status = 'FAILED' WHERE e.status = 'PROCESSING' " +
+            "AND e.claimedAt < :leaseExpiredBefore AND COALESCE(e.attempts, 0) >= :maxAttempts")
+    int failExhaustedLeases(@Param("maxAttempts") int maxAttempts,
+                            @Param("leaseExpiredBefore") Instant leaseExpiredBefore);
+
+    @Modifying
+    @Query("UPDATE outbox_event e SET e.status = 'PROCESSING', e.claimedAt = :claimedAt, " +
+            "e.attempts = COALESCE(e.attempts, 0) + 1 WHERE e.id IN :ids")
+    int markProcessing(@Param("ids") Collection<UUID> ids, @Param("claimedAt") Instant claimedAt);
+
+    /**
+     * Chỉ ghi trạng thái khi row vẫn thuộc lần claim này: nếu lease đã hết và replica khác claim lại
+     * (claimed_at đổi) thì bỏ qua, không ghi đè kết quả của lần claim mới.
+     */
+    @Modifying
+    @Query("UPDATE outbox_event e SET e.status = :status " +
+            "WHERE e.id IN :ids AND e.status = 'PROCESSING' AND e.claimedAt = :claimedAt")
+    int updateStatus(@Param("ids") Collection<UUID> ids, @Param("status") String status,
+                     @Param("claimedAt") Instant claimedAt);
 }
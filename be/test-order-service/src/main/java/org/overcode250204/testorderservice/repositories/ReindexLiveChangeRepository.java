@@ -0,0 +1,36 @@
+package org.overcode250204.testorderservice.repositories;
+
+import org.overcode250204.testorderservice.models.entites.ReindexLiveChange;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+@Repository
+public interface ReindexLiveChangeRepository extends CrudRepository<ReindexLiveChange, UUID> {
+
+    // Transaction riêng: thay đổi phải được commit trước khi ghi ES, kể cả khi được gọi trong transaction read-only
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    @Modifying
+    @Query(value = """
+        INSERT INTO reindex_live_change (order_id, changed_at)
+        SELECT id, :changedAt FROM unnest(CAST(:orderIds AS uuid[])) AS id
+        ON CONFLICT (order_id) DO UPDATE SET changed_at = EXCLUDED.changed_at
+    """, nativeQuery = true)
+    int record(@Param("orderIds") UUID[] orderIds, @Param("changedAt") Instant changedAt);
+
+    @Query("SELECT c.orderId FROM reindex_live_change c WHERE c.changedAt >= :since")
+    List<UUID> findOrderIdsChangedSince(@Param("since") Instant since);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM reindex_live_change c WHERE c.changedAt < :before")
+    int deleteChangedBefore(@Param("before") Instant before);
+}
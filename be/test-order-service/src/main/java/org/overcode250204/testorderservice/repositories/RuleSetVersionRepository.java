@@ -0,0 +1,27 @@
+package org.overcode250204.testorderservice.repositories;
+
+import org.overcode250204.testorderservice.models.entites.RuleSetVersion;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Optional;
+
+@Repository
+public interface RuleSetVersionRepository extends CrudRepository<RuleSetVersion, String> {
+
+    // Chạy trong transaction ghi rule nếu có, để version chỉ tăng khi thay đổi rule được commit
+    @Transactional
+    @Modifying
+    @Query(value = """
+        INSERT INTO rule_set_version (rule_set, version) VALUES (:ruleSet, 1)
+        ON CONFLICT (rule_set) DO UPDATE SET version = rule_set_version.version + 1
+    """, nativeQuery = true)
+    int increment(@Param("ruleSet") String ruleSet);
+
+    @Query("SELECT v.version FROM rule_set_version v WHERE v.ruleSet = :ruleSet")
+    Optional<Long> findVersion(@Param("ruleSet") String ruleSet);
+}
@@ -5,6 +5,7 @@ import org.overcode250204.testorderservice.dtos.dashboard.OrdersTypeCountDTO;
 import org.overcode250204.testorderservice.models.entites.TestOrders;
 import org.overcode250204.testorderservice.models.enums.Gender;
 import org.overcode250204.testorderservice.models.enums.TestOrderStatus;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
@@ -12,6 +13,8 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -46,6 +49,36 @@ public interface TestOrdersRepository extends JpaRepository<TestOrders, UUID> {
     @Query("SELECT o FROM TestOrders o JOIN FETCH o.patient WHERE o.isDeleted = false")
     Page<TestOrders> findAllWithPatient(Pageable pageable);
 
+    // LEFT JOIN: order chưa có patient vẫn phải được trả về, không bị coi là đã mất
+    @Query("SELECT o FROM TestOrders o LEFT JOIN FETCH o.patient WHERE o.id IN :ids")
+    List<TestOrders> findAllByIdInWithPatient(@Param("ids") Collection<UUID> ids);
+
+    /**
+     * Keyset pagination theo (createdAt, id) cho bulk reindex: chi phí mỗi trang không tăng theo vị trí
+     * như OFFSET. Trang đầu tiên dùng findFirstKeysetPageWithPatient. Order có created_at null không thoả
+     * so sánh keyset nên được đọc riêng (keyset theo id) bằng các query Undated.
+     */
+    @Query("SELECT o FROM TestOrders o LEFT JOIN FETCH o.patient WHERE o.isDeleted = false " +
+            "AND o.createdAt IS NOT NULL ORDER BY o.createdAt, o.id")
+    List<TestOrders> findFirstKeysetPageWithPatient(Limit limit);
+
+    @Query("SELECT o FROM TestOrders o LEFT JOIN FETCH o.patient WHERE o.isDeleted = false " +
+            "AND (o.createdAt > :createdAt OR (o.createdAt = :createdAt AND o.id > :id)) " +
+            "ORDER BY o.createdAt, o.id")
+    List<TestOrders> findKeysetPageWithPatient(@Param("createdAt") LocalDateTime createdAt,
+                                               @Param("id") UUID id,
+                                               Limit limit);
+
+    @Query("SELECT o FROM TestOrders o LEFT JOIN FETCH o.patient WHERE o.isDeleted = false " +
+            "AND o.createdAt IS NULL ORDER BY o.id")
+    List<TestOrders> findFirstUndatedKeysetPageWithPatient(Limit limit);
+
+    @Query("SELECT o FROM TestOrders o LEFT JOIN FETCH o.patient WHERE o.isDeleted = false " +
+            "AND o.createdAt IS NULL AND o.id > :id ORDER BY o.id")
+    List<TestOrders> findUndatedKeysetPageWithPatient(@Param("id") UUID id, Limit limit);
+
+    long countByIsDeletedFalse();
+
     @Query(value = """
     SELECT TO_CHAR(t.created_at, 'YYYY-MM-DD') AS date,
            t.test_type AS type,
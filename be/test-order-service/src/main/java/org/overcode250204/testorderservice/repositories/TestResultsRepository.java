@@ -8,6 +8,7 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -19,6 +20,9 @@ public interface TestResultsRepository extends JpaRepository<TestResults, UUID>
 
     List<TestResults> findByTestOrderId(UUID testOrderId);
 
+    @Query("SELECT tr FROM TestResults tr JOIN FETCH tr.testOrder WHERE tr.testOrder.id IN :orderIds")
+    List<TestResults> findByTestOrderIdInWithOrder(@Param("orderIds") Collection<UUID> orderIds);
+
     @Query(value = "SELECT new org.overcode250204.testorderservice.dtos.TestResultTrendDTO(" +
             "to.id, " +
             "to.createdAt, " +
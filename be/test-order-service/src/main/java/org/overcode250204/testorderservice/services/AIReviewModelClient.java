@@ -0,0 +1,11 @@
+package org.overcode250204.testorderservice.services;
+
+import com.google.genai.types.Schema;
+
+/**
+ * Lớp mỏng bọc lời gọi LLM, để pipeline AI review có thể test với client giả lập.
+ */
+@FunctionalInterface
+public interface AIReviewModelClient {
+    String generateJson(String prompt, Schema responseSchema);
+}
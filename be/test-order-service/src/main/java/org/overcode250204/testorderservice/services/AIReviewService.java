@@ -2,8 +2,13 @@ package org.overcode250204.testorderservice.services;
 
 import org.overcode250204.testorderservice.models.entites.TestResults;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public interface AIReviewService {
     List<TestResults> generateReview(List<TestResults> testResults);
+
+    CompletableFuture<Void> reviewOrdersAsync(Collection<UUID> testOrderIds, Collection<UUID> testResultIds);
 }
@@ -1,7 +1,9 @@
 package org.overcode250204.testorderservice.services;
 
-import java.io.PrintWriter;
-import java.util.Map;
+import org.overcode250204.testorderservice.dtos.ExportJobDTO;
+import org.overcode250204.testorderservice.models.enums.ExportFileType;
+
+import java.util.List;
 import java.util.UUID;
 
 public interface ExportJobService {
@@ -10,4 +12,7 @@ public interface ExportJobService {
     String writeExcel(UUID testOrderId);
     String writePdf(UUID testOrderId);
 
+    // Bulk export chạy nền: trả về job ngay, client poll tiến độ qua getExportJob
+    ExportJobDTO startBulkExport(List<UUID> testOrderIds, ExportFileType fileType, String exportedBy);
+    ExportJobDTO getExportJob(UUID jobId);
 }
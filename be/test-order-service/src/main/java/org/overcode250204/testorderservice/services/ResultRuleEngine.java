@@ -0,0 +1,19 @@
+package org.overcode250204.testorderservice.services;
+
+import org.overcode250204.testorderservice.models.entites.FlaggingRules;
+import org.overcode250204.testorderservice.models.entites.ResultParameterMapping;
+import org.overcode250204.testorderservice.models.entites.UnitConversionMapping;
+import org.overcode250204.testorderservice.models.enums.Gender;
+import org.overcode250204.testorderservice.models.enums.TestOrderType;
+
+import java.util.Optional;
+
+public interface ResultRuleEngine {
+    Optional<ResultParameterMapping> findParameterMapping(String externalParamName, String dataSource);
+
+    Optional<UnitConversionMapping> findUnitConversion(TestOrderType testType, String sourceUnit);
+
+    Optional<FlaggingRules> findFlaggingRule(String parameterName, String unit, Gender gender);
+
+    void rebuild();
+}
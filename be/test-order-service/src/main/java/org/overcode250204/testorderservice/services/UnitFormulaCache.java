@@ -0,0 +1,12 @@
+package org.overcode250204.testorderservice.services;
+
+import org.overcode250204.testorderservice.models.entites.UnitConversionMapping;
+import org.overcode250204.testorderservice.utils.UnitFormulaCompiler.CompiledFormula;
+
+import java.util.Collection;
+
+public interface UnitFormulaCache {
+    CompiledFormula getFormula(UnitConversionMapping mapping);
+
+    void refresh(Collection<UnitConversionMapping> activeMappings);
+}
@@ -1,37 +1,75 @@
 package org.overcode250204.testorderservice.services.impls;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.genai.Client;
 import com.google.genai.types.*;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.testorderservice.dtos.AiOrderReviewResponseDTO;
 import org.overcode250204.testorderservice.dtos.AiReviewResponseDTO;
 import org.overcode250204.testorderservice.models.entites.TestResults;
+import org.overcode250204.testorderservice.repositories.TestResultsRepository;
+import org.overcode250204.testorderservice.services.AIReviewModelClient;
 import org.overcode250204.testorderservice.services.AIReviewService;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class AIReviewServiceImpl implements AIReviewService {
+    private static final String NORMAL_REVIEW_COMMENT = "Result is within expected limits (Automated Review).";
+    private static final String FAILED_REVIEW_COMMENT = "Automated clinical review failed due to system/API error.";
+    private static final String NO_NOTES = "None provided.";
+    // Khóa gom nhóm riêng cho kết quả chưa gắn order, không trùng với bất kỳ id order nào
+    private static final Object NO_ORDER = new Object();
+    private static final MathContext VALUE_BUCKET_PRECISION = new MathContext(3);
 
-    private final Client geminiClient;
+    private final AIReviewModelClient modelClient;
     private final ObjectMapper objectMapper;
+    private final TestResultsRepository testResultsRepository;
+    private final PlatformTransactionManager transactionManager;
 
-    @Value("${gemini.model}")
-    private String modelName;
+    // Số lời gọi LLM tối đa chạy song song (trên virtual threads)
+    @Value("${gemini.review.max-concurrency:4}")
+    private int maxConcurrency = 4;
 
-    private static final Schema RESPONSE_SCHEMA = Schema.builder()
+    @Value("${gemini.review.cache-size:2000}")
+    private int cacheSize = 2000;
+
+    @Value("${gemini.review.write-batch-size:100}")
+    private int writeBatchSize = 100;
+
+    private ExecutorService reviewExecutor;
+    private Semaphore inFlightCalls;
+    private Map<ReviewCacheKey, AiReviewResponseDTO> reviewCache;
+
+    private static final Schema REVIEW_SCHEMA = Schema.builder()
             .type(Type.Known.OBJECT)
-            .description("AI review response schema")
+            .description("AI review of a single flagged parameter")
             .properties(
                     Map.of(
+                            "parameter",
+                            Schema.builder()
+                                    .type(Type.Known.STRING)
+                                    .description("Parameter name exactly as given in the flagged results.")
+                                    .build(),
                             "ai_has_issue",
                             Schema.builder()
                                     .type(Type.Known.BOOLEAN)
@@ -43,98 +81,251 @@ public class AIReviewServiceImpl implements AIReviewService {
                                     .description("Concise clinical interpretation or QA explanation.")
                                     .build()
                     ))
-            .required(List.of("ai_has_issue", "ai_review_comment"))
+            .required(List.of("parameter", "ai_has_issue", "ai_review_comment"))
+            .build();
+
+    private static final Schema RESPONSE_SCHEMA = Schema.builder()
+            .type(Type.Known.OBJECT)
+            .description("AI review response schema")
+            .properties(
+                    Map.of(
+                            "reviews",
+                            Schema.builder()
+                                    .type(Type.Known.ARRAY)
+                                    .description("One review per flagged parameter.")
+                                    .items(REVIEW_SCHEMA)
+                                    .build()
+                    ))
+            .required(List.of("reviews"))
             .build();
 
+    @PostConstruct
+    public void init() {
+        reviewExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ai-review-", 0).factory());
+        inFlightCalls = new Semaphore(maxConcurrency);
+        reviewCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ReviewCacheKey, AiReviewResponseDTO> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reviewExecutor.shutdown();
+    }
+
+    /**
+     * Review đồng bộ (dùng cho ReviewController): mỗi order một prompt, các order chạy song song.
+     * Cập nhật (mutate) trực tiếp các object trong list và trả lại chính list đó.
+     */
     @Override
     public List<TestResults> generateReview(List<TestResults> results) {
         if (results == null || results.isEmpty()) return results;
 
-        String patientNotes = results.getFirst().getTestOrder() != null
-                ? results.getFirst().getTestOrder().getNotes()
-                : "None provided.";
+        review(results, results);
+        return results;
+    }
 
-        String resultsJson;
-        try {
-            List<Object> dataForAI = results.stream()
-                    .map(r -> objectMapper.createObjectNode()
-                            .put("parameter", r.getParameterName())
-                            .put("value", r.getResultValue())
-                            .put("unit", r.getUnit())
-                            .put("ref_low", r.getReferenceLow())
-                            .put("ref_high", r.getReferenceHigh())
-                            .put("flag", Objects.toString(r.getAlertLevel(), "NONE")))
-                    .collect(Collectors.toList());
-
-            resultsJson = objectMapper.writeValueAsString(dataForAI);
-        } catch (Exception e) {
-            log.error("JSON serialization failed for AI context: ", e);
-            return results;
+    // Review các kết quả trong targets, mỗi order một prompt; context là toàn bộ kết quả của các order đó
+    private void review(List<TestResults> context, List<TestResults> targets) {
+        Map<Object, List<TestResults>> contextByOrder = context.stream()
+                .collect(Collectors.groupingBy(AIReviewServiceImpl::orderKey));
+        Map<Object, List<TestResults>> targetsByOrder = targets.stream()
+                .collect(Collectors.groupingBy(AIReviewServiceImpl::orderKey, LinkedHashMap::new, Collectors.toList()));
+
+        List<CompletableFuture<Void>> tasks = targetsByOrder.entrySet().stream()
+                .map(entry -> CompletableFuture.runAsync(
+                        () -> reviewOrder(contextByOrder.getOrDefault(entry.getKey(), entry.getValue()), entry.getValue()),
+                        reviewExecutor))
+                .toList();
+        CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new)).join();
+    }
+
+    private static Object orderKey(TestResults result) {
+        return result.getTestOrder() != null && result.getTestOrder().getId() != null ? result.getTestOrder().getId() : NO_ORDER;
+    }
+
+    /**
+     * Review bất đồng bộ sau khi processRawResults đã commit: load kết quả của các order, gọi LLM ngoài transaction
+     * cho riêng các kết quả mới (testResultIds), rồi ghi ai_has_issue / ai_review_comment của chúng theo từng batch.
+     * Kết quả cũ của order chỉ nằm trong prompt làm ngữ cảnh, không bị review / ghi lại.
+     */
+    @Override
+    public CompletableFuture<Void> reviewOrdersAsync(Collection<UUID> testOrderIds, Collection<UUID> testResultIds) {
+        List<UUID> orderIds = List.copyOf(testOrderIds);
+        Set<UUID> resultIds = Set.copyOf(testResultIds);
+        return CompletableFuture.runAsync(() -> reviewOrders(orderIds, resultIds), reviewExecutor)
+                .exceptionally(e -> {
+                    log.error("[AIReview] Async review failed for orders {}: {}", orderIds, e.getMessage(), e);
+                    return null;
+                });
+    }
+
+    private void reviewOrders(List<UUID> orderIds, Set<UUID> resultIds) {
+        TransactionTemplate readTemplate = new TransactionTemplate(transactionManager);
+        readTemplate.setReadOnly(true);
+        List<TestResults> results = readTemplate.execute(status -> testResultsRepository.findByTestOrderIdInWithOrder(orderIds));
+        List<TestResults> newResults = results == null ? List.of()
+                : results.stream().filter(r -> resultIds.contains(r.getId())).toList();
+        if (newResults.isEmpty()) {
+            log.warn("[AIReview] None of the {} new results found for orders {}.", resultIds.size(), orderIds);
+            return;
         }
 
-        String promptBase = createPrompt(patientNotes, resultsJson);
+        review(results, newResults);
+        writeBack(newResults);
+        log.info("[AIReview] Reviewed {} new results across {} orders.", newResults.size(), orderIds.size());
+    }
+
+    private void writeBack(List<TestResults> reviewed) {
+        TransactionTemplate writeTemplate = new TransactionTemplate(transactionManager);
+        for (int from = 0; from < reviewed.size(); from += writeBatchSize) {
+            Map<UUID, TestResults> batch = reviewed.subList(from, Math.min(from + writeBatchSize, reviewed.size())).stream()
+                    .collect(Collectors.toMap(TestResults::getId, Function.identity()));
 
-        for (TestResults result : results) {
+            // Chỉ chép 2 field AI vào entity managed; dirty checking sẽ flush thành batch UPDATE khi commit
+            writeTemplate.executeWithoutResult(status ->
+                    testResultsRepository.findAllById(batch.keySet()).forEach(managed -> {
+                        TestResults source = batch.get(managed.getId());
+                        managed.setAiHasIssue(source.getAiHasIssue());
+                        managed.setAiReviewComment(source.getAiReviewComment());
+                    }));
+        }
+    }
+
+    private void reviewOrder(List<TestResults> orderResults, List<TestResults> targets) {
+        TestResults first = targets.getFirst();
+        String patientNotes = first.getTestOrder() != null && first.getTestOrder().getNotes() != null
+                ? first.getTestOrder().getNotes()
+                : NO_NOTES;
+        String notesHash = sha256(patientNotes);
+
+        List<TestResults> pending = new ArrayList<>();
+        for (TestResults result : targets) {
             String alertLevelName = Objects.toString(result.getAlertLevel(), "NONE");
 
             if (alertLevelName.equals("NORMAL") || alertLevelName.equals("NONE")) {
-                result.setAiReviewComment("Result is within expected limits (Automated Review).");
+                result.setAiReviewComment(NORMAL_REVIEW_COMMENT);
                 result.setAiHasIssue(false);
                 continue;
             }
 
-            String currentResultDetails = String.format(
-                    "\n--- RESULT TO FOCUS ON ---\nParameter: %s, Value: %f, Flag: %s",
-                    result.getParameterName(), result.getResultValue(), alertLevelName
-            );
+            AiReviewResponseDTO cached = reviewCache.get(ReviewCacheKey.of(result, notesHash));
+            if (cached != null) {
+                applyReview(result, cached);
+            } else {
+                pending.add(result);
+            }
+        }
+
+        if (pending.isEmpty()) return;
+
+        try {
+            Map<String, AiReviewResponseDTO> reviews = requestReviews(patientNotes, orderResults, pending);
+            for (TestResults result : pending) {
+                AiReviewResponseDTO review = reviews.get(result.getParameterName());
+                if (review == null) {
+                    log.warn("[AIReview] No review returned for parameter {}.", result.getParameterName());
+                    applyFailure(result);
+                    continue;
+                }
+                applyReview(result, review);
+                reviewCache.put(ReviewCacheKey.of(result, notesHash), review);
+            }
+        } catch (Exception e) {
+            log.error("AI Review failed for {} flagged results (API call or JSON parse error): ", pending.size(), e);
+            pending.forEach(this::applyFailure);
+        }
+    }
 
-            String prompt = promptBase + currentResultDetails;
-            Content content = Content.fromParts(Part.fromText(prompt));
+    private Map<String, AiReviewResponseDTO> requestReviews(String patientNotes,
+                                                            List<TestResults> orderResults,
+                                                            List<TestResults> flagged) throws Exception {
+        String prompt = createPrompt(patientNotes, toJson(orderResults), toJson(flagged));
 
-            try {
-                GenerateContentResponse response = geminiClient.models.generateContent(
-                        modelName,
-                        List.of(content),
-                        GenerateContentConfig.builder()
-                                .responseSchema(RESPONSE_SCHEMA)
-                                .responseMimeType("application/json")
-                                .build()
-                );
+        String aiResponseText;
+        inFlightCalls.acquire();
+        try {
+            aiResponseText = modelClient.generateJson(prompt, RESPONSE_SCHEMA);
+        } finally {
+            inFlightCalls.release();
+        }
 
-                String aiResponseText = response.text();
+        AiOrderReviewResponseDTO response = objectMapper.readValue(aiResponseText, AiOrderReviewResponseDTO.class);
+        if (response.getReviews() == null) {
+            return Map.of();
+        }
+        return response.getReviews().stream()
+                .filter(review -> review.getParameter() != null)
+                .collect(Collectors.toMap(AiReviewResponseDTO::getParameter, Function.identity(), (a, b) -> a));
+    }
 
-                AiReviewResponseDTO aiReview = objectMapper.readValue(aiResponseText, AiReviewResponseDTO.class);
+    private String toJson(List<TestResults> results) throws Exception {
+        List<Object> dataForAI = results.stream()
+                .map(r -> objectMapper.createObjectNode()
+                        .put("parameter", r.getParameterName())
+                        .put("value", r.getResultValue())
+                        .put("unit", r.getUnit())
+                        .put("ref_low", r.getReferenceLow())
+                        .put("ref_high", r.getReferenceHigh())
+                        .put("flag", Objects.toString(r.getAlertLevel(), "NONE")))
+                .collect(Collectors.toList());
+        return objectMapper.writeValueAsString(dataForAI);
+    }
 
-                result.setAiReviewComment(aiReview.getAi_review_comment());
-                result.setAiHasIssue(aiReview.getAi_has_issue());
+    private void applyReview(TestResults result, AiReviewResponseDTO review) {
+        result.setAiReviewComment(review.getAi_review_comment());
+        result.setAiHasIssue(Boolean.TRUE.equals(review.getAi_has_issue()));
+    }
 
-            } catch (Exception e) {
-                log.error("AI Review failed for result {} (API call or JSON parse error): ", result.getParameterName(), e);
+    private void applyFailure(TestResults result) {
+        result.setAiReviewComment(FAILED_REVIEW_COMMENT);
+        result.setAiHasIssue(false);
+    }
 
-                result.setAiReviewComment("Automated clinical review failed due to system/API error.");
-                result.setAiHasIssue(false);
-            }
+    private static String sha256(String value) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
         }
-
-        return results;
     }
 
-    private String createPrompt(String patientNotes, String resultsJson) {
+    private String createPrompt(String patientNotes, String resultsJson, String flaggedJson) {
         return """
                 You are a clinical laboratory QA reviewer.
-                Review the flagged test result in context of all results and patient notes.
+                Review EACH flagged test result in context of all results and patient notes.
                 Reply ONLY with a single JSON object matching this schema:
                 {
-                  "ai_has_issue": boolean,
-                  "ai_review_comment": string
+                  "reviews": [
+                    { "parameter": string, "ai_has_issue": boolean, "ai_review_comment": string }
+                  ]
                 }
-                
+
                 Rules:
-                1. Write an extremely short, concise, and easy-to-understand clinical interpretation for the flagged result.
-                2. Set ai_has_issue = true only if the value seems erroneous or the flag looks wrong.
-                
+                1. Return exactly one review per flagged result, with "parameter" copied exactly from the flagged results.
+                2. Write an extremely short, concise, and easy-to-understand clinical interpretation for each flagged result.
+                3. Set ai_has_issue = true only if the value seems erroneous or the flag looks wrong.
+
                 Patient notes: "%s"
                 Full results JSON: %s
-                """.formatted(patientNotes, resultsJson);
+                Flagged results JSON: %s
+                """.formatted(patientNotes, resultsJson, flaggedJson);
+    }
+
+    /**
+     * Key cache: cùng parameter, cùng khoảng giá trị (3 chữ số có nghĩa), cùng flag và cùng ghi chú bệnh nhân.
+     */
+    private record ReviewCacheKey(String parameter, String valueBucket, String flag, String notesHash) {
+        static ReviewCacheKey of(TestResults result, String notesHash) {
+            Double value = result.getResultValue();
+            String bucket = value == null || !Double.isFinite(value)
+                    ? String.valueOf(value)
+                    : new BigDecimal(value).round(VALUE_BUCKET_PRECISION).stripTrailingZeros().toPlainString();
+            return new ReviewCacheKey(result.getParameterName(), bucket,
+                    Objects.toString(result.getAlertLevel(), "NONE"), notesHash);
+        }
     }
 }
@@ -1,7 +1,8 @@
 package org.overcode250204.testorderservice.services.impls;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.ObjectMetadata;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import net.sf.jasperreports.engine.*;
@@ -11,6 +12,7 @@ import net.sf.jasperreports.engine.util.JRLoader;
 import net.sf.jasperreports.export.SimpleExporterInput;
 import net.sf.jasperreports.export.SimpleOutputStreamExporterOutput;
 import net.sf.jasperreports.export.SimpleXlsxReportConfiguration;
+import org.overcode250204.testorderservice.dtos.ExportJobDTO;
 import org.overcode250204.testorderservice.dtos.TestOrderReportDetailDTO;
 import org.overcode250204.testorderservice.dtos.TestResultReportDTO;
 import com.opencsv.CSVWriter;
@@ -18,35 +20,100 @@ import org.overcode250204.testorderservice.exceptions.ErrorCode;
 import org.overcode250204.testorderservice.exceptions.TestOrderException;
 import org.overcode250204.testorderservice.mappers.TestOrdersMapper;
 import org.overcode250204.testorderservice.mappers.TestResultsMapper;
+import org.overcode250204.testorderservice.models.entites.ExportJob;
 import org.overcode250204.testorderservice.models.entites.TestOrders;
 import org.overcode250204.testorderservice.models.entites.TestResults;
 import org.overcode250204.testorderservice.models.enums.ExportFileType;
+import org.overcode250204.testorderservice.models.enums.ExportStatus;
 import org.overcode250204.testorderservice.models.enums.TestOrderStatus;
+import org.overcode250204.testorderservice.repositories.ExportJobRepository;
 import org.overcode250204.testorderservice.repositories.TestOrdersRepository;
 import org.overcode250204.testorderservice.repositories.TestResultsRepository;
 import org.overcode250204.testorderservice.services.ExportJobService;
 import org.overcode250204.testorderservice.utils.ExportFileNameGenerator;
+import org.overcode250204.testorderservice.utils.S3MultipartOutputStream;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class ExportJobServiceImpl implements ExportJobService {
+    private static final String TEST_RESULTS_REPORT = "/reports/TestResultsReport.jasper";
+    private static final String DETAILED_REPORT = "/reports/TestOrderDetailedReport.jasper";
+
+    private static final String CSV_CONTENT_TYPE = "text/csv";
+    private static final String XLSX_CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+    private static final String PDF_CONTENT_TYPE = "application/pdf";
+
     private final TestOrdersRepository testOrdersRepository;
     private final TestResultsRepository testResultsRepository;
+    private final ExportJobRepository exportJobRepository;
     private final TestOrdersMapper testOrdersMapper;
     private final TestResultsMapper testResultsMapper;
     private final AmazonS3 amazonS3;
+    private final PlatformTransactionManager transactionManager;
 
     @Value("${aws.bucketName}")
     private String bucketName;
 
+    // Kích thước mỗi part của multipart upload (S3 yêu cầu tối thiểu 5 MB)
+    @Value("${app.export.part-size:8388608}")
+    private int partSize = 8 * 1024 * 1024;
+
+    @Value("${app.export.bulk.workers:4}")
+    private int bulkWorkers = 4;
+
+    @Value("${app.export.bulk.max-orders:1000}")
+    private int bulkMaxOrders = 1000;
+
+    // Job PROCESSING không báo tiến độ lâu hơn khoảng này bị coi là mồ côi và chuyển FAILED
+    @Value("${app.export.bulk.stale-after:PT15M}")
+    private Duration bulkStaleAfter = Duration.ofMinutes(15);
+
+    // JasperReport đã compile, load một lần lúc khởi động và dùng chung (fill report là thread-safe)
+    private final Map<String, JasperReport> compiledReports = new HashMap<>();
+
+    private ExecutorService bulkExecutor;
+
+    @PostConstruct
+    public void init() {
+        for (String path : List.of(TEST_RESULTS_REPORT, DETAILED_REPORT)) {
+            try (InputStream jasperStream = getClass().getResourceAsStream(path)) {
+                if (jasperStream == null) {
+                    log.error("Jasper file not found: {}", path);
+                    continue;
+                }
+                compiledReports.put(path, (JasperReport) JRLoader.loadObject(jasperStream));
+            } catch (Exception e) {
+                log.error("Failed to load Jasper report {}", path, e);
+            }
+        }
+        int workers = Math.max(1, bulkWorkers);
+        AtomicInteger threadCount = new AtomicInteger();
+        bulkExecutor = Executors.newFixedThreadPool(workers,
+                runnable -> new Thread(runnable, "bulk-export-" + threadCount.incrementAndGet()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        bulkExecutor.shutdown();
+    }
+
     @Override
     public String generatePresignedUrl(String key) {
         Date expiration = new Date(System.currentTimeMillis() + 3600 * 1000); // 1 hour
@@ -61,8 +128,10 @@ public class ExportJobServiceImpl implements ExportJobService {
 
         List<TestResults> results = testResultsRepository.findByTestOrderId(testOrderId);
 
-        StringWriter stringWriter = new StringWriter();
-        try (CSVWriter csvWriter = new CSVWriter(stringWriter)) {
+        // Ghi từng dòng thẳng vào multipart upload, không dựng cả file trong bộ nhớ
+        S3MultipartOutputStream s3Stream = openUpload("csv", timestamp, fileName, CSV_CONTENT_TYPE);
+        try {
+            CSVWriter csvWriter = new CSVWriter(new OutputStreamWriter(s3Stream, StandardCharsets.UTF_8));
             // header
             String[] header = {
                     "Parameter", "Value", "Reference Low", "Reference High",
@@ -84,19 +153,13 @@ public class ExportJobServiceImpl implements ExportJobService {
                 };
                 csvWriter.writeNext(row);
             }
-        } catch (IOException e) {
+            csvWriter.close();
+        } catch (IOException | RuntimeException e) {
+            s3Stream.abort();
+            log.error("CSV export failed", e);
             throw new TestOrderException(ErrorCode.EXPORT_CSV_FAILED);
         }
-
-        // s3 key
-        String key = String.format("csv/%d/%02d/%02d/%s",
-                timestamp.getYear(),
-                timestamp.getMonthValue(),
-                timestamp.getDayOfMonth(),
-                fileName
-        );
-        amazonS3.putObject(bucketName, key, stringWriter.toString());
-        return key;
+        return s3Stream.getKey();
     }
 
     @Override
@@ -121,18 +184,17 @@ public class ExportJobServiceImpl implements ExportJobService {
         parameters.put("createdOn", reportData.getCreatedOnAsDate());
         parameters.put("notes", reportData.getNotes());
 
-        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            InputStream jasperStream = getClass().getResourceAsStream("/reports/TestResultsReport.jasper");
-            if (jasperStream == null) throw new IllegalStateException("Jasper file not found");
-
-            JasperReport jasperReport = (JasperReport) JRLoader.loadObject(jasperStream);
+        S3MultipartOutputStream s3Stream = null;
+        try {
+            JasperReport jasperReport = compiledReport(TEST_RESULTS_REPORT);
 
             JRBeanCollectionDataSource dataSource = new JRBeanCollectionDataSource(reportData.getTestResults());
             JasperPrint jasperPrint = JasperFillManager.fillReport(jasperReport, parameters, dataSource);
 
+            s3Stream = openUpload("xlsx", timestamp, fileName, XLSX_CONTENT_TYPE);
             JRXlsxExporter exporter = new JRXlsxExporter();
             exporter.setExporterInput(new SimpleExporterInput(jasperPrint));
-            exporter.setExporterOutput(new SimpleOutputStreamExporterOutput(outputStream));
+            exporter.setExporterOutput(new SimpleOutputStreamExporterOutput(s3Stream));
 
             SimpleXlsxReportConfiguration config = new SimpleXlsxReportConfiguration();
             config.setDetectCellType(true);
@@ -145,23 +207,10 @@ public class ExportJobServiceImpl implements ExportJobService {
             exporter.setConfiguration(config);
 
             exporter.exportReport();
-
-            String key = String.format("xlsx/%d/%02d/%02d/%s",
-                    timestamp.getYear(),
-                    timestamp.getMonthValue(),
-                    timestamp.getDayOfMonth(),
-                    fileName
-            );
-            byte[] bytes = outputStream.toByteArray();
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
-
-            ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentLength(bytes.length);
-            metadata.setContentType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
-
-            amazonS3.putObject(bucketName, key, inputStream, metadata);
-            return key;
+            s3Stream.close();
+            return s3Stream.getKey();
         } catch (Exception e) {
+            if (s3Stream != null) s3Stream.abort();
             log.error("Excel export failed", e);
             throw new TestOrderException(ErrorCode.EXPORT_EXCEL_FAILED);
         }
@@ -191,11 +240,9 @@ public class ExportJobServiceImpl implements ExportJobService {
         parameters.put("createdOn", reportDetail.getCreatedOnAsDate());
         parameters.put("notes", reportDetail.getNotes());
 
-        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            InputStream jasperStream = getClass().getResourceAsStream("/reports/TestOrderDetailedReport.jasper");
-            if (jasperStream == null) throw new IllegalStateException("Jasper file not found");
-
-            JasperReport jasperReport = (JasperReport) JRLoader.loadObject(jasperStream);
+        S3MultipartOutputStream s3Stream = null;
+        try {
+            JasperReport jasperReport = compiledReport(DETAILED_REPORT);
             List<TestResultReportDTO> processed =
                     reportDetail.getTestResults().stream()
                             .map(r -> {
@@ -210,24 +257,188 @@ public class ExportJobServiceImpl implements ExportJobService {
 
             JasperPrint jasperPrint = JasperFillManager.fillReport(jasperReport, parameters, dataSource);
 
-            JasperExportManager.exportReportToPdfStream(jasperPrint, outputStream);
-
-            String key = String.format("pdf/%d/%02d/%02d/%s",
-                    timestamp.getYear(), timestamp.getMonthValue(), timestamp.getDayOfMonth(), fileName);
-
-            byte[] bytes = outputStream.toByteArray();
-            ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentLength(bytes.length);
-            metadata.setContentType("application/pdf");
-
-            amazonS3.putObject(bucketName, key, new ByteArrayInputStream(bytes), metadata);
-            return key;
+            s3Stream = openUpload("pdf", timestamp, fileName, PDF_CONTENT_TYPE);
+            JasperExportManager.exportReportToPdfStream(jasperPrint, s3Stream);
+            s3Stream.close();
+            return s3Stream.getKey();
         } catch (Exception e) {
+            if (s3Stream != null) s3Stream.abort();
             log.error("PDF export failed", e);
             throw new TestOrderException(ErrorCode.EXPORT_PDF_FAILED);
         }
     }
 
+    @Override
+    public ExportJobDTO startBulkExport(List<UUID> testOrderIds, ExportFileType fileType, String exportedBy) {
+        List<UUID> orderIds = testOrderIds == null ? List.of() : testOrderIds.stream().distinct().toList();
+        if (fileType == null || orderIds.isEmpty() || orderIds.size() > bulkMaxOrders) {
+            throw new TestOrderException(ErrorCode.EXPORT_BULK_INVALID_REQUEST);
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        ExportJob job = exportJobRepository.save(ExportJob.builder()
+                .exportFileType(fileType)
+                .exportedBy(exportedBy != null ? UUID.fromString(exportedBy) : null)
+                .status(ExportStatus.PROCESSING)
+                .totalItems(orderIds.size())
+                .processedItems(0)
+                .failedItems(0)
+                .createdAt(now)
+                .heartbeatAt(now)
+                .build());
+        UUID jobId = job.getId();
+        log.info("Bulk export job {} started: {} test orders as {}", jobId, orderIds.size(), fileType);
+
+        // Mỗi test order là một task trên pool có giới hạn; tiến độ được cộng dồn vào ExportJob
+        Map<UUID, ExportOutcome> outcomes = Collections.synchronizedMap(new LinkedHashMap<>());
+        List<CompletableFuture<Void>> tasks = orderIds.stream()
+                .map(orderId -> CompletableFuture
+                        .supplyAsync(() -> exportOne(orderId, fileType), bulkExecutor)
+                        .handle((key, error) -> {
+                            boolean ok = error == null;
+                            outcomes.put(orderId, ok ? ExportOutcome.ok(key) : ExportOutcome.failed(rootMessage(error)));
+                            exportJobRepository.incrementProgress(jobId, ok ? 1 : 0, ok ? 0 : 1, LocalDateTime.now());
+                            if (!ok) {
+                                log.warn("Bulk export job {}: test order {} failed: {}", jobId, orderId, rootMessage(error));
+                            }
+                            return (Void) null;
+                        }))
+                .toList();
+
+        CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new))
+                .whenComplete((ignored, error) -> finishBulkExport(jobId, fileType, orderIds, outcomes));
+
+        return toDTO(job);
+    }
+
+    @Override
+    public ExportJobDTO getExportJob(UUID jobId) {
+        ExportJob job = exportJobRepository.findById(jobId)
+                .orElseThrow(() -> new TestOrderException(ErrorCode.EXPORT_JOB_NOT_FOUND));
+        return toDTO(job);
+    }
+
+    // Chạy trên worker: cần transaction để load lazy association (patient, results) của TestOrders
+    private String exportOne(UUID testOrderId, ExportFileType fileType) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        return transactionTemplate.execute(status -> switch (fileType) {
+            case CSV -> writeCsv(testOrderId);
+            case XLSX -> writeExcel(testOrderId);
+            case PDF -> writePdf(testOrderId);
+        });
+    }
+
+    /**
+     * Bulk export chạy trong bộ nhớ của replica nhận request: nếu replica bị tắt giữa chừng, job sẽ kẹt ở PROCESSING.
+     * Quét lúc khởi động và định kỳ, chuyển FAILED các job đã ngừng báo tiến độ quá stale-after.
+     */
+    @Scheduled(fixedDelayString = "${app.export.bulk.stale-sweep-interval-ms:300000}")
+    public void failStaleBulkExports() {
+        LocalDateTime now = LocalDateTime.now();
+        int failed = exportJobRepository.failStaleJobs(ExportStatus.PROCESSING, ExportStatus.FAILED,
+                now.minus(bulkStaleAfter), now);
+        if (failed > 0) {
+            log.warn("Marked {} stale bulk export jobs as FAILED (no progress for {})", failed, bulkStaleAfter);
+        }
+    }
+
+    // Kết quả export của một test order trong bulk job: file key khi thành công, thông báo lỗi khi thất bại
+    private record ExportOutcome(boolean ok, String detail) {
+        private static final ExportOutcome NOT_PROCESSED = failed("Not processed");
+
+        static ExportOutcome ok(String key) {
+            return new ExportOutcome(true, key);
+        }
+
+        static ExportOutcome failed(String message) {
+            return new ExportOutcome(false, message);
+        }
+
+        String status() {
+            return ok ? "OK" : "FAILED";
+        }
+    }
+
+    // Manifest CSV (testOrderId, status, key hoặc lỗi) được stream lên S3 như các file khác
+    private void finishBulkExport(UUID jobId, ExportFileType fileType, List<UUID> orderIds,
+                                  Map<UUID, ExportOutcome> outcomes) {
+        LocalDateTime timestamp = LocalDateTime.now();
+        String manifestName = String.format("bulk_%s_%s_manifest.csv", jobId, fileType.name().toLowerCase());
+        S3MultipartOutputStream s3Stream = openUpload("bulk", timestamp, manifestName, CSV_CONTENT_TYPE);
+        String manifestKey = null;
+        try {
+            CSVWriter csvWriter = new CSVWriter(new OutputStreamWriter(s3Stream, StandardCharsets.UTF_8));
+            csvWriter.writeNext(new String[]{"Test Order ID", "Status", "File Key / Error"});
+            for (UUID orderId : orderIds) {
+                ExportOutcome outcome = outcomes.getOrDefault(orderId, ExportOutcome.NOT_PROCESSED);
+                csvWriter.writeNext(new String[]{orderId.toString(), outcome.status(), outcome.detail()});
+            }
+            csvWriter.close();
+            manifestKey = s3Stream.getKey();
+        } catch (IOException | RuntimeException e) {
+            s3Stream.abort();
+            log.error("Bulk export job {}: failed to write manifest", jobId, e);
+        }
+
+        long failed = orderIds.stream().filter(orderId -> !outcomes.getOrDefault(orderId, ExportOutcome.NOT_PROCESSED).ok()).count();
+        ExportJob job = exportJobRepository.findById(jobId).orElse(null);
+        if (job == null) {
+            return;
+        }
+        job.setFileName(manifestName);
+        job.setFilePath(manifestKey);
+        job.setCompletedAt(timestamp);
+        job.setStatus(manifestKey == null || failed == orderIds.size() ? ExportStatus.FAILED : ExportStatus.COMPLETED);
+        exportJobRepository.save(job);
+        log.info("Bulk export job {} finished: {} ok, {} failed", jobId, orderIds.size() - failed, failed);
+    }
+
+    private ExportJobDTO toDTO(ExportJob job) {
+        return ExportJobDTO.builder()
+                .id(job.getId())
+                .exportFileType(job.getExportFileType())
+                .status(job.getStatus())
+                .totalItems(job.getTotalItems())
+                .processedItems(job.getProcessedItems())
+                .failedItems(job.getFailedItems())
+                .manifestUrl(job.getStatus() == ExportStatus.COMPLETED && job.getFilePath() != null
+                        ? generatePresignedUrl(job.getFilePath()) : null)
+                .createdAt(job.getCreatedAt())
+                .completedAt(job.getCompletedAt())
+                .build();
+    }
+
+    private JasperReport compiledReport(String path) {
+        JasperReport report = compiledReports.get(path);
+        if (report == null) throw new IllegalStateException("Jasper file not found");
+        return report;
+    }
+
+    // s3 key: <folder>/yyyy/MM/dd/<fileName>
+    private S3MultipartOutputStream openUpload(String folder, LocalDateTime timestamp, String fileName, String contentType) {
+        String key = String.format("%s/%d/%02d/%02d/%s",
+                folder,
+                timestamp.getYear(),
+                timestamp.getMonthValue(),
+                timestamp.getDayOfMonth(),
+                fileName
+        );
+        return new S3MultipartOutputStream(amazonS3, bucketName, key, contentType,
+                Math.max(partSize, S3MultipartOutputStream.MIN_PART_SIZE));
+    }
+
+    private static String rootMessage(Throwable error) {
+        Throwable root = error;
+        while (root.getCause() != null && root.getCause() != root) {
+            root = root.getCause();
+        }
+        if (root instanceof TestOrderException testOrderException) {
+            return testOrderException.getErrorCode().getMessage();
+        }
+        return root.getMessage() != null ? root.getMessage() : root.getClass().getSimpleName();
+    }
+
     private Map<String, Object> prepareExportMetadata(UUID testOrderId, ExportFileType type) {
         TestOrders testOrder = testOrdersRepository.findById(testOrderId)
                 .orElseThrow(() -> new IllegalArgumentException("Cannot find Test Order with ID: " + testOrderId));
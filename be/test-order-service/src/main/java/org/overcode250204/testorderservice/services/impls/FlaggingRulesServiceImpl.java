@@ -1,6 +1,7 @@
 package org.overcode250204.testorderservice.services.impls;
 
 import lombok.RequiredArgsConstructor;
+import org.overcode250204.testorderservice.events.ResultRulesChangedEvent;
 import org.overcode250204.testorderservice.dtos.FlaggingRulesDTO;
 import org.overcode250204.testorderservice.mappers.FlaggingRulesMapper;
 import org.overcode250204.testorderservice.models.entites.FlaggingRules;
@@ -8,6 +9,7 @@ import org.overcode250204.testorderservice.exceptions.ResourceConflictException;
 import org.overcode250204.testorderservice.exceptions.ResourceNotFoundException;
 import org.overcode250204.testorderservice.repositories.FlaggingRulesRepository;
 import org.overcode250204.testorderservice.services.FlaggingRulesService;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -18,6 +20,7 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 public class FlaggingRulesServiceImpl implements FlaggingRulesService {
     private final FlaggingRulesRepository repository;
+    private final ApplicationEventPublisher eventPublisher;
 
     @Override
     public FlaggingRulesDTO findById(UUID id) {
@@ -39,6 +42,7 @@ public class FlaggingRulesServiceImpl implements FlaggingRulesService {
         FlaggingRules entity = FlaggingRulesMapper.toEntity(newRule);
         validateNormalRange(entity);
         FlaggingRules saved = repository.save(entity);
+        publishRulesChanged();
         return FlaggingRulesMapper.toDTO(saved);
     }
 
@@ -57,6 +61,7 @@ public class FlaggingRulesServiceImpl implements FlaggingRulesService {
         validateNormalRange(existing);
 
         FlaggingRules saved = repository.save(existing);
+        publishRulesChanged();
         return FlaggingRulesMapper.toDTO(saved);
     }
 
@@ -71,6 +76,7 @@ public class FlaggingRulesServiceImpl implements FlaggingRulesService {
 
         rule.setIsActivated(false);
         FlaggingRules saved = repository.save(rule);
+        publishRulesChanged();
         return FlaggingRulesMapper.toDTO(saved);
     }
 
@@ -85,6 +91,7 @@ public class FlaggingRulesServiceImpl implements FlaggingRulesService {
 
         rule.setIsActivated(true);
         FlaggingRules saved = repository.save(rule);
+        publishRulesChanged();
         return FlaggingRulesMapper.toDTO(saved);
     }
 
@@ -94,6 +101,7 @@ public class FlaggingRulesServiceImpl implements FlaggingRulesService {
                 .orElseThrow(() -> new ResourceNotFoundException("Cannot find FlaggingRules with id: " + id));
 
         repository.delete(existing);
+        publishRulesChanged();
     }
 
 
@@ -104,4 +112,8 @@ public class FlaggingRulesServiceImpl implements FlaggingRulesService {
             throw new ResourceConflictException("Error: Normal Low should be lower than or at most equal to Normal High");
         }
     }
-}
\ No newline at end of file
+
+    private void publishRulesChanged() {
+        eventPublisher.publishEvent(new ResultRulesChangedEvent(this, "FLAGGING_RULE"));
+    }
+}
@@ -0,0 +1,36 @@
+package org.overcode250204.testorderservice.services.impls;
+
+import com.google.genai.Client;
+import com.google.genai.types.Content;
+import com.google.genai.types.GenerateContentConfig;
+import com.google.genai.types.GenerateContentResponse;
+import com.google.genai.types.Part;
+import com.google.genai.types.Schema;
+import lombok.RequiredArgsConstructor;
+import org.overcode250204.testorderservice.services.AIReviewModelClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+@Component
+@RequiredArgsConstructor
+public class GeminiReviewModelClient implements AIReviewModelClient {
+    private final Client geminiClient;
+
+    @Value("${gemini.model}")
+    private String modelName;
+
+    @Override
+    public String generateJson(String prompt, Schema responseSchema) {
+        GenerateContentResponse response = geminiClient.models.generateContent(
+                modelName,
+                List.of(Content.fromParts(Part.fromText(prompt))),
+                GenerateContentConfig.builder()
+                        .responseSchema(responseSchema)
+                        .responseMimeType("application/json")
+                        .build()
+        );
+        return response.text();
+    }
+}
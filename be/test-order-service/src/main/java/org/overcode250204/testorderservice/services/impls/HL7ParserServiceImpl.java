@@ -12,6 +12,7 @@ import org.overcode250204.testorderservice.dtos.HL7TestResult;
 import org.overcode250204.testorderservice.dtos.TestResultItem;
 import org.overcode250204.testorderservice.exceptions.HL7ParsingException;
 import org.overcode250204.testorderservice.services.HL7ParserService;
+import org.overcode250204.testorderservice.utils.HL7OruFastParser;
 import org.springframework.stereotype.Service;
 
 import java.util.stream.IntStream;
@@ -27,6 +28,18 @@ public class HL7ParserServiceImpl implements HL7ParserService {
 
     @Override
     public HL7TestResult parseHL7Message(String hl7Message) throws HL7ParsingException {
+        // Fast path cho ORU^R01 do HL7TemplateServiceImpl sinh ra; message khác fallback về HAPI để validate đầy đủ
+        HL7TestResult fastResult = HL7OruFastParser.tryParse(hl7Message);
+        if (fastResult != null) {
+            return fastResult;
+        }
+        return parseWithHapi(hl7Message);
+    }
+
+    public HL7TestResult parseWithHapi(String hl7Message) throws HL7ParsingException {
+        if (hl7Message == null) {
+            throw new HL7ParsingException("HL7 message is null");
+        }
         try {
             String cleanedHl7Message = hl7Message.replace('\n', '\r');
             String correctedHl7Message = cleanedHl7Message.replaceAll("\\|\\|\\|F\\|", "||F\\|");
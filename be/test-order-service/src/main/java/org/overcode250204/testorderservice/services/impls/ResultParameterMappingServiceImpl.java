@@ -1,6 +1,7 @@
 package org.overcode250204.testorderservice.services.impls;
 
 import lombok.RequiredArgsConstructor;
+import org.overcode250204.testorderservice.events.ResultRulesChangedEvent;
 import org.overcode250204.testorderservice.dtos.ResultParameterMappingDTO;
 import org.overcode250204.testorderservice.mappers.ResultParameterMappingMapper;
 import org.overcode250204.testorderservice.models.entites.ResultParameterMapping;
@@ -9,6 +10,7 @@ import org.overcode250204.testorderservice.exceptions.ResourceNotFoundException;
 import org.overcode250204.testorderservice.repositories.ResultParameterMappingRepository;
 import org.overcode250204.testorderservice.services.ResultParameterMappingService;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -20,6 +22,7 @@ import java.util.stream.Collectors;
 public class ResultParameterMappingServiceImpl implements ResultParameterMappingService {
     private final ResultParameterMappingRepository repository;
     private final ResultParameterMappingMapper mapper;
+    private final ApplicationEventPublisher eventPublisher;
 
     @Override
     public List<ResultParameterMappingDTO> findAll() {
@@ -42,6 +45,7 @@ public class ResultParameterMappingServiceImpl implements ResultParameterMapping
         ResultParameterMapping entity = mapper.toEntity(dto);
         try {
             ResultParameterMapping saved = repository.save(entity);
+            publishRulesChanged();
             return mapper.toDTO(saved);
         } catch (DataIntegrityViolationException ex) {
             throw new ResourceConflictException(String.format(
@@ -60,6 +64,7 @@ public class ResultParameterMappingServiceImpl implements ResultParameterMapping
 
         try {
             ResultParameterMapping updated = repository.save(existing);
+            publishRulesChanged();
             return mapper.toDTO(updated);
         } catch (DataIntegrityViolationException ex) {
             throw new ResourceConflictException(String.format(
@@ -80,6 +85,7 @@ public class ResultParameterMappingServiceImpl implements ResultParameterMapping
 
         entity.setIsActivated(false);
         ResultParameterMapping saved = repository.save(entity);
+        publishRulesChanged();
         return mapper.toDTO(saved);
     }
 
@@ -93,6 +99,7 @@ public class ResultParameterMappingServiceImpl implements ResultParameterMapping
 
         entity.setIsActivated(true);
         ResultParameterMapping saved = repository.save(entity);
+        publishRulesChanged();
         return mapper.toDTO(saved);
     }
 
@@ -101,5 +108,10 @@ public class ResultParameterMappingServiceImpl implements ResultParameterMapping
         ResultParameterMapping entity = repository.findById(id)
                 .orElseThrow(() -> new ResourceNotFoundException("Cannot find ResultParameterMapping with id: " + id));
         repository.delete(entity);
+        publishRulesChanged();
     }
-}
\ No newline at end of file
+
+    private void publishRulesChanged() {
+        eventPublisher.publishEvent(new ResultRulesChangedEvent(this, "PARAMETER_MAPPING"));
+    }
+}
@@ -0,0 +1,203 @@
+package org.overcode250204.testorderservice.services.impls;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.testorderservice.events.ResultRulesChangedEvent;
+import org.overcode250204.testorderservice.models.entites.FlaggingRules;
+import org.overcode250204.testorderservice.models.entites.ResultParameterMapping;
+import org.overcode250204.testorderservice.models.entites.UnitConversionMapping;
+import org.overcode250204.testorderservice.models.enums.Gender;
+import org.overcode250204.testorderservice.models.enums.TestOrderType;
+import org.overcode250204.testorderservice.repositories.FlaggingRulesRepository;
+import org.overcode250204.testorderservice.repositories.ResultParameterMappingRepository;
+import org.overcode250204.testorderservice.repositories.RuleSetVersionRepository;
+import org.overcode250204.testorderservice.repositories.UnitConversionMappingRepository;
+import org.overcode250204.testorderservice.services.ResultRuleEngine;
+import org.overcode250204.testorderservice.services.UnitFormulaCache;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Giữ các rule chuẩn hoá kết quả (parameter mapping, unit conversion, flagging) trong bộ nhớ,
+ * được đánh index theo đúng khoá mà TestResultProcessingServiceImpl tra cứu.
+ * Snapshot được build lại khi các CRUD service ghi rule (xem ResultRulesChangedEvent),
+ * nên mỗi lần xử lý raw results không phải findAll() lại 3 bảng.
+ *
+ * Event chỉ tới replica đã ghi rule. Vì vậy mỗi lần ghi cũng tăng version trong bảng rule_set_version (cùng
+ * transaction với thay đổi rule); mọi replica hỏi version định kỳ (một câu SELECT theo khoá chính) và build lại
+ * khi version khác với version của snapshot đang giữ.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ResultRuleEngineImpl implements ResultRuleEngine {
+    private static final String GLOBAL_SOURCE = "GLOBAL";
+    static final String RULE_SET = "RESULT_RULES";
+
+    private final ResultParameterMappingRepository paramMappingRepository;
+    private final UnitConversionMappingRepository unitConversionRepository;
+    private final FlaggingRulesRepository flaggingRulesRepository;
+    private final UnitFormulaCache formulaCache;
+    private final RuleSetVersionRepository ruleSetVersionRepository;
+
+    private volatile RuleSnapshot snapshot;
+
+    @Override
+    public Optional<ResultParameterMapping> findParameterMapping(String externalParamName, String dataSource) {
+        RuleSnapshot current = currentSnapshot();
+
+        // Ưu tiên 1: rule khớp chính xác Instrument ID
+        ResultParameterMapping specific = current.paramMaps().get(new ParamKey(externalParamName, dataSource));
+        if (specific != null) {
+            return Optional.of(specific);
+        }
+
+        // Ưu tiên 2: fallback về rule GLOBAL
+        return Optional.ofNullable(current.paramMaps().get(new ParamKey(externalParamName, GLOBAL_SOURCE)));
+    }
+
+    @Override
+    public Optional<UnitConversionMapping> findUnitConversion(TestOrderType testType, String sourceUnit) {
+        RuleSnapshot current = currentSnapshot();
+        String unit = normalize(sourceUnit);
+
+        UnitConversionMapping mapping = current.unitMaps().get(new UnitKey(testType, unit));
+        if (mapping == null && testType != null) {
+            mapping = current.unitMaps().get(new UnitKey(null, unit));
+        }
+        return Optional.ofNullable(mapping);
+    }
+
+    @Override
+    public Optional<FlaggingRules> findFlaggingRule(String parameterName, String unit, Gender gender) {
+        RuleSnapshot current = currentSnapshot();
+        String parameter = normalize(parameterName);
+        String normalizedUnit = normalize(unit);
+
+        FlaggingRules rule = null;
+        if (gender != null) {
+            rule = current.flagRules().get(new FlagKey(parameter, normalizedUnit, gender));
+        }
+        if (rule == null) {
+            rule = current.flagRules().get(new FlagKey(parameter, normalizedUnit, null));
+        }
+        return Optional.ofNullable(rule);
+    }
+
+    @Override
+    public synchronized void rebuild() {
+        // Đọc version trước các bảng rule: thay đổi commit xen giữa sẽ làm version lệch và lần poll sau build lại
+        long version = currentVersion();
+        List<ResultParameterMapping> allParamMaps = paramMappingRepository.findAll();
+        List<UnitConversionMapping> allUnitMaps = unitConversionRepository.findAll();
+        List<FlaggingRules> allFlagRules = flaggingRulesRepository.findAll();
+
+        Map<ParamKey, ResultParameterMapping> paramMaps = new HashMap<>();
+        for (ResultParameterMapping map : allParamMaps) {
+            if (!Boolean.TRUE.equals(map.getIsActivated())) continue;
+            String source = GLOBAL_SOURCE.equalsIgnoreCase(map.getDataSource()) ? GLOBAL_SOURCE : map.getDataSource();
+            paramMaps.putIfAbsent(new ParamKey(map.getExternalParamName(), source), map);
+        }
+
+        Map<UnitKey, UnitConversionMapping> unitMaps = new HashMap<>();
+        for (UnitConversionMapping map : allUnitMaps) {
+            if (!Boolean.TRUE.equals(map.getIsActivated()) || map.getSourceUnit() == null) continue;
+            unitMaps.putIfAbsent(new UnitKey(map.getTestType(), normalize(map.getSourceUnit())), map);
+        }
+
+        Map<FlagKey, FlaggingRules> flagRules = new HashMap<>();
+        for (FlaggingRules rule : allFlagRules) {
+            if (!Boolean.TRUE.equals(rule.getIsActivated()) || rule.getParameterName() == null || rule.getUnit() == null) continue;
+            flagRules.putIfAbsent(new FlagKey(normalize(rule.getParameterName()), normalize(rule.getUnit()), rule.getGender()), rule);
+        }
+
+        // Biên dịch sẵn formula của các mapping đang active
+        formulaCache.refresh(unitMaps.values());
+
+        this.snapshot = new RuleSnapshot(Map.copyOf(paramMaps), Map.copyOf(unitMaps), Map.copyOf(flagRules), version);
+        log.info("[RuleEngine] Rebuilt rule indexes (version {}): {} parameter mappings, {} unit conversions, {} flagging rules.",
+                version, paramMaps.size(), unitMaps.size(), flagRules.size());
+    }
+
+    // Seeder chạy ở @PostConstruct, nên chỉ build sau khi application đã sẵn sàng
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        rebuild();
+    }
+
+    // Chạy đồng bộ trong transaction của CRUD service đã ghi rule
+    @EventListener
+    public void onRulesWritten(ResultRulesChangedEvent event) {
+        ruleSetVersionRepository.increment(RULE_SET);
+    }
+
+    /**
+     * Chạy SAU KHI transaction ghi rule đã commit, để snapshot mới không chứa dữ liệu bị rollback.
+     * fallbackExecution = true vì một số CRUD service ghi rule không nằm trong transaction.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onRulesChanged(ResultRulesChangedEvent event) {
+        log.info("[RuleEngine] {} rules changed. Rebuilding indexes.", event.getRuleType());
+        rebuild();
+    }
+
+    // Rule do replica khác ghi: build lại khi version trong DB khác version của snapshot
+    @Scheduled(fixedDelayString = "${app.rules.refresh-interval-ms:5000}")
+    public void refreshIfChanged() {
+        RuleSnapshot current = snapshot;
+        if (current == null) {
+            return;
+        }
+        try {
+            long version = currentVersion();
+            if (version != current.version()) {
+                log.info("[RuleEngine] Rules changed on another replica (version {} -> {}). Rebuilding indexes.",
+                        current.version(), version);
+                rebuild();
+            }
+        } catch (Exception e) {
+            log.warn("[RuleEngine] Failed to check rule version: {}", e.getMessage());
+        }
+    }
+
+    private long currentVersion() {
+        return ruleSetVersionRepository.findVersion(RULE_SET).orElse(0L);
+    }
+
+    private RuleSnapshot currentSnapshot() {
+        RuleSnapshot current = snapshot;
+        if (current == null) {
+            rebuild();
+            current = snapshot;
+        }
+        return current;
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+
+    private record ParamKey(String externalParamName, String dataSource) {
+    }
+
+    private record UnitKey(TestOrderType testType, String sourceUnit) {
+    }
+
+    private record FlagKey(String parameterName, String unit, Gender gender) {
+    }
+
+    private record RuleSnapshot(Map<ParamKey, ResultParameterMapping> paramMaps,
+                                Map<UnitKey, UnitConversionMapping> unitMaps,
+                                Map<FlagKey, FlaggingRules> flagRules,
+                                long version) {
+    }
+}
@@ -1,11 +1,11 @@
 package org.overcode250204.testorderservice.services.impls;
 
-import com.udojava.evalex.Expression;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.overcode250204.testorderservice.events.TestResultChangedEvent;
+import org.overcode250204.testorderservice.events.TestResultsReviewRequestedEvent;
 import org.overcode250204.testorderservice.events.MonitoringPublisher;
 import org.overcode250204.testorderservice.exceptions.ErrorCode;
 import org.overcode250204.testorderservice.exceptions.TestOrderException;
@@ -16,13 +16,13 @@ import org.overcode250204.testorderservice.models.enums.TestOrderStatus;
 import org.overcode250204.testorderservice.models.enums.TestResultAlertLevel;
 import org.overcode250204.testorderservice.models.enums.TestResultStatus;
 import org.overcode250204.testorderservice.repositories.*;
-import org.overcode250204.testorderservice.services.AIReviewService;
+import org.overcode250204.testorderservice.services.ResultRuleEngine;
 import org.overcode250204.testorderservice.services.TestResultProcessingService;
+import org.overcode250204.testorderservice.services.UnitFormulaCache;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.function.Function;
@@ -38,14 +38,12 @@ public class TestResultProcessingServiceImpl implements TestResultProcessingServ
 
     private final TestResultRawRepository rawRepository;
     private final TestResultsRepository testResultsRepository;
-    private final ResultParameterMappingRepository paramMappingRepository;
-    private final UnitConversionMappingRepository unitConversionRepository;
-    private final FlaggingRulesRepository flaggingRulesRepository;
+    private final ResultRuleEngine ruleEngine;
+    private final UnitFormulaCache formulaCache;
     private final TestOrdersRepository testOrdersRepository;
     private final ObjectMapper objectMapper;
     private final OutboxRepository outboxRepository;
     private final MonitoringPublisher monitoringPublisher;
-    private final AIReviewService aiReviewService;
     private final ApplicationEventPublisher eventPublisher;
 
     @Override
@@ -71,11 +69,7 @@ public class TestResultProcessingServiceImpl implements TestResultProcessingServ
         // (Bạn cần thêm 'findByBarCodeInWithPatient' vào TestOrdersRepository)
         Map<String, TestOrders> ordersMap = testOrdersRepository.findByBarCodeInWithPatient(barcodes).stream()
                 .collect(Collectors.toMap(TestOrders::getBarCode, Function.identity()));
-        // Tải tất cả Rules (3 Queries)
-        // (Trong thực tế, 3 list này nên được cache bằng @Cacheable)
-        List<ResultParameterMapping> allParamMaps = paramMappingRepository.findAll();
-        List<UnitConversionMapping> allUnitMaps = unitConversionRepository.findAll();
-        List<FlaggingRules> allFlagRules = flaggingRulesRepository.findAll();
+        // Rules được tra cứu qua ResultRuleEngine (index trong bộ nhớ, 0 query)
 
         // 3. Xử lý các raw results
         List<TestResults> allProcessed = new ArrayList<>();
@@ -89,9 +83,7 @@ public class TestResultProcessingServiceImpl implements TestResultProcessingServ
                 continue;
             }
 
-            TestResults normalized = normalizeSingleResultRow(
-                    rawResult, testOrders, allParamMaps, allUnitMaps, allFlagRules
-            );
+            TestResults normalized = normalizeSingleResultRow(rawResult, testOrders);
 
             if (normalized != null) {
                 allProcessed.add(normalized);
@@ -105,16 +97,8 @@ public class TestResultProcessingServiceImpl implements TestResultProcessingServ
             return List.of();
         }
 
-        // 5. TÍCH HỢP AI REVIEW
-        try {
-            log.info("[Processor] Starting AI review for {} processed results...", allProcessed.size());
-            // aiReviewService sẽ cập nhật (mutate) các object trong list 'allProcessed'
-            aiReviewService.generateReview(allProcessed);
-            log.info("[Processor] AI review completed.");
-        } catch (Exception e) {
-            log.error("[Processor] AI Review step failed. Proceeding to save results without AI review.", e);
-            // (Không ném lỗi, vẫn tiếp tục lưu)
-        }
+        // 5. AI REVIEW: chạy bất đồng bộ SAU KHI commit (xem AIReviewListener),
+        // để các lời gọi LLM không giữ transaction này
 
         // 6. Lưu vào DB
 
@@ -200,6 +184,10 @@ public class TestResultProcessingServiceImpl implements TestResultProcessingServ
             eventPublisher.publishEvent(new TestResultChangedEvent(this, orderId));
         }
 
+        // 10. AI REVIEW (Sự kiện nội bộ, chạy sau commit): chỉ review các kết quả vừa tạo
+        List<UUID> newResultIds = allProcessed.stream().map(TestResults::getId).toList();
+        eventPublisher.publishEvent(new TestResultsReviewRequestedEvent(this, affectedOrderIds, newResultIds));
+
         return allProcessed;
     }
 
@@ -226,11 +214,7 @@ public class TestResultProcessingServiceImpl implements TestResultProcessingServ
         log.info("[TestOrder] Marked SYNC_FAILED for barcode={}", barcode);
     }
 
-    private TestResults normalizeSingleResultRow(TestResultRaw rawResult,
-                                                 TestOrders testOrders,
-                                                 List<ResultParameterMapping> allParamMaps,
-                                                 List<UnitConversionMapping> allUnitMaps,
-                                                 List<FlaggingRules> allFlagRules) {
+    private TestResults normalizeSingleResultRow(TestResultRaw rawResult, TestOrders testOrders) {
 
         try {
             String genderString = testOrders.getPatient().getGender();
@@ -244,17 +228,17 @@ public class TestResultProcessingServiceImpl implements TestResultProcessingServ
             }
 
             // Logic mapParameter
-            Optional<ResultParameterMapping> paramMapOpt = mapParameter(rawResult, allParamMaps);
+            Optional<ResultParameterMapping> paramMapOpt = mapParameter(rawResult);
             if (paramMapOpt.isEmpty()) return null;
             ResultParameterMapping paramMap = paramMapOpt.get();
             String internalParamName = paramMap.getInternalParamName();
 
             // Logic convertUnits
-            ConvertedUnitResult converted = convertUnits(rawResult, testOrders.getTestType(), allUnitMaps);
+            ConvertedUnitResult converted = convertUnits(rawResult, testOrders.getTestType());
             if (converted == null) return null;
 
             // Logic findFlaggingRule
-            FlaggingRules rule = findFlaggingRule(internalParamName, converted.unit(), patientGender, allFlagRules);
+            FlaggingRules rule = findFlaggingRule(internalParamName, converted.unit(), patientGender);
 
             TestResults normalized = new TestResults();
             normalized.setTestOrder(testOrders);
@@ -308,49 +292,26 @@ public class TestResultProcessingServiceImpl implements TestResultProcessingServ
         log.info("[StatusUpdate] Successfully updated {} Test Orders to COMPLETED.", completedOrders.size());
     }
 
-    private Optional<ResultParameterMapping> mapParameter(TestResultRaw raw, List<ResultParameterMapping> allParamMaps) {
+    private Optional<ResultParameterMapping> mapParameter(TestResultRaw raw) {
         String instrumentIdStr = raw.getInstrumentId().toString();
 
-        // Ưu tiên 1: Tìm rule khớp chính xác Instrument ID (nếu có)
-        Optional<ResultParameterMapping> specificMap = allParamMaps.stream()
-                .filter(map -> map.getExternalParamName().equals(raw.getRawParameter()) &&
-                        map.getDataSource().equals(instrumentIdStr) && // <-- Logic cũ
-                        map.getIsActivated())
-                .findFirst();
+        // Ưu tiên Instrument ID, fallback về rule "GLOBAL" (xử lý trong ResultRuleEngine)
+        Optional<ResultParameterMapping> paramMap = ruleEngine.findParameterMapping(raw.getRawParameter(), instrumentIdStr);
 
-        if (specificMap.isPresent()) {
-            return specificMap;
-        }
-
-        // Ưu tiên 2: Fallback, tìm rule "GLOBAL" (Code mới)
-        Optional<ResultParameterMapping> globalMap = allParamMaps.stream()
-                .filter(map -> map.getExternalParamName().equals(raw.getRawParameter()) &&
-                        "GLOBAL".equalsIgnoreCase(map.getDataSource()) && // <-- Logic mới
-                        map.getIsActivated())
-                .findFirst();
-
-        if (globalMap.isEmpty()) {
+        if (paramMap.isEmpty()) {
             log.warn("[Mapping] No mapping (Specific or GLOBAL) found for param={} source={}", raw.getRawParameter(), instrumentIdStr);
         }
-        return globalMap;
+        return paramMap;
     }
 
-    private ConvertedUnitResult convertUnits(TestResultRaw raw, TestOrderType testType, List<UnitConversionMapping> allUnitMaps) {
+    private ConvertedUnitResult convertUnits(TestResultRaw raw, TestOrderType testType) {
         try {
             String rawValue = raw.getRawValue();
             double value = Double.parseDouble(rawValue);
             String sourceUnit = raw.getRawUnit() != null ? raw.getRawUnit() : "";
             String targetUnit = sourceUnit;
 
-            Optional<UnitConversionMapping> unitConvertOpt = allUnitMaps.stream()
-                    .filter(map -> map.getTestType() == testType && map.getSourceUnit().equalsIgnoreCase(sourceUnit) && map.getIsActivated())
-                    .findFirst();
-
-            if (unitConvertOpt.isEmpty()) {
-                unitConvertOpt = allUnitMaps.stream()
-                        .filter(map -> map.getTestType() == null && map.getSourceUnit().equalsIgnoreCase(sourceUnit) && map.getIsActivated())
-                        .findFirst();
-            }
+            Optional<UnitConversionMapping> unitConvertOpt = ruleEngine.findUnitConversion(testType, sourceUnit);
 
             UnitConversionMapping mappingUsed = null;
 
@@ -360,10 +321,8 @@ public class TestResultProcessingServiceImpl implements TestResultProcessingServ
                 String formula = mapping.getFormula();
 
                 if (formula != null && !formula.isEmpty()) {
-                    Expression expression = new Expression(formula);
-                    expression.setVariable("sourceUnit", rawValue);
-                    BigDecimal result = expression.eval();
-                    value = result.doubleValue();
+                    // Formula đã được biên dịch sẵn theo (id, version), không parse lại cho từng dòng
+                    value = formulaCache.getFormula(mapping).apply(value);
                     targetUnit = mapping.getTargetUnit();
                 }
             }
@@ -377,33 +336,13 @@ public class TestResultProcessingServiceImpl implements TestResultProcessingServ
 
     private FlaggingRules findFlaggingRule(String parameter,
                                            String unit,
-                                           Gender patientGender,
-                                           List<FlaggingRules> allFlagRules) {
-        // Lọc trước 1 lần
-        List<FlaggingRules> rules = allFlagRules.stream()
-                .filter(rule -> rule.getParameterName().equalsIgnoreCase(parameter) &&
-                        rule.getUnit().equalsIgnoreCase(unit) &&
-                        rule.getIsActivated())
-                .toList();
-
-        Optional<FlaggingRules> genderRule = rules.stream()
-                .filter(rule -> rule.getGender() != null && rule.getGender().equals(patientGender))
-                .findFirst();
-
-        if (genderRule.isPresent()) {
-            return genderRule.get();
-        }
-
-        Optional<FlaggingRules> generalRule = rules.stream()
-                .filter(rule -> rule.getGender() == null)
-                .findFirst();
-
-        return generalRule.orElseGet(() -> {
+                                           Gender patientGender) {
+        // Ưu tiên rule theo giới tính, fallback về rule chung (gender = null)
+        return ruleEngine.findFlaggingRule(parameter, unit, patientGender).orElseGet(() -> {
             log.warn("[Flagging] No flagging rule found for param={}, unit={}, gender={}. Defaulting to unflagged.",
                     parameter, unit, patientGender);
             return null;
         });
-
     }
 
     private TestResultAlertLevel applyFlag(Double value, FlaggingRules rule) {
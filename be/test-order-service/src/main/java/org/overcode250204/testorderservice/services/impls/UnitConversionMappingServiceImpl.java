@@ -1,6 +1,7 @@
 package org.overcode250204.testorderservice.services.impls;
 
 import lombok.RequiredArgsConstructor;
+import org.overcode250204.testorderservice.events.ResultRulesChangedEvent;
 import org.overcode250204.testorderservice.dtos.UnitConversionMappingDTO;
 import org.overcode250204.testorderservice.mappers.UnitConversionMappingMapper;
 import org.overcode250204.testorderservice.models.entites.UnitConversionMapping;
@@ -9,6 +10,7 @@ import org.overcode250204.testorderservice.exceptions.ResourceNotFoundException;
 import org.overcode250204.testorderservice.repositories.UnitConversionMappingRepository;
 import org.overcode250204.testorderservice.services.UnitConversionMappingService;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -20,6 +22,7 @@ import java.util.UUID;
 public class UnitConversionMappingServiceImpl implements UnitConversionMappingService {
     private final UnitConversionMappingRepository repository;
     private final UnitConversionMappingMapper mapper;
+    private final ApplicationEventPublisher eventPublisher;
 
     @Override
     public UnitConversionMappingDTO findById(UUID id) {
@@ -47,6 +50,7 @@ public class UnitConversionMappingServiceImpl implements UnitConversionMappingSe
         UnitConversionMapping entity = mapper.toEntity(dto);
         try {
             UnitConversionMapping saved = repository.save(entity);
+            publishRulesChanged();
             return mapper.toDTO(saved);
         } catch (DataIntegrityViolationException ex) {
             String conflictMessage = String.format(
@@ -67,6 +71,7 @@ public class UnitConversionMappingServiceImpl implements UnitConversionMappingSe
 
         try {
             UnitConversionMapping updated = repository.save(existing);
+            publishRulesChanged();
             return mapper.toDTO(updated);
         } catch (DataIntegrityViolationException ex) {
             String conflictMessage = String.format(
@@ -88,7 +93,9 @@ public class UnitConversionMappingServiceImpl implements UnitConversionMappingSe
         }
 
         existing.setIsActivated(false);
-        return mapper.toDTO(repository.save(existing));
+        UnitConversionMapping saved = repository.save(existing);
+        publishRulesChanged();
+        return mapper.toDTO(saved);
     }
 
     @Override
@@ -102,7 +109,9 @@ public class UnitConversionMappingServiceImpl implements UnitConversionMappingSe
         }
 
         existing.setIsActivated(true);
-        return mapper.toDTO(repository.save(existing));
+        UnitConversionMapping saved = repository.save(existing);
+        publishRulesChanged();
+        return mapper.toDTO(saved);
     }
 
     @Override
@@ -111,5 +120,10 @@ public class UnitConversionMappingServiceImpl implements UnitConversionMappingSe
         UnitConversionMapping existing = repository.findById(id)
                 .orElseThrow(() -> new ResourceNotFoundException("Cannot find UnitConversionMapping with id: " + id));
         repository.delete(existing);
+        publishRulesChanged();
     }
-}
\ No newline at end of file
+
+    private void publishRulesChanged() {
+        eventPublisher.publishEvent(new ResultRulesChangedEvent(this, "UNIT_CONVERSION"));
+    }
+}
@@ -0,0 +1,82 @@
+package org.overcode250204.testorderservice.services.impls;
+
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.testorderservice.models.entites.UnitConversionMapping;
+import org.overcode250204.testorderservice.services.UnitFormulaCache;
+import org.overcode250204.testorderservice.utils.UnitFormulaCompiler;
+import org.overcode250204.testorderservice.utils.UnitFormulaCompiler.CompiledFormula;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Cache formula đã biên dịch theo (id, version) của UnitConversionMapping.
+ * Khi mapping được sửa, version tăng nên entry cũ tự động không còn được dùng và bị dọn ở lần refresh kế tiếp.
+ * Formula không biên dịch được cũng được cache (InvalidFormula): lỗi được log một lần, các dòng sau ném lại lỗi
+ * mà không parse lại.
+ */
+@Service
+@Slf4j
+public class UnitFormulaCacheImpl implements UnitFormulaCache {
+    private final Map<FormulaKey, CompiledFormula> compiledFormulas = new ConcurrentHashMap<>();
+
+    @Override
+    public CompiledFormula getFormula(UnitConversionMapping mapping) {
+        CompiledFormula formula = compiledFormulas.computeIfAbsent(FormulaKey.of(mapping), key -> compile(mapping));
+        if (formula instanceof InvalidFormula invalid) {
+            throw new IllegalArgumentException(invalid.error());
+        }
+        return formula;
+    }
+
+    @Override
+    public void refresh(Collection<UnitConversionMapping> activeMappings) {
+        Set<FormulaKey> liveKeys = activeMappings.stream()
+                .filter(mapping -> mapping.getFormula() != null && !mapping.getFormula().isEmpty())
+                .map(FormulaKey::of)
+                .collect(Collectors.toSet());
+        compiledFormulas.keySet().retainAll(liveKeys);
+
+        for (UnitConversionMapping mapping : activeMappings) {
+            if (mapping.getFormula() == null || mapping.getFormula().isEmpty()) continue;
+            // Không chặn việc refresh; formula lỗi đã được log lúc compile và ném lại ở convertUnits khi mapping được dùng
+            compiledFormulas.computeIfAbsent(FormulaKey.of(mapping), key -> compile(mapping));
+        }
+        log.info("[FormulaCache] {} unit conversion formulas compiled.", compiledFormulas.size());
+    }
+
+    private CompiledFormula compile(UnitConversionMapping mapping) {
+        CompiledFormula formula;
+        try {
+            formula = UnitFormulaCompiler.compile(mapping.getFormula());
+        } catch (RuntimeException e) {
+            log.warn("[FormulaCache] Failed to compile formula '{}' for mapping id={}: {}",
+                    mapping.getFormula(), mapping.getId(), e.getMessage());
+            return new InvalidFormula(e.getMessage());
+        }
+        log.debug("[FormulaCache] Compiled formula '{}' (id={}, version={}) as {}",
+                mapping.getFormula(), mapping.getId(), mapping.getVersion(),
+                formula instanceof UnitFormulaCompiler.LinearFormula ? formula : "EvalEx expression");
+        return formula;
+    }
+
+    // Kết quả compile lỗi, giữ trong cache để không parse lại formula hỏng cho từng dòng
+    private record InvalidFormula(String error) implements CompiledFormula {
+        @Override
+        public double apply(double sourceValue) {
+            throw new IllegalArgumentException(error);
+        }
+    }
+
+    private record FormulaKey(UUID id, Long version, String formula) {
+        // Giữ formula trong key phòng khi version chưa được gán (entity chưa persist)
+        static FormulaKey of(UnitConversionMapping mapping) {
+            return new FormulaKey(mapping.getId(), mapping.getVersion(), mapping.getVersion() == null ? mapping.getFormula() : null);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.overcode250204.testorderservice.utils;
+
+import org.overcode250204.testorderservice.dtos.HL7TestResult;
+import org.overcode250204.testorderservice.dtos.TestResultItem;
+
+/**
+ * Parser một lượt (không regex, không dựng object model HAPI) cho ORU^R01 v2.3.1
+ * do HL7TemplateServiceImpl (instrument-service) sinh ra: MSH, PID, ORC, OBR, OBX.
+ * Chỉ đọc PID-3 và OBX-3/5/6/8; chỉ cấp phát chuỗi cho các TestResultItem.
+ *
+ * Trả về null khi message nằm ngoài dạng hỗ trợ (segment lạ, escape/repetition, nhiều OBR trong một PID, ...)
+ * để HL7ParserServiceImpl fallback về HAPI. Kết quả giữ đúng ngữ nghĩa của đường HAPI,
+ * kể cả bước sửa "|||F|" -> "||F|" (OBX-9 "F" được coi là OBX-8).
+ */
+public final class HL7OruFastParser {
+    private static final String MSH_PREFIX = "MSH|^~\\&|";
+    private static final String STATUS_SHIFT = "|||F|";
+    private static final int MAX_FIELDS = 13;
+    private static final Unsupported UNSUPPORTED = new Unsupported();
+
+    private HL7OruFastParser() {
+    }
+
+    public static HL7TestResult tryParse(String message) {
+        if (message == null || !message.startsWith(MSH_PREFIX)) {
+            return null;
+        }
+        try {
+            return parse(message);
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    private static HL7TestResult parse(String message) {
+        // separators[i] = vị trí dấu '|' đứng trước field thứ i của segment hiện tại (với MSH là MSH-(i+1))
+        int[] separators = new int[MAX_FIELDS + 1];
+        int length = message.length();
+        HL7TestResult result = null;
+        boolean mshSeen = false;
+        boolean obrSeenInGroup = false;
+
+        int start = 0;
+        while (start < length) {
+            int end = segmentEnd(message, start, length);
+            if (end > start) {
+                require(end - start > 3 && message.charAt(start + 3) == '|');
+                int fieldCount = splitFields(message, start, end, separators);
+                char c0 = message.charAt(start), c1 = message.charAt(start + 1), c2 = message.charAt(start + 2);
+                boolean isObx = c0 == 'O' && c1 == 'B' && c2 == 'X';
+
+                // "|||F|" ngoài vị trí OBX-7..9 sẽ làm HAPI lệch field theo cách khác -> để HAPI xử lý
+                require(isObx || indexOfInSegment(message, start, end) < 0);
+
+                if (c0 == 'M' && c1 == 'S' && c2 == 'H') {
+                    require(!mshSeen && isSupportedHeader(message, separators, fieldCount, end));
+                    mshSeen = true;
+                } else if (c0 == 'P' && c1 == 'I' && c2 == 'D') {
+                    require(mshSeen);
+                    if (result == null) {
+                        result = new HL7TestResult(firstComponent(message, separators, fieldCount, 3, end));
+                    }
+                    obrSeenInGroup = false;
+                } else if (c0 == 'O' && c1 == 'R' && c2 == 'C') {
+                    require(result != null && !obrSeenInGroup);
+                } else if (c0 == 'O' && c1 == 'B' && c2 == 'R') {
+                    require(result != null && !obrSeenInGroup);
+                    obrSeenInGroup = true;
+                } else if (isObx) {
+                    require(result != null && obrSeenInGroup);
+                    result.addTestResult(toTestResultItem(message, start, end, separators, fieldCount));
+                } else {
+                    throw UNSUPPORTED;
+                }
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+
+    private static TestResultItem toTestResultItem(String message, int start, int end, int[] separators, int fieldCount) {
+        String flag;
+        int shift = indexOfInSegment(message, start, end);
+        if (shift >= 0) {
+            // Chỉ hỗ trợ đúng dạng template: OBX-7, OBX-8 rỗng, OBX-9 = "F"
+            require(fieldCount >= 9 && shift == separators[7] && indexOfInSegment(message, shift + 5, end) < 0);
+            flag = "F";
+        } else {
+            flag = simpleValue(message, separators, fieldCount, 8, end);
+        }
+
+        String parameter = firstComponent(message, separators, fieldCount, 3, end);
+        String value = encodedField(message, separators, fieldCount, 5, end);
+        String unit = encodedField(message, separators, fieldCount, 6, end);
+        return new TestResultItem(parameter, value, unit, flag);
+    }
+
+    private static boolean isSupportedHeader(String message, int[] separators, int fieldCount, int end) {
+        if (fieldCount < 11) return false;
+        int typeStart = separators[8] + 1, typeEnd = fieldEnd(separators, fieldCount, 8, end);
+        int versionStart = separators[11] + 1, versionEnd = fieldEnd(separators, fieldCount, 11, end);
+        boolean oru = typeEnd - typeStart >= 7 && message.startsWith("ORU^R01", typeStart)
+                && (typeEnd - typeStart == 7 || message.charAt(typeStart + 7) == '^');
+        boolean v231 = versionEnd - versionStart == 5 && message.startsWith("2.3.1", versionStart);
+        return oru && v231;
+    }
+
+    // Component đầu tiên (như getValue() của HAPI): null nếu rỗng
+    private static String firstComponent(String message, int[] separators, int fieldCount, int field, int end) {
+        if (field > fieldCount) return null;
+        int from = separators[field] + 1, to = fieldEnd(separators, fieldCount, field, end);
+        int componentEnd = from;
+        while (componentEnd < to) {
+            char c = message.charAt(componentEnd);
+            require(c != '~' && c != '\\' && c != '&');
+            if (c == '^') break;
+            componentEnd++;
+        }
+        return componentEnd == from ? null : message.substring(from, componentEnd);
+    }
+
+    // Field kiểu primitive (như getValue() của HAPI): null nếu rỗng
+    private static String simpleValue(String message, int[] separators, int fieldCount, int field, int end) {
+        if (field > fieldCount) return null;
+        int from = separators[field] + 1, to = fieldEnd(separators, fieldCount, field, end);
+        for (int i = from; i < to; i++) {
+            char c = message.charAt(i);
+            require(c != '~' && c != '\\' && c != '&' && c != '^');
+        }
+        return to == from ? null : message.substring(from, to);
+    }
+
+    // Field đã encode (như encode() của HAPI): "" nếu rỗng, bỏ các component rỗng ở cuối
+    private static String encodedField(String message, int[] separators, int fieldCount, int field, int end) {
+        if (field > fieldCount) return "";
+        int from = separators[field] + 1, to = fieldEnd(separators, fieldCount, field, end);
+        for (int i = from; i < to; i++) {
+            char c = message.charAt(i);
+            require(c != '~' && c != '\\' && c != '&');
+        }
+        while (to > from && message.charAt(to - 1) == '^') {
+            to--;
+        }
+        return message.substring(from, to);
+    }
+
+    private static int fieldEnd(int[] separators, int fieldCount, int field, int end) {
+        return field < fieldCount ? separators[field + 1] : end;
+    }
+
+    // Ghi vị trí các dấu '|' của segment, trả về số field (tối đa MAX_FIELDS)
+    private static int splitFields(String message, int start, int end, int[] separators) {
+        int count = 0;
+        for (int i = start; i < end && count < MAX_FIELDS; i++) {
+            if (message.charAt(i) == '|') {
+                separators[++count] = i;
+            }
+        }
+        return count;
+    }
+
+    private static int indexOfInSegment(String message, int from, int end) {
+        for (int i = from; i + STATUS_SHIFT.length() <= end; i++) {
+            if (message.charAt(i) == '|' && message.startsWith(STATUS_SHIFT, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int segmentEnd(String message, int start, int length) {
+        for (int i = start; i < length; i++) {
+            char c = message.charAt(i);
+            if (c == '\r' || c == '\n') return i;
+        }
+        return length;
+    }
+
+    private static void require(boolean supported) {
+        if (!supported) {
+            throw UNSUPPORTED;
+        }
+    }
+
+    // Exception không stack trace, chỉ dùng để thoát sớm về đường HAPI
+    private static final class Unsupported extends RuntimeException {
+        private Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.overcode250204.testorderservice.utils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * OutputStream ghi thẳng lên S3: dữ liệu được gom vào một buffer (lớn dần tới partSize), mỗi khi đầy thì upload
+ * thành một part của multipart upload. Bộ nhớ dùng tối đa một part, không phụ thuộc kích thước file.
+ *
+ * File nhỏ hơn một part được upload bằng một putObject khi close(), không mở multipart upload.
+ * Nếu ghi lỗi, gọi abort() để huỷ multipart upload (các part đã upload sẽ bị xoá).
+ */
+public class S3MultipartOutputStream extends OutputStream {
+    // S3 yêu cầu mọi part (trừ part cuối) tối thiểu 5 MB
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3 amazonS3;
+    private final String bucketName;
+    private final String key;
+    private final String contentType;
+    private final int partSize;
+    private final List<PartETag> partETags = new ArrayList<>();
+
+    private byte[] buffer;
+    private int position;
+    private String uploadId;
+    private boolean closed;
+
+    public S3MultipartOutputStream(AmazonS3 amazonS3, String bucketName, String key, String contentType, int partSize) {
+        this.amazonS3 = amazonS3;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.contentType = contentType;
+        this.partSize = partSize;
+        this.buffer = new byte[Math.min(partSize, INITIAL_BUFFER_SIZE)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (position == buffer.length) {
+            makeRoom();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            if (position == buffer.length) {
+                makeRoom();
+            }
+            int chunk = Math.min(length, buffer.length - position);
+            System.arraycopy(bytes, offset, buffer, position, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (uploadId == null) {
+            ObjectMetadata metadata = metadata(position);
+            amazonS3.putObject(bucketName, key, new ByteArrayInputStream(buffer, 0, position), metadata);
+            return;
+        }
+        try {
+            if (position > 0) {
+                uploadPart(true);
+            }
+            amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+        } catch (RuntimeException e) {
+            abort();
+            throw new IOException("Failed to complete multipart upload for " + key, e);
+        }
+    }
+
+    /**
+     * Huỷ upload: không có object nào được tạo ở key này.
+     */
+    public void abort() {
+        closed = true;
+        if (uploadId != null) {
+            amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            uploadId = null;
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    // Buffer chưa đủ một part thì nới rộng (file nhỏ không phải cấp phát cả part), đủ rồi thì upload
+    private void makeRoom() throws IOException {
+        if (buffer.length < partSize) {
+            buffer = Arrays.copyOf(buffer, Math.min(partSize, buffer.length * 2));
+        } else {
+            uploadPart(false);
+        }
+    }
+
+    private void uploadPart(boolean lastPart) throws IOException {
+        try {
+            if (uploadId == null) {
+                InitiateMultipartUploadRequest request =
+                        new InitiateMultipartUploadRequest(bucketName, key, metadata(-1));
+                uploadId = amazonS3.initiateMultipartUpload(request).getUploadId();
+            }
+            UploadPartRequest request = new UploadPartRequest()
+                    .withBucketName(bucketName)
+                    .withKey(key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partETags.size() + 1)
+                    .withInputStream(new ByteArrayInputStream(buffer, 0, position))
+                    .withPartSize(position)
+                    .withLastPart(lastPart);
+            partETags.add(amazonS3.uploadPart(request).getPartETag());
+            position = 0;
+        } catch (RuntimeException e) {
+            abort();
+            throw new IOException("Failed to upload part " + (partETags.size() + 1) + " for " + key, e);
+        }
+    }
+
+    private ObjectMetadata metadata(long contentLength) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(contentType);
+        if (contentLength >= 0) {
+            metadata.setContentLength(contentLength);
+        }
+        return metadata;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream already closed for " + key);
+        }
+    }
+}
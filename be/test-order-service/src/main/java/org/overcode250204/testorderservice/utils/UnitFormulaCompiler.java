@@ -0,0 +1,190 @@
+package org.overcode250204.testorderservice.utils;
+
+import com.udojava.evalex.Expression;
+
+import java.math.BigDecimal;
+
+/**
+ * Biên dịch formula của UnitConversionMapping (biến "sourceUnit") thành CompiledFormula dùng lại được.
+ * Các formula tuyến tính (a * x + b, kể cả dạng x / a, (x - b) * a, ...) được rút gọn thành phép tính double;
+ * các formula khác (hàm, luỹ thừa, x * x, ...) fallback về EvalEx, chỉ parse một lần cho mỗi thread.
+ * Formula lỗi (cú pháp, hàm / biến lạ) ném IllegalArgumentException lúc compile.
+ */
+public final class UnitFormulaCompiler {
+    public static final String SOURCE_VARIABLE = "sourceUnit";
+
+    private UnitFormulaCompiler() {
+    }
+
+    @FunctionalInterface
+    public interface CompiledFormula {
+        double apply(double sourceValue);
+    }
+
+    public record LinearFormula(double scale, double offset) implements CompiledFormula {
+        @Override
+        public double apply(double sourceValue) {
+            return scale * sourceValue + offset;
+        }
+    }
+
+    public static CompiledFormula compile(String formula) {
+        if (formula == null || formula.isBlank()) {
+            throw new IllegalArgumentException("Formula must not be empty");
+        }
+        LinearFormula linear = tryCompileLinear(formula);
+        if (linear != null) {
+            return linear;
+        }
+        return compileWithEvalEx(formula);
+    }
+
+    public static LinearFormula tryCompileLinear(String formula) {
+        try {
+            LinearParser parser = new LinearParser(formula);
+            double[] result = parser.parseExpression();
+            parser.skipSpaces();
+            if (result == null || !parser.atEnd()) {
+                return null;
+            }
+            return new LinearFormula(result[0], result[1]);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static CompiledFormula compileWithEvalEx(String formula) {
+        // Chỉ parse + validate (RPN), không eval thử với một giá trị mẫu: formula có điểm kỳ dị tại giá trị đó
+        // (1 / (sourceUnit - 1), LOG(sourceUnit - 1)...) vẫn hợp lệ
+        try {
+            Expression probe = new Expression(formula);
+            probe.toRPN();
+            for (String variable : probe.getUsedVariables()) {
+                if (!SOURCE_VARIABLE.equals(variable)) {
+                    throw new IllegalArgumentException("Unknown variable '" + variable + "' in formula: " + formula);
+                }
+            }
+        } catch (Expression.ExpressionException e) {
+            throw new IllegalArgumentException("Invalid formula '" + formula + "': " + e.getMessage(), e);
+        }
+        // Expression của EvalEx giữ state biến bên trong: mỗi thread một bản, không khoá dùng chung
+        ThreadLocal<Expression> expressions = ThreadLocal.withInitial(() -> new Expression(formula));
+        return sourceValue -> {
+            Expression expression = expressions.get();
+            expression.setVariable(SOURCE_VARIABLE, BigDecimal.valueOf(sourceValue));
+            return expression.eval().doubleValue();
+        };
+    }
+
+    /**
+     * Recursive-descent parser trả về biểu thức dưới dạng {scale, offset}, hoặc null nếu không tuyến tính.
+     */
+    private static final class LinearParser {
+        private final String input;
+        private int pos;
+
+        private LinearParser(String input) {
+            this.input = input;
+        }
+
+        double[] parseExpression() {
+            double[] left = parseTerm();
+            while (left != null) {
+                skipSpaces();
+                if (match('+')) {
+                    double[] right = parseTerm();
+                    if (right == null) return null;
+                    left = new double[]{left[0] + right[0], left[1] + right[1]};
+                } else if (match('-')) {
+                    double[] right = parseTerm();
+                    if (right == null) return null;
+                    left = new double[]{left[0] - right[0], left[1] - right[1]};
+                } else {
+                    break;
+                }
+            }
+            return left;
+        }
+
+        private double[] parseTerm() {
+            double[] left = parseFactor();
+            while (left != null) {
+                skipSpaces();
+                if (match('*')) {
+                    double[] right = parseFactor();
+                    if (right == null) return null;
+                    // Tích của hai biểu thức chứa biến không còn tuyến tính
+                    if (left[0] != 0 && right[0] != 0) return null;
+                    left = new double[]{left[0] * right[1] + right[0] * left[1], left[1] * right[1]};
+                } else if (match('/')) {
+                    double[] right = parseFactor();
+                    if (right == null || right[0] != 0 || right[1] == 0) return null;
+                    left = new double[]{left[0] / right[1], left[1] / right[1]};
+                } else {
+                    break;
+                }
+            }
+            return left;
+        }
+
+        private double[] parseFactor() {
+            skipSpaces();
+            if (match('-')) {
+                double[] inner = parseFactor();
+                return inner == null ? null : new double[]{-inner[0], -inner[1]};
+            }
+            if (match('+')) {
+                return parseFactor();
+            }
+            if (match('(')) {
+                double[] inner = parseExpression();
+                skipSpaces();
+                return inner != null && match(')') ? inner : null;
+            }
+            if (input.startsWith(SOURCE_VARIABLE, pos)) {
+                pos += SOURCE_VARIABLE.length();
+                return new double[]{1.0, 0.0};
+            }
+            return parseNumber();
+        }
+
+        private double[] parseNumber() {
+            int start = pos;
+            while (pos < input.length() && (Character.isDigit(input.charAt(pos)) || input.charAt(pos) == '.')) {
+                pos++;
+            }
+            if (pos < input.length() && (input.charAt(pos) == 'e' || input.charAt(pos) == 'E')) {
+                int expStart = pos++;
+                if (pos < input.length() && (input.charAt(pos) == '+' || input.charAt(pos) == '-')) pos++;
+                if (pos >= input.length() || !Character.isDigit(input.charAt(pos))) {
+                    pos = expStart;
+                } else {
+                    while (pos < input.length() && Character.isDigit(input.charAt(pos))) pos++;
+                }
+            }
+            if (start == pos) {
+                // Hàm, biến lạ, toán tử ^ ... -> để EvalEx xử lý
+                return null;
+            }
+            return new double[]{0.0, Double.parseDouble(input.substring(start, pos))};
+        }
+
+        private boolean match(char expected) {
+            if (pos < input.length() && input.charAt(pos) == expected) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void skipSpaces() {
+            while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        boolean atEnd() {
+            return pos == input.length();
+        }
+    }
+}
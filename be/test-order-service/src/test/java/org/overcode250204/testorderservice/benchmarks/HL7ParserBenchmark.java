@@ -0,0 +1,53 @@
+package org.overcode250204.testorderservice.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.overcode250204.testorderservice.dtos.HL7TestResult;
+import org.overcode250204.testorderservice.exceptions.HL7ParsingException;
+import org.overcode250204.testorderservice.services.impls.HL7ParserServiceImpl;
+import org.overcode250204.testorderservice.utils.HL7OruFastParser;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * So sánh đường HAPI (replace + replaceAll + PipeParser.parse) với fast path trên ORU^R01 10–50 OBX.
+ * Chạy: mvn -Pjmh test-compile exec:exec -Djmh.include=HL7ParserBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+public class HL7ParserBenchmark {
+
+    @Param({"10", "25", "50"})
+    private int obxCount;
+
+    private String message;
+    private HL7ParserServiceImpl parserService;
+
+    @Setup
+    public void setUp() {
+        parserService = new HL7ParserServiceImpl();
+        StringBuilder hl7 = new StringBuilder()
+                .append("MSH|^~\\&|INS-001|Sysmex XN|LIS|LAB|20250101101010||ORU^R01|")
+                .append("5f0c7a1e-2b1d-4d55-9f43-1f2d3c4b5a69|P|2.3.1\n")
+                .append("PID|||BC-000123||\n")
+                .append("ORC|RE||8a9b7c6d-1111-2222-3333-444455556666||CM|||||20250101101010|\n")
+                .append("OBR|1|||CBC^Complete Blood Count||20250101101010||||||\n");
+        for (int i = 0; i < obxCount; i++) {
+            hl7.append(String.format("OBX|%d|NM|P%d^P%d||%s|10^9/L|||F|\n", i + 1, i, i, 4.5 + i));
+        }
+        message = hl7.toString();
+    }
+
+    @Benchmark
+    public HL7TestResult hapi() throws HL7ParsingException {
+        return parserService.parseWithHapi(message);
+    }
+
+    @Benchmark
+    public HL7TestResult fastPath() {
+        return HL7OruFastParser.tryParse(message);
+    }
+}
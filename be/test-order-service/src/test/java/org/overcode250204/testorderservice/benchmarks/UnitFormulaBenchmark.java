@@ -0,0 +1,56 @@
+package org.overcode250204.testorderservice.benchmarks;
+
+import com.udojava.evalex.Expression;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.overcode250204.testorderservice.utils.UnitFormulaCompiler;
+import org.overcode250204.testorderservice.utils.UnitFormulaCompiler.CompiledFormula;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * So sánh cách convertUnits cũ (new Expression(formula) cho mỗi dòng OBX) với formula đã biên dịch sẵn.
+ * Chạy: mvn -Pjmh test-compile exec:exec -Djmh.include=UnitFormulaBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnitFormulaBenchmark {
+    private static final int ROWS_PER_BATCH = 2000;
+
+    @Param({"sourceUnit * 17.1", "sourceUnit * 0.0000000166667", "(sourceUnit - 32) * 5 / 9", "SQRT(sourceUnit) * 2"})
+    private String formula;
+
+    private String[] rawValues;
+    private CompiledFormula compiled;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        rawValues = new String[ROWS_PER_BATCH];
+        for (int i = 0; i < ROWS_PER_BATCH; i++) {
+            rawValues[i] = String.valueOf(1 + random.nextDouble() * 500);
+        }
+        compiled = UnitFormulaCompiler.compile(formula);
+    }
+
+    @Benchmark
+    public void evalExPerRow(Blackhole blackhole) {
+        for (String rawValue : rawValues) {
+            Expression expression = new Expression(formula);
+            expression.setVariable("sourceUnit", rawValue);
+            blackhole.consume(expression.eval().doubleValue());
+        }
+    }
+
+    @Benchmark
+    public void compiledFormula(Blackhole blackhole) {
+        for (String rawValue : rawValues) {
+            blackhole.consume(compiled.apply(Double.parseDouble(rawValue)));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.overcode250204.testorderservice.repositories;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.testorderservice.models.entites.OutboxEvent;
+import org.overcode250204.testsupport.PostgresContentionTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Claim / reclaim / ghi trạng thái của relay outbox trên Postgres thật (FOR UPDATE SKIP LOCKED).
+ */
+@DataJpaTest(properties = {
+        "spring.config.import=",
+        "spring.cloud.config.enabled=false",
+        "spring.profiles.active=test",
+        "spring.jpa.hibernate.ddl-auto=create-drop"
+})
+class OutboxRepositoryTest extends PostgresContentionTest {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final Duration LEASE = Duration.ofMinutes(2);
+
+    @Autowired
+    private OutboxRepository outboxRepository;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate tx;
+
+    @BeforeEach
+    void setUp() {
+        tx = new TransactionTemplate(transactionManager);
+        outboxRepository.deleteAllInBatch();
+    }
+
+    private UUID seed(String status, int attempts, Instant claimedAt) {
+        OutboxEvent event = new OutboxEvent();
+        event.setAggregateType("TEST_ORDER");
+        event.setAggregateId(UUID.randomUUID().toString());
+        event.setEventType("TEST_ORDER_CREATED");
+        event.setPayload("{}");
+        event.setStatus(status);
+        event.setAttempts(attempts);
+        event.setClaimedAt(claimedAt);
+        event.setCreatedAt(Instant.now());
+        return outboxRepository.saveAndFlush(event).getId();
+    }
+
+    private List<UUID> claim(int batchSize, Instant now) {
+        return tx.execute(status -> {
+            List<UUID> ids = outboxRepository.lockNextBatch(batchSize, MAX_ATTEMPTS, now.minus(LEASE)).stream()
+                    .map(OutboxEvent::getId).toList();
+            if (!ids.isEmpty()) {
+                outboxRepository.markProcessing(ids, now);
+            }
+            return ids;
+        });
+    }
+
+    private String statusOf(UUID id) {
+        return outboxRepository.findById(id).orElseThrow().getStatus();
+    }
+
+    @Test
+    void concurrentClaimsNeverReturnTheSameEventTwice() throws Exception {
+        Set<UUID> seeded = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            seeded.add(seed("PENDING", 0, null));
+        }
+        UUID exhausted = seed("FAILED", MAX_ATTEMPTS, null);
+        UUID sent = seed("SENT", 1, null);
+
+        ConcurrentLinkedQueue<UUID> claimed = new ConcurrentLinkedQueue<>();
+        runConcurrently(8, t -> {
+            List<UUID> batch;
+            do {
+                batch = claim(7, Instant.now().truncatedTo(ChronoUnit.MICROS));
+                claimed.addAll(batch);
+            } while (!batch.isEmpty());
+        });
+
+        List<UUID> all = new ArrayList<>(claimed);
+        assertEquals(seeded.size(), all.size());
+        assertEquals(seeded, new HashSet<>(all));
+        assertEquals("FAILED", statusOf(exhausted));
+        assertEquals("SENT", statusOf(sent));
+    }
+
+    @Test
+    void expiredLeaseIsReclaimedOnlyWhileAttemptsRemain() {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        Instant expired = now.minus(LEASE).minusSeconds(1);
+        UUID retryable = seed("PROCESSING", MAX_ATTEMPTS - 1, expired);
+        UUID exhausted = seed("PROCESSING", MAX_ATTEMPTS, expired);
+        UUID stillLeased = seed("PROCESSING", 1, now.minusSeconds(1));
+
+        assertEquals(List.of(retryable), claim(10, now));
+
+        int failed = tx.execute(status -> outboxRepository.failExhaustedLeases(MAX_ATTEMPTS, now.minus(LEASE)));
+        assertEquals(1, failed);
+        assertEquals("FAILED", statusOf(exhausted));
+        assertEquals("PROCESSING", statusOf(stillLeased));
+        assertEquals(MAX_ATTEMPTS, outboxRepository.findById(retryable).orElseThrow().getAttempts());
+    }
+
+    @Test
+    void updateStatusIgnoresAStaleClaim() {
+        Instant firstClaim = Instant.now().truncatedTo(ChronoUnit.MICROS).minus(LEASE).minusSeconds(1);
+        UUID id = seed("PENDING", 0, null);
+        assertEquals(List.of(id), claim(10, firstClaim));
+
+        // Lease của lần claim đầu đã hết, một replica khác claim lại
+        Instant secondClaim = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        assertEquals(List.of(id), claim(10, secondClaim));
+
+        int stale = tx.execute(status -> outboxRepository.updateStatus(List.of(id), "FAILED", firstClaim));
+        assertEquals(0, stale);
+        assertEquals("PROCESSING", statusOf(id));
+
+        int current = tx.execute(status -> outboxRepository.updateStatus(List.of(id), "SENT", secondClaim));
+        assertEquals(1, current);
+        assertEquals("SENT", statusOf(id));
+    }
+}
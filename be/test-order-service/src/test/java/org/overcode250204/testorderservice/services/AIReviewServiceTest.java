@@ -0,0 +1,174 @@
+package org.overcode250204.testorderservice.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.testorderservice.models.entites.TestOrders;
+import org.overcode250204.testorderservice.models.entites.TestResults;
+import org.overcode250204.testorderservice.models.enums.TestResultAlertLevel;
+import org.overcode250204.testorderservice.repositories.TestResultsRepository;
+import org.overcode250204.testorderservice.services.impls.AIReviewServiceImpl;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class AIReviewServiceTest {
+
+    private final List<String> prompts = new CopyOnWriteArrayList<>();
+    private AIReviewServiceImpl aiReviewService;
+
+    // Client giả lập: trả về một review cho mọi parameter xuất hiện trong prompt
+    private final AIReviewModelClient fakeClient = (prompt, schema) -> {
+        prompts.add(prompt);
+        List<String> reviews = new ArrayList<>();
+        for (String parameter : List.of("HEMOGLOBIN", "WHITE_BLOOD_CELL", "PLATELET_COUNT")) {
+            if (prompt.contains(parameter)) {
+                reviews.add("""
+                        {"parameter": "%s", "ai_has_issue": false, "ai_review_comment": "%s reviewed"}
+                        """.formatted(parameter, parameter));
+            }
+        }
+        return "{\"reviews\": [" + String.join(",", reviews) + "]}";
+    };
+
+    @BeforeEach
+    void setUp() {
+        aiReviewService = new AIReviewServiceImpl(fakeClient, new ObjectMapper(), null, null);
+        aiReviewService.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        aiReviewService.shutdown();
+    }
+
+    @Test
+    void generateReview_sendsOnePromptPerOrder() {
+        TestOrders order = order("Fasting");
+        List<TestResults> results = List.of(
+                result(order, "HEMOGLOBIN", 9.1, TestResultAlertLevel.LOW),
+                result(order, "WHITE_BLOOD_CELL", 15000.0, TestResultAlertLevel.HIGH),
+                result(order, "PLATELET_COUNT", 250000.0, TestResultAlertLevel.NORMAL));
+
+        aiReviewService.generateReview(results);
+
+        assertEquals(1, prompts.size());
+        assertEquals("HEMOGLOBIN reviewed", results.get(0).getAiReviewComment());
+        assertEquals("WHITE_BLOOD_CELL reviewed", results.get(1).getAiReviewComment());
+        assertEquals("Result is within expected limits (Automated Review).", results.get(2).getAiReviewComment());
+        assertFalse(results.get(0).getAiHasIssue());
+    }
+
+    @Test
+    void generateReview_reusesCachedReviewForSameBucketFlagAndNotes() {
+        aiReviewService.generateReview(List.of(result(order("None"), "HEMOGLOBIN", 9.111, TestResultAlertLevel.LOW)));
+        TestResults again = result(order("None"), "HEMOGLOBIN", 9.114, TestResultAlertLevel.LOW);
+
+        aiReviewService.generateReview(List.of(again));
+
+        assertEquals(1, prompts.size());
+        assertEquals("HEMOGLOBIN reviewed", again.getAiReviewComment());
+    }
+
+    @Test
+    void generateReview_callsModelAgainWhenNotesDiffer() {
+        aiReviewService.generateReview(List.of(result(order("None"), "HEMOGLOBIN", 9.1, TestResultAlertLevel.LOW)));
+        aiReviewService.generateReview(List.of(result(order("Pregnant"), "HEMOGLOBIN", 9.1, TestResultAlertLevel.LOW)));
+
+        assertEquals(2, prompts.size());
+    }
+
+    @Test
+    void generateReview_groupsResultsWithoutOrderIntoOnePrompt() {
+        TestResults first = result(null, "HEMOGLOBIN", 9.1, TestResultAlertLevel.LOW);
+        TestResults second = result(null, "WHITE_BLOOD_CELL", 15000.0, TestResultAlertLevel.HIGH);
+
+        aiReviewService.generateReview(List.of(first, second));
+
+        assertEquals(1, prompts.size());
+        assertTrue(prompts.getFirst().contains("None provided."));
+        assertEquals("HEMOGLOBIN reviewed", first.getAiReviewComment());
+        assertEquals("WHITE_BLOOD_CELL reviewed", second.getAiReviewComment());
+    }
+
+    @Test
+    void generateReview_marksFailureWhenModelFails() {
+        AIReviewServiceImpl failing = new AIReviewServiceImpl((prompt, schema) -> {
+            throw new IllegalStateException("Gemini unavailable");
+        }, new ObjectMapper(), null, null);
+        failing.init();
+        TestResults flagged = result(order("None"), "HEMOGLOBIN", 9.1, TestResultAlertLevel.LOW);
+
+        failing.generateReview(List.of(flagged));
+        failing.shutdown();
+
+        assertEquals("Automated clinical review failed due to system/API error.", flagged.getAiReviewComment());
+        assertFalse(flagged.getAiHasIssue());
+    }
+
+    @Test
+    void reviewOrdersAsync_reviewsAndWritesOnlyTheNewResults() {
+        TestOrders order = order("Fasting");
+        TestResults previous = result(order, "HEMOGLOBIN", 9.1, TestResultAlertLevel.LOW);
+        previous.setAiHasIssue(true);
+        previous.setAiReviewComment("reviewed by a technician");
+        TestResults newFlagged = result(order, "WHITE_BLOOD_CELL", 15000.0, TestResultAlertLevel.HIGH);
+        TestResults newNormal = result(order, "PLATELET_COUNT", 250000.0, TestResultAlertLevel.NORMAL);
+        List<TestResults> stored = List.of(previous, newFlagged, newNormal);
+
+        TestResultsRepository repository = mock(TestResultsRepository.class);
+        when(repository.findByTestOrderIdInWithOrder(any())).thenReturn(stored);
+        when(repository.findAllById(any())).thenAnswer(inv -> {
+            Collection<UUID> ids = inv.getArgument(0);
+            return stored.stream().filter(r -> ids.contains(r.getId())).toList();
+        });
+        PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+        AIReviewServiceImpl service = new AIReviewServiceImpl(fakeClient, new ObjectMapper(), repository, transactionManager);
+        service.init();
+
+        service.reviewOrdersAsync(List.of(order.getId()), List.of(newFlagged.getId(), newNormal.getId())).join();
+        service.shutdown();
+
+        // Kết quả cũ vẫn có trong prompt làm ngữ cảnh, nhưng không được gửi đi review lại
+        assertEquals(1, prompts.size());
+        String flaggedSection = prompts.getFirst().substring(prompts.getFirst().indexOf("Flagged results JSON:"));
+        assertTrue(prompts.getFirst().contains("HEMOGLOBIN"));
+        assertFalse(flaggedSection.contains("HEMOGLOBIN"));
+        assertTrue(flaggedSection.contains("WHITE_BLOOD_CELL"));
+
+        assertEquals("reviewed by a technician", previous.getAiReviewComment());
+        assertTrue(previous.getAiHasIssue());
+        assertEquals("WHITE_BLOOD_CELL reviewed", newFlagged.getAiReviewComment());
+        assertEquals("Result is within expected limits (Automated Review).", newNormal.getAiReviewComment());
+        verify(repository).findAllById(Set.of(newFlagged.getId(), newNormal.getId()));
+    }
+
+    private TestOrders order(String notes) {
+        TestOrders order = new TestOrders();
+        order.setId(UUID.randomUUID());
+        order.setNotes(notes);
+        return order;
+    }
+
+    private TestResults result(TestOrders order, String parameter, Double value, TestResultAlertLevel alertLevel) {
+        TestResults result = new TestResults();
+        result.setId(UUID.randomUUID());
+        result.setTestOrder(order);
+        result.setParameterName(parameter);
+        result.setResultValue(value);
+        result.setAlertLevel(alertLevel);
+        return result;
+    }
+}
@@ -0,0 +1,84 @@
+package org.overcode250204.testorderservice.services;
+
+import org.junit.jupiter.api.Test;
+import org.overcode250204.testorderservice.dtos.HL7TestResult;
+import org.overcode250204.testorderservice.dtos.TestResultItem;
+import org.overcode250204.testorderservice.services.impls.HL7ParserServiceImpl;
+import org.overcode250204.testorderservice.utils.HL7OruFastParser;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HL7ParserServiceTest {
+
+    private final HL7ParserServiceImpl parserService = new HL7ParserServiceImpl();
+
+    // Cùng dạng message mà HL7TemplateServiceImpl (instrument-service) sinh ra
+    static String oruMessage(String barcode, int obxCount) {
+        StringBuilder hl7 = new StringBuilder()
+                .append("MSH|^~\\&|INS-001|Sysmex XN|LIS|LAB|20250101101010||ORU^R01|")
+                .append("5f0c7a1e-2b1d-4d55-9f43-1f2d3c4b5a69|P|2.3.1\n")
+                .append("PID|||").append(barcode).append("||\n")
+                .append("ORC|RE||8a9b7c6d-1111-2222-3333-444455556666||CM|||||20250101101010|\n")
+                .append("OBR|1|||CBC^Complete Blood Count||20250101101010||||||\n");
+        String[][] params = {{"WBC", "10^9/L"}, {"RBC", "10^12/L"}, {"HGB", "g/dL"}, {"HCT", "%"}, {"PLT", "10^9/L"}};
+        for (int i = 0; i < obxCount; i++) {
+            String[] param = params[i % params.length];
+            hl7.append(String.format("OBX|%d|NM|%s^%s||%s|%s|||F|\n", i + 1, param[0] + (i / params.length), param[0], 5.0 + i, param[1]));
+        }
+        return hl7.toString();
+    }
+
+    @Test
+    void fastPath_matchesHapiForTemplateMessages() throws Exception {
+        for (int obxCount : new int[]{1, 8, 50}) {
+            String message = oruMessage("BC-000123", obxCount);
+
+            HL7TestResult fast = HL7OruFastParser.tryParse(message);
+            HL7TestResult hapi = parserService.parseWithHapi(message);
+
+            assertNotNull(fast);
+            assertEquals(hapi.getBarcode(), fast.getBarcode());
+            assertEquals(hapi.getTestResults().size(), fast.getTestResults().size());
+            for (int i = 0; i < obxCount; i++) {
+                assertSameItem(hapi.getTestResults().get(i), fast.getTestResults().get(i));
+            }
+        }
+    }
+
+    @Test
+    void fastPath_matchesHapiWhenFlagIsInObx8() throws Exception {
+        String message = oruMessage("BC-1", 2).replace("|10^9/L|||F|", "|10^9/L||H||F|");
+
+        HL7TestResult fast = HL7OruFastParser.tryParse(message);
+        HL7TestResult hapi = parserService.parseWithHapi(message);
+
+        assertNotNull(fast);
+        assertEquals("H", fast.getTestResults().getFirst().getFlag());
+        assertSameItem(hapi.getTestResults().getFirst(), fast.getTestResults().getFirst());
+    }
+
+    @Test
+    void fastPath_declinesMessagesOutsideTemplate() {
+        assertNull(HL7OruFastParser.tryParse(oruMessage("BC-1", 3).replace("2.3.1", "2.5")));
+        assertNull(HL7OruFastParser.tryParse(oruMessage("BC-1", 3).replace("ORU^R01", "ADT^A01")));
+        assertNull(HL7OruFastParser.tryParse(oruMessage("BC-1", 3) + "NTE|1||Hemolyzed sample\n"));
+        assertNull(HL7OruFastParser.tryParse(oruMessage("BC-1", 3).replace("|5.0|", "|5.0~6.0|")));
+    }
+
+    @Test
+    void parseHL7Message_fallsBackToHapiForOtherMessages() throws Exception {
+        String message = oruMessage("BC-77", 3) + "NTE|1||Hemolyzed sample\n";
+
+        HL7TestResult result = parserService.parseHL7Message(message);
+
+        assertEquals("BC-77", result.getBarcode());
+        assertEquals(3, result.getTestResults().size());
+    }
+
+    private void assertSameItem(TestResultItem expected, TestResultItem actual) {
+        assertEquals(expected.getParameter(), actual.getParameter());
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getUnit(), actual.getUnit());
+        assertEquals(expected.getFlag(), actual.getFlag());
+    }
+}
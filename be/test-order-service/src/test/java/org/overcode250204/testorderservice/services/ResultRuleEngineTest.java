@@ -0,0 +1,160 @@
+package org.overcode250204.testorderservice.services;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.testorderservice.events.ResultRulesChangedEvent;
+import org.overcode250204.testorderservice.models.entites.FlaggingRules;
+import org.overcode250204.testorderservice.models.entites.ResultParameterMapping;
+import org.overcode250204.testorderservice.models.entites.UnitConversionMapping;
+import org.overcode250204.testorderservice.models.enums.Gender;
+import org.overcode250204.testorderservice.models.enums.TestOrderType;
+import org.overcode250204.testorderservice.repositories.FlaggingRulesRepository;
+import org.overcode250204.testorderservice.repositories.ResultParameterMappingRepository;
+import org.overcode250204.testorderservice.repositories.RuleSetVersionRepository;
+import org.overcode250204.testorderservice.repositories.UnitConversionMappingRepository;
+import org.overcode250204.testorderservice.services.impls.ResultRuleEngineImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tra cứu theo thứ tự ưu tiên của ResultRuleEngineImpl, và build lại snapshot khi rule được ghi ở replica này
+ * (event) hoặc ở replica khác (version trong rule_set_version thay đổi).
+ */
+class ResultRuleEngineTest {
+
+    private final List<ResultParameterMapping> paramMaps = new ArrayList<>();
+    private final List<UnitConversionMapping> unitMaps = new ArrayList<>();
+    private final List<FlaggingRules> flagRules = new ArrayList<>();
+    private final AtomicLong version = new AtomicLong();
+
+    private ResultParameterMappingRepository paramRepository;
+    private RuleSetVersionRepository versionRepository;
+    private ResultRuleEngineImpl engine;
+
+    @BeforeEach
+    void setUp() {
+        paramRepository = mock(ResultParameterMappingRepository.class);
+        when(paramRepository.findAll()).thenAnswer(inv -> List.copyOf(paramMaps));
+        UnitConversionMappingRepository unitRepository = mock(UnitConversionMappingRepository.class);
+        when(unitRepository.findAll()).thenAnswer(inv -> List.copyOf(unitMaps));
+        FlaggingRulesRepository flagRepository = mock(FlaggingRulesRepository.class);
+        when(flagRepository.findAll()).thenAnswer(inv -> List.copyOf(flagRules));
+
+        versionRepository = mock(RuleSetVersionRepository.class);
+        when(versionRepository.findVersion(any())).thenAnswer(inv -> version.get() == 0 ? Optional.empty() : Optional.of(version.get()));
+        when(versionRepository.increment(any())).thenAnswer(inv -> {
+            version.incrementAndGet();
+            return 1;
+        });
+
+        engine = new ResultRuleEngineImpl(paramRepository, unitRepository, flagRepository,
+                mock(UnitFormulaCache.class), versionRepository);
+    }
+
+    private ResultParameterMapping param(String external, String internal, String dataSource, boolean active) {
+        ResultParameterMapping mapping = ResultParameterMapping.builder()
+                .externalParamName(external).internalParamName(internal).dataSource(dataSource).isActivated(active).build();
+        paramMaps.add(mapping);
+        return mapping;
+    }
+
+    private UnitConversionMapping unit(TestOrderType testType, String sourceUnit, String targetUnit) {
+        UnitConversionMapping mapping = UnitConversionMapping.builder()
+                .testType(testType).sourceUnit(sourceUnit).targetUnit(targetUnit).formula("sourceUnit").isActivated(true).build();
+        unitMaps.add(mapping);
+        return mapping;
+    }
+
+    private FlaggingRules flag(String parameter, String unit, Gender gender, double low, double high) {
+        FlaggingRules rule = FlaggingRules.builder()
+                .parameterName(parameter).unit(unit).gender(gender).normalLow(low).normalHigh(high).isActivated(true).build();
+        flagRules.add(rule);
+        return rule;
+    }
+
+    @Test
+    void parameterMappingPrefersTheInstrumentThenGlobal() {
+        ResultParameterMapping specific = param("WBC#", "WBC", "instrument-1", true);
+        ResultParameterMapping global = param("WBC#", "WBC-GLOBAL", "global", true);
+        param("RBC#", "RBC", "instrument-1", false);
+
+        assertSame(specific, engine.findParameterMapping("WBC#", "instrument-1").orElseThrow());
+        assertSame(global, engine.findParameterMapping("WBC#", "instrument-2").orElseThrow());
+        // Mapping không active bị bỏ qua
+        assertTrue(engine.findParameterMapping("RBC#", "instrument-1").isEmpty());
+    }
+
+    @Test
+    void unitConversionPrefersTheTestTypeThenGeneric() {
+        UnitConversionMapping typed = unit(TestOrderType.HBA1C, "mmol/mol", "%");
+        UnitConversionMapping generic = unit(null, "MMOL/MOL", "mg/dL");
+
+        assertSame(typed, engine.findUnitConversion(TestOrderType.HBA1C, "mmol/mol").orElseThrow());
+        assertSame(generic, engine.findUnitConversion(TestOrderType.CBC, "Mmol/Mol").orElseThrow());
+        assertSame(generic, engine.findUnitConversion(null, "mmol/mol").orElseThrow());
+        assertTrue(engine.findUnitConversion(TestOrderType.CBC, "g/L").isEmpty());
+    }
+
+    @Test
+    void flaggingRulePrefersTheGenderThenGeneral() {
+        FlaggingRules male = flag("HGB", "g/dL", Gender.MALE, 13.5, 17.5);
+        FlaggingRules general = flag("HGB", "g/dL", null, 12.0, 17.5);
+
+        assertSame(male, engine.findFlaggingRule("hgb", "G/DL", Gender.MALE).orElseThrow());
+        assertSame(general, engine.findFlaggingRule("HGB", "g/dL", Gender.FEMALE).orElseThrow());
+        assertSame(general, engine.findFlaggingRule("HGB", "g/dL", null).orElseThrow());
+        assertTrue(engine.findFlaggingRule("HGB", "mmol/L", Gender.MALE).isEmpty());
+    }
+
+    @Test
+    void localRuleChangeBumpsTheVersionAndRebuilds() {
+        engine.rebuild();
+        param("PLT#", "PLT", "global", true);
+        assertTrue(engine.findParameterMapping("PLT#", "instrument-1").isEmpty());
+
+        ResultRulesChangedEvent event = new ResultRulesChangedEvent(this, "PARAMETER_MAPPING");
+        engine.onRulesWritten(event);
+        engine.onRulesChanged(event);
+
+        assertEquals(1, version.get());
+        assertTrue(engine.findParameterMapping("PLT#", "instrument-1").isPresent());
+        // Snapshot đã ở version mới: lần poll sau không build lại
+        engine.refreshIfChanged();
+        verify(paramRepository, times(2)).findAll();
+    }
+
+    @Test
+    void ruleChangeOnAnotherReplicaIsPickedUpByThePoll() {
+        engine.rebuild();
+        engine.refreshIfChanged();
+        verify(paramRepository, times(1)).findAll();
+
+        // Replica khác ghi rule và tăng version; replica này không nhận được event
+        param("PLT#", "PLT", "global", true);
+        version.incrementAndGet();
+        assertTrue(engine.findParameterMapping("PLT#", "instrument-1").isEmpty());
+
+        engine.refreshIfChanged();
+
+        assertTrue(engine.findParameterMapping("PLT#", "instrument-1").isPresent());
+        verify(paramRepository, times(2)).findAll();
+    }
+
+    @Test
+    void pollFailureKeepsTheCurrentSnapshot() {
+        ResultParameterMapping mapping = param("WBC#", "WBC", "global", true);
+        engine.rebuild();
+        when(versionRepository.findVersion(any())).thenThrow(new IllegalStateException("db down"));
+
+        engine.refreshIfChanged();
+
+        assertSame(mapping, engine.findParameterMapping("WBC#", "instrument-1").orElseThrow());
+    }
+}
@@ -0,0 +1,136 @@
+package org.overcode250204.testorderservice.services;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.testorderservice.utils.S3MultipartOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class S3MultipartOutputStreamTest {
+
+    // S3 giả lập trong bộ nhớ: chỉ cài các API mà S3MultipartOutputStream dùng
+    static class InMemoryS3 extends AbstractAmazonS3 {
+        final Map<String, byte[]> objects = new HashMap<>();
+        final Map<String, SortedMap<Integer, byte[]>> uploads = new HashMap<>();
+        final List<Long> partSizes = new ArrayList<>();
+        int putCount;
+        int abortCount;
+        boolean failOnPart;
+
+        @Override
+        public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+            putCount++;
+            objects.put(key, readAll(input));
+            return new PutObjectResult();
+        }
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+            String uploadId = UUID.randomUUID().toString();
+            uploads.put(uploadId, new TreeMap<>());
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId(uploadId);
+            return result;
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest request) {
+            if (failOnPart) {
+                throw new IllegalStateException("S3 unavailable");
+            }
+            byte[] data = readAll(request.getInputStream());
+            assertEquals(request.getPartSize(), data.length);
+            partSizes.add(request.getPartSize());
+            uploads.get(request.getUploadId()).put(request.getPartNumber(), data);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        }
+
+        @Override
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            SortedMap<Integer, byte[]> parts = uploads.remove(request.getUploadId());
+            assertEquals(parts.size(), request.getPartETags().size());
+            ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+            parts.values().forEach(assembled::writeBytes);
+            objects.put(request.getKey(), assembled.toByteArray());
+            return new CompleteMultipartUploadResult();
+        }
+
+        @Override
+        public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+            abortCount++;
+            uploads.remove(request.getUploadId());
+        }
+
+        private static byte[] readAll(InputStream input) {
+            try {
+                return input.readAllBytes();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void smallFileIsUploadedWithSinglePut() throws IOException {
+        InMemoryS3 s3 = new InMemoryS3();
+        byte[] data = payload(1000);
+
+        try (S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "csv/small.csv", "text/csv", 1024)) {
+            out.write(data);
+        }
+
+        assertEquals(1, s3.putCount);
+        assertTrue(s3.partSizes.isEmpty());
+        assertArrayEquals(data, s3.objects.get("csv/small.csv"));
+    }
+
+    @Test
+    void largeFileIsSplitIntoPartsAndReassembled() throws IOException {
+        InMemoryS3 s3 = new InMemoryS3();
+        byte[] data = payload(10_500);
+
+        try (S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "pdf/large.pdf", "application/pdf", 1024)) {
+            // ghi xen kẽ từng byte và từng khối để đi qua cả hai đường write
+            out.write(data[0]);
+            for (int offset = 1; offset < data.length; offset += 333) {
+                out.write(data, offset, Math.min(333, data.length - offset));
+            }
+        }
+
+        assertEquals(0, s3.putCount);
+        assertEquals(11, s3.partSizes.size());
+        assertTrue(s3.partSizes.subList(0, 10).stream().allMatch(size -> size == 1024));
+        assertEquals(260, s3.partSizes.get(10));
+        assertArrayEquals(data, s3.objects.get("pdf/large.pdf"));
+        assertTrue(s3.uploads.isEmpty());
+    }
+
+    @Test
+    void failedPartAbortsUploadAndLeavesNoObject() {
+        InMemoryS3 s3 = new InMemoryS3();
+        s3.failOnPart = true;
+        S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "xlsx/broken.xlsx", "application/octet-stream", 1024);
+
+        assertThrows(IOException.class, () -> out.write(payload(4096)));
+        assertThrows(IOException.class, () -> out.write(1));
+
+        assertEquals(1, s3.abortCount);
+        assertTrue(s3.uploads.isEmpty());
+        assertFalse(s3.objects.containsKey("xlsx/broken.xlsx"));
+    }
+}
@@ -0,0 +1,79 @@
+package org.overcode250204.testorderservice.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.testorderservice.elastic.services.TestOrderIndexingService;
+import org.overcode250204.testorderservice.elastic.services.impls.TestOrderIndexQueueImpl;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestOrderIndexQueueTest {
+
+    private final List<Set<UUID>> batches = new CopyOnWriteArrayList<>();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private TestOrderIndexQueueImpl indexQueue;
+
+    // Chỉ ghi lại các batch được gửi sang indexing service
+    private final TestOrderIndexingService fakeIndexingService = new TestOrderIndexingService() {
+        @Override
+        public void deleteOrder(UUID orderId) {
+        }
+
+        @Override
+        public void reindexTestOrder(UUID orderId) {
+            fail("Single-order re-index should not be used by the queue");
+        }
+
+        @Override
+        public void reindexTestOrders(Collection<UUID> orderIds) {
+            batches.add(Set.copyOf(orderIds));
+        }
+    };
+
+    @BeforeEach
+    void setUp() {
+        indexQueue = new TestOrderIndexQueueImpl(fakeIndexingService, meterRegistry);
+        indexQueue.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        indexQueue.shutdown();
+    }
+
+    @Test
+    void flush_coalescesRepeatedOrdersIntoOneBatchAfterDebounce() throws Exception {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        indexQueue.enqueue(first);
+        indexQueue.enqueue(first);
+        indexQueue.enqueue(second);
+        indexQueue.enqueue(first);
+
+        indexQueue.flush();
+        assertEquals(2, indexQueue.depth());
+        assertEquals(2.0, meterRegistry.get("testorder.index.queue.depth").gauge().value());
+
+        Thread.sleep(600);
+        indexQueue.flush();
+        waitForBatches(1);
+
+        assertEquals(List.of(Set.of(first, second)), batches);
+        assertEquals(0, indexQueue.depth());
+    }
+
+    private void waitForBatches(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (batches.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
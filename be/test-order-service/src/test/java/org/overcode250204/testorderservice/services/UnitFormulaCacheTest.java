@@ -0,0 +1,51 @@
+package org.overcode250204.testorderservice.services;
+
+import org.junit.jupiter.api.Test;
+import org.overcode250204.testorderservice.models.entites.UnitConversionMapping;
+import org.overcode250204.testorderservice.services.impls.UnitFormulaCacheImpl;
+import org.overcode250204.testorderservice.utils.UnitFormulaCompiler.CompiledFormula;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Formula lỗi được cache như formula hợp lệ: mọi lần dùng đều báo lỗi, và mapping được sửa (version mới) thì
+ * được biên dịch lại.
+ */
+class UnitFormulaCacheTest {
+
+    private static UnitConversionMapping mapping(UUID id, long version, String formula) {
+        UnitConversionMapping mapping = new UnitConversionMapping();
+        mapping.setId(id);
+        mapping.setVersion(version);
+        mapping.setFormula(formula);
+        mapping.setSourceUnit("mg/dL");
+        mapping.setTargetUnit("umol/L");
+        return mapping;
+    }
+
+    @Test
+    void invalidFormulaIsCachedAndReportedOnEveryUse() {
+        UnitFormulaCacheImpl cache = new UnitFormulaCacheImpl();
+        UUID id = UUID.randomUUID();
+        UnitConversionMapping broken = mapping(id, 1, "sourceUnit * ");
+
+        // refresh không ném lỗi, formula lỗi vẫn chiếm một entry
+        cache.refresh(List.of(broken, mapping(UUID.randomUUID(), 1, "sourceUnit * 17.1")));
+        for (int i = 0; i < 3; i++) {
+            assertThrows(IllegalArgumentException.class, () -> cache.getFormula(broken));
+        }
+
+        CompiledFormula fixed = cache.getFormula(mapping(id, 2, "1 / (sourceUnit - 1)"));
+        assertEquals(0.5, fixed.apply(3), 1e-6);
+    }
+
+    @Test
+    void compiledFormulaIsReusedForTheSameVersion() {
+        UnitFormulaCacheImpl cache = new UnitFormulaCacheImpl();
+        UnitConversionMapping mapping = mapping(UUID.randomUUID(), 3, "SQRT(sourceUnit)");
+        assertSame(cache.getFormula(mapping), cache.getFormula(mapping));
+    }
+}
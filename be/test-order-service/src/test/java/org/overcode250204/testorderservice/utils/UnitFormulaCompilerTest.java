@@ -0,0 +1,118 @@
+package org.overcode250204.testorderservice.utils;
+
+import com.udojava.evalex.Expression;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.testorderservice.utils.UnitFormulaCompiler.CompiledFormula;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Formula đã biên dịch cho cùng kết quả với cách cũ (new Expression(formula) cho mỗi dòng, biến là chuỗi raw value),
+ * kể cả tại sourceUnit = 1 và với formula có điểm kỳ dị tại 1. EvalEx mặc định tính với 7 chữ số có nghĩa
+ * (MathContext.DECIMAL32), formula tuyến tính được rút gọn thì tính bằng double, nên so sánh theo sai số tương đối.
+ */
+class UnitFormulaCompilerTest {
+
+    private static final String[] FORMULAS = {
+            "sourceUnit * 17.1",
+            "sourceUnit / 18",
+            "(sourceUnit - 32) * 5 / 9",
+            "-sourceUnit + 2.5e1",
+            "sourceUnit * 0.0000000166667",
+            "SQRT(sourceUnit) * 2",
+            "sourceUnit ^ 2 + PI",
+            "LOG(sourceUnit) * 10",
+            "1 / (sourceUnit - 1)",
+            "LOG(sourceUnit - 1)",
+            "sourceUnit * sourceUnit / (sourceUnit - 1)"
+    };
+    private static final String[] RAW_VALUES = {"1", "0.5", "2", "7.25", "98.6", "1e3", "350.125"};
+    private static final double RELATIVE_TOLERANCE = 1e-6;
+
+    private static Double legacy(String formula, String rawValue) {
+        Expression expression = new Expression(formula);
+        expression.setVariable("sourceUnit", rawValue);
+        return expression.eval().doubleValue();
+    }
+
+    private static Double orError(Supplier<Double> evaluation) {
+        try {
+            return evaluation.get();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Test
+    void compiledFormulasMatchPerRowEvaluation() {
+        for (String formula : FORMULAS) {
+            // Formula có điểm kỳ dị tại 1 vẫn biên dịch được
+            CompiledFormula compiled = assertDoesNotThrow(() -> UnitFormulaCompiler.compile(formula), formula);
+            for (String rawValue : RAW_VALUES) {
+                Double expected = orError(() -> legacy(formula, rawValue));
+                Double actual = orError(() -> compiled.apply(Double.parseDouble(rawValue)));
+                String label = formula + " @ " + rawValue;
+                if (expected == null) {
+                    assertNull(actual, label + " should fail like the per-row evaluation");
+                } else {
+                    assertNotNull(actual, label);
+                    assertEquals(expected, actual, Math.abs(expected) * RELATIVE_TOLERANCE, label);
+                }
+            }
+        }
+    }
+
+    @Test
+    void singularityAtOneFailsOnlyForThatValue() {
+        CompiledFormula compiled = UnitFormulaCompiler.compile("1 / (sourceUnit - 1)");
+        assertThrows(ArithmeticException.class, () -> compiled.apply(1));
+        assertEquals(1.0, compiled.apply(2), 1e-12);
+        assertEquals(-2.0, compiled.apply(0.5), 1e-12);
+    }
+
+    @Test
+    void linearFormulasAreFoldedToScaleAndOffset() {
+        assertEquals(new UnitFormulaCompiler.LinearFormula(5.0 / 9, -32.0 * 5 / 9),
+                UnitFormulaCompiler.compile("(sourceUnit - 32) * 5 / 9"));
+        assertFalse(UnitFormulaCompiler.compile("sourceUnit * sourceUnit") instanceof UnitFormulaCompiler.LinearFormula);
+    }
+
+    @Test
+    void invalidFormulasFailAtCompileTime() {
+        for (String formula : new String[]{"sourceUnit *", "(sourceUnit", "FOO(sourceUnit)", "sourceUnit + y", " "}) {
+            assertThrows(IllegalArgumentException.class, () -> UnitFormulaCompiler.compile(formula), formula);
+        }
+    }
+
+    @Test
+    void evalExFormulaIsSafeToShareBetweenThreads() throws Exception {
+        CompiledFormula compiled = UnitFormulaCompiler.compile("SQRT(sourceUnit) * 2");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int offset = t;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 2_000; i++) {
+                        String rawValue = String.valueOf((offset * 2_000 + i) % 997 + 1);
+                        assertEquals(legacy("SQRT(sourceUnit) * 2", rawValue), compiled.apply(Double.parseDouble(rawValue)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
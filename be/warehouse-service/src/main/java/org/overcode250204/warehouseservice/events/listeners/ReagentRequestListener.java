@@ -8,6 +8,9 @@ import org.overcode250204.warehouseservice.events.InboxEvent;
 import org.overcode250204.warehouseservice.events.OutboxEvent;
 import org.overcode250204.warehouseservice.model.entities.*;
 import org.overcode250204.warehouseservice.repositories.*;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentBalanceService;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentReservationService;
+import org.overcode250204.warehouseservice.utils.TransactionRetryExecutor;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
@@ -31,114 +34,148 @@ public class ReagentRequestListener {
     private final ReagentsRepository reagentsRepository;
     private final ReagentSupplyHistoryRepository supplyHistoryRepository;
     private final ReagentUsageHistoryRepository usageHistoryRepository;
+    private final ReagentBalanceService reagentBalanceService;
+    private final ReagentReservationService reagentReservationService;
+    private final TransactionRetryExecutor retryExecutor;
     private final InstrumentsRepository instrumentRepository;
     private final InstrumentReagentsRepository instrumentReagentsRepository;
     private final InboxRepository inboxRepository;
     private final OutboxRepository outboxRepository;
     private final ObjectMapper objectMapper;
 
+    /**
+     * Install request giữ chỗ reagent (ReagentReservationService.reserve) thay cho việc đọc số dư rồi ghi usage.
+     * Toàn bộ xử lý chạy trong một transaction, retry có backoff khi DB báo xung đột đồng thời; usage ledger chỉ
+     * được ghi khi instrument gửi xác nhận (onInstallConfirm).
+     */
     @KafkaListener(topics = "${app.kafka.topics.reagent.install.request:warehouse.reagent.install.request}", groupId = "warehouse-service-reagent", containerFactory = "kafkaListenerContainerFactory")
-    @Transactional
     public void onInstallRequest(ConsumerRecord<String, Map<String, Object>> record) {
         try {
-            Map<String, Object> event = record.value();
-            UUID eventId = UUID.fromString((String) event.get("eventId"));
+            retryExecutor.execute(status -> {
+                try {
+                    handleInstallRequest(record.value());
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("Failed to process install request: {}", e.getMessage(), e);
+        }
+    }
 
-            if (inboxRepository.existsByEventId(eventId)) {
-                log.info("Reagent install request {} already processed, skipping.", eventId);
-                return;
-            }
+    private void handleInstallRequest(Map<String, Object> event) throws Exception {
+        UUID eventId = UUID.fromString((String) event.get("eventId"));
 
-            log.info("[Kafka] Received install request: {}", event);
+        if (inboxRepository.existsByEventId(eventId)) {
+            log.info("Reagent install request {} already processed, skipping.", eventId);
+            return;
+        }
 
-            List<Map<String, Object>> payload = (List<Map<String, Object>>) event.get("payload");
-            if (payload == null || payload.isEmpty()) {
-                log.warn("Payload is empty for install request");
-                return;
-            }
+        log.info("[Kafka] Received install request: {}", event);
 
-            Map<String, Object> requestPayload = payload.get(0);
-            String instrumentId = (String) requestPayload.get("instrumentId");
-            String reagentIdStr = (String) requestPayload.get("reagentId");
-            UUID reagentId = UUID.fromString(reagentIdStr);
-            String installedBy = (String) requestPayload.get("installedBy");
-            Number quantityRequestedNumber = (Number) requestPayload.get("quantity");
-            BigDecimal quantityRequested = (quantityRequestedNumber != null) ? new BigDecimal(quantityRequestedNumber.toString()) : BigDecimal.ZERO;
+        List<Map<String, Object>> payload = (List<Map<String, Object>>) event.get("payload");
+        if (payload == null || payload.isEmpty()) {
+            log.warn("Payload is empty for install request");
+            return;
+        }
 
-            Map<String, Object> responsePayload = new HashMap<>();
-            responsePayload.put("instrumentId", instrumentId);
-            responsePayload.put("reagentId", reagentIdStr);
+        Map<String, Object> requestPayload = payload.get(0);
+        String instrumentId = (String) requestPayload.get("instrumentId");
+        String reagentIdStr = (String) requestPayload.get("reagentId");
+        UUID reagentId = UUID.fromString(reagentIdStr);
+        String installedBy = (String) requestPayload.get("installedBy");
+        Number quantityRequestedNumber = (Number) requestPayload.get("quantity");
+        BigDecimal quantityRequested = (quantityRequestedNumber != null) ? new BigDecimal(quantityRequestedNumber.toString()) : BigDecimal.ZERO;
 
-            UUID instrumentUuid;
-            try {
-                instrumentUuid = UUID.fromString(instrumentId);
-            } catch (Exception ex) {
+        Map<String, Object> responsePayload = new HashMap<>();
+        responsePayload.put("instrumentId", instrumentId);
+        responsePayload.put("reagentId", reagentIdStr);
+
+        UUID instrumentUuid;
+        try {
+            instrumentUuid = UUID.fromString(instrumentId);
+        } catch (Exception ex) {
+            responsePayload.put("status", "FAIL");
+            responsePayload.put("reason", "Invalid instrumentId");
+            createOutboxEvent("REAGENT_INSTALL_RESPONSE", List.of(responsePayload), instrumentId, "REAGENT_RESPONSE", eventId);
+            log.warn("[Kafka] Install failed - invalid instrumentId: {}", instrumentId);
+            saveInboxEvent(eventId, event);
+            return;
+        }
+
+        if (instrumentRepository.findById(instrumentUuid).isEmpty()) {
+            responsePayload.put("status", "FAIL");
+            responsePayload.put("reason", "Instrument not found");
+            createOutboxEvent("REAGENT_INSTALL_RESPONSE", List.of(responsePayload), instrumentId, "REAGENT_RESPONSE", eventId);
+            log.warn("[Kafka] Install failed - instrument not found: {}", instrumentId);
+            saveInboxEvent(eventId, event);
+            return;
+        }
+
+        Optional<Reagent> found = reagentsRepository.findById(reagentId);
+        if (found.isPresent()) {
+            Reagent r = found.get();
+            Optional<ReagentReservation> reservation = reagentReservationService.reserve(
+                    r.getReagentId(), quantityRequested, instrumentUuid, installedBy, eventId);
+
+            if (reservation.isPresent()) {
+                ReagentSupplyHistory supplyHistory = supplyHistoryRepository.findReagentSupplyHistoriesByReagent(r);
+                responsePayload.put("reservationId", reservation.get().getReservationId().toString());
+                responsePayload.put("reagentName", r.getName().toUpperCase());
+                responsePayload.put("lotNumber", supplyHistory.getLotNumber());
+                responsePayload.put("vendorName", "demo");
+                responsePayload.put("expirationDate", supplyHistory.getExpirationDate());
+                responsePayload.put("quantityRemaining", quantityRequested);
+                responsePayload.put("unit", supplyHistory.getUnitOfMeasure());
+                responsePayload.put("status", "INSTALLED");
+                responsePayload.put("installedAt", LocalDateTime.now());
+                responsePayload.put("installedBy", installedBy);
+                responsePayload.put("lastCheckedAt", LocalDateTime.now());
+                responsePayload.put("inUse", true);
+                responsePayload.put("removedBy", null);
+                responsePayload.put("uninstalledAt", null);
+
+                createOutboxEvent("REAGENT_INSTALL_RESPONSE", List.of(responsePayload), instrumentId, "REAGENT_RESPONSE", eventId);
+                log.info("[Kafka] Sent install success for reagent={} instrument={} reservation={}",
+                        r.getName(), instrumentId, reservation.get().getReservationId());
+            } else {
+                BigDecimal availableQuantity = reagentBalanceService.getAvailableQuantity(r.getReagentId());
                 responsePayload.put("status", "FAIL");
-                responsePayload.put("reason", "Invalid instrumentId");
+                responsePayload.put("reason", "Insufficient quantity in warehouse. Available: " + availableQuantity + ", Requested: " + quantityRequested);
                 createOutboxEvent("REAGENT_INSTALL_RESPONSE", List.of(responsePayload), instrumentId, "REAGENT_RESPONSE", eventId);
-                log.warn("[Kafka] Install failed - invalid instrumentId: {}", instrumentId);
-                saveInboxEvent(eventId, event);
-                return;
+                log.warn("[Kafka] Install failed - insufficient quantity for reagent: {}", r.getName());
             }
+        } else {
+            responsePayload.put("status", "FAIL");
+            responsePayload.put("reason", "Reagent not found in warehouse");
+            createOutboxEvent("REAGENT_INSTALL_RESPONSE", List.of(responsePayload), instrumentId, "REAGENT_RESPONSE", eventId);
+            log.warn("[Kafka] Install failed - reagent not found: {}", reagentIdStr);
+        }
+        saveInboxEvent(eventId, event);
+    }
 
-            if (instrumentRepository.findById(instrumentUuid).isEmpty()) {
-                responsePayload.put("status", "FAIL");
-                responsePayload.put("reason", "Instrument not found");
-                createOutboxEvent("REAGENT_INSTALL_RESPONSE", List.of(responsePayload), instrumentId, "REAGENT_RESPONSE", eventId);
-                log.warn("[Kafka] Install failed - instrument not found: {}", instrumentId);
-                saveInboxEvent(eventId, event);
+    // Instrument đã install xong reagent: chuyển reservation thành usage ledger
+    @KafkaListener(topics = "${app.kafka.topics.reagent.install.confirm:warehouse.reagent.install.confirm}", groupId = "warehouse-service-reagent", containerFactory = "kafkaListenerContainerFactory")
+    public void onInstallConfirm(ConsumerRecord<String, Map<String, Object>> record) {
+        try {
+            Map<String, Object> event = record.value();
+            List<Map<String, Object>> payload = (List<Map<String, Object>>) event.get("payload");
+            if (payload == null || payload.isEmpty()) {
+                log.warn("Payload is empty for install confirmation");
                 return;
             }
+            Map<String, Object> confirmPayload = payload.get(0);
+            UUID reservationId = UUID.fromString((String) confirmPayload.get("reservationId"));
+            String confirmedBy = (String) confirmPayload.get("installedBy");
 
-            Optional<Reagent> found = reagentsRepository.findById(reagentId);
-            if (found.isPresent()) {
-                Reagent r = found.get();
-                BigDecimal totalSupply = supplyHistoryRepository.calculateTotalSupplyByReagentId(r.getReagentId());
-                BigDecimal totalUsage = usageHistoryRepository.calculateTotalUsageByReagentId(r.getReagentId());
-                BigDecimal availableQuantity = totalSupply.subtract(totalUsage);
-
-                if (availableQuantity.compareTo(quantityRequested) >= 0) {
-                    ReagentUsageHistory usage = new ReagentUsageHistory();
-                    usage.setReagent(r);
-                    usage.setQuantityUsed(quantityRequested);
-                    usage.setUsageDate(LocalDateTime.now());
-                    usage.setUsedBy(installedBy);
-                    usage.setAction("INSTALL");
-                    usage.setNote("Installed on instrument " + instrumentId);
-                    usageHistoryRepository.save(usage);
-
-                    ReagentSupplyHistory supplyHistory = supplyHistoryRepository.findReagentSupplyHistoriesByReagent(r);
-                    responsePayload.put("reagentName", r.getName().toUpperCase());
-                    responsePayload.put("lotNumber", supplyHistory.getLotNumber());
-                    responsePayload.put("vendorName", "demo");
-                    responsePayload.put("expirationDate", supplyHistory.getExpirationDate());
-                    responsePayload.put("quantityRemaining", quantityRequested);
-                    responsePayload.put("unit", supplyHistory.getUnitOfMeasure());
-                    responsePayload.put("status", "INSTALLED");
-                    responsePayload.put("installedAt", LocalDateTime.now());
-                    responsePayload.put("installedBy", installedBy);
-                    responsePayload.put("lastCheckedAt", LocalDateTime.now());
-                    responsePayload.put("inUse", true);
-                    responsePayload.put("removedBy", null);
-                    responsePayload.put("uninstalledAt", null);
-
-                    createOutboxEvent("REAGENT_INSTALL_RESPONSE", List.of(responsePayload), instrumentId, "REAGENT_RESPONSE", eventId);
-                    log.info("[Kafka] Sent install success for reagent={} instrument={}", r.getName(), instrumentId);
-                } else {
-                    responsePayload.put("status", "FAIL");
-                    responsePayload.put("reason", "Insufficient quantity in warehouse. Available: " + availableQuantity + ", Requested: " + quantityRequested);
-                    createOutboxEvent("REAGENT_INSTALL_RESPONSE", List.of(responsePayload), instrumentId, "REAGENT_RESPONSE", eventId);
-                    log.warn("[Kafka] Install failed - insufficient quantity for reagent: {}", r.getName());
-                }
-            } else {
-                responsePayload.put("status", "FAIL");
-                responsePayload.put("reason", "Reagent not found in warehouse");
-                createOutboxEvent("REAGENT_INSTALL_RESPONSE", List.of(responsePayload), instrumentId, "REAGENT_RESPONSE", eventId);
-                log.warn("[Kafka] Install failed - reagent not found: {}", reagentIdStr);
-            }
-            saveInboxEvent(eventId, event);
+            boolean confirmed = reagentReservationService.confirm(reservationId, confirmedBy);
+            log.info("[Kafka] Install confirmation for reservation={} instrument={} applied={}",
+                    reservationId, confirmPayload.get("instrumentId"), confirmed);
         } catch (Exception e) {
-            log.error("Failed to process install request: {}", e.getMessage(), e);
+            log.error("Failed to process install confirmation: {}", e.getMessage(), e);
         }
     }
 
@@ -218,6 +255,7 @@ public class ReagentRequestListener {
                 }
 
                 usageHistoryRepository.save(usage);
+                reagentBalanceService.recordUsage(r.getReagentId(), usage.getQuantityUsed());
             } else {
                 log.warn("[Kafka] Uninstall failed - reagent not found: {}", reagentIdStr);
             }
@@ -311,6 +349,7 @@ public class ReagentRequestListener {
                 usage.setAction("SYNC-INSTALL");
                 usage.setNote("Default reagent installed on instrument " + instrumentId);
                 usageHistoryRepository.save(usage);
+                reagentBalanceService.recordUsage(defaultReagent.getReagent().getReagentId(), usage.getQuantityUsed());
             }
 
             List<Map<String, Object>> items = defaultReagents.stream().map(item -> {
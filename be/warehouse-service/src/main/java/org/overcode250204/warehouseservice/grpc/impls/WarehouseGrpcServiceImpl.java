@@ -1,6 +1,7 @@
 package org.overcode250204.warehouseservice.grpc.impls;
 
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -8,30 +9,39 @@ import net.devh.boot.grpc.server.service.GrpcService;
 import org.overcode250204.common.grpc.*;
 import org.overcode250204.warehouseservice.grpc.mapper.ReagentMapper;
 import org.overcode250204.warehouseservice.grpc.mapper.InstrumentMapper;
+import org.overcode250204.warehouseservice.model.dto.reagent.ReagentCatalogItem;
+import org.overcode250204.warehouseservice.model.dto.reagent.ReagentCatalogPage;
 import org.overcode250204.warehouseservice.model.entities.Reagent;
+import org.overcode250204.warehouseservice.model.entities.ReagentBalance;
 import org.overcode250204.warehouseservice.model.entities.ReagentSupplyHistory;
 import org.overcode250204.warehouseservice.repositories.ReagentSupplyHistoryRepository;
-import org.overcode250204.warehouseservice.repositories.ReagentUsageHistoryRepository;
 import org.overcode250204.warehouseservice.repositories.ReagentsRepository;
 import org.overcode250204.warehouseservice.repositories.InstrumentsRepository;
 import org.overcode250204.warehouseservice.model.entities.Instrument;
+import org.overcode250204.warehouseservice.services.implement.ReagentCatalogServiceImpl;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentBalanceService;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentCatalogService;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 @GrpcService
 @RequiredArgsConstructor
 @Slf4j
 public class WarehouseGrpcServiceImpl extends WarehouseServiceGrpc.WarehouseServiceImplBase {
 
+    private static final int STREAM_BATCH_SIZE = 500;
+
     private final ReagentsRepository reagentsRepository;
     private final ReagentSupplyHistoryRepository supplyHistoryRepository;
-    private final ReagentUsageHistoryRepository usageHistoryRepository;
     private final InstrumentsRepository instrumentsRepository;
+    private final ReagentBalanceService reagentBalanceService;
+    private final ReagentCatalogService reagentCatalogService;
 
     @Override
     public void getReagent(ReagentRequest request, StreamObserver<ReagentInfo> responseObserver) {
@@ -44,11 +54,9 @@ public class WarehouseGrpcServiceImpl extends WarehouseServiceGrpc.WarehouseServ
                 return;
             }
 
-            BigDecimal totalSupply = supplyHistoryRepository.calculateTotalSupplyByReagentId(reagent.getReagentId());
-            BigDecimal totalUsage = usageHistoryRepository.calculateTotalUsageByReagentId(reagent.getReagentId());
-            if (totalSupply == null) totalSupply = BigDecimal.ZERO;
-            if (totalUsage == null) totalUsage = BigDecimal.ZERO;
-            BigDecimal available = totalSupply.subtract(totalUsage);
+            ReagentBalance balance = reagentBalanceService.getBalance(reagent.getReagentId());
+            BigDecimal totalSupply = balance.getTotalSupplied();
+            BigDecimal available = balance.getAvailableQuantity();
 
             // Determine earliest expiration date among supply history for this reagent (if any)
             List<ReagentSupplyHistory> supplies = supplyHistoryRepository.findByReagent_ReagentId(reagent.getReagentId());
@@ -69,28 +77,94 @@ public class WarehouseGrpcServiceImpl extends WarehouseServiceGrpc.WarehouseServ
     @Override
     public void listReagents(ListReagentsRequest request, StreamObserver<ListReagentsResponse> responseObserver) {
         try {
-            log.info("Warehouse gRPC: ListReagents page={} size={}", request.getPage(), request.getSize());
-            List<Reagent> all = reagentsRepository.findAll();
-            List<ReagentInfo> items = all.stream().map(r -> {
-                BigDecimal totalSupply = supplyHistoryRepository.calculateTotalSupplyByReagentId(r.getReagentId());
-                BigDecimal totalUsage = usageHistoryRepository.calculateTotalUsageByReagentId(r.getReagentId());
-                if (totalSupply == null) totalSupply = BigDecimal.ZERO;
-                if (totalUsage == null) totalUsage = BigDecimal.ZERO;
-                BigDecimal available = totalSupply.subtract(totalUsage);
-                List<ReagentSupplyHistory> supplies = supplyHistoryRepository.findByReagent_ReagentId(r.getReagentId());
-                LocalDate expirationDate = (supplies == null || supplies.isEmpty()) ? null :
-                        supplies.stream().map(ReagentSupplyHistory::getExpirationDate).min(Comparator.naturalOrder()).orElse(null);
-                return ReagentMapper.toGrpc(r, available, totalSupply, expirationDate);
-            }).collect(Collectors.toList());
-            ListReagentsResponse resp = ListReagentsResponse.newBuilder().addAllReagents(items).build();
-            responseObserver.onNext(resp);
+            log.info("Warehouse gRPC: ListReagents page={} size={} pageToken={}", request.getPage(), request.getSize(), request.getPageToken());
+            ReagentCatalogPage page = reagentCatalogService.listPage(request.getPageToken(), request.getPage(), request.getSize());
+            ListReagentsResponse.Builder resp = ListReagentsResponse.newBuilder();
+            page.getItems().forEach(item -> resp.addReagents(ReagentMapper.toGrpc(item)));
+            if (page.getNextPageToken() != null) {
+                resp.setNextPageToken(page.getNextPageToken());
+            }
+            responseObserver.onNext(resp.build());
             responseObserver.onCompleted();
+        } catch (IllegalArgumentException ex) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Invalid page token").asRuntimeException());
         } catch (Exception ex) {
             log.error("Error in listReagents", ex);
             responseObserver.onError(Status.INTERNAL.withDescription(ex.getMessage()).asRuntimeException());
         }
     }
 
+    /**
+     * Stream toàn bộ catalog theo reagentId. Dữ liệu được đọc từng batch (keyset) và chỉ đọc batch tiếp theo khi
+     * client nhận kịp (onReadyHandler), nên bộ nhớ server giới hạn ở một batch dù catalog lớn tới đâu.
+     */
+    @Override
+    public void streamReagentCatalog(StreamReagentCatalogRequest request, StreamObserver<ReagentInfo> responseObserver) {
+        UUID after;
+        try {
+            after = request.getAfterReagentId().isEmpty() ? null : UUID.fromString(request.getAfterReagentId());
+        } catch (IllegalArgumentException ex) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Invalid afterReagentId").asRuntimeException());
+            return;
+        }
+        int batchSize = request.getBatchSize() <= 0 ? STREAM_BATCH_SIZE
+                : Math.min(request.getBatchSize(), ReagentCatalogServiceImpl.MAX_PAGE_SIZE);
+        log.info("Warehouse gRPC: StreamReagentCatalog after={} batchSize={}", after, batchSize);
+
+        ServerCallStreamObserver<ReagentInfo> call = (ServerCallStreamObserver<ReagentInfo>) responseObserver;
+        CatalogStreamer streamer = new CatalogStreamer(call, after, batchSize);
+        call.setOnCancelHandler(() -> log.info("Warehouse gRPC: StreamReagentCatalog cancelled after {} reagents", streamer.sent));
+        call.setOnReadyHandler(streamer);
+    }
+
+    // gRPC gọi onReady tuần tự cho một call, nên state dưới đây không cần đồng bộ
+    private class CatalogStreamer implements Runnable {
+        private final ServerCallStreamObserver<ReagentInfo> call;
+        private final int batchSize;
+        private UUID cursor;
+        private Iterator<ReagentCatalogItem> buffer = Collections.emptyIterator();
+        private boolean exhausted;
+        private boolean done;
+        private long sent;
+
+        CatalogStreamer(ServerCallStreamObserver<ReagentInfo> call, UUID after, int batchSize) {
+            this.call = call;
+            this.cursor = after;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void run() {
+            if (done) {
+                return;
+            }
+            try {
+                while (call.isReady() && !call.isCancelled()) {
+                    if (!buffer.hasNext()) {
+                        if (exhausted) {
+                            done = true;
+                            call.onCompleted();
+                            return;
+                        }
+                        List<ReagentCatalogItem> batch = reagentCatalogService.findAfter(cursor, batchSize);
+                        exhausted = batch.size() < batchSize;
+                        if (!batch.isEmpty()) {
+                            cursor = batch.get(batch.size() - 1).getReagentId();
+                        }
+                        buffer = batch.iterator();
+                        continue;
+                    }
+                    call.onNext(ReagentMapper.toGrpc(buffer.next()));
+                    sent++;
+                }
+            } catch (Exception ex) {
+                done = true;
+                log.error("Error in streamReagentCatalog", ex);
+                call.onError(Status.INTERNAL.withDescription(ex.getMessage()).asRuntimeException());
+            }
+        }
+    }
+
     @Override
     public void getInstrument(InstrumentRequest request, StreamObserver<InstrumentInfo> responseObserver) {
         try {
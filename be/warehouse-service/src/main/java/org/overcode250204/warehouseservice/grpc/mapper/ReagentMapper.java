@@ -1,6 +1,7 @@
 package org.overcode250204.warehouseservice.grpc.mapper;
 
 import org.overcode250204.common.grpc.ReagentInfo;
+import org.overcode250204.warehouseservice.model.dto.reagent.ReagentCatalogItem;
 import org.overcode250204.warehouseservice.model.entities.Reagent;
 
 import java.math.BigDecimal;
@@ -36,6 +37,25 @@ public class ReagentMapper {
         return b.build();
     }
 
+    public static ReagentInfo toGrpc(ReagentCatalogItem item) {
+        ReagentInfo.Builder b = ReagentInfo.newBuilder()
+                .setReagentId(item.getReagentId().toString())
+                .setName(nullToEmpty(item.getName()))
+                .setCatalogNumber(nullToEmpty(item.getCatalogNumber()))
+                .setManufacturer(nullToEmpty(item.getManufacturer()))
+                .setCasNumber(nullToEmpty(item.getCasNumber()))
+                .setCreatedBy(item.getCreatedBy() != null ? item.getCreatedBy().toString() : "")
+                .setUpdatedBy(item.getUpdatedBy() != null ? item.getUpdatedBy().toString() : "")
+                .setCreatedAt(item.getCreatedAt() != null ? item.getCreatedAt().toString() : "")
+                .setUpdatedAt(item.getUpdatedAt() != null ? item.getUpdatedAt().toString() : "");
+
+        if (item.getAvailableQuantity() != null) b.setQuantity(item.getAvailableQuantity().toPlainString());
+        if (item.getTotalQuantity() != null) b.setTotalQuantity(item.getTotalQuantity().toPlainString());
+        if (item.getExpirationDate() != null) b.setExpirationDate(item.getExpirationDate().toString());
+
+        return b.build();
+    }
+
     private static String nullToEmpty(String s) {
         return s == null ? "" : s;
     }
@@ -0,0 +1,43 @@
+package org.overcode250204.warehouseservice.jobs;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentBalanceService;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Đối chiếu reagent_balance với tổng supply / usage ledger.
+ * Chạy một lần khi service sẵn sàng (backfill số dư cho dữ liệu có từ trước, kể cả dữ liệu seed)
+ * và định kỳ theo cron để phát hiện, sửa các số dư bị lệch.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ReagentBalanceReconciliationJob {
+
+    private final ReagentBalanceService reagentBalanceService;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillOnStartup() {
+        runReconciliation();
+    }
+
+    @Scheduled(cron = "${app.reagent-balance.reconcile-cron:0 30 3 * * *}")
+    public void reconcilePeriodically() {
+        runReconciliation();
+    }
+
+    private void runReconciliation() {
+        try {
+            long start = System.currentTimeMillis();
+            int corrected = reagentBalanceService.reconcile();
+            log.info("[ReagentBalance] Reconciliation finished in {} ms, {} balances written",
+                    System.currentTimeMillis() - start, corrected);
+        } catch (Exception e) {
+            log.error("[ReagentBalance] Reconciliation failed: {}", e.getMessage(), e);
+        }
+    }
+}
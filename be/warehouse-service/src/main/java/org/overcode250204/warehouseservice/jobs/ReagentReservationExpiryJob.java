@@ -0,0 +1,30 @@
+package org.overcode250204.warehouseservice.jobs;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentReservationService;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Trả về kho phần reagent đã giữ chỗ mà instrument không xác nhận install trong thời hạn app.reservation.ttl.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ReagentReservationExpiryJob {
+
+    private final ReagentReservationService reservationService;
+
+    @Scheduled(fixedDelayString = "${app.reservation.expiry-check-interval-ms:60000}")
+    public void releaseExpiredReservations() {
+        try {
+            int released = reservationService.releaseExpired();
+            if (released > 0) {
+                log.info("[Reservation] Released {} expired reservations", released);
+            }
+        } catch (Exception e) {
+            log.error("[Reservation] Expiry job failed: {}", e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.overcode250204.warehouseservice.model.dto.reagent;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+@Getter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ReagentCatalogItem {
+    private UUID reagentId;
+    private String name;
+    private String catalogNumber;
+    private String manufacturer;
+    private String casNumber;
+    private UUID createdBy;
+    private UUID updatedBy;
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+    private BigDecimal totalQuantity;
+    private BigDecimal availableQuantity;
+    private LocalDate expirationDate;
+}
@@ -0,0 +1,14 @@
+package org.overcode250204.warehouseservice.model.dto.reagent;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class ReagentCatalogPage {
+    private List<ReagentCatalogItem> items;
+    // null khi đây là trang cuối
+    private String nextPageToken;
+}
@@ -0,0 +1,43 @@
+package org.overcode250204.warehouseservice.model.entities;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Số dư tồn kho đã tính sẵn của từng reagent, được cộng dồn trong cùng transaction với mỗi lần ghi
+ * reagent_supply_history / reagent_usage_history (xem ReagentBalanceService).
+ * available_quantity = total_supplied - total_used - reserved_quantity (reservation đang PENDING).
+ * ReagentBalanceReconciliationJob định kỳ đối chiếu lại với tổng của hai ledger và các reservation.
+ */
+@Entity
+@Table(name = "reagent_balance")
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ReagentBalance {
+
+    @Id
+    @Column(name = "reagent_id", nullable = false)
+    private UUID reagentId;
+
+    @Column(name = "total_supplied", nullable = false, precision = 19, scale = 6)
+    private BigDecimal totalSupplied;
+
+    @Column(name = "total_used", nullable = false, precision = 19, scale = 6)
+    private BigDecimal totalUsed;
+
+    @Column(name = "reserved_quantity", nullable = false, columnDefinition = "numeric(19,6) not null default 0")
+    private BigDecimal reservedQuantity;
+
+    @Column(name = "available_quantity", nullable = false, precision = 19, scale = 6)
+    private BigDecimal availableQuantity;
+
+    @Column(name = "updated_at", nullable = false)
+    private LocalDateTime updatedAt;
+}
@@ -0,0 +1,61 @@
+package org.overcode250204.warehouseservice.model.entities;
+
+import jakarta.persistence.*;
+import lombok.*;
+import org.overcode250204.warehouseservice.model.enums.ReservationStatus;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Lượng reagent đã được giữ chỗ cho một yêu cầu install nhưng instrument chưa xác nhận.
+ * Khi PENDING, quantity nằm trong reagent_balance.reserved_quantity (không còn trong available_quantity);
+ * CONFIRMED thì chuyển thành usage ledger, RELEASED / EXPIRED thì trả lại available.
+ */
+@Entity
+@Table(name = "reagent_reservation", indexes = {
+        @Index(name = "idx_reagent_reservation_status_expires_at", columnList = "status, expires_at"),
+        @Index(name = "idx_reagent_reservation_reagent_status", columnList = "reagent_id, status")
+})
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ReagentReservation {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    @Column(name = "reservation_id")
+    private UUID reservationId;
+
+    @Column(name = "reagent_id", nullable = false)
+    private UUID reagentId;
+
+    @Column(name = "instrument_id", nullable = false)
+    private UUID instrumentId;
+
+    @Column(name = "quantity", nullable = false, precision = 19, scale = 6)
+    private BigDecimal quantity;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", nullable = false, length = 20)
+    private ReservationStatus status;
+
+    @Column(name = "requested_by", length = 50)
+    private String requestedBy;
+
+    // eventId của install request, để lần giao lại của cùng request không giữ chỗ lần hai
+    @Column(name = "request_event_id", unique = true)
+    private UUID requestEventId;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @Column(name = "expires_at", nullable = false)
+    private LocalDateTime expiresAt;
+
+    @Column(name = "resolved_at")
+    private LocalDateTime resolvedAt;
+}
@@ -0,0 +1,8 @@
+package org.overcode250204.warehouseservice.model.enums;
+
+public enum ReservationStatus {
+    PENDING,
+    CONFIRMED,
+    RELEASED,
+    EXPIRED
+}
@@ -0,0 +1,133 @@
+package org.overcode250204.warehouseservice.repositories;
+
+import org.overcode250204.warehouseservice.model.entities.ReagentBalance;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface ReagentBalanceRepository extends JpaRepository<ReagentBalance, UUID> {
+
+    // Cộng dồn delta vào số dư; tạo dòng mới nếu reagent chưa có (row lock giữ tới khi transaction commit)
+    @Modifying
+    @Query(value = """
+            INSERT INTO reagent_balance (reagent_id, total_supplied, total_used, reserved_quantity, available_quantity, updated_at)
+            VALUES (:reagentId, :suppliedDelta, :usedDelta, 0, :suppliedDelta - :usedDelta, now())
+            ON CONFLICT (reagent_id) DO UPDATE SET
+                total_supplied = reagent_balance.total_supplied + EXCLUDED.total_supplied,
+                total_used = reagent_balance.total_used + EXCLUDED.total_used,
+                available_quantity = reagent_balance.available_quantity + EXCLUDED.available_quantity,
+                updated_at = now()
+            """, nativeQuery = true)
+    int applyDelta(UUID reagentId, BigDecimal suppliedDelta, BigDecimal usedDelta);
+
+    // Ghi đè số dư bằng giá trị tính lại từ ledger + reservation (chỉ dùng khi reconcile)
+    @Modifying
+    @Query(value = """
+            INSERT INTO reagent_balance (reagent_id, total_supplied, total_used, reserved_quantity, available_quantity, updated_at)
+            VALUES (:reagentId, :totalSupplied, :totalUsed, :reserved, :totalSupplied - :totalUsed - :reserved, now())
+            ON CONFLICT (reagent_id) DO UPDATE SET
+                total_supplied = EXCLUDED.total_supplied,
+                total_used = EXCLUDED.total_used,
+                reserved_quantity = EXCLUDED.reserved_quantity,
+                available_quantity = EXCLUDED.available_quantity,
+                updated_at = now()
+            """, nativeQuery = true)
+    int overwrite(UUID reagentId, BigDecimal totalSupplied, BigDecimal totalUsed, BigDecimal reserved);
+
+    // Tạo dòng số dư từ ledger cho reagent chưa có (reagent chưa có dòng số dư thì cũng chưa có reservation)
+    @Modifying
+    @Query(value = """
+            INSERT INTO reagent_balance (reagent_id, total_supplied, total_used, reserved_quantity, available_quantity, updated_at)
+            SELECT :reagentId, s.total, u.total, 0, s.total - u.total, now()
+            FROM (SELECT COALESCE(SUM(quantity), 0) AS total FROM reagent_supply_history WHERE reagent_id = :reagentId) s,
+                 (SELECT COALESCE(SUM(quantity_used), 0) AS total FROM reagent_usage_history WHERE reagent_id = :reagentId) u
+            ON CONFLICT (reagent_id) DO NOTHING
+            """, nativeQuery = true)
+    int insertFromLedgerIfMissing(UUID reagentId);
+
+    /*
+     * Các câu dưới đây là decrement có điều kiện: Postgres lock dòng và kiểm tra lại điều kiện WHERE
+     * trên phiên bản mới nhất, nên hai transaction giữ chỗ song song không thể cùng lấy quá số dư.
+     * Trả về 0 nghĩa là không đủ hàng (hoặc chưa có dòng số dư).
+     */
+
+    @Modifying
+    @Query(value = """
+            UPDATE reagent_balance SET
+                available_quantity = available_quantity - :quantity,
+                reserved_quantity = reserved_quantity + :quantity,
+                updated_at = now()
+            WHERE reagent_id = :reagentId AND available_quantity >= :quantity
+            """, nativeQuery = true)
+    int reserve(UUID reagentId, BigDecimal quantity);
+
+    @Modifying
+    @Query(value = """
+            UPDATE reagent_balance SET
+                available_quantity = available_quantity - :quantity,
+                total_used = total_used + :quantity,
+                updated_at = now()
+            WHERE reagent_id = :reagentId AND available_quantity >= :quantity
+            """, nativeQuery = true)
+    int consume(UUID reagentId, BigDecimal quantity);
+
+    // Reservation được xác nhận: phần đã giữ chỗ trở thành usage
+    @Modifying
+    @Query(value = """
+            UPDATE reagent_balance SET
+                reserved_quantity = reserved_quantity - :quantity,
+                total_used = total_used + :quantity,
+                updated_at = now()
+            WHERE reagent_id = :reagentId
+            """, nativeQuery = true)
+    int commitReserved(UUID reagentId, BigDecimal quantity);
+
+    // Reservation bị huỷ / hết hạn: trả phần đã giữ chỗ về available
+    @Modifying
+    @Query(value = """
+            UPDATE reagent_balance SET
+                reserved_quantity = reserved_quantity - :quantity,
+                available_quantity = available_quantity + :quantity,
+                updated_at = now()
+            WHERE reagent_id = :reagentId
+            """, nativeQuery = true)
+    int releaseReserved(UUID reagentId, BigDecimal quantity);
+
+    @Query("SELECT b.availableQuantity FROM ReagentBalance b WHERE b.reagentId = :reagentId")
+    Optional<BigDecimal> findAvailableQuantity(UUID reagentId);
+
+    @Query(value = "SELECT reagent_id FROM reagent_balance WHERE reagent_id = :reagentId FOR UPDATE", nativeQuery = true)
+    Optional<UUID> lockByReagentId(UUID reagentId);
+
+    /**
+     * Các reagent có số dư lệch với tổng ledger / reservation PENDING (hoặc chưa có dòng số dư),
+     * tính bằng một câu GROUP BY. Mỗi dòng chỉ cần reagent_id, giá trị đúng được tính lại dưới row lock.
+     */
+    @Query(value = """
+            SELECT r.reagent_id
+            FROM reagent r
+            LEFT JOIN (SELECT reagent_id, SUM(quantity) AS total
+                       FROM reagent_supply_history GROUP BY reagent_id) s ON s.reagent_id = r.reagent_id
+            LEFT JOIN (SELECT reagent_id, SUM(quantity_used) AS total
+                       FROM reagent_usage_history GROUP BY reagent_id) u ON u.reagent_id = r.reagent_id
+            LEFT JOIN (SELECT reagent_id, SUM(quantity) AS total
+                       FROM reagent_reservation WHERE status = 'PENDING' GROUP BY reagent_id) p ON p.reagent_id = r.reagent_id
+            LEFT JOIN reagent_balance b ON b.reagent_id = r.reagent_id
+            WHERE b.reagent_id IS NULL
+               OR b.total_supplied <> COALESCE(s.total, 0)
+               OR b.total_used <> COALESCE(u.total, 0)
+               OR b.reserved_quantity <> COALESCE(p.total, 0)
+               OR b.available_quantity <> b.total_supplied - b.total_used - b.reserved_quantity
+            """, nativeQuery = true)
+    List<UUID> findDriftedReagentIds();
+
+    @Modifying
+    @Query(value = "DELETE FROM reagent_balance b WHERE NOT EXISTS (SELECT 1 FROM reagent r WHERE r.reagent_id = b.reagent_id)",
+            nativeQuery = true)
+    int deleteOrphans();
+}
@@ -0,0 +1,31 @@
+package org.overcode250204.warehouseservice.repositories;
+
+import org.overcode250204.warehouseservice.model.entities.ReagentReservation;
+import org.overcode250204.warehouseservice.model.enums.ReservationStatus;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface ReagentReservationRepository extends JpaRepository<ReagentReservation, UUID> {
+
+    Optional<ReagentReservation> findByRequestEventId(UUID requestEventId);
+
+    List<ReagentReservation> findByStatusAndExpiresAtBefore(ReservationStatus status, LocalDateTime cutoff, Limit limit);
+
+    // Chuyển trạng thái có điều kiện: chỉ một trong confirm / release / expire thắng được cùng một reservation
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE ReagentReservation r SET r.status = :target, r.resolvedAt = :resolvedAt " +
+            "WHERE r.reservationId = :reservationId AND r.status = :expected")
+    int transition(UUID reservationId, ReservationStatus expected, ReservationStatus target, LocalDateTime resolvedAt);
+
+    @Query("SELECT COALESCE(SUM(r.quantity), 0) FROM ReagentReservation r " +
+            "WHERE r.reagentId = :reagentId AND r.status = org.overcode250204.warehouseservice.model.enums.ReservationStatus.PENDING")
+    BigDecimal sumPendingByReagentId(UUID reagentId);
+}
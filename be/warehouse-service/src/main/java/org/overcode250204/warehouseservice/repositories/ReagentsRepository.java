@@ -41,4 +41,44 @@ public interface ReagentsRepository extends JpaRepository<Reagent, UUID> {
     ORDER BY d.date
     """, nativeQuery = true)
     List<Object[]> getSupplyUsageTrendNative(int days);
+
+    /**
+     * Một trang catalog reagent kèm tồn kho, trong một câu SQL: trang reagent lấy theo keyset (reagent_id > :afterReagentId,
+     * dùng index primary key), số dư lấy từ reagent_balance, hạn dùng sớm nhất và tổng ledger được GROUP BY chỉ trên
+     * các reagent của trang. Tổng ledger chỉ dùng khi reagent chưa có dòng số dư.
+     *
+     * Cột: reagent_id, name, catalog_number, manufacturer, cas_number, created_by, updated_by, created_at, updated_at,
+     * total_quantity, available_quantity, expiration_date.
+     * offsetRows chỉ khác 0 cho kiểu phân trang page/size cũ.
+     */
+    @Query(value = """
+            WITH page AS (
+                SELECT reagent_id, name, catalog_number, manufacturer, cas_number,
+                       created_by, updated_by, created_at, updated_at
+                FROM reagent
+                WHERE reagent_id > :afterReagentId
+                ORDER BY reagent_id
+                OFFSET :offsetRows
+                LIMIT :limit
+            )
+            SELECT p.reagent_id, p.name, p.catalog_number, p.manufacturer, p.cas_number,
+                   p.created_by, p.updated_by, p.created_at, p.updated_at,
+                   COALESCE(b.total_supplied, s.total, 0) AS total_quantity,
+                   COALESCE(b.available_quantity, COALESCE(s.total, 0) - COALESCE(u.total, 0)) AS available_quantity,
+                   s.earliest_expiration AS expiration_date
+            FROM page p
+            LEFT JOIN reagent_balance b ON b.reagent_id = p.reagent_id
+            LEFT JOIN (SELECT reagent_id, SUM(quantity) AS total, MIN(expiration_date) AS earliest_expiration
+                       FROM reagent_supply_history
+                       WHERE reagent_id IN (SELECT reagent_id FROM page)
+                       GROUP BY reagent_id) s ON s.reagent_id = p.reagent_id
+            LEFT JOIN (SELECT reagent_id, SUM(quantity_used) AS total
+                       FROM reagent_usage_history
+                       WHERE reagent_id IN (SELECT page.reagent_id FROM page
+                                            LEFT JOIN reagent_balance pb ON pb.reagent_id = page.reagent_id
+                                            WHERE pb.reagent_id IS NULL)
+                       GROUP BY reagent_id) u ON u.reagent_id = p.reagent_id
+            ORDER BY p.reagent_id
+            """, nativeQuery = true)
+    List<Object[]> findCatalogPage(UUID afterReagentId, int offsetRows, int limit);
 }
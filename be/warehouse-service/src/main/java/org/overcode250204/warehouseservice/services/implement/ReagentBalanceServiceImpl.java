@@ -0,0 +1,177 @@
+package org.overcode250204.warehouseservice.services.implement;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.warehouseservice.model.entities.ReagentBalance;
+import org.overcode250204.warehouseservice.repositories.ReagentBalanceRepository;
+import org.overcode250204.warehouseservice.repositories.ReagentReservationRepository;
+import org.overcode250204.warehouseservice.repositories.ReagentSupplyHistoryRepository;
+import org.overcode250204.warehouseservice.repositories.ReagentUsageHistoryRepository;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentBalanceService;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Số dư tồn kho theo reagent (bảng reagent_balance).
+ *
+ * Mọi chỗ ghi supply / usage ledger gọi recordSupply / recordUsage trong cùng transaction (MANDATORY),
+ * nên số dư commit hoặc rollback cùng với ledger. Đọc số dư chỉ là một lần đọc theo primary key thay cho
+ * hai câu SUM trên ledger; reagent chưa có dòng số dư (dữ liệu cũ, chưa reconcile) thì vẫn tính từ ledger.
+ *
+ * tryReserve / tryConsume là decrement có điều kiện trên dòng số dư (xem ReagentBalanceRepository), thay cho
+ * kiểu "đọc available rồi mới ghi usage" vốn cho phép hai request song song cùng lấy quá tồn kho.
+ */
+@Service
+@Slf4j
+public class ReagentBalanceServiceImpl implements ReagentBalanceService {
+
+    private final ReagentBalanceRepository balanceRepository;
+    private final ReagentSupplyHistoryRepository supplyHistoryRepository;
+    private final ReagentUsageHistoryRepository usageHistoryRepository;
+    private final ReagentReservationRepository reservationRepository;
+    private final TransactionTemplate requiresNewTransaction;
+    private final Counter driftCounter;
+
+    public ReagentBalanceServiceImpl(ReagentBalanceRepository balanceRepository,
+                                     ReagentSupplyHistoryRepository supplyHistoryRepository,
+                                     ReagentUsageHistoryRepository usageHistoryRepository,
+                                     ReagentReservationRepository reservationRepository,
+                                     PlatformTransactionManager transactionManager,
+                                     MeterRegistry meterRegistry) {
+        this.balanceRepository = balanceRepository;
+        this.supplyHistoryRepository = supplyHistoryRepository;
+        this.usageHistoryRepository = usageHistoryRepository;
+        this.reservationRepository = reservationRepository;
+        this.requiresNewTransaction = new TransactionTemplate(transactionManager);
+        this.requiresNewTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.driftCounter = Counter.builder("warehouse.reagent.balance.drift")
+                .description("Reagent balances corrected by reconciliation")
+                .register(meterRegistry);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void recordSupply(UUID reagentId, BigDecimal quantity) {
+        balanceRepository.applyDelta(reagentId, quantity, BigDecimal.ZERO);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void recordUsage(UUID reagentId, BigDecimal quantityUsed) {
+        // quantityUsed âm khi uninstall trả hàng về kho
+        balanceRepository.applyDelta(reagentId, BigDecimal.ZERO, quantityUsed);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public boolean tryReserve(UUID reagentId, BigDecimal quantity) {
+        if (balanceRepository.reserve(reagentId, quantity) == 1) {
+            return true;
+        }
+        // Có thể reagent chưa có dòng số dư (dữ liệu cũ): tạo từ ledger rồi thử lại đúng một lần
+        balanceRepository.insertFromLedgerIfMissing(reagentId);
+        return balanceRepository.reserve(reagentId, quantity) == 1;
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public boolean tryConsume(UUID reagentId, BigDecimal quantity) {
+        if (balanceRepository.consume(reagentId, quantity) == 1) {
+            return true;
+        }
+        balanceRepository.insertFromLedgerIfMissing(reagentId);
+        return balanceRepository.consume(reagentId, quantity) == 1;
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void commitReservation(UUID reagentId, BigDecimal quantity) {
+        balanceRepository.commitReserved(reagentId, quantity);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void releaseReservation(UUID reagentId, BigDecimal quantity) {
+        balanceRepository.releaseReserved(reagentId, quantity);
+    }
+
+    @Override
+    public BigDecimal getAvailableQuantity(UUID reagentId) {
+        return balanceRepository.findAvailableQuantity(reagentId)
+                .orElseGet(() -> fromLedger(reagentId).getAvailableQuantity());
+    }
+
+    @Override
+    public ReagentBalance getBalance(UUID reagentId) {
+        return balanceRepository.findById(reagentId).orElseGet(() -> fromLedger(reagentId));
+    }
+
+    /**
+     * Bước 1: một câu GROUP BY tìm các reagent có số dư lệch (không lock gì).
+     * Bước 2: với từng reagent nghi lệch, lock dòng số dư rồi tính lại tổng ledger trong transaction riêng.
+     * Transaction ghi ledger luôn cập nhật dòng số dư trước khi commit, nên khi đang giữ lock thì ledger
+     * đã commit và số dư khớp nhau; nếu vẫn lệch thì đó là lệch thật và được ghi đè bằng tổng ledger.
+     */
+    @Override
+    public int reconcile() {
+        List<UUID> candidates = balanceRepository.findDriftedReagentIds();
+        int corrected = 0;
+        for (UUID reagentId : candidates) {
+            Boolean fixed = requiresNewTransaction.execute(status -> reconcileOne(reagentId));
+            if (Boolean.TRUE.equals(fixed)) {
+                corrected++;
+            }
+        }
+        Integer orphans = requiresNewTransaction.execute(status -> balanceRepository.deleteOrphans());
+        if (corrected > 0 || (orphans != null && orphans > 0)) {
+            log.warn("[ReagentBalance] Reconciliation corrected {} balances, removed {} orphan rows", corrected, orphans);
+        }
+        return corrected;
+    }
+
+    private boolean reconcileOne(UUID reagentId) {
+        boolean exists = balanceRepository.lockByReagentId(reagentId).isPresent();
+        ReagentBalance expected = fromLedger(reagentId);
+        ReagentBalance current = exists ? balanceRepository.findById(reagentId).orElse(null) : null;
+        if (current != null
+                && current.getTotalSupplied().compareTo(expected.getTotalSupplied()) == 0
+                && current.getTotalUsed().compareTo(expected.getTotalUsed()) == 0
+                && current.getReservedQuantity().compareTo(expected.getReservedQuantity()) == 0
+                && current.getAvailableQuantity().compareTo(expected.getAvailableQuantity()) == 0) {
+            return false;
+        }
+        if (current != null) {
+            driftCounter.increment();
+            log.warn("[ReagentBalance] Drift for reagent {}: balance available={} ledger available={}",
+                    reagentId, current.getAvailableQuantity(), expected.getAvailableQuantity());
+        }
+        balanceRepository.overwrite(reagentId, expected.getTotalSupplied(), expected.getTotalUsed(), expected.getReservedQuantity());
+        return true;
+    }
+
+    private ReagentBalance fromLedger(UUID reagentId) {
+        BigDecimal totalSupply = supplyHistoryRepository.calculateTotalSupplyByReagentId(reagentId);
+        BigDecimal totalUsage = usageHistoryRepository.calculateTotalUsageByReagentId(reagentId);
+        if (totalSupply == null) totalSupply = BigDecimal.ZERO;
+        if (totalUsage == null) totalUsage = BigDecimal.ZERO;
+        BigDecimal reserved = reservationRepository.sumPendingByReagentId(reagentId);
+        return ReagentBalance.builder()
+                .reagentId(reagentId)
+                .totalSupplied(totalSupply)
+                .totalUsed(totalUsage)
+                .reservedQuantity(reserved)
+                .availableQuantity(totalSupply.subtract(totalUsage).subtract(reserved))
+                .updatedAt(LocalDateTime.now())
+                .build();
+    }
+}
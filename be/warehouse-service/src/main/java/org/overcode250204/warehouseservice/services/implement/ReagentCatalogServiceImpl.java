@@ -0,0 +1,113 @@
+package org.overcode250204.warehouseservice.services.implement;
+
+import lombok.RequiredArgsConstructor;
+import org.overcode250204.warehouseservice.model.dto.reagent.ReagentCatalogItem;
+import org.overcode250204.warehouseservice.model.dto.reagent.ReagentCatalogPage;
+import org.overcode250204.warehouseservice.repositories.ReagentsRepository;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentCatalogService;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Catalog reagent kèm tồn kho cho gRPC ListReagents / StreamReagentCatalog.
+ *
+ * Mỗi trang là một câu SQL (ReagentsRepository.findCatalogPage) thay cho findAll + 3 câu query cho từng reagent.
+ * Phân trang theo keyset trên reagent_id: pageToken là reagentId cuối của trang trước (base64url), nên trang sau
+ * không phải bỏ qua các dòng phía trước như OFFSET và không lệch khi có reagent mới được thêm vào giữa chừng.
+ */
+@Service
+@RequiredArgsConstructor
+public class ReagentCatalogServiceImpl implements ReagentCatalogService {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 500;
+
+    // reagent_id > UUID 0 là toàn bộ bảng; tránh truyền null (Postgres không suy ra được kiểu của tham số null)
+    private static final UUID START = new UUID(0L, 0L);
+
+    private final ReagentsRepository reagentsRepository;
+
+    @Override
+    public ReagentCatalogPage listPage(String pageToken, int page, int size) {
+        int limit = size <= 0 ? DEFAULT_PAGE_SIZE : Math.min(size, MAX_PAGE_SIZE);
+        UUID after = START;
+        int offset = 0;
+        if (pageToken != null && !pageToken.isEmpty()) {
+            after = decodeToken(pageToken);
+        } else if (page > 0) {
+            offset = Math.multiplyExact(page, limit);
+        }
+
+        // Lấy dư một dòng để biết còn trang sau hay không
+        List<ReagentCatalogItem> rows = map(reagentsRepository.findCatalogPage(after, offset, limit + 1));
+        if (rows.size() <= limit) {
+            return new ReagentCatalogPage(rows, null);
+        }
+        List<ReagentCatalogItem> items = rows.subList(0, limit);
+        return new ReagentCatalogPage(items, encodeToken(items.get(limit - 1).getReagentId()));
+    }
+
+    @Override
+    public List<ReagentCatalogItem> findAfter(UUID afterReagentId, int limit) {
+        return map(reagentsRepository.findCatalogPage(afterReagentId != null ? afterReagentId : START, 0, limit));
+    }
+
+    static String encodeToken(UUID reagentId) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(reagentId.getMostSignificantBits()).putLong(reagentId.getLeastSignificantBits());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    static UUID decodeToken(String token) {
+        byte[] bytes = Base64.getUrlDecoder().decode(token);
+        if (bytes.length != 16) {
+            throw new IllegalArgumentException("Invalid page token");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static List<ReagentCatalogItem> map(List<Object[]> rows) {
+        return rows.stream()
+                .map(r -> ReagentCatalogItem.builder()
+                        .reagentId((UUID) r[0])
+                        .name((String) r[1])
+                        .catalogNumber((String) r[2])
+                        .manufacturer((String) r[3])
+                        .casNumber((String) r[4])
+                        .createdBy((UUID) r[5])
+                        .updatedBy((UUID) r[6])
+                        .createdAt(toLocalDateTime(r[7]))
+                        .updatedAt(toLocalDateTime(r[8]))
+                        .totalQuantity(toBigDecimal(r[9]))
+                        .availableQuantity(toBigDecimal(r[10]))
+                        .expirationDate(toLocalDate(r[11]))
+                        .build())
+                .toList();
+    }
+
+    // Kiểu trả về của native query tuỳ phiên bản Hibernate / driver (java.sql.* hoặc java.time.*)
+    private static LocalDateTime toLocalDateTime(Object value) {
+        if (value instanceof Timestamp timestamp) return timestamp.toLocalDateTime();
+        return (LocalDateTime) value;
+    }
+
+    private static LocalDate toLocalDate(Object value) {
+        if (value instanceof Date date) return date.toLocalDate();
+        return (LocalDate) value;
+    }
+
+    private static BigDecimal toBigDecimal(Object value) {
+        if (value == null) return null;
+        return value instanceof BigDecimal decimal ? decimal : new BigDecimal(value.toString());
+    }
+}
@@ -6,9 +6,10 @@ import org.overcode250204.warehouseservice.exceptions.WarehouseException;
 import org.overcode250204.warehouseservice.model.entities.Reagent;
 import org.overcode250204.warehouseservice.model.entities.ReagentUsageHistory;
 import org.overcode250204.warehouseservice.repositories.ReagentsRepository;
-import org.overcode250204.warehouseservice.repositories.ReagentSupplyHistoryRepository;
 import org.overcode250204.warehouseservice.repositories.ReagentUsageHistoryRepository;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentBalanceService;
 import org.overcode250204.warehouseservice.services.interfaces.ReagentInventoryService;
+import org.overcode250204.warehouseservice.utils.TransactionRetryExecutor;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
@@ -21,48 +22,41 @@ import java.util.UUID;
 public class ReagentInventoryServiceImpl implements ReagentInventoryService {
 
     private final ReagentsRepository reagentsRepository;
-    private final ReagentSupplyHistoryRepository supplyHistoryRepository;
     private final ReagentUsageHistoryRepository usageHistoryRepository;
+    private final ReagentBalanceService reagentBalanceService;
+    private final TransactionRetryExecutor retryExecutor;
 
+    /**
+     * Trừ tồn kho có điều kiện (ReagentBalanceService.tryConsume) rồi mới ghi usage, trong transaction có retry
+     * khi xung đột đồng thời; không còn khoảng hở giữa bước đọc số dư và bước ghi usage.
+     */
     @Override
     public boolean consumeReagentForInstrument(UUID reagentId, BigDecimal quantityRequested, UUID instrumentId, String installedBy) {
-        Optional<Reagent> found = reagentsRepository.findById(reagentId);
-        if (found.isEmpty()) {
-            throw new WarehouseException(ErrorCode.REAGENT_NOT_FOUND);
-        }
-
-        Reagent reagent = found.get();
-        BigDecimal totalSupply = supplyHistoryRepository.calculateTotalSupplyByReagentId(reagentId);
-        BigDecimal totalUsage = usageHistoryRepository.calculateTotalUsageByReagentId(reagentId);
-
-        if (totalSupply == null) totalSupply = BigDecimal.ZERO;
-        if (totalUsage == null) totalUsage = BigDecimal.ZERO;
-
-        BigDecimal availableQuantity = totalSupply.subtract(totalUsage);
-
-        if (availableQuantity.compareTo(quantityRequested) < 0) return false;
-
-        ReagentUsageHistory usage = ReagentUsageHistory.builder()
-                .reagent(reagent)
-                .quantityUsed(quantityRequested)
-                .usageDate(LocalDateTime.now())
-                .usedBy(installedBy)
-                .action("INSTALL")
-                .note("Installed on instrument " + instrumentId)
-                .build();
-
-        usageHistoryRepository.save(usage);
-        reagentsRepository.save(reagent);
-
-        return true;
+        return Boolean.TRUE.equals(retryExecutor.execute(status -> {
+            Optional<Reagent> found = reagentsRepository.findById(reagentId);
+            if (found.isEmpty()) {
+                throw new WarehouseException(ErrorCode.REAGENT_NOT_FOUND);
+            }
+
+            Reagent reagent = found.get();
+            if (!reagentBalanceService.tryConsume(reagentId, quantityRequested)) return false;
+
+            ReagentUsageHistory usage = ReagentUsageHistory.builder()
+                    .reagent(reagent)
+                    .quantityUsed(quantityRequested)
+                    .usageDate(LocalDateTime.now())
+                    .usedBy(installedBy)
+                    .action("INSTALL")
+                    .note("Installed on instrument " + instrumentId)
+                    .build();
+
+            usageHistoryRepository.save(usage);
+            return true;
+        }));
     }
 
     @Override
     public BigDecimal getAvailableQuantity(UUID reagentId) {
-        BigDecimal totalSupply = supplyHistoryRepository.calculateTotalSupplyByReagentId(reagentId);
-        BigDecimal totalUsage = usageHistoryRepository.calculateTotalUsageByReagentId(reagentId);
-        if (totalSupply == null) totalSupply = BigDecimal.ZERO;
-        if (totalUsage == null) totalUsage = BigDecimal.ZERO;
-        return totalSupply.subtract(totalUsage);
+        return reagentBalanceService.getAvailableQuantity(reagentId);
     }
 }
@@ -0,0 +1,174 @@
+package org.overcode250204.warehouseservice.services.implement;
+
+import lombok.extern.slf4j.Slf4j;
+import org.overcode250204.warehouseservice.model.entities.ReagentReservation;
+import org.overcode250204.warehouseservice.model.entities.ReagentUsageHistory;
+import org.overcode250204.warehouseservice.model.enums.ReservationStatus;
+import org.overcode250204.warehouseservice.repositories.ReagentReservationRepository;
+import org.overcode250204.warehouseservice.repositories.ReagentUsageHistoryRepository;
+import org.overcode250204.warehouseservice.repositories.ReagentsRepository;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentBalanceService;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentReservationService;
+import org.overcode250204.warehouseservice.utils.TransactionRetryExecutor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Giữ chỗ reagent cho yêu cầu install từ instrument.
+ *
+ * reserve trừ available_quantity có điều kiện trên dòng reagent_balance (xem ReagentBalanceService.tryReserve),
+ * nên nhiều instrument install song song không thể lấy quá tồn kho. Phần giữ chỗ nằm ở trạng thái PENDING
+ * cho tới khi instrument gửi xác nhận (confirm → ghi usage ledger) hoặc hết TTL (releaseExpired → trả lại kho).
+ * Mọi chuyển trạng thái là UPDATE có điều kiện trên status, nên confirm và expire chạy đua cũng chỉ một bên thắng.
+ */
+@Service
+@Slf4j
+public class ReagentReservationServiceImpl implements ReagentReservationService {
+
+    private static final int EXPIRY_BATCH_SIZE = 200;
+
+    private final ReagentReservationRepository reservationRepository;
+    private final ReagentUsageHistoryRepository usageHistoryRepository;
+    private final ReagentsRepository reagentsRepository;
+    private final ReagentBalanceService reagentBalanceService;
+    private final TransactionRetryExecutor retryExecutor;
+    private final Duration ttl;
+
+    public ReagentReservationServiceImpl(ReagentReservationRepository reservationRepository,
+                                         ReagentUsageHistoryRepository usageHistoryRepository,
+                                         ReagentsRepository reagentsRepository,
+                                         ReagentBalanceService reagentBalanceService,
+                                         TransactionRetryExecutor retryExecutor,
+                                         @Value("${app.reservation.ttl:PT30M}") Duration ttl) {
+        this.reservationRepository = reservationRepository;
+        this.usageHistoryRepository = usageHistoryRepository;
+        this.reagentsRepository = reagentsRepository;
+        this.reagentBalanceService = reagentBalanceService;
+        this.retryExecutor = retryExecutor;
+        this.ttl = ttl;
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Optional<ReagentReservation> reserve(UUID reagentId, BigDecimal quantity, UUID instrumentId,
+                                                String requestedBy, UUID requestEventId) {
+        if (requestEventId != null) {
+            Optional<ReagentReservation> existing = reservationRepository.findByRequestEventId(requestEventId);
+            if (existing.isPresent()) {
+                return existing;
+            }
+        }
+        if (!reagentBalanceService.tryReserve(reagentId, quantity)) {
+            return Optional.empty();
+        }
+        LocalDateTime now = LocalDateTime.now();
+        ReagentReservation reservation = ReagentReservation.builder()
+                .reagentId(reagentId)
+                .instrumentId(instrumentId)
+                .quantity(quantity)
+                .status(ReservationStatus.PENDING)
+                .requestedBy(requestedBy)
+                .requestEventId(requestEventId)
+                .createdAt(now)
+                .expiresAt(now.plus(ttl))
+                .build();
+        return Optional.of(reservationRepository.save(reservation));
+    }
+
+    @Override
+    public boolean confirm(UUID reservationId, String confirmedBy) {
+        return Boolean.TRUE.equals(retryExecutor.execute(status -> confirmInTransaction(reservationId, confirmedBy)));
+    }
+
+    private boolean confirmInTransaction(UUID reservationId, String confirmedBy) {
+        Optional<ReagentReservation> found = reservationRepository.findById(reservationId);
+        if (found.isEmpty()) {
+            log.warn("[Reservation] Confirm for unknown reservation {}", reservationId);
+            return false;
+        }
+        ReagentReservation reservation = found.get();
+        LocalDateTime now = LocalDateTime.now();
+
+        if (reservationRepository.transition(reservationId, ReservationStatus.PENDING, ReservationStatus.CONFIRMED, now) == 1) {
+            reagentBalanceService.commitReservation(reservation.getReagentId(), reservation.getQuantity());
+        } else if (currentStatus(reservationId) == ReservationStatus.EXPIRED) {
+            // Xác nhận tới sau khi đã hết hạn: hàng đã trả về kho, phải lấy lại có điều kiện
+            if (!reagentBalanceService.tryConsume(reservation.getReagentId(), reservation.getQuantity())) {
+                log.error("[Reservation] Late confirm for expired reservation {} but reagent {} no longer has {} available",
+                        reservationId, reservation.getReagentId(), reservation.getQuantity());
+                return false;
+            }
+            if (reservationRepository.transition(reservationId, ReservationStatus.EXPIRED, ReservationStatus.CONFIRMED, now) == 0) {
+                // confirm trùng chạy song song đã xử lý trước; rollback lần consume vừa rồi
+                throw new IllegalStateException("Reservation " + reservationId + " changed concurrently");
+            }
+            log.warn("[Reservation] Late confirm for expired reservation {} consumed stock again", reservationId);
+        } else {
+            ReservationStatus status = currentStatus(reservationId);
+            log.info("[Reservation] Reservation {} already {}, ignoring confirm", reservationId, status);
+            return status == ReservationStatus.CONFIRMED;
+        }
+
+        ReagentUsageHistory usage = ReagentUsageHistory.builder()
+                .reagent(reagentsRepository.getReferenceById(reservation.getReagentId()))
+                .quantityUsed(reservation.getQuantity())
+                .usageDate(now)
+                .usedBy(confirmedBy != null ? confirmedBy : reservation.getRequestedBy())
+                .action("INSTALL")
+                .note("Installed on instrument " + reservation.getInstrumentId())
+                .build();
+        usageHistoryRepository.save(usage);
+        return true;
+    }
+
+    // transition xoá persistence context, đọc lại để thấy trạng thái mà transaction khác vừa commit
+    private ReservationStatus currentStatus(UUID reservationId) {
+        return reservationRepository.findById(reservationId).map(ReagentReservation::getStatus).orElse(null);
+    }
+
+    @Override
+    public boolean release(UUID reservationId) {
+        return Boolean.TRUE.equals(retryExecutor.execute(status -> releaseInTransaction(reservationId, ReservationStatus.RELEASED)));
+    }
+
+    @Override
+    public int releaseExpired() {
+        int released = 0;
+        List<ReagentReservation> batch;
+        do {
+            batch = reservationRepository.findByStatusAndExpiresAtBefore(
+                    ReservationStatus.PENDING, LocalDateTime.now(), Limit.of(EXPIRY_BATCH_SIZE));
+            for (ReagentReservation reservation : batch) {
+                // Mỗi reservation một transaction riêng để lock dòng số dư ngắn nhất có thể
+                if (Boolean.TRUE.equals(retryExecutor.execute(
+                        status -> releaseInTransaction(reservation.getReservationId(), ReservationStatus.EXPIRED)))) {
+                    released++;
+                }
+            }
+        } while (batch.size() == EXPIRY_BATCH_SIZE);
+        return released;
+    }
+
+    private boolean releaseInTransaction(UUID reservationId, ReservationStatus target) {
+        Optional<ReagentReservation> found = reservationRepository.findById(reservationId);
+        if (found.isEmpty()) {
+            return false;
+        }
+        ReagentReservation reservation = found.get();
+        if (reservationRepository.transition(reservationId, ReservationStatus.PENDING, target, LocalDateTime.now()) == 0) {
+            return false;
+        }
+        reagentBalanceService.releaseReservation(reservation.getReagentId(), reservation.getQuantity());
+        return true;
+    }
+}
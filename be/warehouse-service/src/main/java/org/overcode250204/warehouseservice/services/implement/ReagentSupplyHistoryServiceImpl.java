@@ -11,9 +11,11 @@ import org.overcode250204.warehouseservice.model.entities.Vendor;
 import org.overcode250204.warehouseservice.repositories.ReagentSupplyHistoryRepository;
 import org.overcode250204.warehouseservice.repositories.ReagentsRepository;
 import org.overcode250204.warehouseservice.repositories.VendorRepository;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentBalanceService;
 import org.overcode250204.warehouseservice.services.interfaces.ReagentSupplyHistoryService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.List;
@@ -34,12 +36,15 @@ public class ReagentSupplyHistoryServiceImpl implements ReagentSupplyHistoryServ
     private VendorRepository vendorRepository;
     @Autowired
     private MonitoringEventPublisher monitoringEventPublisher;
+    @Autowired
+    private ReagentBalanceService reagentBalanceService;
 
 
     //
 
 
     @Override
+    @Transactional
     public ReagentSupplyHistoryResponse createReagentSupply(ReagentSupplyHistoryRequest request, UUID receivedBy) {
         if (request == null) {
             throw new WarehouseException(ErrorCode.INVALID_REQUEST);
@@ -70,6 +75,7 @@ public class ReagentSupplyHistoryServiceImpl implements ReagentSupplyHistoryServ
 
         //Lưu xuống DB trước để có ID
         ReagentSupplyHistory savedSupply = reagentSupplyRepository.save(newSupply);
+        reagentBalanceService.recordSupply(reagent.getReagentId(), savedSupply.getQuantity());
 
         monitoringEventPublisher.publishEvent("reagent", savedSupply.getReagent().getReagentId().toString(), "REAGENT_SUPPLY_ADDED",
                 Map.of("supplyId", savedSupply.getSupplyId().toString(),
@@ -7,8 +7,10 @@ import org.overcode250204.warehouseservice.model.dto.reagent.ReagentUsageRespons
 import org.overcode250204.warehouseservice.model.entities.ReagentUsageHistory;
 import org.overcode250204.warehouseservice.repositories.ReagentUsageHistoryRepository;
 import org.overcode250204.warehouseservice.repositories.ReagentsRepository;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentBalanceService;
 import org.overcode250204.warehouseservice.services.interfaces.ReagentUsageHistoryService;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 import java.util.UUID;
@@ -20,6 +22,7 @@ public class ReagentUsageHistoryServiceImpl implements ReagentUsageHistoryServic
 
     private final ReagentUsageHistoryRepository usageRepo;
     private final ReagentsRepository reagentRepo;
+    private final ReagentBalanceService reagentBalanceService;
 
     // Lấy ra tất cả lịch sử
     @Override
@@ -52,11 +55,13 @@ public class ReagentUsageHistoryServiceImpl implements ReagentUsageHistoryServic
 
     // Xóa lịch sử của 1 loại thuốc
     @Override
+    @Transactional
     public void deleteUsageHistory(UUID usageId) {
-        if (!usageRepo.existsById(usageId)) {
-            throw new WarehouseException(ErrorCode.CONFIG_NOT_FOUND); // Có thể tạo ErrorCode riêng như USAGE_HISTORY_NOT_FOUND nếu muốn rõ hơn
-        }
-        usageRepo.deleteById(usageId);
+        ReagentUsageHistory usage = usageRepo.findById(usageId)
+                .orElseThrow(() -> new WarehouseException(ErrorCode.CONFIG_NOT_FOUND)); // Có thể tạo ErrorCode riêng như USAGE_HISTORY_NOT_FOUND nếu muốn rõ hơn
+        usageRepo.delete(usage);
+        // Xoá một dòng usage thì số lượng đó quay lại số dư
+        reagentBalanceService.recordUsage(usage.getReagent().getReagentId(), usage.getQuantityUsed().negate());
     }
 
     private ReagentUsageResponse toResponse(ReagentUsageHistory entity) {
@@ -0,0 +1,24 @@
+package org.overcode250204.warehouseservice.services.interfaces;
+
+import org.overcode250204.warehouseservice.model.entities.ReagentBalance;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+public interface ReagentBalanceService {
+    // Phải gọi trong transaction đang ghi ledger tương ứng
+    void recordSupply(UUID reagentId, BigDecimal quantity);
+    void recordUsage(UUID reagentId, BigDecimal quantityUsed);
+
+    // Trừ available có điều kiện; false nếu không đủ hàng. Cũng phải gọi trong transaction
+    boolean tryReserve(UUID reagentId, BigDecimal quantity);
+    boolean tryConsume(UUID reagentId, BigDecimal quantity);
+    void commitReservation(UUID reagentId, BigDecimal quantity);
+    void releaseReservation(UUID reagentId, BigDecimal quantity);
+
+    BigDecimal getAvailableQuantity(UUID reagentId);
+    ReagentBalance getBalance(UUID reagentId);
+
+    // Đối chiếu số dư với tổng ledger và reservation PENDING, sửa các reagent bị lệch; trả về số reagent đã sửa
+    int reconcile();
+}
@@ -0,0 +1,15 @@
+package org.overcode250204.warehouseservice.services.interfaces;
+
+import org.overcode250204.warehouseservice.model.dto.reagent.ReagentCatalogItem;
+import org.overcode250204.warehouseservice.model.dto.reagent.ReagentCatalogPage;
+
+import java.util.List;
+import java.util.UUID;
+
+public interface ReagentCatalogService {
+    // pageToken rỗng thì dùng page (offset, kiểu cũ); IllegalArgumentException nếu pageToken không hợp lệ
+    ReagentCatalogPage listPage(String pageToken, int page, int size);
+
+    // Tối đa limit reagent có reagentId > afterReagentId (null = từ đầu), theo thứ tự reagentId
+    List<ReagentCatalogItem> findAfter(UUID afterReagentId, int limit);
+}
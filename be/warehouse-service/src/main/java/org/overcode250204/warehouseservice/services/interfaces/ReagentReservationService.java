@@ -0,0 +1,21 @@
+package org.overcode250204.warehouseservice.services.interfaces;
+
+import org.overcode250204.warehouseservice.model.entities.ReagentReservation;
+
+import java.math.BigDecimal;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface ReagentReservationService {
+    // Giữ chỗ trong transaction hiện tại; empty nếu không đủ hàng. Cùng requestEventId thì trả lại reservation cũ
+    Optional<ReagentReservation> reserve(UUID reagentId, BigDecimal quantity, UUID instrumentId, String requestedBy, UUID requestEventId);
+
+    // Instrument xác nhận đã install: phần giữ chỗ chuyển thành usage ledger
+    boolean confirm(UUID reservationId, String confirmedBy);
+
+    // Huỷ giữ chỗ, trả hàng về available
+    boolean release(UUID reservationId);
+
+    // Trả hàng của các reservation PENDING đã quá hạn; trả về số reservation đã xử lý
+    int releaseExpired();
+}
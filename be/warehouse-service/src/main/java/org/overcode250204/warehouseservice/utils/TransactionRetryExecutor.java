@@ -0,0 +1,66 @@
+package org.overcode250204.warehouseservice.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chạy một đoạn code trong transaction mới, retry khi DB báo xung đột đồng thời
+ * (deadlock, serialization failure, lock timeout → ConcurrencyFailureException).
+ *
+ * Backoff tăng gấp đôi sau mỗi lần, có giới hạn trên và jitter để các request đụng nhau không retry cùng lúc.
+ * Hết số lần thử thì ném lại exception cuối cùng.
+ */
+@Component
+@Slf4j
+public class TransactionRetryExecutor {
+
+    private final TransactionTemplate transactionTemplate;
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+
+    public TransactionRetryExecutor(PlatformTransactionManager transactionManager,
+                                    @Value("${app.reservation.retry.max-attempts:5}") int maxAttempts,
+                                    @Value("${app.reservation.retry.initial-backoff-ms:20}") long initialBackoffMs,
+                                    @Value("${app.reservation.retry.max-backoff-ms:500}") long maxBackoffMs) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    public <T> T execute(TransactionCallback<T> action) {
+        long backoff = initialBackoffMs;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transactionTemplate.execute(action);
+            } catch (ConcurrencyFailureException e) {
+                if (attempt >= maxAttempts) {
+                    log.error("[TxRetry] Giving up after {} attempts: {}", attempt, e.getMessage());
+                    throw e;
+                }
+                long sleep = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                log.warn("[TxRetry] Concurrency conflict on attempt {} ({}), retrying in {} ms",
+                        attempt, e.getClass().getSimpleName(), sleep);
+                pause(sleep);
+                backoff = Math.min(backoff * 2, maxBackoffMs);
+            }
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to retry transaction", e);
+        }
+    }
+}
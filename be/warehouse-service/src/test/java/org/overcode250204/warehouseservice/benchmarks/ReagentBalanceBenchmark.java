@@ -0,0 +1,145 @@
+package org.overcode250204.warehouseservice.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * So sánh cách tính tồn kho cũ (hai câu SUM trên supply / usage ledger) với một lần đọc reagent_balance
+ * theo primary key, khi ledger lớn dần.
+ *
+ * Cần một Postgres trống để seed dữ liệu (benchmark tạo và xoá schema riêng "reagent_balance_bench").
+ * Thông tin kết nối đọc từ biến môi trường (JVM fork của JMH kế thừa được, khác với -D truyền cho Maven):
+ *   BENCH_JDBC_URL=jdbc:postgresql://localhost:5432/warehouse BENCH_JDBC_USER=postgres BENCH_JDBC_PASSWORD=postgres
+ *       mvn -Pjmh test-compile exec:exec -Djmh.include=ReagentBalanceBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReagentBalanceBenchmark {
+    private static final String SCHEMA = "reagent_balance_bench";
+    private static final int REAGENTS = 50;
+
+    // Số dòng ledger (supply + usage) của mỗi reagent
+    @Param({"100", "1000", "10000"})
+    private int ledgerRowsPerReagent;
+
+    private Connection connection;
+    private PreparedStatement supplySum;
+    private PreparedStatement usageSum;
+    private PreparedStatement balanceRead;
+    private UUID[] reagentIds;
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection(jdbcProperty("url"), jdbcProperty("user"), jdbcProperty("password"));
+        try (Statement ddl = connection.createStatement()) {
+            ddl.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+            ddl.execute("CREATE SCHEMA " + SCHEMA);
+            // Giống schema Hibernate sinh ra: không có index trên reagent_id của ledger
+            ddl.execute("CREATE TABLE " + SCHEMA + ".reagent_supply_history (supply_id uuid PRIMARY KEY, reagent_id uuid NOT NULL, quantity numeric(10,2) NOT NULL)");
+            ddl.execute("CREATE TABLE " + SCHEMA + ".reagent_usage_history (usage_id uuid PRIMARY KEY, reagent_id uuid NOT NULL, quantity_used numeric(19,6) NOT NULL)");
+            ddl.execute("CREATE TABLE " + SCHEMA + ".reagent_balance (reagent_id uuid PRIMARY KEY, total_supplied numeric(19,6) NOT NULL, "
+                    + "total_used numeric(19,6) NOT NULL, available_quantity numeric(19,6) NOT NULL, updated_at timestamp NOT NULL)");
+        }
+        seed();
+        try (Statement analyze = connection.createStatement()) {
+            analyze.execute("ANALYZE " + SCHEMA + ".reagent_supply_history");
+            analyze.execute("ANALYZE " + SCHEMA + ".reagent_usage_history");
+            analyze.execute("ANALYZE " + SCHEMA + ".reagent_balance");
+        }
+
+        supplySum = connection.prepareStatement("SELECT COALESCE(SUM(quantity), 0) FROM " + SCHEMA + ".reagent_supply_history WHERE reagent_id = ?");
+        usageSum = connection.prepareStatement("SELECT COALESCE(SUM(quantity_used), 0) FROM " + SCHEMA + ".reagent_usage_history WHERE reagent_id = ?");
+        balanceRead = connection.prepareStatement("SELECT available_quantity FROM " + SCHEMA + ".reagent_balance WHERE reagent_id = ?");
+    }
+
+    private void seed() throws SQLException {
+        reagentIds = new UUID[REAGENTS];
+        connection.setAutoCommit(false);
+        try (PreparedStatement supply = connection.prepareStatement("INSERT INTO " + SCHEMA + ".reagent_supply_history VALUES (?, ?, ?)");
+             PreparedStatement usage = connection.prepareStatement("INSERT INTO " + SCHEMA + ".reagent_usage_history VALUES (?, ?, ?)");
+             PreparedStatement balance = connection.prepareStatement("INSERT INTO " + SCHEMA + ".reagent_balance VALUES (?, ?, ?, ?, now())")) {
+            for (int r = 0; r < REAGENTS; r++) {
+                UUID reagentId = UUID.randomUUID();
+                reagentIds[r] = reagentId;
+                BigDecimal supplied = BigDecimal.ZERO;
+                BigDecimal used = BigDecimal.ZERO;
+                for (int i = 0; i < ledgerRowsPerReagent; i++) {
+                    if (i % 4 == 0) {
+                        BigDecimal quantity = BigDecimal.valueOf(100 + random.nextInt(400));
+                        supply.setObject(1, UUID.randomUUID());
+                        supply.setObject(2, reagentId);
+                        supply.setBigDecimal(3, quantity);
+                        supply.addBatch();
+                        supplied = supplied.add(quantity);
+                    } else {
+                        BigDecimal quantity = BigDecimal.valueOf(1 + random.nextInt(20));
+                        usage.setObject(1, UUID.randomUUID());
+                        usage.setObject(2, reagentId);
+                        usage.setBigDecimal(3, quantity);
+                        usage.addBatch();
+                        used = used.add(quantity);
+                    }
+                }
+                supply.executeBatch();
+                usage.executeBatch();
+                balance.setObject(1, reagentId);
+                balance.setBigDecimal(2, supplied);
+                balance.setBigDecimal(3, used);
+                balance.setBigDecimal(4, supplied.subtract(used));
+                balance.executeUpdate();
+            }
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        try (Statement ddl = connection.createStatement()) {
+            ddl.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+        }
+        connection.close();
+    }
+
+    @Benchmark
+    public void ledgerSums(Blackhole blackhole) throws SQLException {
+        UUID reagentId = reagentIds[random.nextInt(REAGENTS)];
+        BigDecimal supplied = scalar(supplySum, reagentId);
+        BigDecimal used = scalar(usageSum, reagentId);
+        blackhole.consume(supplied.subtract(used));
+    }
+
+    @Benchmark
+    public void balancePrimaryKeyRead(Blackhole blackhole) throws SQLException {
+        blackhole.consume(scalar(balanceRead, reagentIds[random.nextInt(REAGENTS)]));
+    }
+
+    private static BigDecimal scalar(PreparedStatement statement, UUID reagentId) throws SQLException {
+        statement.setObject(1, reagentId);
+        try (ResultSet rs = statement.executeQuery()) {
+            rs.next();
+            return rs.getBigDecimal(1);
+        }
+    }
+
+    private static String jdbcProperty(String name) {
+        String fallback = switch (name) {
+            case "url" -> "jdbc:postgresql://localhost:5432/warehouse";
+            default -> "postgres";
+        };
+        String value = System.getenv("BENCH_JDBC_" + name.toUpperCase());
+        return value != null ? value : fallback;
+    }
+}
@@ -0,0 +1,262 @@
+package org.overcode250204.warehouseservice.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * So sánh ListReagents cũ (findAll rồi 3 câu query cho từng reagent) với câu catalog GROUP BY phân trang keyset
+ * (cùng câu SQL với ReagentsRepository.findCatalogPage) trên catalog 10k reagent.
+ *
+ * Cần một Postgres trống để seed dữ liệu (benchmark tạo và xoá schema riêng "reagent_catalog_bench").
+ * Thông tin kết nối đọc từ biến môi trường (JVM fork của JMH kế thừa được, khác với -D truyền cho Maven):
+ *   BENCH_JDBC_URL=jdbc:postgresql://localhost:5432/warehouse BENCH_JDBC_USER=postgres BENCH_JDBC_PASSWORD=postgres
+ *       mvn -Pjmh test-compile exec:exec -Djmh.include=ReagentCatalogBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ReagentCatalogBenchmark {
+    private static final String SCHEMA = "reagent_catalog_bench";
+    private static final int REAGENTS = 10_000;
+    private static final int SUPPLIES_PER_REAGENT = 3;
+    private static final int USAGES_PER_REAGENT = 6;
+    private static final int PAGE_SIZE = 50;
+    private static final int STREAM_BATCH_SIZE = 500;
+    private static final UUID START = new UUID(0L, 0L);
+
+    private static final String CATALOG_PAGE = """
+            WITH page AS (
+                SELECT reagent_id, name, catalog_number, manufacturer, cas_number,
+                       created_by, updated_by, created_at, updated_at
+                FROM %1$s.reagent
+                WHERE reagent_id > ?
+                ORDER BY reagent_id
+                OFFSET 0
+                LIMIT ?
+            )
+            SELECT p.reagent_id, p.name, p.catalog_number, p.manufacturer, p.cas_number,
+                   p.created_by, p.updated_by, p.created_at, p.updated_at,
+                   COALESCE(b.total_supplied, s.total, 0) AS total_quantity,
+                   COALESCE(b.available_quantity, COALESCE(s.total, 0) - COALESCE(u.total, 0)) AS available_quantity,
+                   s.earliest_expiration AS expiration_date
+            FROM page p
+            LEFT JOIN %1$s.reagent_balance b ON b.reagent_id = p.reagent_id
+            LEFT JOIN (SELECT reagent_id, SUM(quantity) AS total, MIN(expiration_date) AS earliest_expiration
+                       FROM %1$s.reagent_supply_history
+                       WHERE reagent_id IN (SELECT reagent_id FROM page)
+                       GROUP BY reagent_id) s ON s.reagent_id = p.reagent_id
+            LEFT JOIN (SELECT reagent_id, SUM(quantity_used) AS total
+                       FROM %1$s.reagent_usage_history
+                       WHERE reagent_id IN (SELECT page.reagent_id FROM page
+                                            LEFT JOIN %1$s.reagent_balance pb ON pb.reagent_id = page.reagent_id
+                                            WHERE pb.reagent_id IS NULL)
+                       GROUP BY reagent_id) u ON u.reagent_id = p.reagent_id
+            ORDER BY p.reagent_id
+            """.formatted(SCHEMA);
+
+    private Connection connection;
+    private PreparedStatement findAll;
+    private PreparedStatement supplySum;
+    private PreparedStatement usageSum;
+    private PreparedStatement supplyRows;
+    private PreparedStatement catalogPage;
+    private UUID[] sortedReagentIds;
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection(jdbcProperty("url"), jdbcProperty("user"), jdbcProperty("password"));
+        try (Statement ddl = connection.createStatement()) {
+            ddl.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+            ddl.execute("CREATE SCHEMA " + SCHEMA);
+            // Giống schema Hibernate sinh ra: không có index trên reagent_id của ledger
+            ddl.execute("CREATE TABLE " + SCHEMA + ".reagent (reagent_id uuid PRIMARY KEY, name varchar(100) NOT NULL, "
+                    + "catalog_number varchar(50) NOT NULL, manufacturer varchar(100) NOT NULL, cas_number varchar(20), "
+                    + "created_by uuid, updated_by uuid, created_at timestamp, updated_at timestamp)");
+            ddl.execute("CREATE TABLE " + SCHEMA + ".reagent_supply_history (supply_id uuid PRIMARY KEY, reagent_id uuid NOT NULL, "
+                    + "quantity numeric(10,2) NOT NULL, expiration_date date NOT NULL)");
+            ddl.execute("CREATE TABLE " + SCHEMA + ".reagent_usage_history (usage_id uuid PRIMARY KEY, reagent_id uuid NOT NULL, quantity_used numeric(19,6) NOT NULL)");
+            ddl.execute("CREATE TABLE " + SCHEMA + ".reagent_balance (reagent_id uuid PRIMARY KEY, total_supplied numeric(19,6) NOT NULL, "
+                    + "total_used numeric(19,6) NOT NULL, reserved_quantity numeric(19,6) NOT NULL DEFAULT 0, "
+                    + "available_quantity numeric(19,6) NOT NULL, updated_at timestamp NOT NULL)");
+        }
+        seed();
+        try (Statement analyze = connection.createStatement()) {
+            analyze.execute("ANALYZE " + SCHEMA + ".reagent");
+            analyze.execute("ANALYZE " + SCHEMA + ".reagent_supply_history");
+            analyze.execute("ANALYZE " + SCHEMA + ".reagent_usage_history");
+            analyze.execute("ANALYZE " + SCHEMA + ".reagent_balance");
+        }
+
+        findAll = connection.prepareStatement("SELECT reagent_id, name, catalog_number, manufacturer, cas_number, "
+                + "created_by, updated_by, created_at, updated_at FROM " + SCHEMA + ".reagent");
+        supplySum = connection.prepareStatement("SELECT COALESCE(SUM(quantity), 0) FROM " + SCHEMA + ".reagent_supply_history WHERE reagent_id = ?");
+        usageSum = connection.prepareStatement("SELECT COALESCE(SUM(quantity_used), 0) FROM " + SCHEMA + ".reagent_usage_history WHERE reagent_id = ?");
+        supplyRows = connection.prepareStatement("SELECT supply_id, quantity, expiration_date FROM " + SCHEMA + ".reagent_supply_history WHERE reagent_id = ?");
+        catalogPage = connection.prepareStatement(CATALOG_PAGE);
+    }
+
+    private void seed() throws SQLException {
+        connection.setAutoCommit(false);
+        try (PreparedStatement reagent = connection.prepareStatement("INSERT INTO " + SCHEMA + ".reagent VALUES (?, ?, ?, ?, ?, ?, NULL, now(), NULL)");
+             PreparedStatement supply = connection.prepareStatement("INSERT INTO " + SCHEMA + ".reagent_supply_history VALUES (?, ?, ?, ?)");
+             PreparedStatement usage = connection.prepareStatement("INSERT INTO " + SCHEMA + ".reagent_usage_history VALUES (?, ?, ?)");
+             PreparedStatement balance = connection.prepareStatement("INSERT INTO " + SCHEMA + ".reagent_balance VALUES (?, ?, ?, 0, ?, now())")) {
+            UUID createdBy = UUID.randomUUID();
+            for (int r = 0; r < REAGENTS; r++) {
+                UUID reagentId = UUID.randomUUID();
+                reagent.setObject(1, reagentId);
+                reagent.setString(2, "Reagent " + r);
+                reagent.setString(3, "CAT-" + r);
+                reagent.setString(4, "Vendor " + (r % 40));
+                reagent.setString(5, "64-17-" + (r % 10));
+                reagent.setObject(6, createdBy);
+                reagent.addBatch();
+
+                BigDecimal supplied = BigDecimal.ZERO;
+                for (int i = 0; i < SUPPLIES_PER_REAGENT; i++) {
+                    BigDecimal quantity = BigDecimal.valueOf(100 + random.nextInt(400));
+                    supply.setObject(1, UUID.randomUUID());
+                    supply.setObject(2, reagentId);
+                    supply.setBigDecimal(3, quantity);
+                    supply.setObject(4, LocalDate.now().plusDays(30 + random.nextInt(365)));
+                    supply.addBatch();
+                    supplied = supplied.add(quantity);
+                }
+                BigDecimal used = BigDecimal.ZERO;
+                for (int i = 0; i < USAGES_PER_REAGENT; i++) {
+                    BigDecimal quantity = BigDecimal.valueOf(1 + random.nextInt(20));
+                    usage.setObject(1, UUID.randomUUID());
+                    usage.setObject(2, reagentId);
+                    usage.setBigDecimal(3, quantity);
+                    usage.addBatch();
+                    used = used.add(quantity);
+                }
+                balance.setObject(1, reagentId);
+                balance.setBigDecimal(2, supplied);
+                balance.setBigDecimal(3, used);
+                balance.setBigDecimal(4, supplied.subtract(used));
+                balance.addBatch();
+
+                if (r % 1000 == 999) {
+                    reagent.executeBatch();
+                    supply.executeBatch();
+                    usage.executeBatch();
+                    balance.executeBatch();
+                }
+            }
+            reagent.executeBatch();
+            supply.executeBatch();
+            usage.executeBatch();
+            balance.executeBatch();
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        // UUID.compareTo so sánh có dấu, khác thứ tự uuid của Postgres, nên lấy thứ tự từ chính Postgres
+        try (Statement select = connection.createStatement();
+             ResultSet rs = select.executeQuery("SELECT reagent_id FROM " + SCHEMA + ".reagent ORDER BY reagent_id")) {
+            sortedReagentIds = new UUID[REAGENTS];
+            int i = 0;
+            while (rs.next()) {
+                sortedReagentIds[i++] = rs.getObject(1, UUID.class);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        try (Statement ddl = connection.createStatement()) {
+            ddl.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+        }
+        connection.close();
+    }
+
+    // Cách cũ: findAll + SUM supply + SUM usage + đọc supply history cho từng reagent (3N + 1 câu)
+    @Benchmark
+    public void legacyListAll(Blackhole blackhole) throws SQLException {
+        try (ResultSet reagents = findAll.executeQuery()) {
+            while (reagents.next()) {
+                UUID reagentId = reagents.getObject(1, UUID.class);
+                blackhole.consume(reagents.getString(2));
+                BigDecimal supplied = scalar(supplySum, reagentId);
+                BigDecimal used = scalar(usageSum, reagentId);
+                blackhole.consume(supplied.subtract(used));
+                supplyRows.setObject(1, reagentId);
+                try (ResultSet supplies = supplyRows.executeQuery()) {
+                    LocalDate earliest = null;
+                    while (supplies.next()) {
+                        LocalDate expiration = supplies.getObject(3, LocalDate.class);
+                        if (earliest == null || expiration.isBefore(earliest)) earliest = expiration;
+                    }
+                    blackhole.consume(earliest);
+                }
+            }
+        }
+    }
+
+    // Một trang 50 reagent bắt đầu từ vị trí ngẫu nhiên trong catalog
+    @Benchmark
+    public void keysetPage(Blackhole blackhole) throws SQLException {
+        UUID after = sortedReagentIds[random.nextInt(REAGENTS - PAGE_SIZE)];
+        blackhole.consume(readPage(after, PAGE_SIZE + 1, blackhole));
+    }
+
+    // Toàn bộ catalog theo batch như StreamReagentCatalog
+    @Benchmark
+    public void keysetFullCatalog(Blackhole blackhole) throws SQLException {
+        UUID after = START;
+        int total = 0;
+        while (true) {
+            UUID last = readPage(after, STREAM_BATCH_SIZE, blackhole);
+            if (last == null) break;
+            after = last;
+            total += STREAM_BATCH_SIZE;
+        }
+        blackhole.consume(total);
+    }
+
+    // Trả về reagentId cuối của trang, null nếu trang rỗng
+    private UUID readPage(UUID after, int limit, Blackhole blackhole) throws SQLException {
+        catalogPage.setObject(1, after);
+        catalogPage.setInt(2, limit);
+        UUID last = null;
+        try (ResultSet rs = catalogPage.executeQuery()) {
+            while (rs.next()) {
+                last = rs.getObject(1, UUID.class);
+                blackhole.consume(rs.getString(2));
+                blackhole.consume(rs.getBigDecimal(10));
+                blackhole.consume(rs.getBigDecimal(11));
+                blackhole.consume(rs.getObject(12, LocalDate.class));
+            }
+        }
+        return last;
+    }
+
+    private static BigDecimal scalar(PreparedStatement statement, UUID reagentId) throws SQLException {
+        statement.setObject(1, reagentId);
+        try (ResultSet rs = statement.executeQuery()) {
+            rs.next();
+            return rs.getBigDecimal(1);
+        }
+    }
+
+    private static String jdbcProperty(String name) {
+        String fallback = switch (name) {
+            case "url" -> "jdbc:postgresql://localhost:5432/warehouse";
+            default -> "postgres";
+        };
+        String value = System.getenv("BENCH_JDBC_" + name.toUpperCase());
+        return value != null ? value : fallback;
+    }
+}
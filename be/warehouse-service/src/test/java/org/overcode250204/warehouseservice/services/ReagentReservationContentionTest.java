@@ -0,0 +1,153 @@
+package org.overcode250204.warehouseservice.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.overcode250204.warehouseservice.model.entities.ReagentBalance;
+import org.overcode250204.warehouseservice.model.entities.ReagentReservation;
+import org.overcode250204.warehouseservice.repositories.ReagentBalanceRepository;
+import org.overcode250204.warehouseservice.repositories.ReagentReservationRepository;
+import org.overcode250204.warehouseservice.services.implement.ReagentBalanceServiceImpl;
+import org.overcode250204.warehouseservice.services.implement.ReagentReservationServiceImpl;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentBalanceService;
+import org.overcode250204.warehouseservice.services.interfaces.ReagentReservationService;
+import org.overcode250204.warehouseservice.utils.TransactionRetryExecutor;
+import org.overcode250204.testsupport.PostgresContentionTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+
+import java.math.BigDecimal;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Nhiều thread cùng giữ chỗ / tiêu thụ một reagent có tồn kho giới hạn trên Postgres thật:
+ * tổng lượng được cấp không bao giờ vượt quá tồn kho và available_quantity không âm.
+ */
+@DataJpaTest(properties = {
+        "spring.config.import=",
+        "spring.cloud.config.enabled=false",
+        "spring.profiles.active=test",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "app.reservation.ttl=PT0S"
+})
+@Import({ReagentBalanceServiceImpl.class, ReagentReservationServiceImpl.class, TransactionRetryExecutor.class,
+        ReagentReservationContentionTest.MetricsConfig.class})
+// Mỗi thread tự mở transaction qua TransactionRetryExecutor
+class ReagentReservationContentionTest extends PostgresContentionTest {
+
+    private static final int THREADS = 32;
+    private static final int ATTEMPTS_PER_THREAD = 25;
+    private static final BigDecimal STOCK = new BigDecimal("100");
+
+    @TestConfiguration
+    static class MetricsConfig {
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    @Autowired
+    private ReagentReservationService reservationService;
+    @Autowired
+    private ReagentBalanceService balanceService;
+    @Autowired
+    private ReagentBalanceRepository balanceRepository;
+    @Autowired
+    private ReagentReservationRepository reservationRepository;
+    @Autowired
+    private TransactionRetryExecutor retryExecutor;
+
+    private UUID seedReagent() {
+        UUID reagentId = UUID.randomUUID();
+        retryExecutor.execute(status -> balanceRepository.applyDelta(reagentId, STOCK, BigDecimal.ZERO));
+        return reagentId;
+    }
+
+    // Chạy cùng một thao tác ATTEMPTS_PER_THREAD lần trên mỗi thread, bắt đầu đồng thời; trả về số lần thành công
+    private int runConcurrently(Callable<Boolean> attempt) throws Exception {
+        AtomicInteger granted = new AtomicInteger();
+        runConcurrently(THREADS, t -> {
+            for (int i = 0; i < ATTEMPTS_PER_THREAD; i++) {
+                if (attempt.call()) {
+                    granted.incrementAndGet();
+                }
+            }
+        });
+        return granted.get();
+    }
+
+    private void assertConsistent(ReagentBalance balance) {
+        assertTrue(balance.getAvailableQuantity().signum() >= 0, "available went negative: " + balance.getAvailableQuantity());
+        assertEquals(0, balance.getTotalSupplied()
+                .subtract(balance.getTotalUsed())
+                .subtract(balance.getReservedQuantity())
+                .compareTo(balance.getAvailableQuantity()));
+    }
+
+    @Test
+    void parallelReservationsNeverExceedStock() throws Exception {
+        UUID reagentId = seedReagent();
+        UUID instrumentId = UUID.randomUUID();
+
+        // 32 x 25 = 800 yêu cầu 1 đơn vị trên tồn kho 100
+        int granted = runConcurrently(() -> retryExecutor.execute(status -> reservationService
+                .reserve(reagentId, BigDecimal.ONE, instrumentId, "tester", UUID.randomUUID())
+                .isPresent()));
+
+        assertEquals(STOCK.intValue(), granted);
+        ReagentBalance balance = balanceRepository.findById(reagentId).orElseThrow();
+        assertEquals(0, balance.getAvailableQuantity().signum());
+        assertEquals(0, STOCK.compareTo(balance.getReservedQuantity()));
+        assertEquals(0, STOCK.compareTo(reservationRepository.sumPendingByReagentId(reagentId)));
+        assertConsistent(balance);
+    }
+
+    @Test
+    void mixedReserveConsumeAndExpiryKeepsBalanceConsistent() throws Exception {
+        UUID reagentId = seedReagent();
+        UUID instrumentId = UUID.randomUUID();
+
+        // Xen kẽ giữ chỗ, tiêu thụ trực tiếp và job trả hàng hết hạn (ttl = 0 nên mọi reservation đều hết hạn ngay)
+        AtomicInteger sequence = new AtomicInteger();
+        int granted = runConcurrently(() -> switch (sequence.incrementAndGet() % 3) {
+            case 0 -> retryExecutor.execute(status -> balanceService.tryConsume(reagentId, new BigDecimal("2")));
+            case 1 -> {
+                reservationService.releaseExpired();
+                yield false;
+            }
+            default -> retryExecutor.execute(status -> reservationService
+                    .reserve(reagentId, new BigDecimal("3"), instrumentId, "tester", UUID.randomUUID())
+                    .isPresent());
+        });
+        reservationService.releaseExpired();
+
+        assertTrue(granted > 0);
+        ReagentBalance balance = balanceRepository.findById(reagentId).orElseThrow();
+        assertEquals(0, balance.getReservedQuantity().signum());
+        assertTrue(balance.getTotalUsed().compareTo(STOCK) <= 0);
+        assertConsistent(balance);
+    }
+
+    @Test
+    void redeliveredRequestReusesReservation() {
+        UUID reagentId = seedReagent();
+        UUID eventId = UUID.randomUUID();
+
+        Optional<ReagentReservation> first = retryExecutor.execute(status ->
+                reservationService.reserve(reagentId, BigDecimal.TEN, UUID.randomUUID(), "tester", eventId));
+        Optional<ReagentReservation> second = retryExecutor.execute(status ->
+                reservationService.reserve(reagentId, BigDecimal.TEN, UUID.randomUUID(), "tester", eventId));
+
+        assertEquals(first.orElseThrow().getReservationId(), second.orElseThrow().getReservationId());
+        assertEquals(0, new BigDecimal("90").compareTo(balanceService.getAvailableQuantity(reagentId)));
+    }
+}